@@ -0,0 +1,98 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks parsing an Exomizer output file into an {@link ExomizerGenotype}.
+ *
+ * @version $Id$
+ * @since
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExomizerGenotypeBenchmark
+{
+    /** The number of variants in the file. */
+    @Param({ "1000", "20000" })
+    public int variants;
+
+    /** The number of distinct genes the variants fall in. */
+    @Param({ "2000" })
+    public int genes;
+
+    /** The generated Exomizer output. */
+    private File file;
+
+    /**
+     * Generate the Exomizer output file.
+     *
+     * @throws IOException if writing the file fails
+     */
+    @Setup
+    public void setUp() throws IOException
+    {
+        this.file = File.createTempFile("exomizer", ".vcf");
+        new SyntheticData(2, 42).writeExomizerOutput(this.file, this.variants, this.genes);
+    }
+
+    /**
+     * Delete the generated file.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        if (!this.file.delete()) {
+            this.file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Parse the file.
+     *
+     * @return the parsed genotype, consumed by JMH
+     * @throws IOException if the file was removed
+     */
+    @Benchmark
+    public ExomizerGenotype parse() throws IOException
+    {
+        return new ExomizerGenotype(this.file);
+    }
+}
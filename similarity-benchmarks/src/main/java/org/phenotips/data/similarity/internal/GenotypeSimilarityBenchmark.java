@@ -0,0 +1,200 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.similarity.ExternalToolJobManager;
+import org.phenotips.data.similarity.Genotype;
+import org.phenotips.data.similarity.PatientSimilarityView;
+import org.phenotips.data.similarity.PatientSimilarityViewFactory;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.helpers.NOPLogger;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Benchmarks building a {@link RestrictedGenotypeSimilarityView}, which scores all the genes shared by a pair of
+ * patients against the other genotyped patients. The phenotype similarity with the other patients is mocked, so that
+ * only the genotype part is measured.
+ *
+ * @version $Id$
+ * @since
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GenotypeSimilarityBenchmark
+{
+    /** The number of genotyped patients. */
+    @Param({ "50", "200" })
+    public int patients;
+
+    /** The number of variants of each patient. */
+    @Param({ "500" })
+    public int variants;
+
+    /** The number of distinct genes the variants fall in. */
+    @Param({ "2000" })
+    public int genes;
+
+    /** The genotyped patients. */
+    private List<Patient> genotyped;
+
+    /** Where the Exomizer output files are generated. */
+    private File dataDir;
+
+    /** Used for picking the next pair of patients. */
+    private int next;
+
+    /** The worker threads scoring the other patients. */
+    private DefaultGenotypeScoringPool scoringPool;
+
+    /**
+     * Generate the patients with their genotypes, and the components used by the genotype view.
+     *
+     * @throws Exception if generating the data fails
+     */
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception
+    {
+        SyntheticData data = new SyntheticData(2, 42);
+        this.genotyped = data.createPatients(this.patients, 0);
+        this.dataDir = File.createTempFile("exomizer", "");
+        if (!this.dataDir.delete() || !this.dataDir.mkdirs()) {
+            throw new IllegalStateException("Unable to create " + this.dataDir.getAbsolutePath());
+        }
+
+        ExternalToolJobManager<Genotype> exomizerManager = mock(ExternalToolJobManager.class);
+        PatientRepository repository = mock(PatientRepository.class);
+        GeneCarrierIndex geneCarriers = new DefaultGeneCarrierIndex();
+        Set<String> ids = new HashSet<String>();
+        for (Patient patient : this.genotyped) {
+            File file = new File(this.dataDir, patient.getId() + ".vcf");
+            data.writeExomizerOutput(file, this.variants, this.genes);
+            Genotype genotype = new ExomizerGenotype(file);
+            when(exomizerManager.getResult(patient.getId())).thenReturn(genotype);
+            geneCarriers.put(patient.getId(), genotype);
+            when(repository.getPatientById(patient.getId())).thenReturn(patient);
+            ids.add(patient.getId());
+        }
+        when(exomizerManager.getAllCompleted()).thenReturn(ids);
+
+        PatientSimilarityView pair = mock(PatientSimilarityView.class);
+        when(pair.getScore()).thenReturn(0.5);
+        PatientSimilarityViewFactory factory = mock(PatientSimilarityViewFactory.class);
+        when(factory.makeSimilarPatient(Mockito.any(Patient.class), Mockito.any(Patient.class))).thenReturn(pair);
+
+        CacheManager cacheManager = mock(CacheManager.class);
+        Cache<Double> cache = mock(Cache.class);
+        doReturn(cache).when(cacheManager).createNewLocalCache(Mockito.any(CacheConfiguration.class));
+        ConfigurationSource configuration = mock(ConfigurationSource.class);
+        when(configuration.getProperty(Mockito.anyString(), Mockito.anyInt())).thenReturn(32);
+        DefaultPatientPairScoreCache pairScores = new DefaultPatientPairScoreCache();
+        ReflectionUtils.setFieldValue(pairScores, "configuration", configuration);
+        ReflectionUtils.setFieldValue(pairScores, "logger", NOPLogger.NOP_LOGGER);
+        pairScores.initialize();
+        when(configuration.getProperty(Mockito.eq("phenotips.similarity.genotype.threads"), Mockito.anyInt()))
+            .thenReturn(Runtime.getRuntime().availableProcessors());
+        this.scoringPool = new DefaultGenotypeScoringPool();
+        ReflectionUtils.setFieldValue(this.scoringPool, "configuration", configuration);
+        ReflectionUtils.setFieldValue(this.scoringPool, "logger", NOPLogger.NOP_LOGGER);
+        this.scoringPool.initialize();
+        Environment environment = mock(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(this.dataDir);
+
+        ComponentManager componentManager = SyntheticData.registerComponentManager();
+        doReturn(cacheManager).when(componentManager).getInstance(CacheManager.class);
+        doReturn(repository).when(componentManager).getInstance(PatientRepository.class);
+        doReturn(factory).when(componentManager).getInstance(PatientSimilarityViewFactory.class, "restricted");
+        doReturn(exomizerManager).when(componentManager).getInstance(ExternalToolJobManager.class, "exomizer");
+        doReturn(environment).when(componentManager).getInstance(Environment.class);
+        doReturn(geneCarriers).when(componentManager).getInstance(GeneCarrierIndex.class);
+        doReturn(pairScores).when(componentManager).getInstance(PatientPairScoreCache.class);
+        doReturn(this.scoringPool).when(componentManager).getInstance(GenotypeScoringPool.class);
+    }
+
+    /**
+     * Stop the scoring threads and delete the generated files.
+     *
+     * @throws Exception if stopping the scoring threads fails
+     */
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        this.scoringPool.dispose();
+        for (File file : this.dataDir.listFiles()) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+        if (!this.dataDir.delete()) {
+            this.dataDir.deleteOnExit();
+        }
+    }
+
+    /**
+     * Score the genotypes of a new pair of patients. Gene matches are computed lazily, and the mocked cache never
+     * returns them, so every call scores the pair.
+     *
+     * @return the genotype similarity score, consumed by JMH
+     */
+    @Benchmark
+    public double scorePair()
+    {
+        Patient match = this.genotyped.get(this.next);
+        this.next = (this.next + 1) % this.genotyped.size();
+        return new RestrictedGenotypeSimilarityView(match, this.genotyped.get(this.next),
+            SyntheticData.getOpenAccess()).getScore();
+    }
+}
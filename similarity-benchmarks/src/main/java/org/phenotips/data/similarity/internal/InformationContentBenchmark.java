@@ -0,0 +1,98 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.ontology.OntologyService;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.helpers.NOPLogger;
+
+/**
+ * Benchmarks the pre-computation of the ontology information content done by
+ * {@link DefaultPatientSimilarityViewFactory} when no up to date snapshot is available.
+ *
+ * @version $Id$
+ * @since
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InformationContentBenchmark
+{
+    /** The number of terms in the generated ontology. */
+    @Param({ "2000", "10000" })
+    public int ontologySize;
+
+    /** The number of diseases in the generated MIM ontology, about the size of OMIM. */
+    @Param({ "7000" })
+    public int diseases;
+
+    /** The number of symptoms of each disease. */
+    @Param({ "10" })
+    public int symptoms;
+
+    /** The factory doing the computation. */
+    private DefaultPatientSimilarityViewFactory factory;
+
+    /** The generated HPO. */
+    private OntologyService hpo;
+
+    /** The generated MIM. */
+    private OntologyService mim;
+
+    /**
+     * Generate the ontologies.
+     */
+    @Setup
+    public void setUp()
+    {
+        SyntheticData data = new SyntheticData(this.ontologySize, 42);
+        this.hpo = data.createHpoService();
+        this.mim = data.createMimService(this.diseases, this.symptoms);
+        this.factory = new DefaultPatientSimilarityViewFactory();
+        this.factory.logger = NOPLogger.NOP_LOGGER;
+    }
+
+    /**
+     * Compute the ontology index with the information content of all the terms.
+     *
+     * @return the computed snapshot, consumed by JMH
+     */
+    @Benchmark
+    public OntologySnapshot computeSnapshot()
+    {
+        return this.factory.computeSnapshot(this.hpo, this.mim);
+    }
+}
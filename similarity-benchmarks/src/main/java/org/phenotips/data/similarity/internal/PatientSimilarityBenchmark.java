@@ -0,0 +1,119 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Patient;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.sf.json.JSONArray;
+
+/**
+ * Benchmarks the phenotype scoring and explanation of a pair of patients, {@link DefaultPatientSimilarityView}. Each
+ * invocation uses a new pair of patients, and no profile cache is available, so this measures the cost of a first
+ * request for a pair.
+ *
+ * @version $Id$
+ * @since
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PatientSimilarityBenchmark
+{
+    /** The number of generated patients, pairs are taken among them. */
+    private static final int PATIENTS = 500;
+
+    /** The number of terms in the generated ontology, about the size of the HPO. */
+    @Param({ "10000" })
+    public int ontologySize;
+
+    /** The number of phenotypes of each patient. */
+    @Param({ "5", "20", "80" })
+    public int features;
+
+    /** The generated patients. */
+    private List<Patient> patients;
+
+    /** Used for picking the next pair of patients. */
+    private int next;
+
+    /**
+     * Generate the ontology and the patients.
+     */
+    @Setup
+    public void setUp()
+    {
+        SyntheticData data = new SyntheticData(this.ontologySize, 42);
+        SyntheticData.registerComponentManager();
+        data.initializeSimilarityViews();
+        this.patients = data.createPatients(PATIENTS, this.features);
+    }
+
+    /**
+     * Score a new pair of patients.
+     *
+     * @return the score, consumed by JMH
+     */
+    @Benchmark
+    public double getScore()
+    {
+        return nextPair().getScore();
+    }
+
+    /**
+     * Explain the phenotype match of a new pair of patients.
+     *
+     * @return the matched feature clusters, consumed by JMH
+     */
+    @Benchmark
+    public JSONArray getFeatureMatchesJSON()
+    {
+        return nextPair().getFeatureMatchesJSON();
+    }
+
+    /**
+     * Pair the next two patients.
+     *
+     * @return a new view of the pair
+     */
+    private DefaultPatientSimilarityView nextPair()
+    {
+        Patient match = this.patients.get(this.next);
+        this.next = (this.next + 1) % this.patients.size();
+        return new DefaultPatientSimilarityView(match, this.patients.get(this.next), SyntheticData.getOpenAccess());
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.components.ComponentManagerRegistry;
+import org.phenotips.data.Feature;
+import org.phenotips.data.Patient;
+import org.phenotips.data.permissions.AccessLevel;
+import org.phenotips.data.similarity.AccessType;
+import org.phenotips.data.similarity.internal.mocks.MockFeature;
+import org.phenotips.data.similarity.internal.mocks.MockOntologyTerm;
+import org.phenotips.ontology.OntologyManager;
+import org.phenotips.ontology.OntologyService;
+import org.phenotips.ontology.OntologyTerm;
+
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.inject.Provider;
+
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.helpers.NOPLogger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Generates a synthetic ontology shaped like the HPO, patients described with its terms, MIM diseases annotated with
+ * its terms, and Exomizer output files, so that the benchmarks run offline and always on the same data for a given
+ * seed.
+ * <p>
+ * The ontology is a random DAG under the HPO roots: each term has one parent among the terms generated before it, and
+ * some have a second one, which gives a depth and a branching similar to the HPO. Information content grows with the
+ * depth.
+ * </p>
+ *
+ * @version $Id$
+ * @since
+ */
+public class SyntheticData
+{
+    /** The overall root of the HPO. */
+    private static final String HP_ROOT = "HP:0000001";
+
+    /** The root of the phenotypic abnormality portion of HPO. */
+    private static final String PHENOTYPE_ROOT = "HP:0000118";
+
+    /** The number used in the identifier of the first generated term, above the HPO roots. */
+    private static final int FIRST_TERM_NUMBER = 1000;
+
+    /** How many generated terms have a second parent. */
+    private static final double SECOND_PARENT_RATIO = 0.2;
+
+    /** How many variants are homozygous. */
+    private static final double HOMOZYGOUS_RATIO = 0.1;
+
+    /** Name of the MIM term property listing the symptoms of a disease. */
+    private static final String SYMPTOMS = "actual_symptom";
+
+    /** An access type allowing to see everything in the matched patient. */
+    private static final AccessType OPEN_ACCESS = new AccessType()
+    {
+        @Override
+        public AccessLevel getAccessLevel()
+        {
+            return null;
+        }
+
+        @Override
+        public boolean isOpenAccess()
+        {
+            return true;
+        }
+
+        @Override
+        public boolean isLimitedAccess()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isPrivateAccess()
+        {
+            return false;
+        }
+    };
+
+    /** The source of randomness, seeded so that the generated data is always the same. */
+    private final Random random;
+
+    /** All the terms, the two HPO roots first. */
+    private final List<OntologyTerm> terms = new ArrayList<OntologyTerm>();
+
+    /** The terms, indexed by identifier. */
+    private final Map<String, OntologyTerm> termsById = new HashMap<String, OntologyTerm>();
+
+    /** The information content of each term. */
+    private final Map<OntologyTerm, Double> termICs = new HashMap<OntologyTerm, Double>();
+
+    /** The conditional information content of each term, given its parents. */
+    private final Map<OntologyTerm, Double> condICs = new HashMap<OntologyTerm, Double>();
+
+    /**
+     * Generate a synthetic ontology.
+     *
+     * @param ontologySize the number of terms in the ontology, including the two roots
+     * @param seed the seed for the random data
+     */
+    public SyntheticData(int ontologySize, long seed)
+    {
+        this.random = new Random(seed);
+        OntologyTerm root = addTerm(HP_ROOT, Collections.<OntologyTerm>emptyList(), 0.0);
+        addTerm(PHENOTYPE_ROOT, Collections.singletonList(root), 0.000001);
+        for (int i = 2; i < ontologySize; ++i) {
+            List<OntologyTerm> parents = new ArrayList<OntologyTerm>(2);
+            parents.add(pickTerm());
+            if (this.random.nextDouble() < SECOND_PARENT_RATIO) {
+                OntologyTerm other = pickTerm();
+                if (!parents.contains(other)) {
+                    parents.add(other);
+                }
+            }
+            addTerm(String.format("HP:%07d", FIRST_TERM_NUMBER + i), parents, 0.5 + 2 * this.random.nextDouble());
+        }
+    }
+
+    /**
+     * An access type allowing to see everything in the matched patient.
+     *
+     * @return an open access type
+     */
+    public static AccessType getOpenAccess()
+    {
+        return OPEN_ACCESS;
+    }
+
+    /**
+     * Register a new mock component manager as the context component manager returned by
+     * {@link ComponentManagerRegistry}. Components not explicitly registered on the returned mock are {@code null}.
+     *
+     * @return the mock component manager
+     */
+    @SuppressWarnings("unchecked")
+    public static ComponentManager registerComponentManager()
+    {
+        ComponentManager componentManager = mock(ComponentManager.class);
+        Provider<ComponentManager> provider = mock(Provider.class);
+        when(provider.get()).thenReturn(componentManager);
+        ReflectionUtils.setFieldValue(new ComponentManagerRegistry(), "cmProvider", provider);
+        return componentManager;
+    }
+
+    /**
+     * Build the ontology index of the generated ontology, with the generated information content.
+     *
+     * @return the ontology index
+     */
+    public OntologyIndex getIndex()
+    {
+        return OntologyIndex.fromTerms(this.termICs, this.condICs);
+    }
+
+    /**
+     * Create an ontology manager resolving the generated terms.
+     *
+     * @return a mock ontology manager
+     */
+    public OntologyManager createOntologyManager()
+    {
+        OntologyManager ontologyManager = mock(OntologyManager.class);
+        when(ontologyManager.resolveTerm(Mockito.anyString())).thenAnswer(new Answer<OntologyTerm>()
+        {
+            @Override
+            public OntologyTerm answer(InvocationOnMock invocation)
+            {
+                return SyntheticData.this.termsById.get(invocation.getArguments()[0]);
+            }
+        });
+        return ontologyManager;
+    }
+
+    /**
+     * Set up the static data of {@link DefaultPatientSimilarityView} with the generated ontology.
+     */
+    public void initializeSimilarityViews()
+    {
+        DefaultPatientSimilarityView.initializeStaticData(getIndex(), createOntologyManager(),
+            NOPLogger.NOP_LOGGER);
+    }
+
+    /**
+     * Create an ontology service serving the generated ontology, as the HPO.
+     *
+     * @return a mock ontology service
+     */
+    public OntologyService createHpoService()
+    {
+        OntologyService hpo = createOntologyService("HPO", new HashSet<OntologyTerm>(this.terms));
+        when(hpo.getTerm(Mockito.anyString())).thenAnswer(new Answer<OntologyTerm>()
+        {
+            @Override
+            public OntologyTerm answer(InvocationOnMock invocation)
+            {
+                return SyntheticData.this.termsById.get(invocation.getArguments()[0]);
+            }
+        });
+        return hpo;
+    }
+
+    /**
+     * Create an ontology service serving random diseases annotated with the generated terms, as the MIM.
+     *
+     * @param diseases the number of diseases
+     * @param symptoms the number of symptoms of each disease
+     * @return a mock ontology service
+     */
+    public OntologyService createMimService(int diseases, int symptoms)
+    {
+        Set<OntologyTerm> result = new HashSet<OntologyTerm>();
+        for (int i = 0; i < diseases; ++i) {
+            List<String> ids = new ArrayList<String>(symptoms);
+            for (int j = 0; j < symptoms; ++j) {
+                ids.add(pickTerm().getId());
+            }
+            OntologyTerm disease = mock(OntologyTerm.class);
+            when(disease.getId()).thenReturn(String.format("MIM:%06d", 100000 + i));
+            when(disease.get(SYMPTOMS)).thenReturn(ids);
+            result.add(disease);
+        }
+        return createOntologyService("MIM", result);
+    }
+
+    /**
+     * Create random patients with present phenotypes from the generated ontology.
+     *
+     * @param count the number of patients
+     * @param features the number of phenotypes of each patient
+     * @return mock patients
+     */
+    public List<Patient> createPatients(int count, int features)
+    {
+        List<Patient> result = new ArrayList<Patient>(count);
+        for (int i = 0; i < count; ++i) {
+            Set<Feature> phenotypes = new HashSet<Feature>();
+            for (int j = 0; j < features; ++j) {
+                String id = pickTerm().getId();
+                phenotypes.add(new MockFeature(id, id, "phenotype", true));
+            }
+            Patient patient = mock(Patient.class);
+            when(patient.getId()).thenReturn(String.format("P%07d", i + 1));
+            Mockito.<Set<? extends Feature>>when(patient.getFeatures()).thenReturn(phenotypes);
+            result.add(patient);
+        }
+        return result;
+    }
+
+    /**
+     * Write a random Exomizer output file.
+     *
+     * @param file the file to write to
+     * @param variants the number of variants in the file
+     * @param genes the number of distinct genes the variants fall in
+     * @throws IOException if writing the file fails
+     */
+    public void writeExomizerOutput(File file, int variants, int genes) throws IOException
+    {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.write("##fileformat=VCFv4.1\n");
+            out.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tSAMPLE\n");
+            for (int i = 0; i < variants; ++i) {
+                String gene = "GENE" + this.random.nextInt(genes);
+                out.write(String.format("chr%d\t%d\t.\tA\tG\t100\tPASS\tGENE=%s;PHENO_SCORE=%.4f;VARIANT_SCORE=%.4f;"
+                    + "EFFECT=MISSENSE\tGT\t%s\n", 1 + this.random.nextInt(22), 1 + this.random.nextInt(100000000),
+                    gene, this.random.nextDouble(), this.random.nextDouble(),
+                    this.random.nextDouble() < HOMOZYGOUS_RATIO ? "1/1" : "0/1"));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Pick a random term under the phenotype root, or the phenotype root itself.
+     *
+     * @return a random generated term
+     */
+    private OntologyTerm pickTerm()
+    {
+        return this.terms.get(1 + this.random.nextInt(this.terms.size() - 1));
+    }
+
+    /**
+     * Create a term and store it along with its information content.
+     *
+     * @param id the identifier of the term
+     * @param parents the parents of the term
+     * @param condIC the conditional information content of the term, given its parents
+     * @return the new term
+     */
+    private OntologyTerm addTerm(String id, Collection<OntologyTerm> parents, double condIC)
+    {
+        Set<OntologyTerm> ancestors = new HashSet<OntologyTerm>();
+        double parentIC = 0;
+        for (OntologyTerm parent : parents) {
+            ancestors.addAll(parent.getAncestorsAndSelf());
+            parentIC = Math.max(parentIC, this.termICs.get(parent));
+        }
+        OntologyTerm term = new MockOntologyTerm(id, parents, ancestors);
+        this.terms.add(term);
+        this.termsById.put(id, term);
+        this.termICs.put(term, parentIC + condIC);
+        this.condICs.put(term, condIC);
+        return term;
+    }
+
+    /**
+     * Create an ontology service returning some terms for any query.
+     *
+     * @param alias the name of the ontology
+     * @param content the terms returned by queries
+     * @return a mock ontology service
+     */
+    @SuppressWarnings("unchecked")
+    private OntologyService createOntologyService(String alias, Set<OntologyTerm> content)
+    {
+        OntologyService ontology = mock(OntologyService.class);
+        when(ontology.getAliases()).thenReturn(Collections.singleton(alias));
+        when(ontology.size()).thenReturn((long) content.size());
+        when(ontology.getVersion()).thenReturn("synthetic");
+        when(ontology.search(Mockito.anyMap(), Mockito.anyMap())).thenReturn(content);
+        return ontology;
+    }
+}
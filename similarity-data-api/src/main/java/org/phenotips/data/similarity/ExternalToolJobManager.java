@@ -94,9 +94,19 @@
     Set<String> getAllCompleted();
 
     /**
-     * Add the {@link Patient} to the processing queue for the tool. If the patient already has a job in the queue, move
-     * the job to the end of the queue. If the patient had a previously successful job, the results will be overwritten
-     * by the new job (but not until the job actually runs).
+     * Return whether the results of previous runs have all been loaded. Until then, {@link #getAllCompleted()} only
+     * includes the results loaded so far, and {@link #getResult(String)} may not find a result yet, or have to wait for
+     * it to be loaded.
+     * 
+     * @return {@code true} if all the available results are loaded, {@code false} if some are still loading
+     */
+    boolean isReady();
+
+    /**
+     * Add the {@link Patient} to the processing queue for the tool, ahead of any background processing. If the patient
+     * already has a job waiting in the queue, it is replaced by the new job instead of running twice. If the patient
+     * had a previously successful job, the results will be overwritten by the new job (but not until the job actually
+     * runs).
      * 
      * @param patient the {@link Patient} to process with the external tool.
      */
@@ -62,4 +62,13 @@ public interface PatientSimilarityView extends Patient
      *         match, with {@code 0} for patients with no similarities
      */
     double getScore();
+
+    /**
+     * An upper bound for the {@link #getScore() similarity score}, which is cheaper to compute than the score itself.
+     * This allows skipping the full scoring of patients that can't be among the best matches.
+     * 
+     * @return a value greater than or equal to the score
+     * @since 1.0M10
+     */
+    double getScoreUpperBound();
 }
@@ -23,6 +23,9 @@
 
 import org.xwiki.component.annotation.Role;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * Creates a custom view of the similarities between two patients, a reference patients and a patient matching the
  * reference patient's phenotypic profile. The resulting object is an extended version of the {@link Patient base
@@ -47,6 +50,36 @@
      */
     PatientSimilarityView makeSimilarPatient(Patient match, Patient reference) throws IllegalArgumentException;
 
+    /**
+     * Instantiates {@link PatientSimilarityView}s specific to this factory, linking each of the matched patients to the
+     * same reference patient. This is equivalent to calling {@link #makeSimilarPatient(Patient, Patient)} for each
+     * match, but the data needed from the reference patient is only prepared once, and the returned views already
+     * have their {@link PatientSimilarityView#getScore() score} computed.
+     * 
+     * @param matches the matched patients whose data will be exposed
+     * @param reference the patient used as the reference against which to compare
+     * @return the extended patients, in the same order as the matches
+     * @throws IllegalArgumentException if the reference or one of the matches is {@code null}
+     * @since 1.0M10
+     */
+    List<PatientSimilarityView> makeSimilarPatients(Collection<? extends Patient> matches, Patient reference)
+        throws IllegalArgumentException;
+
+    /**
+     * Instantiates {@link PatientSimilarityView}s like {@link #makeSimilarPatients(Collection, Patient)}, but without
+     * computing their score, so that they can be scored later, possibly on other threads. Everything that depends on
+     * the current context, such as access rights and the components needed for scoring, is resolved on the current
+     * thread, and the data needed from the reference patient is only prepared once.
+     * 
+     * @param matches the matched patients whose data will be exposed
+     * @param reference the patient used as the reference against which to compare
+     * @return the extended patients, in the same order as the matches
+     * @throws IllegalArgumentException if the reference or one of the matches is {@code null}
+     * @since 1.0M10
+     */
+    List<PatientSimilarityView> prepareSimilarPatients(Collection<? extends Patient> matches, Patient reference)
+        throws IllegalArgumentException;
+
     /**
      * Converts a different type of {@link PatientSimilarityView} to the type managed by this factory. Useful for
      * converting between restricted and open patient similarity views.
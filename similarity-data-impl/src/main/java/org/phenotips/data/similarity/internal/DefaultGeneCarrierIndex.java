@@ -0,0 +1,232 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.Genotype;
+import org.phenotips.data.similarity.Variant;
+
+import org.xwiki.component.annotation.Component;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Singleton;
+
+/**
+ * Default implementation of {@link GeneCarrierIndex}, keeping an immutable {@link GeneScores} snapshot for each gene,
+ * replaced on each update. Lookups don't lock and can run concurrently with genotypes being indexed. During bulk loads,
+ * new carriers are appended to growable per-gene buffers, and each gene is sorted once at the end of the load.
+ *
+ * @version $Id$
+ * @since
+ */
+@Component
+@Singleton
+public class DefaultGeneCarrierIndex implements GeneCarrierIndex
+{
+    /** The ordinals of the indexed patients. */
+    private final PatientOrdinals ordinals = new PatientOrdinals();
+
+    /** The carrier scores of each gene. */
+    private final Map<String, GeneScores> scores = new ConcurrentHashMap<String, GeneScores>();
+
+    /** The indexed genes of each patient, needed for removing a patient from the index. */
+    private final Map<String, Set<String>> patientGenes = new HashMap<String, Set<String>>();
+
+    /** The carriers gathered for each gene during a bulk load, {@code null} outside bulk loads; guarded by this. */
+    private Map<String, CarrierBuffer> pending;
+
+    @Override
+    public synchronized void put(String patientId, Genotype genotype)
+    {
+        remove(patientId);
+        int patient = this.ordinals.intern(patientId);
+        Set<String> genes = genotype.getGenes();
+        for (String gene : genes) {
+            double topScore = getScore(genotype.getTopVariant(gene, 0));
+            double secondScore = getScore(genotype.getTopVariant(gene, 1));
+            if (this.pending != null) {
+                CarrierBuffer buffer = this.pending.get(gene);
+                if (buffer == null) {
+                    buffer = new CarrierBuffer();
+                    this.pending.put(gene, buffer);
+                }
+                buffer.add(patient, topScore, secondScore);
+                continue;
+            }
+            GeneScores current = this.scores.get(gene);
+            if (current == null) {
+                current = GeneScores.EMPTY;
+            }
+            this.scores.put(gene, current.with(patient, topScore, secondScore));
+        }
+        this.patientGenes.put(patientId, genes);
+    }
+
+    @Override
+    public synchronized void beginBulkLoad()
+    {
+        if (this.pending == null) {
+            this.pending = new HashMap<String, CarrierBuffer>();
+        }
+    }
+
+    @Override
+    public synchronized void endBulkLoad()
+    {
+        if (this.pending == null) {
+            return;
+        }
+        for (Map.Entry<String, CarrierBuffer> entry : this.pending.entrySet()) {
+            CarrierBuffer buffer = entry.getValue();
+            if (buffer.size == 0) {
+                continue;
+            }
+            GeneScores current = this.scores.get(entry.getKey());
+            if (current == null) {
+                current = GeneScores.EMPTY;
+            }
+            this.scores.put(entry.getKey(),
+                current.withAll(buffer.size, buffer.patients, buffer.topScores, buffer.secondScores));
+        }
+        this.pending = null;
+    }
+
+    @Override
+    public synchronized void remove(String patientId)
+    {
+        Set<String> genes = this.patientGenes.remove(patientId);
+        if (genes == null) {
+            return;
+        }
+        int patient = this.ordinals.getOrdinal(patientId);
+        for (String gene : genes) {
+            CarrierBuffer buffer = this.pending == null ? null : this.pending.get(gene);
+            if (buffer != null && buffer.remove(patient)) {
+                continue;
+            }
+            GeneScores current = this.scores.get(gene);
+            if (current == null) {
+                continue;
+            }
+            GeneScores updated = current.without(patient);
+            if (updated.size() == 0) {
+                this.scores.remove(gene);
+            } else {
+                this.scores.put(gene, updated);
+            }
+        }
+    }
+
+    @Override
+    public GeneScores getScores(String gene)
+    {
+        GeneScores result = this.scores.get(gene);
+        return result == null ? GeneScores.EMPTY : result;
+    }
+
+    @Override
+    public int getOrdinal(String patientId)
+    {
+        return this.ordinals.getOrdinal(patientId);
+    }
+
+    @Override
+    public String getPatientId(int ordinal)
+    {
+        return this.ordinals.getPatientId(ordinal);
+    }
+
+    /**
+     * Get the score of a variant.
+     *
+     * @param variant the variant, may be {@code null}
+     * @return the score of the variant, {@code 0} if there's no variant
+     */
+    private static double getScore(Variant variant)
+    {
+        return variant == null ? 0.0 : variant.getScore();
+    }
+
+    /**
+     * The unsorted carriers of a gene gathered during a bulk load, in growable primitive arrays.
+     */
+    private static final class CarrierBuffer
+    {
+        /** The initial capacity of the buffers. */
+        private static final int INITIAL_CAPACITY = 16;
+
+        /** The ordinals of the carriers. */
+        private int[] patients = new int[INITIAL_CAPACITY];
+
+        /** The scores of the top variant of each carrier, parallel to {@link #patients}. */
+        private double[] topScores = new double[INITIAL_CAPACITY];
+
+        /** The scores of the second variant of each carrier, parallel to {@link #patients}. */
+        private double[] secondScores = new double[INITIAL_CAPACITY];
+
+        /** The number of carriers in the buffer. */
+        private int size;
+
+        /**
+         * Add a carrier, growing the arrays if needed.
+         *
+         * @param patient the ordinal of the carrier
+         * @param topScore the score of the top variant of the carrier
+         * @param secondScore the score of the second variant of the carrier
+         */
+        void add(int patient, double topScore, double secondScore)
+        {
+            if (this.size == this.patients.length) {
+                int capacity = this.size * 2;
+                this.patients = Arrays.copyOf(this.patients, capacity);
+                this.topScores = Arrays.copyOf(this.topScores, capacity);
+                this.secondScores = Arrays.copyOf(this.secondScores, capacity);
+            }
+            this.patients[this.size] = patient;
+            this.topScores[this.size] = topScore;
+            this.secondScores[this.size] = secondScore;
+            ++this.size;
+        }
+
+        /**
+         * Remove a carrier, replacing it with the last one since the buffer isn't sorted.
+         *
+         * @param patient the ordinal of the carrier
+         * @return {@code true} if the carrier was in the buffer
+         */
+        boolean remove(int patient)
+        {
+            for (int i = 0; i < this.size; ++i) {
+                if (this.patients[i] == patient) {
+                    --this.size;
+                    this.patients[i] = this.patients[this.size];
+                    this.topScores[i] = this.topScores[this.size];
+                    this.secondScores[i] = this.secondScores[this.size];
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.EntryEvictionConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Default implementation of {@link GeneMatchCache}, storing the scores in a bounded local cache keyed by the unordered
+ * pair of patient identifiers. Each entry remembers the generation it was computed in, so that invalidating the cache
+ * only needs to move to the next generation, and scores still being computed meanwhile are never stored as current.
+ *
+ * @version $Id$
+ * @since
+ */
+@Component
+@Singleton
+public class DefaultGeneMatchCache implements GeneMatchCache, Initializable
+{
+    /** The maximum number of patient pairs to keep in memory. */
+    private static final int MAX_ENTRIES = 10000;
+
+    /** Provides access to the cache manager. */
+    @Inject
+    private CacheManager cacheManager;
+
+    /** The cached scores, keyed by the unordered pair of patient identifiers. */
+    private Cache<CachedScores> cache;
+
+    /** The current generation, incremented by each invalidation. */
+    private final AtomicLong generation = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        CacheConfiguration config = new CacheConfiguration("phenotips.similarity.geneMatches");
+        LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+        lru.setMaxEntries(MAX_ENTRIES);
+        config.put(EntryEvictionConfiguration.CONFIGURATIONID, lru);
+        try {
+            this.cache = this.cacheManager.createNewLocalCache(config);
+        } catch (CacheException ex) {
+            throw new InitializationException("Unable to create the gene match cache", ex);
+        }
+    }
+
+    @Override
+    public long getGeneration()
+    {
+        return this.generation.get();
+    }
+
+    @Override
+    public Map<String, Double> get(String patientId1, String patientId2)
+    {
+        CachedScores entry = this.cache.get(getKey(patientId1, patientId2));
+        if (entry == null || entry.generation != this.generation.get()) {
+            return null;
+        }
+        return entry.geneScores;
+    }
+
+    @Override
+    public void put(String patientId1, String patientId2, long generation, Map<String, Double> geneScores)
+    {
+        if (generation == this.generation.get()) {
+            this.cache.set(getKey(patientId1, patientId2),
+                new CachedScores(generation, Collections.unmodifiableMap(new HashMap<String, Double>(geneScores))));
+        }
+    }
+
+    @Override
+    public void invalidateAll()
+    {
+        this.generation.incrementAndGet();
+        this.cache.removeAll();
+    }
+
+    /**
+     * Get the cache key of a pair of patients, the same whatever their order.
+     *
+     * @param patientId1 the identifier of one patient
+     * @param patientId2 the identifier of the other patient
+     * @return the key of the pair
+     */
+    private static String getKey(String patientId1, String patientId2)
+    {
+        return patientId1.compareTo(patientId2) <= 0 ? patientId1 + '|' + patientId2 : patientId2 + '|' + patientId1;
+    }
+
+    /**
+     * The cached scores of a pair, together with the generation they were computed in.
+     */
+    private static final class CachedScores
+    {
+        /** The generation the scores were computed in. */
+        private final long generation;
+
+        /** The scores by gene. */
+        private final Map<String, Double> geneScores;
+
+        /**
+         * Simple constructor passing all the data of the entry.
+         *
+         * @param generation the generation the scores were computed in
+         * @param geneScores the scores by gene
+         */
+        CachedScores(long generation, Map<String, Double> geneScores)
+        {
+            this.generation = generation;
+            this.geneScores = geneScores;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+/**
+ * Default implementation of {@link GenotypeScoringPool}, with a configurable number of daemon worker threads, stopped
+ * when the component is disposed. With a single thread, tasks run on the calling thread.
+ *
+ * @version $Id$
+ * @since
+ */
+@Component
+@Singleton
+public class DefaultGenotypeScoringPool implements GenotypeScoringPool, Initializable, Disposable
+{
+    /** Configuration key for the number of threads used for scoring other patients, defaults to the number of cores. */
+    private static final String THREADS_KEY = "phenotips.similarity.genotype.threads";
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    /** Provides access to the configured number of threads. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** The worker threads, {@code null} if tasks run on the calling thread. */
+    private ExecutorService pool;
+
+    /** The number of worker threads. */
+    private int threads;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.threads = Math.max(1, this.configuration.getProperty(THREADS_KEY,
+            Runtime.getRuntime().availableProcessors()));
+        if (this.threads > 1) {
+            this.pool = Executors.newFixedThreadPool(this.threads, new ScoringThreadFactory());
+        }
+        this.logger.info("Scoring other genotyped patients with {} threads", this.threads);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        if (this.pool != null) {
+            this.pool.shutdownNow();
+        }
+    }
+
+    @Override
+    public int getThreads()
+    {
+        return this.threads;
+    }
+
+    @Override
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException
+    {
+        if (this.pool != null) {
+            return this.pool.invokeAll(tasks);
+        }
+        List<Future<T>> result = new ArrayList<Future<T>>(tasks.size());
+        for (Callable<T> task : tasks) {
+            FutureTask<T> future = new FutureTask<T>(task);
+            future.run();
+            result.add(future);
+        }
+        return result;
+    }
+
+    /** Creates named daemon threads for the pool, so that they don't prevent the server from shutting down. */
+    private static final class ScoringThreadFactory implements ThreadFactory
+    {
+        /** Used for numbering the threads. */
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread thread = new Thread(task, "genotype-similarity-scoring-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
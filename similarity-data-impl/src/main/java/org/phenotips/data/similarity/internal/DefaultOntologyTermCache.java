@@ -0,0 +1,217 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.ontology.OntologyManager;
+import org.phenotips.ontology.OntologyService;
+import org.phenotips.ontology.OntologyTerm;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.EntryEvictionConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+
+/**
+ * Default implementation of {@link OntologyTermCache}, storing the terms in a bounded local cache keyed by term
+ * identifier. Unknown terms are cached as well, so that they aren't looked up again on every request.
+ * <p>
+ * The version of the HPO ontology is checked at most once every {@link #VERSION_CHECK_INTERVAL} milliseconds, and when
+ * it changed, i.e. after the ontology was reindexed, both this cache and the {@link PhenotypeProfileCache} are
+ * cleared, since the cached profiles were built from the old terms.
+ * </p>
+ *
+ * @version $Id$
+ * @since
+ */
+@Component
+@Singleton
+public class DefaultOntologyTermCache implements OntologyTermCache, Initializable
+{
+    /** The maximum number of terms to keep in memory. */
+    private static final int MAX_ENTRIES = 20000;
+
+    /** How often to check whether the ontology was reindexed, in milliseconds. */
+    private static final long VERSION_CHECK_INTERVAL = 60000;
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    /** Provides access to the term ontology. */
+    @Inject
+    private OntologyManager ontologyManager;
+
+    /** The cached profiles, which must be dropped along with the terms they were built from. */
+    @Inject
+    private PhenotypeProfileCache profileCache;
+
+    /** The cached patient pair scores, which must be dropped along with the profiles they were computed from. */
+    @Inject
+    private PatientPairScoreCache pairScoreCache;
+
+    /** Provides access to the cache manager. */
+    @Inject
+    private CacheManager cacheManager;
+
+    /** The cached terms, keyed by term identifier. */
+    private Cache<CachedTerm> cache;
+
+    /** The version of the HPO ontology the cached terms were resolved from. */
+    private String hpoVersion;
+
+    /** When the ontology version was last checked, as a {@link System#currentTimeMillis()} value. */
+    private volatile long lastVersionCheck;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        CacheConfiguration config = new CacheConfiguration("phenotips.similarity.terms");
+        LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+        lru.setMaxEntries(MAX_ENTRIES);
+        config.put(EntryEvictionConfiguration.CONFIGURATIONID, lru);
+        try {
+            this.cache = this.cacheManager.createNewLocalCache(config);
+        } catch (CacheException ex) {
+            throw new InitializationException("Unable to create the ontology term cache", ex);
+        }
+    }
+
+    @Override
+    public OntologyTerm resolveTerm(String id)
+    {
+        if (StringUtils.isEmpty(id)) {
+            return null;
+        }
+        checkVersion();
+        CachedTerm entry = this.cache.get(id);
+        if (entry == null) {
+            entry = new CachedTerm(this.ontologyManager.resolveTerm(id));
+            this.cache.set(id, entry);
+        }
+        return entry.term;
+    }
+
+    @Override
+    public int[] getAncestorsAndSelf(OntologyIndex index, OntologyTerm term)
+    {
+        CachedTerm entry = this.cache.get(term.getId());
+        if (entry == null || entry.term != term) {
+            // Not a term resolved through this cache, don't keep a closure that could belong to another term instance
+            return index.getAncestorsAndSelf(term);
+        }
+        int[] closure = entry.getAncestors(index);
+        if (closure == null) {
+            closure = index.getAncestorsAndSelf(term);
+            entry.setAncestors(index, closure);
+        }
+        return closure;
+    }
+
+    @Override
+    public void clear()
+    {
+        this.cache.removeAll();
+    }
+
+    /**
+     * Clear the cached terms and profiles if the HPO ontology was reindexed since the last check.
+     */
+    private void checkVersion()
+    {
+        long now = System.currentTimeMillis();
+        if (now - this.lastVersionCheck < VERSION_CHECK_INTERVAL) {
+            return;
+        }
+        synchronized (this) {
+            if (now - this.lastVersionCheck < VERSION_CHECK_INTERVAL) {
+                return;
+            }
+            OntologyService hpo = this.ontologyManager.getOntology("HPO");
+            String version = hpo == null ? null : hpo.getVersion();
+            if (this.lastVersionCheck != 0 && !StringUtils.equals(version, this.hpoVersion)) {
+                this.logger.info("HPO version changed from {} to {}, clearing cached terms", this.hpoVersion, version);
+                clear();
+                this.profileCache.clear();
+                this.pairScoreCache.clear();
+            }
+            this.hpoVersion = version;
+            this.lastVersionCheck = now;
+        }
+    }
+
+    /**
+     * A cached term, together with its ancestor closure in the current ontology index, once computed.
+     */
+    private static final class CachedTerm
+    {
+        /** The resolved term, {@code null} for unknown terms. */
+        private final OntologyTerm term;
+
+        /** The index the closure was computed for. */
+        private OntologyIndex index;
+
+        /** The ancestor closure of the term. */
+        private int[] ancestors;
+
+        /**
+         * Simple constructor passing the resolved term.
+         *
+         * @param term the resolved term, {@code null} for unknown terms
+         */
+        CachedTerm(OntologyTerm term)
+        {
+            this.term = term;
+        }
+
+        /**
+         * Get the cached closure of the term.
+         *
+         * @param currentIndex the index the closure must be expressed in
+         * @return the closure, or {@code null} if it wasn't computed for this index
+         */
+        synchronized int[] getAncestors(OntologyIndex currentIndex)
+        {
+            return this.index == currentIndex ? this.ancestors : null;
+        }
+
+        /**
+         * Store the closure of the term.
+         *
+         * @param currentIndex the index the closure is expressed in
+         * @param closure the closure of the term
+         */
+        synchronized void setAncestors(OntologyIndex currentIndex, int[] closure)
+        {
+            this.index = currentIndex;
+            this.ancestors = closure;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+
+import java.util.Arrays;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+/**
+ * Default implementation of {@link PatientPairScoreCache}, storing scores in a {@link PairScoreTable} with primitive
+ * keys built from the ordinals of the two patients, within a configurable memory budget. Each patient has a generation
+ * number, bumped when the patient is invalidated, and entries are stamped with the generations of their two patients,
+ * so invalidating a patient doesn't require finding all its pairs: they just stop matching and are dropped when looked
+ * up or evicted.
+ *
+ * @version $Id$
+ * @since
+ */
+@Component
+@Singleton
+public class DefaultPatientPairScoreCache implements PatientPairScoreCache, Initializable
+{
+    /** Configuration key for the memory used by the cache, in megabytes. */
+    private static final String MAX_MEMORY_KEY = "phenotips.similarity.pairScores.maxMemory";
+
+    /** The default memory used by the cache, in megabytes. */
+    private static final int DEFAULT_MAX_MEMORY = 32;
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    /** Provides access to the configured memory budget. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** The ordinals of the patients, used for building keys. */
+    private final PatientOrdinals ordinals = new PatientOrdinals();
+
+    /** The current generation of each patient, by ordinal. */
+    private int[] generations = new int[64];
+
+    /** The cached scores. */
+    private PairScoreTable table;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        int maxMemory = Math.max(1, this.configuration.getProperty(MAX_MEMORY_KEY, DEFAULT_MAX_MEMORY));
+        this.table = PairScoreTable.withMaxMemory(maxMemory * 1024L * 1024L);
+        this.logger.info("Caching up to {} patient pair scores in {}MB", this.table.getMaxEntries(), maxMemory);
+    }
+
+    @Override
+    public synchronized double get(String patientId1, String patientId2)
+    {
+        int ordinal1 = this.ordinals.getOrdinal(patientId1);
+        int ordinal2 = this.ordinals.getOrdinal(patientId2);
+        if (ordinal1 == PatientOrdinals.NONE || ordinal2 == PatientOrdinals.NONE) {
+            return Double.NaN;
+        }
+        return this.table.get(getKey(ordinal1, ordinal2), getStamp(ordinal1, ordinal2));
+    }
+
+    @Override
+    public synchronized void put(String patientId1, String patientId2, double score)
+    {
+        if (patientId1 == null || patientId2 == null) {
+            return;
+        }
+        int ordinal1 = this.ordinals.intern(patientId1);
+        int ordinal2 = this.ordinals.intern(patientId2);
+        int needed = Math.max(ordinal1, ordinal2) + 1;
+        if (needed > this.generations.length) {
+            this.generations = Arrays.copyOf(this.generations, Math.max(needed, this.generations.length * 2));
+        }
+        this.table.put(getKey(ordinal1, ordinal2), getStamp(ordinal1, ordinal2), score);
+    }
+
+    @Override
+    public synchronized void invalidate(String patientId)
+    {
+        int ordinal = this.ordinals.getOrdinal(patientId);
+        if (ordinal != PatientOrdinals.NONE && ordinal < this.generations.length) {
+            ++this.generations[ordinal];
+        }
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        this.table.clear();
+    }
+
+    /**
+     * Build the key of a pair of patients, the same regardless of their order.
+     *
+     * @param ordinal1 the ordinal of one patient
+     * @param ordinal2 the ordinal of the other patient
+     * @return the key of the pair
+     */
+    private static long getKey(int ordinal1, int ordinal2)
+    {
+        return ((long) Math.min(ordinal1, ordinal2) << 32) | Math.max(ordinal1, ordinal2);
+    }
+
+    /**
+     * Build the stamp of a pair of patients from their current generations, in the same order as in the key.
+     *
+     * @param ordinal1 the ordinal of one patient
+     * @param ordinal2 the ordinal of the other patient
+     * @return the stamp of the pair
+     */
+    private long getStamp(int ordinal1, int ordinal2)
+    {
+        long low = this.generations[Math.min(ordinal1, ordinal2)];
+        long high = this.generations[Math.max(ordinal1, ordinal2)];
+        return (low << 32) | (high & 0xffffffffL);
+    }
+}
@@ -19,6 +19,7 @@
  */
 package org.phenotips.data.similarity.internal;
 
+import org.phenotips.components.ComponentManagerRegistry;
 import org.phenotips.data.Disorder;
 import org.phenotips.data.Feature;
 import org.phenotips.data.Patient;
@@ -29,12 +30,15 @@
 import org.phenotips.ontology.OntologyManager;
 import org.phenotips.ontology.OntologyTerm;
 
+import org.xwiki.component.manager.ComponentLookupException;
+
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -58,14 +62,11 @@ public class DefaultPatientSimilarityView extends AbstractPatientSimilarityView
     /** The root of the phenotypic abnormality portion of HPO. */
     private static final String PHENOTYPE_ROOT = "HP:0000118";
 
-    /** Pre-computed term information content (-logp), for each node t (i.e. t.inf). */
-    private static Map<OntologyTerm, Double> termICs;
-
-    /** The largest IC found, for normalizing. */
-    private static Double maxIC;
-
-    /** Pre-computed bound on -logP(t|parents(t)), for each node t (i.e. t.cond_inf). */
-    private static Map<OntologyTerm, Double> parentCondIC;
+    /**
+     * Pre-computed ontology structure, with the term information content (-logp), for each node t (i.e. t.inf), and
+     * the bound on -logP(t|parents(t)), for each node t (i.e. t.cond_inf).
+     */
+    private static OntologyIndex index;
 
     /** Provides access to the term ontology. */
     private static OntologyManager ontologyManager;
@@ -82,6 +83,15 @@ public class DefaultPatientSimilarityView extends AbstractPatientSimilarityView
     /** Memoized genotype match, retrieved through getGenotypeSimilarity. */
     private GenotypeSimilarityView matchedGenes;
 
+    /** The shared cache of patient profiles, looked up when first needed. */
+    private PhenotypeProfileCache profileCache;
+
+    /** The shared cache of resolved ontology terms, looked up when first needed. */
+    private OntologyTermCache termCache;
+
+    /** The profile of the reference patient, retrieved through getReferenceProfile. */
+    private PhenotypeProfile referenceProfile;
+
     /**
      * Simple constructor passing both {@link #match the patient} and the {@link #reference reference patient}.
      * 
@@ -110,7 +120,7 @@ public DefaultPatientSimilarityView(Patient match, Patient reference, AccessType
      */
     public static boolean isInitialized()
     {
-        return termICs != null && parentCondIC != null && ontologyManager != null;
+        return index != null && ontologyManager != null;
     }
 
     /**
@@ -124,11 +134,23 @@ public static boolean isInitialized()
     public static void initializeStaticData(Map<OntologyTerm, Double> termICs, Map<OntologyTerm, Double> condICs,
         OntologyManager ontologyManager, Logger logger)
     {
-        DefaultPatientSimilarityView.termICs = termICs;
-        DefaultPatientSimilarityView.parentCondIC = condICs;
+        initializeStaticData(OntologyIndex.fromTerms(termICs, condICs), ontologyManager, logger);
+    }
+
+    /**
+     * Set the static information for the class from a pre-computed ontology index. Must be run before creating
+     * instances of this class.
+     * 
+     * @param index the ontology index, with information content, as computed by
+     *            {@link DefaultPatientSimilarityViewFactory}
+     * @param ontologyManager the ontology manager
+     * @param logger the logging component
+     */
+    public static void initializeStaticData(OntologyIndex index, OntologyManager ontologyManager, Logger logger)
+    {
+        DefaultPatientSimilarityView.index = index;
         DefaultPatientSimilarityView.ontologyManager = ontologyManager;
         DefaultPatientSimilarityView.logger = logger;
-        DefaultPatientSimilarityView.maxIC = Collections.max(termICs.values());
     }
 
     /**
@@ -234,7 +256,7 @@ private Collection<OntologyTerm> getPresentPatientTerms(Patient patient)
                 continue;
             }
 
-            OntologyTerm term = ontologyManager.resolveTerm(feature.getId());
+            OntologyTerm term = resolveTerm(feature.getId());
             if (term == null) {
                 logger.error("Error resolving term: " + feature.getId() + " " + feature.getName());
             } else {
@@ -264,38 +286,118 @@ private Map<String, Feature> getTermLookup(Patient patient)
     }
 
     /**
-     * Return the set of terms implied by a collection of features in the ontology.
+     * Return the phenotypic profile of a patient, with all the present terms and their ancestors. Profiles are reused
+     * from the {@link PhenotypeProfileCache}, when available.
      * 
-     * @param terms a collection of terms
-     * @return all provided OntologyTerm terms and their ancestors
+     * @param patient the patient to process
+     * @return the profile of the patient, possibly empty
      */
-    private Set<OntologyTerm> getAncestors(Collection<OntologyTerm> terms)
+    private PhenotypeProfile getProfile(Patient patient)
     {
-        Set<OntologyTerm> ancestors = new HashSet<OntologyTerm>(terms);
-        for (OntologyTerm term : terms) {
-            // Add all ancestors
-            ancestors.addAll(term.getAncestorsAndSelf());
+        PhenotypeProfileCache cache = getProfileCache();
+        PhenotypeProfile profile = cache == null ? null : cache.get(patient);
+        if (profile == null || profile.getIndex() != index) {
+            profile = PhenotypeProfile.build(index, getPresentPatientTerms(patient), getTermCache());
+            if (cache != null) {
+                cache.put(patient, profile);
+            }
         }
-        return ancestors;
+        return profile;
     }
 
     /**
-     * Return the cost of encoding all the terms (and their ancestors) in a tree together.
+     * Get the phenotypic profile of the reference patient, lazily evaluated and memoized.
      * 
-     * @param all terms (and their ancestors) that are present in the patient
-     * @return the cost of the encoding all the terms
+     * @return the profile of the reference patient
      */
-    private double getJointTermsCost(Collection<OntologyTerm> ancestors)
+    PhenotypeProfile getReferenceProfile()
     {
-        double cost = 0;
-        for (OntologyTerm term : ancestors) {
-            Double ic = parentCondIC.get(term);
-            if (ic == null) {
-                ic = 0.0;
+        if (this.referenceProfile == null) {
+            this.referenceProfile = getProfile(this.reference);
+        }
+        return this.referenceProfile;
+    }
+
+    /**
+     * Use an already computed profile for the reference patient, when scoring many matches against the same reference.
+     * 
+     * @param referenceProfile the profile of the reference patient
+     */
+    void setReferenceProfile(PhenotypeProfile referenceProfile)
+    {
+        if (referenceProfile.getIndex() == index) {
+            this.referenceProfile = referenceProfile;
+        }
+    }
+
+    /**
+     * Look up the shared caches used for scoring right away, while the current thread has a component manager, so that
+     * the view can then be scored on threads without one.
+     */
+    void resolveCaches()
+    {
+        getProfileCache();
+        getTermCache();
+    }
+
+    /**
+     * Get the shared cache of patient profiles, lazily looked up.
+     * 
+     * @return the profile cache, or {@code null} if it isn't available
+     */
+    private PhenotypeProfileCache getProfileCache()
+    {
+        if (this.profileCache == null) {
+            try {
+                this.profileCache =
+                    ComponentManagerRegistry.getContextComponentManager().getInstance(PhenotypeProfileCache.class);
+            } catch (ComponentLookupException ex) {
+                logger.warn("Phenotype profile cache not available: {}", ex.getMessage());
             }
-            cost += ic;
         }
-        return cost;
+        return this.profileCache;
+    }
+
+    /**
+     * Get the shared cache of resolved ontology terms, lazily looked up.
+     * 
+     * @return the term cache, or {@code null} if it isn't available
+     */
+    private OntologyTermCache getTermCache()
+    {
+        if (this.termCache == null) {
+            try {
+                this.termCache =
+                    ComponentManagerRegistry.getContextComponentManager().getInstance(OntologyTermCache.class);
+            } catch (ComponentLookupException ex) {
+                logger.warn("Ontology term cache not available: {}", ex.getMessage());
+            }
+        }
+        return this.termCache;
+    }
+
+    /**
+     * Resolve an ontology term, going through the term cache when available.
+     * 
+     * @param id the term identifier
+     * @return the resolved term, or {@code null} if the term is not known
+     */
+    private OntologyTerm resolveTerm(String id)
+    {
+        OntologyTermCache cache = getTermCache();
+        return cache == null ? ontologyManager.resolveTerm(id) : cache.resolveTerm(id);
+    }
+
+    /**
+     * Get the ancestors of an ontology term, going through the term cache when available.
+     * 
+     * @param term the term to look up
+     * @return the sorted ordinals of the term and its ancestors, which must not be modified
+     */
+    private int[] getAncestorsAndSelf(OntologyTerm term)
+    {
+        OntologyTermCache cache = getTermCache();
+        return cache == null ? index.getAncestorsAndSelf(term) : cache.getAncestorsAndSelf(index, term);
     }
 
     @Override
@@ -306,32 +408,85 @@ public double getScore()
                 this.score = 0.0;
             } else {
                 // Get ancestors for both patients
-                Set<OntologyTerm> refAncestors = getAncestors(getPresentPatientTerms(this.reference));
-                Set<OntologyTerm> matchAncestors = getAncestors(getPresentPatientTerms(this.match));
-
-                if (refAncestors.isEmpty() || matchAncestors.isEmpty()) {
-                    this.score = 0.0;
-                } else {
-                    // Compute costs of each patient separately
-                    double p1Cost = getJointTermsCost(refAncestors);
-                    double p2Cost = getJointTermsCost(matchAncestors);
-
-                    // Score overlapping (min) ancestors
-                    Set<OntologyTerm> sharedAncestors = new HashSet<OntologyTerm>();
-                    sharedAncestors.addAll(refAncestors);
-                    sharedAncestors.retainAll(matchAncestors);
-
-                    double sharedCost = getJointTermsCost(sharedAncestors);
-                    assert (sharedCost <= p1Cost && sharedCost <= p2Cost) : "sharedCost > individiual cost";
-
-                    double harmonicMeanIC = 2 / (p1Cost / sharedCost + p2Cost / sharedCost);
-                    this.score = harmonicMeanIC;
-                }
+                this.score = scoreProfiles(getReferenceProfile(), getProfile(this.match));
             }
         }
         return this.score;
     }
 
+    /**
+     * {@inheritDoc} The cost of the shared terms is at most the cost of the smaller profile, so the score is bound by
+     * the score obtained when one profile is entirely included in the other; this only needs the pre-computed profile
+     * costs, and not the intersection of the two profiles.
+     */
+    @Override
+    public double getScoreUpperBound()
+    {
+        if (this.score != null) {
+            return this.score;
+        }
+        if (this.match == null || this.reference == null) {
+            return 0;
+        }
+        PhenotypeProfile refProfile = getReferenceProfile();
+        PhenotypeProfile matchProfile = getProfile(this.match);
+        if (refProfile.isEmpty() || matchProfile.isEmpty()) {
+            return 0;
+        }
+        double p1Cost = refProfile.getCost();
+        double p2Cost = matchProfile.getCost();
+        return getHarmonicMeanScore(p1Cost, p2Cost, Math.min(p1Cost, p2Cost));
+    }
+
+    /**
+     * Check if a profile can be scored against the profiles built by the views, i.e. if it uses the current index.
+     * 
+     * @param profile the profile to check
+     * @return {@code true} if the profile was built on the current ontology index
+     */
+    static boolean isCurrent(PhenotypeProfile profile)
+    {
+        return profile != null && profile.getIndex() == index;
+    }
+
+    /**
+     * Score two phenotypic profiles against each other, the same way {@link #getScore()} scores the patients of a
+     * view. This allows scoring patients whose profiles are cached without loading their records.
+     * 
+     * @param refProfile the profile of the reference patient, built on the {@link #isCurrent current index}
+     * @param matchProfile the profile of the match patient, built on the same index
+     * @return the similarity score of the two profiles
+     */
+    static double scoreProfiles(PhenotypeProfile refProfile, PhenotypeProfile matchProfile)
+    {
+        if (refProfile.isEmpty() || matchProfile.isEmpty()) {
+            return 0.0;
+        }
+        // Compute costs of each patient separately
+        double p1Cost = refProfile.getCost();
+        double p2Cost = matchProfile.getCost();
+
+        // Score overlapping (min) ancestors
+        double sharedCost = refProfile.getSharedCost(matchProfile);
+        assert (sharedCost <= p1Cost && sharedCost <= p2Cost) : "sharedCost > individiual cost";
+
+        return getHarmonicMeanScore(p1Cost, p2Cost, sharedCost);
+    }
+
+    /**
+     * Compute the harmonic mean of the shared information ratios of the two patients. This is monotonous in the shared
+     * cost, even with rounding, which is what makes {@link #getScoreUpperBound()} a safe bound.
+     * 
+     * @param p1Cost the cost of the reference profile
+     * @param p2Cost the cost of the match profile
+     * @param sharedCost the cost of the terms shared by the two profiles
+     * @return the similarity score
+     */
+    private static double getHarmonicMeanScore(double p1Cost, double p2Cost, double sharedCost)
+    {
+        return 2 / (p1Cost / sharedCost + p2Cost / sharedCost);
+    }
+
     /**
      * Get the genotype similarity view for this pair of patients, lazily evaluated and memoized.
      * 
@@ -387,71 +542,34 @@ protected JSONArray getDisordersJSON()
     }
 
     /**
-     * Find, remove, and return all terms with given ancestor.
+     * Get the ancestors of each term in a list.
      * 
-     * @param terms the terms, modified by removing terms with given ancestor
-     * @param ancestor the ancestor to search for
-     * @return the terms with the given ancestor (removed from given terms)
+     * @param terms the terms to process
+     * @return the sorted ancestor ordinals of each term, in the same order as the terms
      */
-    private Collection<OntologyTerm> popTermsWithAncestor(Collection<OntologyTerm> terms, OntologyTerm ancestor)
+    private int[][] getAncestorsAndSelf(List<OntologyTerm> terms)
     {
-        Collection<OntologyTerm> matched = new HashSet<OntologyTerm>();
-        for (OntologyTerm term : terms) {
-            if (term.getAncestorsAndSelf().contains(ancestor)) {
-                matched.add(term);
-            }
+        int[][] result = new int[terms.size()][];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = getAncestorsAndSelf(terms.get(i));
         }
-        terms.removeAll(matched);
-        return matched;
+        return result;
     }
 
     /**
-     * Finds the best term match, removes these terms, and return the JSON for that match.
+     * Select some terms from a list.
      * 
-     * @param refTerms the terms in the reference
-     * @param matchTerms the terms in the match
-     * @param matchFeatureLookup a mapping from OntologyTerm IDs back to the original Features in the match patient
-     * @param refFeatureLookup a mapping from OntologyTerm IDs back to the original Features in the reference patient
-     * @return the FeatureClusterView of the best-matching features from refTerms and matchTerms (removes the matched
-     *         terms from the passed lists) or null if the terms are not a good match (the term collections are then
-     *         unchanged)
+     * @param terms the list of terms
+     * @param positions the positions of the terms to select
+     * @return the selected terms
      */
-    private FeatureClusterView popBestFeatureCluster(Collection<OntologyTerm> matchTerms,
-        Collection<OntologyTerm> refTerms, Map<String, Feature> matchFeatureLookup,
-        Map<String, Feature> refFeatureLookup)
-    {
-        Collection<OntologyTerm> sharedAncestors = getAncestors(refTerms);
-        sharedAncestors.retainAll(getAncestors(matchTerms));
-
-        // Find ancestor with highest (normalized) information content
-        OntologyTerm ancestor = null;
-        double ancestorScore = Double.NEGATIVE_INFINITY;
-        for (OntologyTerm term : sharedAncestors) {
-            Double termIC = termICs.get(term);
-            if (termIC == null) {
-                termIC = 0.0;
-            }
-
-            double termScore = termIC / maxIC;
-            if (termScore > ancestorScore) {
-                ancestorScore = termScore;
-                ancestor = term;
-            }
-        }
-
-        // If the top-scoring ancestor is the root (or phenotype root), report everything remaining as unmatched
-        if (ancestor == null || HP_ROOT.equals(ancestor.getId()) || PHENOTYPE_ROOT.equals(ancestor.getId())) {
-            return null;
+    private static Collection<OntologyTerm> selectTerms(List<OntologyTerm> terms, int[] positions)
+    {
+        Collection<OntologyTerm> result = new HashSet<OntologyTerm>();
+        for (int position : positions) {
+            result.add(terms.get(position));
         }
-
-        // Find, remove, and return all ref and match terms under the selected ancestor
-        Collection<OntologyTerm> matchMatched = popTermsWithAncestor(matchTerms, ancestor);
-        Collection<OntologyTerm> refMatched = popTermsWithAncestor(refTerms, ancestor);
-
-        // Return match json from matched terms
-        FeatureClusterView cluster = createFeatureClusterView(termsToFeatures(matchMatched, matchFeatureLookup),
-            termsToFeatures(refMatched, refFeatureLookup), this.access, ancestor, ancestorScore);
-        return cluster;
+        return result;
     }
 
     private Collection<FeatureClusterView> getMatchedFeatures()
@@ -462,24 +580,34 @@ private Collection<FeatureClusterView> getMatchedFeatures()
         Map<String, Feature> matchFeatureLookup = getTermLookup(this.match);
         Map<String, Feature> refFeatureLookup = getTermLookup(this.reference);
 
-        // Get the present ontology terms
-        Collection<OntologyTerm> matchTerms = getPresentPatientTerms(this.match);
-        Collection<OntologyTerm> refTerms = getPresentPatientTerms(this.reference);
-
-        // Keep removing most-related sets of terms until none match lower than HP roots
-        while (!refTerms.isEmpty() && !matchTerms.isEmpty()) {
-            FeatureClusterView cluster =
-                popBestFeatureCluster(matchTerms, refTerms, matchFeatureLookup, refFeatureLookup);
-            if (cluster == null) {
+        // Get the present ontology terms, and look up their ancestors only once
+        List<OntologyTerm> matchTerms = new ArrayList<OntologyTerm>(getProfile(this.match).getTerms());
+        List<OntologyTerm> refTerms = new ArrayList<OntologyTerm>(getReferenceProfile().getTerms());
+        SharedAncestorQueue queue =
+            new SharedAncestorQueue(index, getAncestorsAndSelf(matchTerms), getAncestorsAndSelf(refTerms));
+
+        // Keep removing the terms under the most informative shared ancestor until none match lower than HP roots
+        double maxIC = index.getMaxInformationContent();
+        for (int ancestor = queue.getBestSharedAncestor(); ancestor != OntologyIndex.NO_TERM; ancestor =
+            queue.getBestSharedAncestor()) {
+            String ancestorId = index.getTermId(ancestor);
+            if (HP_ROOT.equals(ancestorId) || PHENOTYPE_ROOT.equals(ancestorId)) {
                 break;
             }
-            clusters.add(cluster);
+            OntologyTerm root = resolveTerm(ancestorId);
+            Collection<OntologyTerm> matchMatched = selectTerms(matchTerms, queue.popMatchTerms(ancestor));
+            Collection<OntologyTerm> refMatched = selectTerms(refTerms, queue.popReferenceTerms(ancestor));
+            clusters.add(createFeatureClusterView(termsToFeatures(matchMatched, matchFeatureLookup),
+                termsToFeatures(refMatched, refFeatureLookup), this.access, root,
+                index.getInformationContent(ancestor) / maxIC));
         }
 
         // Add any unmatched terms
-        if (!refTerms.isEmpty() || !matchTerms.isEmpty()) {
-            FeatureClusterView cluster = createFeatureClusterView(termsToFeatures(matchTerms, matchFeatureLookup),
-                termsToFeatures(refTerms, refFeatureLookup), this.access, null, 0.0);
+        Collection<OntologyTerm> matchUnmatched = selectTerms(matchTerms, queue.getRemainingMatchTerms());
+        Collection<OntologyTerm> refUnmatched = selectTerms(refTerms, queue.getRemainingReferenceTerms());
+        if (!refUnmatched.isEmpty() || !matchUnmatched.isEmpty()) {
+            FeatureClusterView cluster = createFeatureClusterView(termsToFeatures(matchUnmatched, matchFeatureLookup),
+                termsToFeatures(refUnmatched, refFeatureLookup), this.access, null, 0.0);
             clusters.add(cluster);
         }
         return clusters;
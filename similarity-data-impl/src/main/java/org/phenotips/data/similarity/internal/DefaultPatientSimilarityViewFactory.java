@@ -37,13 +37,19 @@
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.environment.Environment;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -69,6 +75,12 @@ public class DefaultPatientSimilarityViewFactory implements PatientSimilarityVie
     /** Small value used to round things too close to 0 or 1. */
     private static final double EPS = 1e-9;
 
+    /** The name of the data subdirectory used for storing pre-computed similarity data. */
+    private static final String DATA_SUBDIR = "similarity";
+
+    /** The file name of the pre-computed information content snapshot, inside {@link #DATA_SUBDIR}. */
+    private static final String SNAPSHOT_FILE = "ontology-ic.bin";
+
     /** Logging helper object. */
     @Inject
     protected Logger logger;
@@ -95,6 +107,10 @@ public class DefaultPatientSimilarityViewFactory implements PatientSimilarityVie
     @Inject
     private CacheManager cacheManager;
 
+    /** Environment helper to get the permanent directory on the local filesystem. */
+    @Inject
+    private Environment environment;
+
     /** Cache for patient similarity views. */
     private Cache<PatientSimilarityView> viewCache;
 
@@ -143,6 +159,43 @@ public PatientSimilarityView makeSimilarPatient(Patient match, Patient reference
         return getCachedPatientSimilarityView(match, reference, access);
     }
 
+    @Override
+    public List<PatientSimilarityView> makeSimilarPatients(Collection<? extends Patient> matches, Patient reference)
+        throws IllegalArgumentException
+    {
+        List<PatientSimilarityView> result = prepareSimilarPatients(matches, reference);
+        for (PatientSimilarityView view : result) {
+            view.getScore();
+        }
+        return result;
+    }
+
+    @Override
+    public List<PatientSimilarityView> prepareSimilarPatients(Collection<? extends Patient> matches,
+        Patient reference) throws IllegalArgumentException
+    {
+        if (matches == null || reference == null) {
+            throw new IllegalArgumentException("Similar patients require both matches and a reference");
+        }
+        List<PatientSimilarityView> result = new ArrayList<PatientSimilarityView>(matches.size());
+        PhenotypeProfile referenceProfile = null;
+        for (Patient match : matches) {
+            PatientSimilarityView view = makeSimilarPatient(match, reference);
+            if (view instanceof DefaultPatientSimilarityView) {
+                // Share the reference profile between all the views, instead of looking it up for each of them
+                DefaultPatientSimilarityView defaultView = (DefaultPatientSimilarityView) view;
+                if (referenceProfile == null) {
+                    referenceProfile = defaultView.getReferenceProfile();
+                } else {
+                    defaultView.setReferenceProfile(referenceProfile);
+                }
+                defaultView.resolveCaches();
+            }
+            result.add(view);
+        }
+        return result;
+    }
+
     @Override
     public PatientSimilarityView convert(PatientSimilarityView patientPair)
     {
@@ -192,78 +245,43 @@ private Collection<OntologyTerm> queryAllTerms(OntologyService ontology)
     }
 
     /**
-     * Return a mapping from OntologyTerms to their children in the given ontology.
+     * Build the structure of the ontology index, with all the terms in the ontology and their parents.
      * 
-     * @param ontology the ontology
-     * @return a map from each term to the children in ontology
+     * @param ontology the ontology to index
+     * @return an index without any information content
      */
-    private Map<OntologyTerm, Collection<OntologyTerm>> getChildrenMap(OntologyService ontology)
+    private OntologyIndex getOntologyStructure(OntologyService ontology)
     {
-        Map<OntologyTerm, Collection<OntologyTerm>> children = new HashMap<OntologyTerm, Collection<OntologyTerm>>();
-        this.logger.error("Getting all children of ontology terms...");
-        Collection<OntologyTerm> terms = queryAllTerms(ontology);
-        for (OntologyTerm term : terms) {
-            for (OntologyTerm parent : term.getParents()) {
-                // Add term to parent's set of children
-                Collection<OntologyTerm> parentChildren = children.get(parent);
-                if (parentChildren == null) {
-                    parentChildren = new ArrayList<OntologyTerm>();
-                    children.put(parent, parentChildren);
-                }
-                parentChildren.add(term);
-            }
+        this.logger.error("Indexing all terms and their parents...");
+        Map<String, OntologyTerm> terms = new TreeMap<String, OntologyTerm>();
+        for (OntologyTerm term : queryAllTerms(ontology)) {
+            terms.put(term.getId(), term);
         }
-        this.logger.error(String.format("cached children of %d ontology terms.", children.size()));
-        return children;
-    }
-
-    /**
-     * Helper method to recursively fill a map with the descendants of all terms under a root term.
-     * 
-     * @param root the root of the ontology to explore
-     * @param termChildren a map from each ontology term to its children
-     * @param termDescendants a partially-complete map of terms to descendants, filled in by this method
-     */
-    private void setDescendantsMap(OntologyTerm root, Map<OntologyTerm, Collection<OntologyTerm>> termChildren,
-        Map<OntologyTerm, Collection<OntologyTerm>> termDescendants)
-    {
-        if (termDescendants.containsKey(root)) {
-            return;
+        String[] ids = terms.keySet().toArray(new String[terms.size()]);
+        Map<String, Integer> ordinals = new HashMap<String, Integer>(ids.length * 2);
+        for (int i = 0; i < ids.length; ++i) {
+            ordinals.put(ids[i], i);
         }
-        // Compute descendants from children
-        Collection<OntologyTerm> descendants = new HashSet<OntologyTerm>();
-        Collection<OntologyTerm> children = termChildren.get(root);
-        if (children != null) {
-            for (OntologyTerm child : children) {
-                // Recurse on child
-                setDescendantsMap(child, termChildren, termDescendants);
-                // On return, termDescendants[child] should be non-null
-                Collection<OntologyTerm> childDescendants = termDescendants.get(child);
-                if (childDescendants != null) {
-                    descendants.addAll(childDescendants);
-                } else {
-                    this.logger.error("Descendants were null after recursion");
+
+        int[] parentOffsets = new int[ids.length + 1];
+        List<Integer> parents = new ArrayList<Integer>(ids.length * 2);
+        int i = 0;
+        for (OntologyTerm term : terms.values()) {
+            for (OntologyTerm parent : term.getParents()) {
+                Integer ordinal = ordinals.get(parent.getId());
+                if (ordinal != null) {
+                    parents.add(ordinal);
                 }
             }
+            parentOffsets[++i] = parents.size();
         }
-        descendants.add(root);
-        termDescendants.put(root, descendants);
-    }
-
-    /**
-     * Return a mapping from OntologyTerms to their descendants in the part of the ontology under root.
-     * 
-     * @param root the root of the ontology to explore
-     * @param termChildren a map from each ontology term to its children
-     * @return a map from each term to the descendants in ontology
-     */
-    private Map<OntologyTerm, Collection<OntologyTerm>> getDescendantsMap(OntologyTerm root,
-        Map<OntologyTerm, Collection<OntologyTerm>> termChildren)
-    {
-        Map<OntologyTerm, Collection<OntologyTerm>> termDescendants =
-            new HashMap<OntologyTerm, Collection<OntologyTerm>>();
-        setDescendantsMap(root, termChildren, termDescendants);
-        return termDescendants;
+        int[] parentOrdinals = new int[parents.size()];
+        for (i = 0; i < parentOrdinals.length; ++i) {
+            parentOrdinals[i] = parents.get(i);
+        }
+        OntologyIndex result = OntologyIndex.fromParents(ids, parentOffsets, parentOrdinals);
+        this.logger.error(String.format("indexed %d ontology terms.", result.size()));
+        return result;
     }
 
     /**
@@ -271,19 +289,20 @@ private Map<OntologyTerm, Collection<OntologyTerm>> getDescendantsMap(OntologyTe
      * 
      * @param mim the MIM ontology with diseases and symptom frequencies
      * @param hpo the human phenotype ontology
-     * @param allowedTerms only frequencies for a subset of these terms will be returned
-     * @return a map from OntologyTerm to the absolute frequency (sum over all terms ~1)
+     * @param index the structure of the human phenotype ontology
+     * @param root the ordinal of the root term, only frequencies for terms under this root will be returned
+     * @return the absolute frequency of each term, indexed by ordinal (sum over all terms ~1); terms that weren't seen
+     *         have a frequency of {@code 0}
      */
     @SuppressWarnings("unchecked")
-    private Map<OntologyTerm, Double> getTermFrequencies(OntologyService mim, OntologyService hpo,
-        Collection<OntologyTerm> allowedTerms)
+    private double[] getTermFrequencies(OntologyService mim, OntologyService hpo, OntologyIndex index, int root)
     {
-        Map<OntologyTerm, Double> termFreq = new HashMap<OntologyTerm, Double>();
+        double[] termFreq = new double[index.size()];
         double freqDenom = 0.0;
         // Add up frequencies of each term across diseases
         // TODO: Currently uniform weight across diseases
         Collection<OntologyTerm> diseases = queryAllTerms(mim);
-        Set<OntologyTerm> ignoredSymptoms = new HashSet<OntologyTerm>();
+        Set<String> ignoredSymptoms = new HashSet<String>();
         for (OntologyTerm disease : diseases) {
             // Get a Collection<String> of symptom HP IDs, or null
             Object symptomNames = disease.get("actual_symptom");
@@ -291,24 +310,17 @@ private Map<OntologyTerm, Double> getTermFrequencies(OntologyService mim, Ontolo
                 if (symptomNames instanceof Collection<?>) {
                     for (String symptomName : ((Collection<String>) symptomNames)) {
                         OntologyTerm symptom = hpo.getTerm(symptomName);
-                        if (!allowedTerms.contains(symptom)) {
-                            ignoredSymptoms.add(symptom);
+                        int ordinal = symptom == null ? OntologyIndex.NO_TERM : index.getOrdinal(symptom.getId());
+                        if (ordinal == OntologyIndex.NO_TERM || !index.hasAncestor(ordinal, root)) {
+                            ignoredSymptoms.add(symptomName);
                             continue;
                         }
                         // Get frequency with which symptom occurs in disease, if annotated
                         // TODO: fix with actual frequency
-                        Double freq = null;
-                        if (freq == null) {
-                            // Default frequency
-                            freq = 0.5;
-                        }
+                        double freq = 0.5;
                         freqDenom += freq;
                         // Add to accumulated term frequency
-                        Double prevFreq = termFreq.get(symptom);
-                        if (prevFreq != null) {
-                            freq += prevFreq;
-                        }
-                        termFreq.put(symptom, freq);
+                        termFreq[ordinal] += freq;
                     }
                 } else {
                     String err = "Solr returned non-collection symptoms: " + String.valueOf(symptomNames);
@@ -323,118 +335,207 @@ private Map<OntologyTerm, Double> getTermFrequencies(OntologyService mim, Ontolo
 
         this.logger.error("Normalizing term frequency distribution...");
         // Normalize all the term frequencies to be a proper distribution
-        for (Map.Entry<OntologyTerm, Double> entry : termFreq.entrySet()) {
-            entry.setValue(limitProb(entry.getValue() / freqDenom));
+        for (int i = 0; i < termFreq.length; ++i) {
+            if (termFreq[i] > 0) {
+                termFreq[i] = limitProb(termFreq[i] / freqDenom);
+            }
         }
 
         return termFreq;
     }
 
     /**
-     * Return the information content of each OntologyTerm in termFreq.
+     * Return the information content of each term with a known frequency.
      * 
-     * @param termFreq the absolute frequency of each OntologyTerm
-     * @param termDescendants the descendants of each OntologyTerm
-     * @return a map from each term to the information content of that term
+     * @param index the structure of the ontology
+     * @param termFreq the absolute frequency of each term, indexed by ordinal
+     * @return the information content of each term, indexed by ordinal, {@code NaN} for terms without frequency
      */
-    private Map<OntologyTerm, Double> getTermICs(Map<OntologyTerm, Double> termFreq,
-        Map<OntologyTerm, Collection<OntologyTerm>> termDescendants)
+    private double[] getTermICs(OntologyIndex index, double[] termFreq)
     {
-        Map<OntologyTerm, Double> termICs = new HashMap<OntologyTerm, Double>();
-
-        for (OntologyTerm term : termFreq.keySet()) {
-            Collection<OntologyTerm> descendants = termDescendants.get(term);
-            if (descendants == null) {
-                this.logger.error("Found no descendants of term: " + term.getId());
-            }
-            // Sum up frequencies of all descendants
-            double probMass = 0.0;
-            for (OntologyTerm descendant : descendants) {
-                Double freq = termFreq.get(descendant);
-                if (freq != null) {
-                    probMass += freq;
+        // The probability mass under a term is the sum of the frequencies of all its descendants, so push each
+        // frequency up to all the ancestors of its term
+        double[] probMass = new double[index.size()];
+        for (int i = 0; i < termFreq.length; ++i) {
+            if (termFreq[i] > 0) {
+                for (int ancestor : index.getAncestorsAndSelf(i)) {
+                    probMass[ancestor] += termFreq[i];
                 }
             }
+        }
 
-            if (HP_ROOT.equals(term.getId())) {
-                this.logger.error(String
-                    .format("Probability mass under %s should be 1.0, was: %.6f", HP_ROOT, probMass));
-            }
-            if (probMass > EPS) {
-                probMass = limitProb(probMass);
-                termICs.put(term, -Math.log(probMass));
+        int root = index.getOrdinal(HP_ROOT);
+        if (root != OntologyIndex.NO_TERM) {
+            this.logger.error(String.format("Probability mass under %s should be 1.0, was: %.6f", HP_ROOT,
+                probMass[root]));
+        }
+
+        double[] termICs = new double[index.size()];
+        Arrays.fill(termICs, Double.NaN);
+        for (int i = 0; i < termFreq.length; ++i) {
+            if (termFreq[i] > 0 && probMass[i] > EPS) {
+                termICs[i] = -Math.log(limitProb(probMass[i]));
             }
         }
         return termICs;
     }
 
     /**
-     * Return the (approximate) conditional information content (IC) of a term, given its parents. Approximation is
-     * IC(term) + log(sum_{sibling} probability mass under sibling)
+     * Return the (approximate) conditional information content (IC) of all terms, given their parents. Approximation is
+     * IC(term) + log(sum_{sibling} probability mass under sibling), where the siblings of a term are all the terms
+     * sharing all its parents, including the term itself.
      * 
-     * @param term the OntologyTerm to compute the conditional IC
-     * @param termIC the pre-computed IC of each term
-     * @param termChildren the direct children of each OntologyTerm
-     * @return the approximate conditional IC of term, given its parents
+     * @param index the structure of the ontology
+     * @param termICs the pre-computed IC of each term, indexed by ordinal, {@code NaN} if unknown
+     * @return the conditional IC of each term given its parents, indexed by ordinal
      */
-    private double getTermCondIC(OntologyTerm term, Map<OntologyTerm, Double> termIC,
-        Map<OntologyTerm, Collection<OntologyTerm>> termChildren)
+    private double[] getCondICs(OntologyIndex index, double[] termICs)
     {
-        // Find all terms with same set of parents
-        Collection<OntologyTerm> siblings = null;
-        for (OntologyTerm parent : term.getParents()) {
-            Collection<OntologyTerm> partialSiblings = termChildren.get(parent);
-            if (siblings == null) {
-                siblings = new HashSet<OntologyTerm>(partialSiblings);
-            } else {
-                siblings.retainAll(partialSiblings);
+        int size = index.size();
+        int[][] parents = new int[size][];
+        int[] childCounts = new int[size];
+        for (int i = 0; i < size; ++i) {
+            parents[i] = index.getParents(i);
+            for (int parent : parents[i]) {
+                ++childCounts[parent];
+            }
+        }
+        int[][] children = new int[size][];
+        for (int i = 0; i < size; ++i) {
+            children[i] = new int[childCounts[i]];
+            childCounts[i] = 0;
+        }
+        for (int i = 0; i < size; ++i) {
+            for (int parent : parents[i]) {
+                children[parent][childCounts[parent]++] = i;
             }
         }
 
-        Double thisIC = 0.0;
-        if (siblings == null) {
-            logger.error("Missing siblings for term: " + term.getId());
-        } else {
-            // Sum probability mass under all siblings
-            Double siblingProbMass = 0.0;
-            for (OntologyTerm sibling : siblings) {
-                Double siblingIC = termIC.get(sibling);
-                if (siblingIC != null) {
-                    siblingProbMass += Math.exp(-siblingIC);
+        double[] condICs = new double[size];
+        for (int i = 0; i < size; ++i) {
+            if (Double.isNaN(termICs[i])) {
+                continue;
+            }
+            if (parents[i].length == 0) {
+                this.logger.error("Missing siblings for term: " + index.getTermId(i));
+                continue;
+            }
+            // Sum probability mass under all the children of the first parent which also have all the other parents
+            double siblingProbMass = 0.0;
+            for (int sibling : children[parents[i][0]]) {
+                if (!Double.isNaN(termICs[sibling]) && hasAllParents(parents[sibling], parents[i])) {
+                    siblingProbMass += Math.exp(-termICs[sibling]);
                 }
             }
-
             if (siblingProbMass > EPS) {
                 // Approximate conditional information content of term is information content of term less the overall
                 // information content of siblings
-                thisIC = termIC.get(term);
-                if (thisIC == null) {
-                    thisIC = 0.0;
-                }
-                thisIC += Math.log(siblingProbMass);
+                condICs[i] = termICs[i] + Math.log(siblingProbMass);
             }
         }
-        return thisIC;
+        return condICs;
     }
 
     /**
-     * Return the (approximate) conditional information content (IC) of all terms, given their parents. Approximation is
-     * IC(term) - max(IC(parent) | parent in parents(term))
+     * Check whether a term has all the given parents.
      * 
-     * @param termIC the pre-computed IC of each term
-     * @param termChildren the direct children of each OntologyTerm
-     * @return map of the conditional IC of each term, given its parents
+     * @param termParents the sorted parents of the term to check
+     * @param required the parents to look for
+     * @return {@code true} if all the required parents are among the term's parents
      */
-    private Map<OntologyTerm, Double> getCondICs(Map<OntologyTerm, Double> termIC,
-        Map<OntologyTerm, Collection<OntologyTerm>> termChildren)
+    private static boolean hasAllParents(int[] termParents, int[] required)
     {
-        Map<OntologyTerm, Double> parentCondIC = new HashMap<OntologyTerm, Double>();
-        for (OntologyTerm term : termIC.keySet()) {
-            double condIC = getTermCondIC(term, termIC, termChildren);
-            // logger.error("Term: " + term.getId() + ", IC|parents: " + condIC);
-            parentCondIC.put(term, condIC);
+        for (int parent : required) {
+            if (Arrays.binarySearch(termParents, parent) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compute the ontology index from scratch, by scanning the whole HPO and MIM ontologies.
+     * 
+     * @param hpo the human phenotype ontology
+     * @param mim the MIM ontology with diseases and symptom frequencies
+     * @return a snapshot of the computed index, tagged with the current ontology versions
+     */
+    OntologySnapshot computeSnapshot(OntologyService hpo, OntologyService mim)
+    {
+        // Pre-compute HPO ancestor closures
+        OntologyIndex index = getOntologyStructure(hpo);
+
+        // Compute prior frequencies of phenotypes (based on disease frequencies and phenotype prevalence)
+        double[] termFreq = getTermFrequencies(mim, hpo, index, index.getOrdinal(HP_ROOT));
+
+        // Pre-compute term information content (-logp), for each node t (i.e. t.inf).
+        double[] termICs = getTermICs(index, termFreq);
+
+        this.logger.error("Calculating conditional ICs...");
+        // Pre-computed bound on -logP(t|parents(t)), for each node t (i.e. t.cond_inf).
+        double[] parentCondIC = getCondICs(index, termICs);
+
+        return new OntologySnapshot(hpo.getVersion(), mim.getVersion(),
+            index.withInformationContent(termICs, parentCondIC));
+    }
+
+    /**
+     * Get the file where the information content snapshot is stored.
+     * 
+     * @return the snapshot file, or {@code null} if no permanent directory is available
+     */
+    private File getSnapshotFile()
+    {
+        File rootDir = this.environment.getPermanentDirectory();
+        if (rootDir == null) {
+            return null;
+        }
+        return new File(new File(rootDir, DATA_SUBDIR), SNAPSHOT_FILE);
+    }
+
+    /**
+     * Load the information content snapshot stored at a previous startup, if it matches the current ontologies.
+     * 
+     * @param hpoVersion the current version of the HPO ontology
+     * @param mimVersion the current version of the MIM ontology
+     * @return the stored snapshot, or {@code null} if there is no usable snapshot
+     */
+    private OntologySnapshot loadSnapshot(String hpoVersion, String mimVersion)
+    {
+        File file = getSnapshotFile();
+        if (file == null || hpoVersion == null || mimVersion == null) {
+            // Without versions there's no way to tell if the snapshot is stale
+            return null;
+        }
+        try {
+            OntologySnapshot snapshot = OntologySnapshot.read(file);
+            if (snapshot != null && snapshot.isFor(hpoVersion, mimVersion)) {
+                this.logger.info("Loaded information content snapshot from: {}", file.getAbsolutePath());
+                return snapshot;
+            }
+        } catch (IOException ex) {
+            this.logger.warn("Failed to read the information content snapshot: {}", ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Store the information content snapshot, to be reused at the next startup.
+     * 
+     * @param snapshot the snapshot to store
+     */
+    private void storeSnapshot(OntologySnapshot snapshot)
+    {
+        File file = getSnapshotFile();
+        if (file == null) {
+            return;
+        }
+        try {
+            snapshot.write(file);
+            this.logger.info("Stored information content snapshot in: {}", file.getAbsolutePath());
+        } catch (IOException ex) {
+            this.logger.warn("Failed to store the information content snapshot: {}", ex.getMessage());
         }
-        return parentCondIC;
     }
 
     @Override
@@ -454,28 +555,17 @@ public void initialize() throws InitializationException
             // Load the OMIM/HPO mappings
             OntologyService mim = this.ontologyManager.getOntology("MIM");
             OntologyService hpo = this.ontologyManager.getOntology("HPO");
-            OntologyTerm hpRoot = hpo.getTerm(HP_ROOT);
-
-            // Pre-compute HPO descendant lookups
-            Map<OntologyTerm, Collection<OntologyTerm>> termChildren = getChildrenMap(hpo);
-            Map<OntologyTerm, Collection<OntologyTerm>> termDescendants = getDescendantsMap(hpRoot, termChildren);
 
-            // Compute prior frequencies of phenotypes (based on disease frequencies and phenotype prevalence)
-            Map<OntologyTerm, Double> termFreq = getTermFrequencies(mim, hpo, termDescendants.keySet());
-
-            // Pre-compute term information content (-logp), for each node t (i.e. t.inf).
-            Map<OntologyTerm, Double> termICs = getTermICs(termFreq, termDescendants);
-
-            this.logger.error("Calculating conditional ICs...");
-            // Pre-computed bound on -logP(t|parents(t)), for each node t (i.e. t.cond_inf).
-            Map<OntologyTerm, Double> parentCondIC = getCondICs(termICs, termChildren);
-            assert termICs.size() == parentCondIC.size() : "Mismatch between sizes of IC and IC|parent maps";
-            assert Math.abs(parentCondIC.get(hpRoot)) < 1e-6 : "IC(root|parents) should equal 0.0";
+            // Reuse the index computed at a previous startup, as long as the ontologies didn't change since
+            OntologySnapshot snapshot = loadSnapshot(hpo.getVersion(), mim.getVersion());
+            if (snapshot == null) {
+                snapshot = computeSnapshot(hpo, mim);
+                storeSnapshot(snapshot);
+            }
 
             // Give data to views to use
             this.logger.error("Setting view globals...");
-            DefaultPatientSimilarityView.initializeStaticData(termICs, parentCondIC, this.ontologyManager,
-                this.logger);
+            DefaultPatientSimilarityView.initializeStaticData(snapshot.getIndex(), this.ontologyManager, this.logger);
         }
         this.logger.error("DefaultPatientSimilarityViewFactor initialized.");
     }
@@ -0,0 +1,159 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Feature;
+import org.phenotips.data.Patient;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.EntryEvictionConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Default implementation of {@link PhenotypeProfileCache}, storing the profiles in a bounded local cache keyed by
+ * patient identifier. Each entry remembers the present features the profile was built from, so that a profile is never
+ * reused for a patient whose phenotypes changed, even if the change notification was missed.
+ *
+ * @version $Id$
+ * @since
+ */
+@Component
+@Singleton
+public class DefaultPhenotypeProfileCache implements PhenotypeProfileCache, Initializable
+{
+    /** The maximum number of profiles to keep in memory. */
+    private static final int MAX_ENTRIES = 10000;
+
+    /** Provides access to the cache manager. */
+    @Inject
+    private CacheManager cacheManager;
+
+    /** The cached profiles, keyed by patient identifier. */
+    private Cache<CachedProfile> cache;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        CacheConfiguration config = new CacheConfiguration("phenotips.similarity.profiles");
+        LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+        lru.setMaxEntries(MAX_ENTRIES);
+        config.put(EntryEvictionConfiguration.CONFIGURATIONID, lru);
+        try {
+            this.cache = this.cacheManager.createNewLocalCache(config);
+        } catch (CacheException ex) {
+            throw new InitializationException("Unable to create the phenotype profile cache", ex);
+        }
+    }
+
+    @Override
+    public PhenotypeProfile get(Patient patient)
+    {
+        String id = patient.getId();
+        if (id == null) {
+            return null;
+        }
+        CachedProfile entry = this.cache.get(id);
+        if (entry == null || !entry.features.equals(getPresentFeatureIds(patient))) {
+            return null;
+        }
+        return entry.profile;
+    }
+
+    @Override
+    public PhenotypeProfile get(String patientId)
+    {
+        CachedProfile entry = this.cache.get(patientId);
+        return entry == null ? null : entry.profile;
+    }
+
+    @Override
+    public void put(Patient patient, PhenotypeProfile profile)
+    {
+        String id = patient.getId();
+        if (id != null) {
+            this.cache.set(id, new CachedProfile(profile, getPresentFeatureIds(patient)));
+        }
+    }
+
+    @Override
+    public void invalidate(String patientId)
+    {
+        this.cache.remove(patientId);
+    }
+
+    @Override
+    public void clear()
+    {
+        this.cache.removeAll();
+    }
+
+    /**
+     * Get the identifiers of the features present in a patient.
+     *
+     * @param patient the patient to process
+     * @return the set of present feature identifiers
+     */
+    private static Set<String> getPresentFeatureIds(Patient patient)
+    {
+        Set<String> result = new HashSet<String>();
+        for (Feature feature : patient.getFeatures()) {
+            if (feature.isPresent()) {
+                result.add(feature.getId());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A cached profile, together with the features it was built from.
+     */
+    private static final class CachedProfile
+    {
+        /** The cached profile. */
+        private final PhenotypeProfile profile;
+
+        /** The identifiers of the present features the profile was built from. */
+        private final Set<String> features;
+
+        /**
+         * Simple constructor passing all the data of the entry.
+         *
+         * @param profile the cached profile
+         * @param features the identifiers of the present features the profile was built from
+         */
+        CachedProfile(PhenotypeProfile profile, Set<String> features)
+        {
+            this.profile = profile;
+            this.features = features;
+        }
+    }
+}
@@ -22,15 +22,27 @@
 import org.phenotips.data.similarity.Genotype;
 import org.phenotips.data.similarity.Variant;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.ArrayList;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
@@ -38,100 +50,834 @@
 /**
  * This class represents the genotype information from an exomizer-annotated VCF file. Specifically, a collection of
  * variants annotated with genes, phenotype scores, and harmfulness scores.
+ * <p>
+ * The file is parsed directly from bytes, and only the fields used for matching are extracted, into one array per field
+ * rather than one object per variant. The raw INFO fields are kept together in a single byte array, and only decoded
+ * and parsed when an annotation is requested. {@link Variant} objects are lightweight views over these arrays,
+ * created on demand.
+ * </p>
+ * <p>
+ * The arrays can also be saved to and loaded from a compact binary file, so that a genotype is only parsed from text
+ * once. The binary file records the size and the checksum of the exact bytes of the text file it was built from, and a
+ * checksum of its own content, and is ignored if either doesn't match. Since the checksum of the text file is computed
+ * while parsing it, a text file changed in between is never mistaken for the parsed one, and rewrites keeping the same
+ * size and modification time, such as a new prioritization of the same variants, are detected.
+ * </p>
  * 
  * @version $Id$
  * @since
  */
 public class ExomizerGenotype implements Genotype
 {
-    /** The phenotype score for each gene with a variant. */
-    private Map<String, Double> geneScores;
+    /** VCF files are plain ASCII. */
+    private static final Charset ASCII = Charset.forName("US-ASCII");
 
-    /** The variants in each gene. */
-    private Map<String, List<Variant>> variants;
+    /** The INFO key holding the gene of a variant. */
+    private static final byte[] GENE_KEY = "GENE".getBytes(ASCII);
+
+    /** The INFO key holding the phenotype score of the gene. */
+    private static final byte[] PHENO_SCORE_KEY = "PHENO_SCORE".getBytes(ASCII);
+
+    /** The INFO key holding the harmfulness score of the variant. */
+    private static final byte[] VARIANT_SCORE_KEY = "VARIANT_SCORE".getBytes(ASCII);
+
+    /** The INFO key holding the effect of the variant. */
+    private static final byte[] EFFECT_KEY = "EFFECT".getBytes(ASCII);
+
+    /** The number of tab-separated columns used: CHROM, POS, ID, REF, ALT, QUAL, FILTER, INFO, FORMAT and a sample. */
+    private static final int COLUMNS = 10;
+
+    /** The size of the read buffer. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Identifies binary genotype files: "EZB" followed by the format version, bumped on each format change. */
+    private static final int BINARY_MAGIC = 0x455a4202;
+
+    /** The size of the binary header: magic, source size and checksum, variant, gene and order counts. */
+    private static final int BINARY_HEADER_SIZE = 4 + 8 + 8 + 4 + 4 + 4;
+
+    /** The size of the binary trailer, holding the checksum of everything before it. */
+    private static final int BINARY_TRAILER_SIZE = 8;
+
+    /** Marks {@code null} strings in binary files. */
+    private static final int NULL_STRING = -1;
+
+    /** The position in {@link #geneScores} and {@link #geneOffsets} of each gene with a variant. */
+    private final Map<String, Integer> genes = new LinkedHashMap<String, Integer>();
+
+    /** The phenotype score of each gene, by gene position. */
+    private double[] geneScores;
+
+    /**
+     * Where the variants of each gene start in {@link #order}, by gene position, with an extra entry marking the end of
+     * the last gene.
+     */
+    private int[] geneOffsets;
+
+    /**
+     * The variants of each gene, sorted by decreasing harmfulness score; homozygous variants appear twice, as two
+     * separate mutations.
+     */
+    private int[] order;
+
+    /** The chromosome of each variant, standardized. */
+    private String[] chroms;
+
+    /** The position of each variant. */
+    private int[] positions;
+
+    /** The reference allele of each variant. */
+    private String[] refs;
+
+    /** The alternate allele of each variant. */
+    private String[] alts;
+
+    /** The harmfulness score of each variant. */
+    private double[] scores;
+
+    /** The effect of each variant. */
+    private String[] effects;
+
+    /** The genotype of each variant, e.g. "0/1". */
+    private String[] genotypes;
+
+    /** The raw INFO fields of all the variants, one after the other, parsed on demand. */
+    private byte[] infos;
+
+    /** Where the INFO field of each variant starts in {@link #infos}, with an extra entry marking the end. */
+    private int[] infoOffsets;
+
+    /** The number of variants parsed. */
+    private int size;
+
+    /** The size of the Exomizer output file this genotype was parsed from. */
+    private long sourceLength;
+
+    /** The CRC-32 checksum of the Exomizer output file this genotype was parsed from. */
+    private long sourceChecksum;
+
+    /** Shared instances of repeated strings, such as chromosomes, genotypes and effects, used while parsing. */
+    private Map<String, String> pool = new HashMap<String, String>();
 
     /**
      * Create a Genotype object from an Exomizer output file.
      * 
      * @param exomizerOutput an exomizer-annotated VCF file
-     * @throws FileNotFoundException if the file does not exist
+     * @throws IOException if the file does not exist or can't be read
      */
-    ExomizerGenotype(File exomizerOutput) throws FileNotFoundException
+    ExomizerGenotype(File exomizerOutput) throws IOException
     {
-        this.variants = new HashMap<String, List<Variant>>();
-        this.geneScores = new HashMap<String, Double>();
-        Scanner fileScan = new Scanner(exomizerOutput);
-        while (fileScan.hasNextLine()) {
-            String line = fileScan.nextLine();
-            if (line.startsWith("#")) {
-                continue;
+        int capacity = 256;
+        this.chroms = new String[capacity];
+        this.positions = new int[capacity];
+        this.refs = new String[capacity];
+        this.alts = new String[capacity];
+        this.scores = new double[capacity];
+        this.effects = new String[capacity];
+        this.genotypes = new String[capacity];
+        this.infos = new byte[capacity * 64];
+        this.infoOffsets = new int[capacity + 1];
+        int[] variantGenes = new int[capacity];
+        this.geneScores = new double[16];
+
+        CRC32 checksum = new CRC32();
+        InputStream in = new FileInputStream(exomizerOutput);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int start = 0;
+            int end = 0;
+            while (true) {
+                int read = in.read(buffer, end, buffer.length - end);
+                if (read < 0) {
+                    if (end > start) {
+                        variantGenes = parseLine(buffer, start, end, variantGenes);
+                    }
+                    break;
+                }
+                checksum.update(buffer, end, read);
+                this.sourceLength += read;
+                end += read;
+                int lineStart = start;
+                for (int i = start; i < end; ++i) {
+                    if (buffer[i] == '\n') {
+                        variantGenes = parseLine(buffer, lineStart, i, variantGenes);
+                        lineStart = i + 1;
+                    }
+                }
+                // Move the incomplete last line to the start of the buffer, growing it for very long lines
+                int remaining = end - lineStart;
+                if (remaining == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                } else {
+                    System.arraycopy(buffer, lineStart, buffer, 0, remaining);
+                }
+                start = 0;
+                end = remaining;
             }
+        } finally {
+            in.close();
+        }
 
-            Variant variant = new ExomizerVariant(line);
+        this.sourceChecksum = checksum.getValue();
+        trimColumns();
+        sortVariants(variantGenes);
+        this.pool = null;
+    }
+
+    /**
+     * Load a genotype from a binary file, with all the data already parsed.
+     * 
+     * @param data the content of the binary file, positioned after the header
+     * @param variantCount the number of variants
+     * @param geneCount the number of genes
+     * @param orderLength the number of entries in the gene order, homozygous variants counting twice
+     */
+    private ExomizerGenotype(ByteBuffer data, int variantCount, int geneCount, int orderLength)
+    {
+        this.size = variantCount;
+        String[] dictionary = new String[data.getInt()];
+        for (int i = 0; i < dictionary.length; ++i) {
+            dictionary[i] = getString(data);
+        }
+
+        this.geneScores = new double[geneCount];
+        this.geneOffsets = new int[geneCount + 1];
+        for (int gene = 0; gene < geneCount; ++gene) {
+            this.genes.put(getString(data), gene);
+            this.geneScores[gene] = data.getDouble();
+            this.geneOffsets[gene + 1] = data.getInt();
+        }
+        this.order = new int[orderLength];
+        data.asIntBuffer().get(this.order);
+        data.position(data.position() + orderLength * 4);
+
+        this.positions = new int[variantCount];
+        data.asIntBuffer().get(this.positions);
+        data.position(data.position() + variantCount * 4);
+        this.scores = new double[variantCount];
+        data.asDoubleBuffer().get(this.scores);
+        data.position(data.position() + variantCount * 8);
+
+        this.chroms = new String[variantCount];
+        this.effects = new String[variantCount];
+        this.genotypes = new String[variantCount];
+        this.refs = new String[variantCount];
+        this.alts = new String[variantCount];
+        for (int variant = 0; variant < variantCount; ++variant) {
+            this.chroms[variant] = getShared(data, dictionary);
+            this.effects[variant] = getShared(data, dictionary);
+            this.genotypes[variant] = getShared(data, dictionary);
+            this.refs[variant] = getShared(data, dictionary);
+            this.alts[variant] = getShared(data, dictionary);
+        }
+        this.infoOffsets = new int[variantCount + 1];
+        data.asIntBuffer().get(this.infoOffsets);
+        data.position(data.position() + (variantCount + 1) * 4);
+        this.infos = new byte[this.infoOffsets[variantCount]];
+        data.get(this.infos);
+        this.pool = null;
+    }
+
+    /**
+     * Load a genotype from a binary file written by {@link #writeBinary(File)}, if it is still valid for its source
+     * file. The whole source file is read for checking its checksum, which is still much faster than parsing it.
+     * 
+     * @param binary the binary file
+     * @param source the Exomizer output file the binary file was built from
+     * @return the loaded genotype, or {@code null} if the binary file is missing, outdated or corrupted
+     * @throws IOException if reading the binary file fails
+     */
+    static ExomizerGenotype readBinary(File binary, File source) throws IOException
+    {
+        long length = binary.length();
+        if (!binary.isFile() || length < BINARY_HEADER_SIZE + BINARY_TRAILER_SIZE || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) length);
+        FileInputStream in = new FileInputStream(binary);
+        try {
+            FileChannel channel = in.getChannel();
+            int read = 0;
+            while (read >= 0 && data.hasRemaining()) {
+                read = channel.read(data);
+            }
+        } finally {
+            in.close();
+        }
+        if (data.hasRemaining()) {
+            return null;
+        }
 
-            String gene = variant.getAnnotation("GENE");
-            Double geneScore = Double.parseDouble(variant.getAnnotation("PHENO_SCORE"));
-            geneScores.put(gene, geneScore);
+        CRC32 checksum = new CRC32();
+        checksum.update(data.array(), 0, data.capacity() - BINARY_TRAILER_SIZE);
+        data.flip();
+        if (data.getLong(data.limit() - BINARY_TRAILER_SIZE) != checksum.getValue() || data.getInt() != BINARY_MAGIC) {
+            return null;
+        }
+        long sourceLength = data.getLong();
+        long sourceChecksum = data.getLong();
+        if (!source.isFile() || sourceLength != source.length() || sourceChecksum != getChecksum(source)) {
+            return null;
+        }
+        int variantCount = data.getInt();
+        int geneCount = data.getInt();
+        int orderLength = data.getInt();
+        data.limit(data.limit() - BINARY_TRAILER_SIZE);
+        try {
+            ExomizerGenotype result = new ExomizerGenotype(data, variantCount, geneCount, orderLength);
+            result.sourceLength = sourceLength;
+            result.sourceChecksum = sourceChecksum;
+            return result;
+        } catch (BufferUnderflowException ex) {
+            // Can only happen if the format changed without changing the magic number
+            return null;
+        } catch (IndexOutOfBoundsException ex) {
+            return null;
+        } catch (NegativeArraySizeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Compute the CRC-32 checksum of a file.
+     * 
+     * @param file the file
+     * @return the checksum of the content of the file
+     * @throws IOException if reading the file fails
+     */
+    private static long getChecksum(File file) throws IOException
+    {
+        CRC32 checksum = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                checksum.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return checksum.getValue();
+    }
+
+    /**
+     * Save this genotype to a binary file, which can be loaded by {@link #readBinary(File, File)} as long as the source
+     * file this genotype was parsed from doesn't change. The file is written under a temporary name first, then
+     * renamed, so that a partially written file is never loaded.
+     * 
+     * @param binary the binary file to write
+     * @throws IOException if writing the binary file fails
+     */
+    void writeBinary(File binary) throws IOException
+    {
+        Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+        for (int variant = 0; variant < this.size; ++variant) {
+            addToDictionary(dictionary, this.chroms[variant]);
+            addToDictionary(dictionary, this.effects[variant]);
+            addToDictionary(dictionary, this.genotypes[variant]);
+            addToDictionary(dictionary, this.refs[variant]);
+            addToDictionary(dictionary, this.alts[variant]);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(this.size * 64 + 1024);
+        CheckedOutputStream checked = new CheckedOutputStream(bytes, new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        out.writeInt(BINARY_MAGIC);
+        out.writeLong(this.sourceLength);
+        out.writeLong(this.sourceChecksum);
+        out.writeInt(this.size);
+        out.writeInt(this.genes.size());
+        out.writeInt(this.order.length);
+
+        out.writeInt(dictionary.size());
+        for (String value : dictionary.keySet()) {
+            writeString(out, value);
+        }
+        for (Map.Entry<String, Integer> gene : this.genes.entrySet()) {
+            writeString(out, gene.getKey());
+            out.writeDouble(this.geneScores[gene.getValue()]);
+            out.writeInt(this.geneOffsets[gene.getValue() + 1]);
+        }
+        for (int variant : this.order) {
+            out.writeInt(variant);
+        }
+        for (int variant = 0; variant < this.size; ++variant) {
+            out.writeInt(this.positions[variant]);
+        }
+        for (int variant = 0; variant < this.size; ++variant) {
+            out.writeDouble(this.scores[variant]);
+        }
+        for (int variant = 0; variant < this.size; ++variant) {
+            out.writeInt(getDictionaryIndex(dictionary, this.chroms[variant]));
+            out.writeInt(getDictionaryIndex(dictionary, this.effects[variant]));
+            out.writeInt(getDictionaryIndex(dictionary, this.genotypes[variant]));
+            out.writeInt(getDictionaryIndex(dictionary, this.refs[variant]));
+            out.writeInt(getDictionaryIndex(dictionary, this.alts[variant]));
+        }
+        for (int offset : this.infoOffsets) {
+            out.writeInt(offset);
+        }
+        out.write(this.infos, 0, this.infoOffsets[this.size]);
+        out.flush();
+        long checksum = checked.getChecksum().getValue();
+        out.writeLong(checksum);
+        out.close();
+
+        File temp = new File(binary.getAbsolutePath() + ".tmp");
+        OutputStream file = new FileOutputStream(temp);
+        try {
+            bytes.writeTo(file);
+        } finally {
+            file.close();
+        }
+        if (!temp.renameTo(binary)) {
+            // Renaming doesn't replace existing files on all platforms
+            if (!binary.delete() || !temp.renameTo(binary)) {
+                temp.delete();
+                throw new IOException("Unable to move binary genotype file to: " + binary.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Add a value to a dictionary of shared strings, if not already there.
+     * 
+     * @param dictionary the dictionary, mapping each value to its index
+     * @param value the value to add, may be {@code null}
+     */
+    private static void addToDictionary(Map<String, Integer> dictionary, String value)
+    {
+        if (value != null && !dictionary.containsKey(value)) {
+            dictionary.put(value, dictionary.size());
+        }
+    }
+
+    /**
+     * Get the index of a value in a dictionary of shared strings.
+     * 
+     * @param dictionary the dictionary, mapping each value to its index
+     * @param value the value, may be {@code null}
+     * @return the index of the value, or {@link #NULL_STRING} for {@code null}
+     */
+    private static int getDictionaryIndex(Map<String, Integer> dictionary, String value)
+    {
+        return value == null ? NULL_STRING : dictionary.get(value);
+    }
+
+    /**
+     * Write a string as its length followed by its ASCII bytes.
+     * 
+     * @param out the output stream
+     * @param value the string to write, may be {@code null}
+     * @throws IOException if writing fails
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        if (value == null) {
+            out.writeInt(NULL_STRING);
+        } else {
+            byte[] bytes = value.getBytes(ASCII);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Read a string written by {@link #writeString(DataOutputStream, String)}.
+     * 
+     * @param data the binary data
+     * @return the string, may be {@code null}
+     */
+    private static String getString(ByteBuffer data)
+    {
+        int length = data.getInt();
+        if (length == NULL_STRING) {
+            return null;
+        }
+        String result = new String(data.array(), data.position(), length, ASCII);
+        data.position(data.position() + length);
+        return result;
+    }
+
+    /**
+     * Read a string stored as an index in a dictionary of shared strings.
+     * 
+     * @param data the binary data
+     * @param dictionary the shared strings
+     * @return the string, may be {@code null}
+     */
+    private static String getShared(ByteBuffer data, String[] dictionary)
+    {
+        int index = data.getInt();
+        return index == NULL_STRING ? null : dictionary[index];
+    }
+
+    /**
+     * Parse one line of the file, storing its fields in the columns.
+     * 
+     * @param line the buffer holding the line
+     * @param start the position of the first character of the line
+     * @param lineEnd the position after the last character of the line, excluding the line feed
+     * @param variantGenes the gene position of each variant, indexed by variant
+     * @return the gene positions, grown if needed
+     */
+    private int[] parseLine(byte[] line, int start, int lineEnd, int[] variantGenes)
+    {
+        int end = lineEnd;
+        if (end > start && line[end - 1] == '\r') {
+            --end;
+        }
+        if (end == start || line[start] == '#') {
+            return variantGenes;
+        }
 
-            if (gene != null && !gene.isEmpty()) {
-                List<Variant> geneMutations = this.variants.get(gene);
-                if (geneMutations == null) {
-                    geneMutations = new ArrayList<Variant>();
-                    this.variants.put(gene, geneMutations);
+        // Find where each of the used columns starts and ends
+        int[] bounds = new int[COLUMNS * 2];
+        int column = 0;
+        bounds[0] = start;
+        for (int i = start; i < end && column < COLUMNS; ++i) {
+            if (line[i] == '\t') {
+                bounds[column * 2 + 1] = i;
+                if (++column < COLUMNS) {
+                    bounds[column * 2] = i + 1;
                 }
+            }
+        }
+        if (column < COLUMNS - 1) {
+            // Not a variant line
+            return variantGenes;
+        }
+        if (column == COLUMNS - 1) {
+            bounds[column * 2 + 1] = end;
+        }
 
-                geneMutations.add(variant);
-                // Represent homozygous variants as two separate mutations
-                if (variant.isHomozygous()) {
-                    geneMutations.add(variant);
+        // Extract the used annotations from the INFO column, the last occurrence of a key winning
+        int infoStart = bounds[14];
+        int infoEnd = bounds[15];
+        String gene = null;
+        String phenoScore = null;
+        String variantScore = null;
+        String effect = null;
+        int partStart = infoStart;
+        for (int i = infoStart; i <= infoEnd; ++i) {
+            if (i == infoEnd || line[i] == ';') {
+                int split = partStart;
+                while (split < i && line[split] != '=') {
+                    ++split;
+                }
+                int valueStart = split < i ? split + 1 : i;
+                if (matches(line, partStart, split, GENE_KEY)) {
+                    gene = text(line, valueStart, i);
+                } else if (matches(line, partStart, split, PHENO_SCORE_KEY)) {
+                    phenoScore = text(line, valueStart, i);
+                } else if (matches(line, partStart, split, VARIANT_SCORE_KEY)) {
+                    variantScore = text(line, valueStart, i);
+                } else if (matches(line, partStart, split, EFFECT_KEY)) {
+                    effect = shared(text(line, valueStart, i));
                 }
+                partStart = i + 1;
+            }
+        }
+        if (gene == null || gene.isEmpty()) {
+            return variantGenes;
+        }
+
+        int[] grown = ensureCapacity(variantGenes);
+        int variant = this.size++;
+        grown[variant] = getGenePosition(gene, Double.parseDouble(phenoScore));
+        this.chroms[variant] = standardizeChrom(text(line, bounds[0], bounds[1]));
+        this.positions[variant] = parseInt(line, bounds[2], bounds[3]);
+        this.refs[variant] = shared(text(line, bounds[6], bounds[7]));
+        this.alts[variant] = shared(text(line, bounds[8], bounds[9]));
+        int infoOffset = this.infoOffsets[variant];
+        int infoLength = infoEnd - infoStart;
+        if (infoOffset + infoLength > this.infos.length) {
+            this.infos = Arrays.copyOf(this.infos, Math.max(this.infos.length * 2, infoOffset + infoLength));
+        }
+        System.arraycopy(line, infoStart, this.infos, infoOffset, infoLength);
+        this.infoOffsets[variant + 1] = infoOffset + infoLength;
+        this.effects[variant] = effect;
+        this.scores[variant] = variantScore == null ? 0.0 : Double.parseDouble(variantScore);
+        this.genotypes[variant] = shared(text(line, bounds[18], bounds[19]));
+        return grown;
+    }
+
+    /**
+     * Get the position of a gene, adding it if it wasn't seen before, and update its phenotype score.
+     * 
+     * @param gene the name of the gene
+     * @param score the phenotype score of the gene, replacing any previous score
+     * @return the position of the gene
+     */
+    private int getGenePosition(String gene, double score)
+    {
+        Integer position = this.genes.get(gene);
+        if (position == null) {
+            position = this.genes.size();
+            this.genes.put(gene, position);
+            if (position == this.geneScores.length) {
+                this.geneScores = Arrays.copyOf(this.geneScores, position * 2);
+            }
+        }
+        this.geneScores[position] = score;
+        return position;
+    }
+
+    /**
+     * Make room for one more variant in all the columns.
+     * 
+     * @param variantGenes the gene position of each variant
+     * @return the gene positions, grown if needed
+     */
+    private int[] ensureCapacity(int[] variantGenes)
+    {
+        if (this.size < this.positions.length) {
+            return variantGenes;
+        }
+        int capacity = this.size * 2;
+        this.chroms = Arrays.copyOf(this.chroms, capacity);
+        this.positions = Arrays.copyOf(this.positions, capacity);
+        this.refs = Arrays.copyOf(this.refs, capacity);
+        this.alts = Arrays.copyOf(this.alts, capacity);
+        this.scores = Arrays.copyOf(this.scores, capacity);
+        this.effects = Arrays.copyOf(this.effects, capacity);
+        this.genotypes = Arrays.copyOf(this.genotypes, capacity);
+        this.infoOffsets = Arrays.copyOf(this.infoOffsets, capacity + 1);
+        return Arrays.copyOf(variantGenes, capacity);
+    }
+
+    /**
+     * Shrink the columns to the number of variants parsed.
+     */
+    private void trimColumns()
+    {
+        this.chroms = Arrays.copyOf(this.chroms, this.size);
+        this.positions = Arrays.copyOf(this.positions, this.size);
+        this.refs = Arrays.copyOf(this.refs, this.size);
+        this.alts = Arrays.copyOf(this.alts, this.size);
+        this.scores = Arrays.copyOf(this.scores, this.size);
+        this.effects = Arrays.copyOf(this.effects, this.size);
+        this.genotypes = Arrays.copyOf(this.genotypes, this.size);
+        this.infos = Arrays.copyOf(this.infos, this.infoOffsets[this.size]);
+        this.infoOffsets = Arrays.copyOf(this.infoOffsets, this.size + 1);
+        this.geneScores = Arrays.copyOf(this.geneScores, this.genes.size());
+    }
+
+    /**
+     * Group the variants by gene, homozygous variants twice, and sort each gene's variants by decreasing harmfulness
+     * score, keeping the file order between equal scores.
+     * 
+     * @param variantGenes the gene position of each variant
+     */
+    private void sortVariants(int[] variantGenes)
+    {
+        int geneCount = this.genes.size();
+        this.geneOffsets = new int[geneCount + 1];
+        for (int variant = 0; variant < this.size; ++variant) {
+            this.geneOffsets[variantGenes[variant] + 1] += isHomozygous(this.genotypes[variant]) ? 2 : 1;
+        }
+        for (int gene = 0; gene < geneCount; ++gene) {
+            this.geneOffsets[gene + 1] += this.geneOffsets[gene];
+        }
+        this.order = new int[this.geneOffsets[geneCount]];
+        int[] filled = Arrays.copyOf(this.geneOffsets, geneCount);
+        for (int variant = 0; variant < this.size; ++variant) {
+            int gene = variantGenes[variant];
+            this.order[filled[gene]++] = variant;
+            if (isHomozygous(this.genotypes[variant])) {
+                this.order[filled[gene]++] = variant;
             }
         }
-        fileScan.close();
 
-        // Sort variants within each gene by harmfulness score
-        // TODO: have lists maintain sorted order, instead of sorting at the end
-        for (List<Variant> vs : this.variants.values()) {
-            Collections.sort(vs);
+        Integer[] segment = new Integer[0];
+        Comparator<Integer> byDecreasingScore = new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer v1, Integer v2)
+            {
+                return Double.compare(ExomizerGenotype.this.scores[v2], ExomizerGenotype.this.scores[v1]);
+            }
+        };
+        for (int gene = 0; gene < geneCount; ++gene) {
+            int from = this.geneOffsets[gene];
+            int length = this.geneOffsets[gene + 1] - from;
+            if (length < 2) {
+                continue;
+            }
+            if (segment.length < length) {
+                segment = new Integer[length];
+            }
+            for (int i = 0; i < length; ++i) {
+                segment[i] = this.order[from + i];
+            }
+            // Merge sort, which is stable
+            Arrays.sort(segment, 0, length, byDecreasingScore);
+            for (int i = 0; i < length; ++i) {
+                this.order[from + i] = segment[i];
+            }
+        }
+    }
+
+    /**
+     * Check if a range of bytes spells a key.
+     * 
+     * @param line the buffer
+     * @param start the start of the range
+     * @param end the end of the range
+     * @param key the key to compare with
+     * @return {@code true} if the range holds exactly the key
+     */
+    private static boolean matches(byte[] line, int start, int end, byte[] key)
+    {
+        if (end - start != key.length) {
+            return false;
         }
+        for (int i = 0; i < key.length; ++i) {
+            if (line[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode a range of bytes.
+     * 
+     * @param line the buffer
+     * @param start the start of the range
+     * @param end the end of the range
+     * @return the text in the range
+     */
+    private static String text(byte[] line, int start, int end)
+    {
+        return new String(line, start, end - start, ASCII);
+    }
+
+    /**
+     * Parse a decimal integer from a range of bytes.
+     * 
+     * @param line the buffer
+     * @param start the start of the range
+     * @param end the end of the range
+     * @return the parsed integer
+     * @throws NumberFormatException if the range doesn't hold an integer
+     */
+    private static int parseInt(byte[] line, int start, int end)
+    {
+        if (start == end) {
+            throw new NumberFormatException("Empty position");
+        }
+        int result = 0;
+        for (int i = start; i < end; ++i) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid position: " + text(line, start, end));
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    /**
+     * Get a shared instance of a string, to avoid keeping many copies of repeated values.
+     * 
+     * @param value the value, may be {@code null}
+     * @return an equal string, shared by all the variants of this genotype
+     */
+    private String shared(String value)
+    {
+        if (value == null) {
+            return null;
+        }
+        String result = this.pool.get(value);
+        if (result == null) {
+            this.pool.put(value, value);
+            result = value;
+        }
+        return result;
+    }
+
+    /**
+     * Standardize a chromosome name.
+     * 
+     * @param chrom the chromosome, as found in the file
+     * @return the chromosome without any "chr" prefix, with "M" for the mitochondrial chromosome
+     */
+    private String standardizeChrom(String chrom)
+    {
+        String result = chrom.toUpperCase();
+        if (result.startsWith("CHR")) {
+            result = result.substring(3);
+        }
+        if ("MT".equals(result)) {
+            result = "M";
+        }
+        return shared(result);
+    }
+
+    /**
+     * Check if a genotype is homozygous for the alternate allele.
+     * 
+     * @param genotype the genotype, e.g. "1/1"
+     * @return {@code true} if homozygous
+     */
+    private static boolean isHomozygous(String genotype)
+    {
+        return "1/1".equals(genotype) || "1|1".equals(genotype);
+    }
+
+    /**
+     * Estimate the heap memory used by this genotype. The strings shared between variants, such as chromosome names or
+     * effects, are not counted, and references are counted as 8 bytes.
+     * 
+     * @return the estimated size of this genotype, in bytes
+     */
+    long getMemorySize()
+    {
+        // Per variant: the position, score and INFO offset, and the five string columns
+        long variants = this.size * (4L + 8L + 4L + 5 * 8L) + this.infos.length;
+        // Per gene: the map entry with its name, the score and the offset
+        long genesSize = this.genes.size() * (64L + 8L + 4L);
+        return variants + genesSize + this.order.length * 4L;
     }
 
     @Override
     public Set<String> getGenes()
     {
-        return Collections.unmodifiableSet(this.variants.keySet());
+        return Collections.unmodifiableSet(this.genes.keySet());
     }
 
     @Override
     public Double getGeneScore(String gene)
     {
-        return this.geneScores.get(gene);
+        Integer position = this.genes.get(gene);
+        return position == null ? null : this.geneScores[position];
     }
 
     @Override
     public Variant getTopVariant(String gene, int k)
     {
-        List<Variant> vs = this.variants.get(gene);
-        if (k < vs.size()) {
-            return vs.get(k);
-        } else {
+        Integer position = this.genes.get(gene);
+        if (position == null || k >= this.geneOffsets[position + 1] - this.geneOffsets[position]) {
             return null;
         }
+        return new StoredVariant(this.order[this.geneOffsets[position] + k]);
     }
 
     @Override
     public JSONArray toJSON()
     {
         JSONArray geneList = new JSONArray();
-        for (String geneName : this.variants.keySet()) {
+        for (Map.Entry<String, Integer> geneEntry : this.genes.entrySet()) {
+            int position = geneEntry.getValue();
             JSONObject gene = new JSONObject();
-            gene.element("gene", geneName);
-            gene.element("score", getGeneScore(geneName));
+            gene.element("gene", geneEntry.getKey());
+            gene.element("score", this.geneScores[position]);
 
             JSONArray variantList = new JSONArray();
-            List<Variant> vs = this.variants.get(geneName);
-            for (Variant v : vs) {
-                variantList.add(v.toJSON());
+            for (int i = this.geneOffsets[position]; i < this.geneOffsets[position + 1]; ++i) {
+                variantList.add(new StoredVariant(this.order[i]).toJSON());
             }
             gene.element("variants", variantList);
 
@@ -140,4 +886,127 @@ public JSONArray toJSON()
         return geneList;
     }
 
+    /**
+     * A variant of this genotype, reading its fields from the columns.
+     */
+    private final class StoredVariant implements Variant
+    {
+        /** The index of the variant in the columns. */
+        private final int index;
+
+        /**
+         * Simple constructor.
+         * 
+         * @param index the index of the variant in the columns
+         */
+        StoredVariant(int index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public String getChrom()
+        {
+            return ExomizerGenotype.this.chroms[this.index];
+        }
+
+        @Override
+        public Integer getPosition()
+        {
+            return ExomizerGenotype.this.positions[this.index];
+        }
+
+        @Override
+        public String getRef()
+        {
+            return ExomizerGenotype.this.refs[this.index];
+        }
+
+        @Override
+        public String getAlt()
+        {
+            return ExomizerGenotype.this.alts[this.index];
+        }
+
+        @Override
+        public boolean isHomozygous()
+        {
+            return ExomizerGenotype.isHomozygous(ExomizerGenotype.this.genotypes[this.index]);
+        }
+
+        @Override
+        public String getAnnotation(String key)
+        {
+            // Parse the INFO field on demand, the last occurrence of a key winning
+            String info = getInfo();
+            String result = null;
+            int partStart = 0;
+            while (partStart <= info.length()) {
+                int partEnd = info.indexOf(';', partStart);
+                if (partEnd < 0) {
+                    partEnd = info.length();
+                }
+                if (info.startsWith(key, partStart)) {
+                    int keyEnd = partStart + key.length();
+                    if (keyEnd == partEnd) {
+                        result = "";
+                    } else if (info.charAt(keyEnd) == '=') {
+                        result = info.substring(keyEnd + 1, partEnd);
+                    }
+                }
+                partStart = partEnd + 1;
+            }
+            return result;
+        }
+
+        @Override
+        public double getScore()
+        {
+            return ExomizerGenotype.this.scores[this.index];
+        }
+
+        @Override
+        public String getEffect()
+        {
+            return ExomizerGenotype.this.effects[this.index];
+        }
+
+        @Override
+        public int compareTo(Variant o)
+        {
+            // negative so that largest score comes first
+            return -Double.compare(getScore(), o.getScore());
+        }
+
+        @Override
+        public String toVCFLine()
+        {
+            return String.format("%s\t%s\t.\t%s\t%s\t.\tPASS\t%s\tGT\t%s", getChrom(), getPosition(), getRef(),
+                getAlt(), getInfo(), ExomizerGenotype.this.genotypes[this.index]);
+        }
+
+        /**
+         * Decode the raw INFO field of this variant.
+         * 
+         * @return the INFO field
+         */
+        private String getInfo()
+        {
+            int start = ExomizerGenotype.this.infoOffsets[this.index];
+            return text(ExomizerGenotype.this.infos, start, ExomizerGenotype.this.infoOffsets[this.index + 1]);
+        }
+
+        @Override
+        public JSONObject toJSON()
+        {
+            JSONObject result = new JSONObject();
+            result.element("score", getScore());
+            result.element("chrom", getChrom());
+            result.element("position", getPosition());
+            result.element("ref", getRef());
+            result.element("alt", getAlt());
+            result.element("type", getEffect());
+            return result;
+        }
+    }
 }
@@ -23,17 +23,21 @@
 import org.phenotips.data.Feature;
 import org.phenotips.data.Patient;
 import org.phenotips.data.similarity.Genotype;
-import org.phenotips.data.similarity.Variant;
 import org.phenotips.integration.medsavant.MedSavantServer;
 
 import org.xwiki.component.manager.ComponentLookupException;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -41,9 +45,6 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import exomizer.Exomizer;
-import exomizer.exception.ExomizerException;
-import jannovar.reference.Chromosome;
 import net.sf.json.JSONArray;
 
 /**
@@ -56,8 +57,11 @@ public class ExomizerJob implements Runnable
     /** Suffix for an in-progress exomizer job. */
     private static final String TEMP_SUFFIX = ".temp";
 
-    /** The URL for the Exomizer postgresql server. */
-    private final String dbUrl = "jdbc:postgresql://localhost/nsfpalizer";
+    /** Suffix for the fingerprint of the inputs of the last successful run. */
+    private static final String FINGERPRINT_SUFFIX = ".ezh";
+
+    /** The encoding of the fingerprint inputs and file. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     /** Logging helper object. */
     private final Logger logger;
@@ -65,8 +69,8 @@ public class ExomizerJob implements Runnable
     /** The manager component, set with {@link #initialize(ExomizerJobManager, PatientRepository)}. */
     private final ExomizerJobManager manager;
 
-    /** Exomized gene data structure, likely shared by other ExomizerJob instances. */
-    private HashMap<Byte, Chromosome> chromosomeMap;
+    /** Runs Exomizer, in the server or in a worker process, likely shared by other ExomizerJob instances. */
+    private ExomizerRunner runner;
 
     /** The patient being run. */
     private Patient patient;
@@ -78,15 +82,14 @@ public class ExomizerJob implements Runnable
      * Create Runnable exomizer job from ExomizerManager instance.
      * 
      * @param manager the job manager running this job
-     * @param chromosomeMap the shared Exomizer data structure.
+     * @param runner the shared Exomizer runner.
      * @param patient the patient to run.
      * @param dataDir the directory in which to store the output (and temp) files.
      */
-    public ExomizerJob(ExomizerJobManager manager, HashMap<Byte, Chromosome> chromosomeMap, Patient patient,
-        File dataDir)
+    ExomizerJob(ExomizerJobManager manager, ExomizerRunner runner, Patient patient, File dataDir)
     {
         this.manager = manager;
-        this.chromosomeMap = chromosomeMap;
+        this.runner = runner;
         this.patient = patient;
         this.dataDir = dataDir;
         this.logger = LoggerFactory.getLogger(ExomizerJob.class);
@@ -111,12 +114,14 @@ private static String getPatientHPOs(Patient patient)
     }
 
     /**
-     * Write out the filtered variants for the patient to an output file.
+     * Stream the filtered variants of the patient from MedSavant to a VCF file, computing the fingerprint of the inputs
+     * of the filtering stage on the way: the Exomizer settings and the filtered variants.
      * 
      * @param outFile the output file to write the variants to
+     * @return the hexadecimal SHA-256 digest of the inputs, or {@code null} if SHA-256 isn't available
      * @throws IOException if there is an error writing the variants to the file
      */
-    private void writeVariantsToFile(File outFile) throws IOException
+    private String exportVariants(File outFile) throws IOException
     {
         String patientId = this.patient.getId();
         this.logger.error("Getting variants from MedSavant for: " + patientId);
@@ -131,41 +136,167 @@ private void writeVariantsToFile(File outFile) throws IOException
         }
         List<JSONArray> variants = medsavant.getFilteredVariants(this.patient);
 
-        File tempOutFile = new File(outFile.getAbsolutePath() + TEMP_SUFFIX);
-        BufferedWriter ofp = new BufferedWriter(new FileWriter(tempOutFile));
+        MessageDigest digest = newDigest();
+        if (digest != null) {
+            update(digest, Arrays.asList(LocalExomizerRunner.DB_URL, LocalExomizerRunner.FREQUENCY_THRESHOLD,
+                String.valueOf(LocalExomizerRunner.USE_PATHOGENICITY_FILTER)));
+        }
+        this.logger.error("Dumping variants to: " + outFile.getAbsolutePath());
+        VcfStreamWriter writer = new VcfStreamWriter(outFile, patientId, digest);
+        try {
+            for (JSONArray variant : variants) {
+                writer.write(variant);
+            }
+        } finally {
+            writer.close();
+        }
+        return digest == null ? null : toHex(digest);
+    }
 
-        this.logger.error("Dumping variants to: " + tempOutFile.getAbsolutePath());
-        // Write VCF header
-        ofp.write("##fileFormat=VCF4.1\n");
-        ofp.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\t" + patientId);
-        for (JSONArray variant : variants) {
-            Variant v = new ExomizerVariant(variant);
-            ofp.write(v.toVCFLine() + "\n");
+    /**
+     * Compute the fingerprint of all the inputs of a run: the inputs of the filtering stage, and the present HPO terms
+     * regardless of their order.
+     * 
+     * @param variantFingerprint the fingerprint of the inputs of the filtering stage
+     * @param hpoIDs the comma-separated present HPO terms
+     * @return the hexadecimal SHA-256 digest of the inputs, or {@code null} if SHA-256 isn't available
+     */
+    private static String getFingerprint(String variantFingerprint, String hpoIDs)
+    {
+        if (variantFingerprint == null) {
+            return null;
         }
-        ofp.close();
+        String[] terms = StringUtils.split(hpoIDs, ',');
+        Arrays.sort(terms);
+        return digest(Arrays.asList(variantFingerprint, StringUtils.join(terms, ',')));
+    }
 
-        boolean success = tempOutFile.renameTo(outFile);
-        if (!success) {
-            throw new IOException("Unable to move temp VCF file to final path:" + outFile.getAbsolutePath());
+    /**
+     * Compute the SHA-256 digest of some lines.
+     * 
+     * @param lines the lines to digest
+     * @return the hexadecimal digest, or {@code null} if SHA-256 isn't available
+     */
+    private static String digest(List<String> lines)
+    {
+        MessageDigest digest = newDigest();
+        if (digest == null) {
+            return null;
+        }
+        update(digest, lines);
+        return toHex(digest);
+    }
+
+    /**
+     * Create a SHA-256 digest.
+     * 
+     * @return a new digest, or {@code null} if SHA-256 isn't available
+     */
+    private static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Add lines to a digest, each followed by a line end, so that the boundaries between lines are part of the digest.
+     * 
+     * @param digest the digest to update
+     * @param lines the lines to add
+     */
+    private static void update(MessageDigest digest, List<String> lines)
+    {
+        for (String line : lines) {
+            digest.update(line.getBytes(UTF8));
+            digest.update((byte) '\n');
+        }
+    }
+
+    /**
+     * Complete a digest.
+     * 
+     * @param digest the digest to complete
+     * @return the hexadecimal digest
+     */
+    private static String toHex(MessageDigest digest)
+    {
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    /**
+     * Read the fingerprint of the last successful run.
+     * 
+     * @param file the fingerprint file
+     * @return the fingerprint, or {@code null} if there is none
+     */
+    private static String readFingerprint(File file)
+    {
+        if (!file.isFile()) {
+            return null;
         }
+        byte[] content = new byte[(int) Math.min(file.length(), 1024)];
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                int length = 0;
+                int read = 0;
+                while (read >= 0 && length < content.length) {
+                    read = in.read(content, length, content.length - length);
+                    length += Math.max(read, 0);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return new String(content, UTF8).trim();
+    }
 
-        this.logger.error("Variants written to: " + outFile.getAbsolutePath());
+    /**
+     * Save the fingerprint of a successful run.
+     * 
+     * @param file the fingerprint file
+     * @param fingerprint the fingerprint to save
+     */
+    private void writeFingerprint(File file, String fingerprint)
+    {
+        File temp = new File(file.getAbsolutePath() + TEMP_SUFFIX);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(fingerprint.getBytes(UTF8));
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to move temp fingerprint file to final path:" + file.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            // The next run will just not be skipped
+            this.logger.warn("Unable to save the input fingerprint of {}: {}", this.patient.getId(), e.getMessage());
+        }
     }
 
     @Override
     public void run()
     {
-        if (this.manager == null || this.chromosomeMap == null) {
+        if (this.manager == null || this.runner == null) {
             throw new NullPointerException("ExomizerJob not properly initialized.");
         }
         String patientId = this.patient.getId();
 
-        // Create a VCF file with filtered variants for Exomizer to process
+        // Create a VCF file with filtered variants for Exomizer to process, only kept if it's actually needed
         File inFile = new File(this.dataDir, patientId + ".vcf");
-        // TODO: only do this if the genotype is updated
+        File tempInFile = new File(inFile.getAbsolutePath() + TEMP_SUFFIX);
+        String variantFingerprint;
         try {
-            writeVariantsToFile(inFile);
+            variantFingerprint = exportVariants(tempInFile);
         } catch (IOException e) {
+            tempInFile.delete();
             // Set result to have error
             throw new RuntimeException(e);
         }
@@ -173,43 +304,60 @@ public void run()
         // e.g. "HP:0123456,HP:0000118,..."
         String hpoIDs = getPatientHPOs(this.patient);
 
-        // Run Exomizer on VCF and HPO terms to generate outFile
+        // Skip the run if nothing changed since the last successful one
         File outFile = new File(this.dataDir, patientId + ".ezr");
-        File tempOutFile = new File(this.dataDir, patientId + TEMP_SUFFIX);
-        try {
-            Exomizer exomizer = new Exomizer(this.chromosomeMap);
-            exomizer.setHPOids(hpoIDs);
-            exomizer.setUsePathogenicityFilter(true);
-            exomizer.setFrequencyThreshold("1");
-            exomizer.setVCFfile(inFile.getAbsolutePath());
-            exomizer.setOutfile(tempOutFile.getAbsolutePath());
-
-            // Connect to database and load VCF
-            exomizer.openNewDatabaseConnection(this.dbUrl);
-            exomizer.parseVCFFile();
+        File fingerprintFile = new File(this.dataDir, patientId + FINGERPRINT_SUFFIX);
+        String fingerprint = getFingerprint(variantFingerprint, hpoIDs);
+        if (fingerprint != null && outFile.isFile() && fingerprint.equals(readFingerprint(fingerprintFile))) {
+            tempInFile.delete();
+            this.logger.info("Inputs unchanged since the last run for {}, skipping Exomizer", patientId);
+            if (this.manager.getResult(patientId) == null) {
+                loadResult(patientId, outFile);
+            }
+            return;
+        }
 
-            // Process variants
-            exomizer.initializeFilters();
-            exomizer.initializePrioritizers();
-            exomizer.executePrioritization();
+        if (!tempInFile.renameTo(inFile) && !(inFile.delete() && tempInFile.renameTo(inFile))) {
+            throw new RuntimeException("Unable to move temp VCF file to final path:" + inFile.getAbsolutePath());
+        }
+        this.logger.error("Variants written to: " + inFile.getAbsolutePath());
 
-            // Output results to file
-            exomizer.outputVCF();
-        } catch (ExomizerException e) {
-            throw new RuntimeException("Exomizer error: " + e);
+        // Run Exomizer on VCF and HPO terms to generate outFile; the runner reuses the filtered variants of the last
+        // run if the variants didn't change, so that a phenotype change only reruns the prioritization
+        File tempOutFile = new File(this.dataDir, patientId + TEMP_SUFFIX);
+        try {
+            this.runner.run(patientId, variantFingerprint, inFile, hpoIDs, tempOutFile);
+        } catch (IOException e) {
+            tempOutFile.delete();
+            throw new RuntimeException(e.getMessage(), e);
         }
 
-        // Successfully completed, so move from temp to final file
+        // Successfully completed, so move from temp to final file, dropping the previous output's fingerprint first
+        fingerprintFile.delete();
         boolean success = tempOutFile.renameTo(outFile);
         if (!success) {
             throw new RuntimeException("Unable to move temp exomizer file to final path:" + outFile.getAbsolutePath());
         }
+        if (fingerprint != null) {
+            writeFingerprint(fingerprintFile, fingerprint);
+        }
 
+        loadResult(patientId, outFile);
+    }
+
+    /**
+     * Load the exomizer output of the patient and store it in the manager.
+     * 
+     * @param patientId the id of the patient
+     * @param outFile the exomizer output file
+     */
+    private void loadResult(String patientId, File outFile)
+    {
         // Load in and save exomizer data
         Genotype result = null;
         try {
             result = new ExomizerGenotype(outFile);
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             throw new RuntimeException("Unable to load genotype from file: " + outFile.getAbsolutePath());
         }
         this.manager.putResult(patientId, result);
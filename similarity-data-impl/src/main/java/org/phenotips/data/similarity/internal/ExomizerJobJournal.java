@@ -0,0 +1,306 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An append-only journal of the state changes of exomizer jobs, so that unfinished jobs can be resumed after a restart
+ * without looking again at every patient. Each line holds a timestamp, a state, and a patient id, separated by tabs.
+ * Patients checked without finding variants to analyse are recorded too, and a special line records that all the
+ * patients were checked once for jobs to run, after which only the patients missing from the journal need checking.
+ * When opened, the journal is compacted to the latest state of each patient.
+ *
+ * @version $Id$
+ * @since
+ */
+final class ExomizerJobJournal
+{
+    /** The states of a job. */
+    enum State
+    {
+        /** The job is waiting to run. */
+        QUEUED,
+
+        /** The job is running. */
+        RUNNING,
+
+        /** The job completed successfully. */
+        DONE,
+
+        /** The job failed. */
+        FAILED,
+
+        /** The patient was checked, and had no variants to analyse. */
+        NO_VCF;
+
+        /**
+         * Whether jobs in this state still have to run.
+         *
+         * @return {@code true} for queued and running jobs
+         */
+        boolean isUnfinished()
+        {
+            return this == QUEUED || this == RUNNING;
+        }
+    }
+
+    /** The marker recorded once all the patients were checked for jobs to run. */
+    private static final String SCANNED = "SCANNED";
+
+    /** The separator between the fields of a line. */
+    private static final char SEPARATOR = '\t';
+
+    /** The encoding of the journal. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The journal file. */
+    private final File file;
+
+    /** The latest state of each patient when the journal was opened, by patient id, in journal order. */
+    private final Map<String, State> states = new LinkedHashMap<String, State>();
+
+    /** The timestamp of the latest state of each patient, kept when compacting. */
+    private final Map<String, String> timestamps = new LinkedHashMap<String, String>();
+
+    /** Whether all the patients were checked once for jobs to run. */
+    private boolean scanned;
+
+    /** Appends to the journal, {@code null} until opened. */
+    private Writer out;
+
+    /**
+     * Simple constructor, the journal must be {@link #open() opened} before use.
+     *
+     * @param file the journal file, created if missing
+     */
+    ExomizerJobJournal(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Read the journal, compact it to the latest state of each patient, and open it for appending.
+     *
+     * @throws IOException if reading or rewriting the journal fails
+     */
+    synchronized void open() throws IOException
+    {
+        if (this.file.isFile()) {
+            read();
+        }
+        File temp = new File(this.file.getPath() + ".tmp");
+        Writer compacted = new OutputStreamWriter(new FileOutputStream(temp), UTF8);
+        try {
+            if (this.scanned) {
+                writeLine(compacted, String.valueOf(System.currentTimeMillis()), SCANNED, "");
+            }
+            for (Map.Entry<String, State> job : this.states.entrySet()) {
+                writeLine(compacted, this.timestamps.get(job.getKey()), job.getValue().name(), job.getKey());
+            }
+        } finally {
+            compacted.close();
+        }
+        if (!temp.renameTo(this.file) && !(this.file.delete() && temp.renameTo(this.file))) {
+            throw new IOException("Unable to replace the job journal: " + this.file.getAbsolutePath());
+        }
+        this.timestamps.clear();
+        this.out = new OutputStreamWriter(new FileOutputStream(this.file, true), UTF8);
+    }
+
+    /**
+     * Whether all the patients were checked once for jobs to run, as recorded by {@link #markScanned()}.
+     *
+     * @return {@code true} if only the patients missing from the journal still need to be checked
+     */
+    synchronized boolean isScanned()
+    {
+        return this.scanned;
+    }
+
+    /**
+     * Get the jobs which were queued or running when the journal was last closed.
+     *
+     * @return an unmodifiable set of patient ids, in the order their jobs were recorded
+     */
+    synchronized Set<String> getUnfinished()
+    {
+        Set<String> result = new LinkedHashSet<String>();
+        for (Map.Entry<String, State> job : this.states.entrySet()) {
+            if (job.getValue().isUnfinished()) {
+                result.add(job.getKey());
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * Whether the journal had any state for a patient when it was opened, meaning the patient was already checked for
+     * a job to run.
+     *
+     * @param patientId the id of the patient
+     * @return {@code true} if the patient is in the journal
+     */
+    synchronized boolean contains(String patientId)
+    {
+        return this.states.containsKey(patientId);
+    }
+
+    /**
+     * Record a new state for the job of a patient.
+     *
+     * @param patientId the id of the patient
+     * @param state the new state of the job
+     * @throws IOException if writing to the journal fails
+     */
+    synchronized void record(String patientId, State state) throws IOException
+    {
+        append(state.name(), patientId);
+    }
+
+    /**
+     * Record that all the patients were checked for jobs to run, and their jobs recorded.
+     *
+     * @throws IOException if writing to the journal fails
+     */
+    synchronized void markScanned() throws IOException
+    {
+        append(SCANNED, "");
+        this.scanned = true;
+    }
+
+    /**
+     * Close the journal.
+     *
+     * @throws IOException if closing the file fails
+     */
+    synchronized void close() throws IOException
+    {
+        if (this.out != null) {
+            this.out.close();
+            this.out = null;
+        }
+    }
+
+    /**
+     * Read the journal, keeping the latest state of each job. A last line without a line end, cut short by a crash, is
+     * skipped, as well as unrecognized lines.
+     *
+     * @throws IOException if reading the journal fails
+     */
+    private void read() throws IOException
+    {
+        byte[] content = new byte[(int) this.file.length()];
+        FileInputStream in = new FileInputStream(this.file);
+        try {
+            int length = 0;
+            int read = 0;
+            while (read >= 0 && length < content.length) {
+                read = in.read(content, length, content.length - length);
+                length += Math.max(read, 0);
+            }
+        } finally {
+            in.close();
+        }
+        String text = new String(content, UTF8);
+        int start = 0;
+        int end = text.indexOf('\n');
+        while (end >= 0) {
+            readLine(text.substring(start, end));
+            start = end + 1;
+            end = text.indexOf('\n', start);
+        }
+    }
+
+    /**
+     * Apply one line of the journal.
+     *
+     * @param line the line to apply
+     */
+    private void readLine(String line)
+    {
+        int first = line.indexOf(SEPARATOR);
+        int second = line.indexOf(SEPARATOR, first + 1);
+        if (first <= 0 || second < 0) {
+            return;
+        }
+        String name = line.substring(first + 1, second);
+        String patientId = line.substring(second + 1);
+        if (SCANNED.equals(name)) {
+            this.scanned = true;
+            return;
+        }
+        State state;
+        try {
+            state = State.valueOf(name);
+        } catch (IllegalArgumentException ex) {
+            return;
+        }
+        if (patientId.isEmpty()) {
+            return;
+        }
+        // Re-inserted so that the order follows the latest state change
+        this.states.remove(patientId);
+        this.states.put(patientId, state);
+        this.timestamps.remove(patientId);
+        this.timestamps.put(patientId, line.substring(0, first));
+    }
+
+    /**
+     * Append a line to the journal, with the current time.
+     *
+     * @param name the state or marker
+     * @param patientId the id of the patient, or an empty string for markers
+     * @throws IOException if writing to the journal fails
+     */
+    private void append(String name, String patientId) throws IOException
+    {
+        if (this.out == null) {
+            throw new IOException("The job journal is not open");
+        }
+        writeLine(this.out, String.valueOf(System.currentTimeMillis()), name, patientId);
+        this.out.flush();
+    }
+
+    /**
+     * Write a line of the journal.
+     *
+     * @param writer where to write
+     * @param timestamp the time of the change, in milliseconds
+     * @param name the state or marker
+     * @param patientId the id of the patient, or an empty string for markers
+     * @throws IOException if writing fails
+     */
+    private static void writeLine(Writer writer, String timestamp, String name, String patientId) throws IOException
+    {
+        writer.write(timestamp + SEPARATOR + name + SEPARATOR + patientId + '\n');
+    }
+}
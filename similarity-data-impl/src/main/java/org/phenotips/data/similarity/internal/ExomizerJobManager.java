@@ -24,34 +24,54 @@
 import org.phenotips.data.PatientRepository;
 import org.phenotips.data.similarity.ExternalToolJobManager;
 import org.phenotips.data.similarity.Genotype;
+import org.phenotips.data.similarity.internal.ExomizerJobJournal.State;
+import org.phenotips.data.similarity.internal.PriorityJobScheduler.Lane;
 import org.phenotips.integration.medsavant.MedSavantServer;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
 import org.xwiki.environment.Environment;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 
 import exomizer.Exomizer;
@@ -66,7 +86,7 @@
 @Component(roles = { ExternalToolJobManager.class })
 @Named("exomizer")
 @Singleton
-public class ExomizerJobManager implements ExternalToolJobManager<Genotype>, Initializable
+public class ExomizerJobManager implements ExternalToolJobManager<Genotype>, Initializable, Disposable
 {
     /** The name of the data subdirectory used by this job manager. */
     private static final String DATA_SUBDIR = "exomizer";
@@ -74,9 +94,79 @@ public class ExomizerJobManager implements ExternalToolJobManager<Genotype>, Ini
     /** Suffix for successfully completed patient exomizer file. */
     private static final String EXOMIZER_SUFFIX = ".ezr";
 
+    /** Suffix for the binary copy of a parsed exomizer file, loaded instead of the text file when still valid. */
+    private static final String BINARY_SUFFIX = ".ezb";
+
+    /** Filename of the journal of the jobs, used for resuming unfinished jobs after a restart. */
+    private static final String JOURNAL_FILE = "jobs.journal";
+
     /** Filename of serialized UCSC data, used by exomizer. */
     private static final String SERIALIZED_UCSC = "ucsc.ser";
 
+    /** The name of the background thread loading the results of previous runs. */
+    private static final String LOADER_THREAD_NAME = "exomizer-genotype-loader";
+
+    /** How many loaded genotypes between two progress messages. */
+    private static final int PROGRESS_INTERVAL = 100;
+
+    /** Configuration key for the memory used by the genotypes kept in memory, in megabytes. */
+    private static final String MAX_MEMORY_KEY = "phenotips.similarity.genotypes.maxMemory";
+
+    /** The default memory used by the genotypes kept in memory, in megabytes. */
+    private static final int DEFAULT_MAX_MEMORY = 512;
+
+    /** Configuration key for the number of exomizer jobs running at the same time. */
+    private static final String THREADS_KEY = "phenotips.similarity.exomizer.threads";
+
+    /** The default number of exomizer jobs running at the same time. */
+    private static final int DEFAULT_THREADS = 2;
+
+    /** Configuration key for the maximum number of background exomizer jobs waiting to run. */
+    private static final String MAX_QUEUED_JOBS_KEY = "phenotips.similarity.exomizer.maxQueuedJobs";
+
+    /** The default maximum number of background exomizer jobs waiting to run. */
+    private static final int DEFAULT_MAX_QUEUED_JOBS = 100;
+
+    /**
+     * Configuration key for the number of patients whose filtered variants are kept for the next run. Each kept patient
+     * costs a complete Exomizer instance, with all the parsed variants of the patient, often hundreds of megabytes, and
+     * an open database connection. With worker processes, each worker keeps this many, and a patient's job goes to the
+     * worker that last ran it when that worker is idle; otherwise another worker runs the job from scratch. Without
+     * worker processes, they are kept in the server heap.
+     */
+    private static final String MAX_FILTERED_VARIANTS_KEY = "phenotips.similarity.exomizer.maxFilteredVariants";
+
+    /** The default number of patients whose filtered variants are kept by each worker process. */
+    private static final int DEFAULT_MAX_FILTERED_VARIANTS = 8;
+
+    /** The default number of patients whose filtered variants are kept in the server, without worker processes. */
+    private static final int DEFAULT_LOCAL_MAX_FILTERED_VARIANTS = 0;
+
+    /** Configuration key for the number of worker processes running Exomizer, 0 for running it in the server. */
+    private static final String WORKERS_KEY = "phenotips.similarity.exomizer.workers";
+
+    /** Configuration key for the space-separated JVM options of the worker processes, such as their heap size. */
+    private static final String WORKER_OPTIONS_KEY = "phenotips.similarity.exomizer.workerOptions";
+
+    /** The default JVM options of the worker processes. */
+    private static final String DEFAULT_WORKER_OPTIONS = "-Xmx2g";
+
+    /** Configuration key for the classpath of the worker processes, guessed from the loaded classes by default. */
+    private static final String WORKER_CLASSPATH_KEY = "phenotips.similarity.exomizer.workerClasspath";
+
+    /** Configuration key for how long a worker process can take to run a job, in minutes. */
+    private static final String WORKER_TIMEOUT_KEY = "phenotips.similarity.exomizer.workerTimeout";
+
+    /** The default time a worker process can take to run a job, in minutes. */
+    private static final int DEFAULT_WORKER_TIMEOUT = 30;
+
+    /** Filename of the log of the worker processes, in the data directory. */
+    private static final String WORKER_LOG = "workers.log";
+
+    /** The classes needed by the worker processes, the JDBC driver being optional. */
+    private static final List<String> WORKER_CLASSES = Arrays.asList(ExomizerWorker.class.getName(),
+        Exomizer.class.getName(), Chromosome.class.getName(), "org.postgresql.Driver");
+
     /** Logging helper object. */
     @Inject
     private Logger logger;
@@ -85,31 +175,69 @@ public class ExomizerJobManager implements ExternalToolJobManager<Genotype>, Ini
     @Inject
     private Environment environment;
 
-    /** Threadpool manager. */
-    private ExecutorService executor;
+    /** Provides access to the configured memory budget. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Index of the genes carried by each patient with a genotype. */
+    @Inject
+    private GeneCarrierIndex geneCarriers;
+
+    /** Sets up the execution context of the background loader, which looks up the patients. */
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    /** Holds the execution context of the background loader. */
+    @Inject
+    private Execution execution;
+
+    /** The cached gene scores of patient pairs, which depend on the genotypes of all the carriers. */
+    @Inject
+    private GeneMatchCache geneMatches;
+
+    /** Runs the jobs, those added by users before the ones started in the background. */
+    private PriorityJobScheduler scheduler;
 
     /** A record of jobs that have been submitted since running. */
     private Map<String, Future<?>> submittedJobs;
 
-    /** A mapping of available results, from PhenomeCentral patient IDs to the annotated Genotypes. */
-    private Map<String, Genotype> completedJobs;
+    /**
+     * The available results, from PhenomeCentral patient IDs to the annotated Genotypes, only the recently used ones
+     * being kept in memory.
+     */
+    private GenotypeStore completedJobs;
+
+    /** The results of previous runs which are still being loaded in the background, by patient ID. */
+    private Map<String, FutureTask<Genotype>> pendingLoads;
+
+    /** Whether the background loading of the results of previous runs is over. */
+    private volatile boolean ready;
 
     /** Static directory for output exomizer files. */
     private File dataDir;
 
-    /** Exomizer gene data structure, loaded once and shared by all jobs. */
-    private HashMap<Byte, Chromosome> chromosomeMap;
+    /** Records the state changes of the jobs, {@code null} if it couldn't be opened. */
+    private ExomizerJobJournal journal;
+
+    /** Runs Exomizer for the jobs, created with the first job; guarded by this. */
+    private ExomizerRunner runner;
 
     @Override
     public void initialize() throws InitializationException
     {
         logger.error("Intializing ExomizerJobManager...");
-        this.chromosomeMap = null;
 
         // Set up threadpool
-        this.executor = Executors.newFixedThreadPool(2);
+        int threads = this.configuration.getProperty(THREADS_KEY, DEFAULT_THREADS);
+        int maxQueuedJobs = this.configuration.getProperty(MAX_QUEUED_JOBS_KEY, DEFAULT_MAX_QUEUED_JOBS);
+        this.scheduler = new PriorityJobScheduler(threads, maxQueuedJobs, "exomizer-job");
         this.submittedJobs = new ConcurrentHashMap<String, Future<?>>();
-        this.completedJobs = new ConcurrentHashMap<String, Genotype>();
+        int maxMemory = Math.max(1, this.configuration.getProperty(MAX_MEMORY_KEY, DEFAULT_MAX_MEMORY));
+        this.completedJobs = new GenotypeStore(maxMemory * 1024L * 1024L, new StoredGenotypeLoader());
+        this.logger.info("Keeping up to {}MB of genotypes in memory", maxMemory);
+        this.pendingLoads = new ConcurrentHashMap<String, FutureTask<Genotype>>();
+        this.ready = false;
 
         // Get xwiki component permanent directory for Exomizer files
         File rootDir = this.environment.getPermanentDirectory();
@@ -127,10 +255,52 @@ public void initialize() throws InitializationException
         }
         this.logger.error("ExomizerJobManager data directory: " + this.dataDir.getAbsolutePath());
 
-        initializeData();
+        this.journal = new ExomizerJobJournal(new File(this.dataDir, JOURNAL_FILE));
+        try {
+            this.journal.open();
+        } catch (IOException e) {
+            this.logger.warn("Unable to open the job journal, jobs won't be resumed after a restart: {}",
+                e.getMessage());
+            this.journal = null;
+        }
+
+        // Patients are looked up and their results loaded in the background, without holding up the initialization
+        Thread loader = new Thread(new GenotypeLoader(), LOADER_THREAD_NAME);
+        loader.setDaemon(true);
+        loader.start();
     }
 
-    private void initializeData()
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.scheduler.shutdown();
+        if (this.journal != null) {
+            // Jobs still running are left unfinished in the journal, and resumed after the restart
+            try {
+                this.journal.close();
+            } catch (IOException e) {
+                this.logger.warn("Unable to close the job journal: {}", e.getMessage());
+            }
+        }
+        synchronized (this) {
+            if (this.runner != null) {
+                // Stops the worker processes, if any
+                this.runner.close();
+            }
+        }
+    }
+
+    /**
+     * Prepare the loading of the results of all the patients which were already processed, and find the patients which
+     * need a job: the first time, all the patients with a VCF file and no results yet, and afterwards the jobs left
+     * unfinished in the journal and the patients with a VCF file which were never checked, such as new patients. Each
+     * checked patient is recorded in the journal, with or without a job. Run by the {@link GenotypeLoader}, which then
+     * loads the results, but they can already be requested, which loads them right away.
+     * 
+     * @param loads the list where the pending loads of the stored results are added
+     * @return the patients which need a job
+     */
+    private List<Patient> initializeData(List<FutureTask<Genotype>> loads)
     {
         this.logger.error("Looking for available genotype jobs to start...");
 
@@ -152,72 +322,300 @@ private void initializeData()
             }
         } catch (ComponentLookupException e) {
             this.logger.error("Could not load components for patient lookup.");
-            return;
+            return Collections.emptyList();
         } catch (QueryException e) {
             this.logger.error("Query error: " + e.toString());
-            return;
+            return Collections.emptyList();
         }
 
+        List<Patient> backlog = new ArrayList<Patient>();
+        Set<String> patientIds = new HashSet<String>();
+        boolean resume = this.journal != null && this.journal.isScanned();
         for (String patientDoc : patientDocs) {
-            Patient p = patients.getPatientById(patientDoc);
-            if (p != null) {
-                String patientId = p.getId();
-                File results = new File(this.dataDir, patientId + EXOMIZER_SUFFIX);
-                if (results.exists()) {
-                    try {
-                        this.logger.error("Loading genetics for " + patientId);
-                        putResult(patientId, new ExomizerGenotype(results));
-                    } catch (FileNotFoundException e) {
-                        this.logger.error("Unable to load genotype from file: " + results.getAbsolutePath());
+            // Patient identifiers are the names of their documents, so results are found without loading patients
+            String patientId = patientDoc.substring(patientDoc.lastIndexOf('.') + 1);
+            patientIds.add(patientId);
+            File results = new File(this.dataDir, patientId + EXOMIZER_SUFFIX);
+            if (results.exists()) {
+                FutureTask<Genotype> load = new FutureTask<Genotype>(new GenotypeLoad(patientId, results));
+                this.pendingLoads.put(patientId, load);
+                loads.add(load);
+            } else if (medsavant != null && !(resume && this.journal.contains(patientId))) {
+                Patient p = patients.getPatientById(patientDoc);
+                if (p != null && !hasJob(p)) {
+                    if (medsavant.hasVCF(p)) {
+                        backlog.add(p);
+                    } else {
+                        record(patientId, State.NO_VCF);
                     }
-                } else if (medsavant != null && !hasJob(p) && medsavant.hasVCF(p)) {
-                    addJob(p);
                 }
             }
         }
+        // Without MedSavant no patient was checked, so the scan must be done again on the next start
+        recordScan(backlog, medsavant != null);
+        if (resume) {
+            List<Patient> unfinished = getUnfinishedJobs(patients, patientIds, medsavant != null);
+            unfinished.addAll(backlog);
+            backlog = unfinished;
+        }
+        return backlog;
+    }
+
+    /**
+     * Load the stored results, in parallel. Run in the background by the {@link GenotypeLoader}, only reading files.
+     * 
+     * @param loads the pending loads of the stored results
+     */
+    private void loadGenotypes(List<FutureTask<Genotype>> loads)
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService loaders = Executors.newFixedThreadPool(threads, new LoaderThreadFactory());
+        try {
+            this.logger.info("Loading {} genotypes with {} threads", loads.size(), threads);
+            for (FutureTask<Genotype> load : loads) {
+                loaders.execute(load);
+            }
+            for (int i = 0; i < loads.size(); ++i) {
+                waitFor(loads.get(i));
+                if ((i + 1) % PROGRESS_INTERVAL == 0) {
+                    this.logger.info("Loaded {} of {} genotypes", i + 1, loads.size());
+                }
+            }
+            this.logger.info("Finished loading {} genotypes", loads.size());
+        } finally {
+            loaders.shutdown();
+        }
+    }
+
+    /**
+     * Find the patients whose jobs were left unfinished in the journal. Jobs of patients which were deleted meanwhile
+     * are recorded as failed.
+     * 
+     * @param patients used for loading the patients
+     * @param patientIds the ids of the existing patients
+     * @param canRun whether jobs can be run at all
+     * @return the patients whose jobs must be resumed
+     */
+    private List<Patient> getUnfinishedJobs(PatientRepository patients, Set<String> patientIds, boolean canRun)
+    {
+        List<Patient> unfinished = new ArrayList<Patient>();
+        for (String patientId : this.journal.getUnfinished()) {
+            Patient p = patientIds.contains(patientId) ? patients.getPatientById(patientId) : null;
+            if (p == null) {
+                record(patientId, State.FAILED);
+            } else if (canRun && !hasJob(p)) {
+                unfinished.add(p);
+            }
+        }
+        this.logger.info("Resuming {} unfinished exomizer jobs", unfinished.size());
+        return unfinished;
+    }
+
+    /**
+     * Record the jobs found by checking the patients, and that all the patients were checked, so that only new patients
+     * need checking afterwards.
+     * 
+     * @param backlog the patients which need a job
+     * @param complete whether all the patients could be checked
+     */
+    private void recordScan(List<Patient> backlog, boolean complete)
+    {
+        for (Patient p : backlog) {
+            record(p.getId(), State.QUEUED);
+        }
+        if (complete && this.journal != null && !this.journal.isScanned()) {
+            try {
+                this.journal.markScanned();
+            } catch (IOException e) {
+                this.logger.warn("Unable to record the job journal scan: {}", e.getMessage());
+            }
+        }
     }
 
     /**
-     * Get the chromosomeMap lazily, memoizing once it's loaded.
+     * Record a new state for the job of a patient in the journal, if available.
      * 
-     * @return the chromosomeMap for exomizer to use
+     * @param patientId the id of the patient
+     * @param state the new state of the job
+     */
+    private void record(String patientId, State state)
+    {
+        if (this.journal != null) {
+            try {
+                this.journal.record(patientId, state);
+            } catch (IOException e) {
+                this.logger.warn("Unable to record job state {} for {}: {}", state, patientId, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Wait for a genotype load to finish.
+     * 
+     * @param load the load to wait for
+     * @return the loaded genotype, or {@code null} if it couldn't be loaded or the thread was interrupted
+     */
+    private Genotype waitFor(FutureTask<Genotype> load)
+    {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            this.logger.error("Unable to load genotype: {}", e.getCause().toString());
+        }
+        return null;
+    }
+
+    /**
+     * Load the genotype of a patient from its binary copy if it is still valid, otherwise parse the exomizer output
+     * file and save a binary copy for the next time.
+     * 
+     * @param patientId the identifier of the patient
+     * @param results the exomizer output file of the patient
+     * @return the genotype of the patient
+     * @throws IOException if the exomizer output file can't be read
+     */
+    private Genotype loadGenotype(String patientId, File results) throws IOException
+    {
+        File binary = new File(this.dataDir, patientId + BINARY_SUFFIX);
+        try {
+            ExomizerGenotype result = ExomizerGenotype.readBinary(binary, results);
+            if (result != null) {
+                return result;
+            }
+        } catch (IOException e) {
+            this.logger.warn("Unable to read binary genotype {}: {}", binary.getAbsolutePath(), e.getMessage());
+        }
+
+        ExomizerGenotype result = new ExomizerGenotype(results);
+        try {
+            result.writeBinary(binary);
+        } catch (IOException e) {
+            this.logger.warn("Unable to write binary genotype {}: {}", binary.getAbsolutePath(), e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Get the runner of the jobs lazily: a pool of worker processes if configured, or an in-process runner sharing a
+     * chromosome map loaded once.
+     *
+     * @return the runner for the jobs to use
      */
-    private HashMap<Byte, Chromosome> getChromosomeMap()
+    private synchronized ExomizerRunner getRunner()
     {
-        if (this.chromosomeMap == null) {
+        if (this.runner == null) {
             String serializedDb = (new File(this.dataDir, SERIALIZED_UCSC)).getAbsolutePath();
+            int workers = this.configuration.getProperty(WORKERS_KEY, 0);
+            // Filtered variants are only kept in the server heap if explicitly configured
+            int maxFilteredVariants = this.configuration.getProperty(MAX_FILTERED_VARIANTS_KEY,
+                workers > 0 ? DEFAULT_MAX_FILTERED_VARIANTS : DEFAULT_LOCAL_MAX_FILTERED_VARIANTS);
+            if (workers > 0) {
+                List<String> command = new ArrayList<String>();
+                command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath());
+                String options = this.configuration.getProperty(WORKER_OPTIONS_KEY, DEFAULT_WORKER_OPTIONS);
+                command.addAll(Arrays.asList(StringUtils.split(options)));
+                command.add("-cp");
+                command.add(this.configuration.getProperty(WORKER_CLASSPATH_KEY, getWorkerClasspath()));
+                command.add(ExomizerWorker.class.getName());
+                command.add(serializedDb);
+                command.add(String.valueOf(maxFilteredVariants));
+                long timeout = this.configuration.getProperty(WORKER_TIMEOUT_KEY, DEFAULT_WORKER_TIMEOUT) * 60000L;
+                this.runner = new ExomizerWorkerPool(workers, command, new File(this.dataDir, WORKER_LOG), timeout,
+                    maxFilteredVariants);
+                this.logger.info("Running Exomizer in up to {} worker processes", workers);
+            } else {
+                HashMap<Byte, Chromosome> chromosomeMap;
+                try {
+                    chromosomeMap = Exomizer.getDeserializedUCSCdata(serializedDb);
+                    this.logger.error("Loaded shared Exomizer chromosome map from: " + serializedDb);
+                } catch (ExomizerException e) {
+                    // Jobs will fail until the data is available
+                    this.logger.error("Failed to load chromosome map: " + e);
+                    return new LocalExomizerRunner(null, 0);
+                }
+                this.runner = new LocalExomizerRunner(chromosomeMap, maxFilteredVariants);
+            }
+        }
+        return this.runner;
+    }
+
+    /**
+     * Build the classpath of the worker processes from the locations the classes they need were loaded from.
+     *
+     * @return the classpath, separated by the platform path separator
+     */
+    private String getWorkerClasspath()
+    {
+        List<String> entries = new ArrayList<String>();
+        for (String className : WORKER_CLASSES) {
             try {
-                this.chromosomeMap = Exomizer.getDeserializedUCSCdata(serializedDb);
-                this.logger.error("Loaded shared Exomizer chromosome map from: " + serializedDb);
-            } catch (ExomizerException e) {
-                String err = "Failed to load chromosome map: " + e;
-                this.logger.error(err);
+                CodeSource source = Class.forName(className).getProtectionDomain().getCodeSource();
+                String entry = source == null ? null : new File(source.getLocation().toURI()).getAbsolutePath();
+                if (entry != null && !entries.contains(entry)) {
+                    entries.add(entry);
+                }
+            } catch (ClassNotFoundException | URISyntaxException e) {
+                this.logger.debug("No classpath entry for {}: {}", className, e.getMessage());
             }
         }
-        return this.chromosomeMap;
+        return StringUtils.join(entries, File.pathSeparator);
     }
 
     @Override
-    public void putResult(String patientId, Genotype result)
+    public synchronized void putResult(String patientId, Genotype result)
     {
-        this.completedJobs.put(patientId, result);
+        // Results stored by a job can be loaded back from the output file it wrote
+        File results = new File(this.dataDir, patientId + EXOMIZER_SUFFIX);
+        this.completedJobs.put(patientId, result, results.isFile() ? results : null);
+        this.geneCarriers.put(patientId, result);
+        this.geneMatches.invalidateAll();
+    }
+
+    /**
+     * Store the result of a previous run once loaded, unless a new job already produced a newer result meanwhile.
+     * 
+     * @param patientId the id of the patient
+     * @param result the loaded result
+     * @param results the file the result was loaded from
+     */
+    private synchronized void putLoadedResult(String patientId, Genotype result, File results)
+    {
+        if (this.completedJobs.putIfAbsent(patientId, result, results)) {
+            this.geneCarriers.put(patientId, result);
+            this.geneMatches.invalidateAll();
+        }
     }
 
     @Override
     public void addJob(Patient patient)
     {
-
-        Future<?> result = this.submittedJobs.get(patient);
-        if (result != null) {
-            // cancel pending submission for same patient
-            result.cancel(false);
+        try {
+            addJob(patient, Lane.INTERACTIVE);
+        } catch (InterruptedException e) {
+            // Interactive jobs are never waiting for room
+            Thread.currentThread().interrupt();
         }
+    }
 
-        Runnable worker = new ExomizerJob(this, getChromosomeMap(), patient, this.dataDir);
+    /**
+     * Submit a job for a patient to one of the lanes of the scheduler. A job already waiting for the same patient is
+     * replaced by this one, instead of running twice.
+     * 
+     * @param patient the patient to process
+     * @param lane the lane to submit to
+     * @throws InterruptedException if interrupted while waiting for room in the bulk lane
+     */
+    private void addJob(Patient patient, Lane lane) throws InterruptedException
+    {
+        Runnable worker = new JournaledJob(patient.getId(),
+            new ExomizerJob(this, getRunner(), patient, this.dataDir));
 
         // Submit job and store future for status queries
         this.logger.error(" submitting Exomizer job to threadpool: " + patient.getId());
-        result = this.executor.submit(worker);
+        record(patient.getId(), State.QUEUED);
+        Future<?> result = this.scheduler.submit(patient.getId(), worker, lane);
 
         // Add future (potentially-null/failed) result to submitted
         this.submittedJobs.put(patient.getId(), result);
@@ -227,7 +625,8 @@ public void addJob(Patient patient)
     public boolean hasJob(Patient patient)
     {
         String patientId = patient.getId();
-        return (this.submittedJobs.containsKey(patientId) || this.completedJobs.containsKey(patientId));
+        return (this.submittedJobs.containsKey(patientId) || this.completedJobs.contains(patientId)
+            || this.pendingLoads.containsKey(patientId));
     }
 
     @Override
@@ -249,7 +648,7 @@ public boolean hasFinished(Patient patient)
     @Override
     public boolean wasSuccessful(Patient patient)
     {
-        return this.completedJobs.containsKey(patient.getId());
+        return this.completedJobs.contains(patient.getId());
     }
 
     @Override
@@ -273,12 +672,217 @@ public String getStatusMessage(Patient patient)
     @Override
     public Genotype getResult(String patientId)
     {
-        return this.completedJobs.get(patientId);
+        Genotype result = getStoredResult(patientId);
+        if (result == null) {
+            FutureTask<Genotype> load = this.pendingLoads.get(patientId);
+            if (load != null) {
+                // Load it right away rather than waiting for its turn, this does nothing if it's already loading
+                load.run();
+                waitFor(load);
+                result = getStoredResult(patientId);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get a stored result, loading it back from its file if it was dropped from memory.
+     * 
+     * @param patientId the id of the patient
+     * @return the result, or {@code null} if the patient has none or it can't be loaded
+     */
+    private Genotype getStoredResult(String patientId)
+    {
+        try {
+            return this.completedJobs.get(patientId);
+        } catch (IOException e) {
+            this.logger.error("Unable to reload genotype for {}: {}", patientId, e.getMessage());
+            return null;
+        }
     }
 
     @Override
     public Set<String> getAllCompleted()
     {
-        return Collections.unmodifiableSet(this.completedJobs.keySet());
+        return this.completedJobs.getPatientIds();
+    }
+
+    @Override
+    public boolean isReady()
+    {
+        return this.ready;
+    }
+
+    /**
+     * Looks up the patients and loads the results of previous runs in the background, marks the manager as ready once
+     * done, then submits the jobs for the patients without results. Runs in its own XWiki execution context, since the
+     * patients are queried and loaded outside of any request.
+     */
+    private final class GenotypeLoader implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try {
+                ExomizerJobManager.this.contextManager.initialize(new ExecutionContext());
+            } catch (ExecutionContextException e) {
+                ExomizerJobManager.this.logger.error("Unable to initialize the genotype loader context: {}",
+                    e.getMessage());
+            }
+            try {
+                submit(load());
+            } finally {
+                ExomizerJobManager.this.execution.removeContext();
+            }
+        }
+
+        /**
+         * Find the stored results and the patients which need a job, and load the results.
+         * 
+         * @return the patients which need a job
+         */
+        private List<Patient> load()
+        {
+            List<FutureTask<Genotype>> loads = new ArrayList<FutureTask<Genotype>>();
+            List<Patient> backlog = Collections.emptyList();
+            // The carriers are sorted into the gene index once all the genotypes are loaded, not for each genotype
+            ExomizerJobManager.this.geneCarriers.beginBulkLoad();
+            try {
+                backlog = initializeData(loads);
+                loadGenotypes(loads);
+            } finally {
+                ExomizerJobManager.this.geneCarriers.endBulkLoad();
+                // Pairs matched during the load may have missed some carriers
+                ExomizerJobManager.this.geneMatches.invalidateAll();
+                ExomizerJobManager.this.ready = true;
+            }
+            return backlog;
+        }
+
+        /**
+         * Submit the background jobs, waiting whenever the bulk lane is full, which is why it's done after loading the
+         * results.
+         * 
+         * @param backlog the patients which need a job
+         */
+        private void submit(List<Patient> backlog)
+        {
+            ExomizerJobManager.this.logger.info("Submitting {} background exomizer jobs", backlog.size());
+            try {
+                for (Patient patient : backlog) {
+                    if (!hasJob(patient)) {
+                        addJob(patient, Lane.BULK);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Loads the result of a previous run for one patient.
+     */
+    private final class GenotypeLoad implements Callable<Genotype>
+    {
+        /** The id of the patient. */
+        private final String patientId;
+
+        /** The exomizer output file of the patient. */
+        private final File results;
+
+        /**
+         * Simple constructor.
+         * 
+         * @param patientId the id of the patient
+         * @param results the exomizer output file of the patient
+         */
+        GenotypeLoad(String patientId, File results)
+        {
+            this.patientId = patientId;
+            this.results = results;
+        }
+
+        @Override
+        public Genotype call()
+        {
+            Genotype result = null;
+            try {
+                result = loadGenotype(this.patientId, this.results);
+                putLoadedResult(this.patientId, result, this.results);
+            } catch (IOException e) {
+                ExomizerJobManager.this.logger.error("Unable to load genotype from file: "
+                    + this.results.getAbsolutePath());
+            } finally {
+                ExomizerJobManager.this.pendingLoads.remove(this.patientId);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Records the state changes of a job in the journal while running it.
+     */
+    private final class JournaledJob implements Runnable
+    {
+        /** The id of the patient processed by the job. */
+        private final String patientId;
+
+        /** The job. */
+        private final Runnable job;
+
+        /**
+         * Simple constructor.
+         * 
+         * @param patientId the id of the patient processed by the job
+         * @param job the job
+         */
+        JournaledJob(String patientId, Runnable job)
+        {
+            this.patientId = patientId;
+            this.job = job;
+        }
+
+        @Override
+        public void run()
+        {
+            record(this.patientId, State.RUNNING);
+            try {
+                this.job.run();
+            } catch (RuntimeException e) {
+                record(this.patientId, State.FAILED);
+                throw e;
+            }
+            record(this.patientId, State.DONE);
+        }
+    }
+
+    /**
+     * Loads back the genotypes dropped from memory by the {@link GenotypeStore}, preferably from their binary copy.
+     */
+    private final class StoredGenotypeLoader implements GenotypeStore.Loader
+    {
+        @Override
+        public Genotype load(String patientId, File file) throws IOException
+        {
+            return loadGenotype(patientId, file);
+        }
+    }
+
+    /**
+     * Creates daemon threads for loading genotypes, so that they don't prevent the JVM from shutting down.
+     */
+    private static final class LoaderThreadFactory implements ThreadFactory
+    {
+        /** Used for numbering the threads. */
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread thread = new Thread(task, LOADER_THREAD_NAME + '-' + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 }
@@ -0,0 +1,52 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs the Exomizer filtering and prioritization pipeline on a VCF file, either in the current JVM or in separate
+ * worker processes.
+ *
+ * @version $Id$
+ * @since
+ */
+interface ExomizerRunner
+{
+    /**
+     * Run Exomizer on the variants of a patient.
+     *
+     * @param patientId the id of the patient, used for reusing the filtered variants of a previous run
+     * @param variantFingerprint the fingerprint of the inputs of the filtering stage, the filtered variants of a
+     *            previous run being reused only if it is the same; {@code null} if unknown
+     * @param vcfFile the VCF file with the variants of the patient
+     * @param hpoIDs the comma-separated present HPO terms of the patient
+     * @param outFile the file to write the Exomizer output to
+     * @throws IOException if Exomizer fails
+     */
+    void run(String patientId, String variantFingerprint, File vcfFile, String hpoIDs, File outFile)
+        throws IOException;
+
+    /**
+     * Release the resources used by the runner.
+     */
+    void close();
+}
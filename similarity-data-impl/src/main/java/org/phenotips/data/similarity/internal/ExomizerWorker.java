@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import exomizer.Exomizer;
+import exomizer.exception.ExomizerException;
+import jannovar.reference.Chromosome;
+
+/**
+ * Entry point of an Exomizer worker process, started by an {@link ExomizerWorkerPool}. The worker loads the Exomizer
+ * gene data once, answers {@link ExomizerWorkerPool#READY} on its standard output, then runs the requests read from
+ * its standard input one at a time, answering each with {@link ExomizerWorkerPool#OK} or with
+ * {@link ExomizerWorkerPool#ERROR} and a message. It exits once its standard input is closed.
+ *
+ * @version $Id$
+ * @since
+ */
+public final class ExomizerWorker
+{
+    /** Avoid instantiation. */
+    private ExomizerWorker()
+    {
+        // Only the main method is used
+    }
+
+    /**
+     * Run the worker.
+     *
+     * @param args the path of the serialized UCSC data, and the number of patients whose filtered variants are kept
+     *            for their next run
+     * @throws IOException if the requests can't be read
+     */
+    public static void main(String[] args) throws IOException
+    {
+        Charset utf8 = Charset.forName("UTF-8");
+        // Only the replies go to the standard output, anything else printed by the libraries goes to the error log
+        PrintStream replies = new PrintStream(System.out, true, utf8.name());
+        System.setOut(System.err);
+
+        HashMap<Byte, Chromosome> chromosomeMap;
+        try {
+            chromosomeMap = Exomizer.getDeserializedUCSCdata(args[0]);
+        } catch (ExomizerException e) {
+            System.err.println("Failed to load chromosome map: " + e);
+            System.exit(1);
+            return;
+        }
+        ExomizerRunner runner = new LocalExomizerRunner(chromosomeMap, Integer.parseInt(args[1]));
+        replies.println(ExomizerWorkerPool.READY);
+
+        BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, utf8));
+        String line;
+        while ((line = requests.readLine()) != null) {
+            replies.println(handle(runner, line));
+        }
+        runner.close();
+    }
+
+    /**
+     * Run one request.
+     *
+     * @param runner the runner doing the actual work
+     * @param request the request line
+     * @return the reply line
+     */
+    private static String handle(ExomizerRunner runner, String request)
+    {
+        String[] fields = request.split(String.valueOf(ExomizerWorkerPool.SEPARATOR), -1);
+        if (fields.length != 6 || !ExomizerWorkerPool.RUN.equals(fields[0])) {
+            return ExomizerWorkerPool.ERROR + ExomizerWorkerPool.SEPARATOR + "Malformed request";
+        }
+        try {
+            runner.run(fields[1], fields[2].length() == 0 ? null : fields[2], new File(fields[3]), fields[4],
+                new File(fields[5]));
+            return ExomizerWorkerPool.OK;
+        } catch (IOException | RuntimeException e) {
+            String message = String.valueOf(e.getMessage()).replace('\n', ' ').replace('\r', ' ');
+            return ExomizerWorkerPool.ERROR + ExomizerWorkerPool.SEPARATOR + message;
+        }
+    }
+}
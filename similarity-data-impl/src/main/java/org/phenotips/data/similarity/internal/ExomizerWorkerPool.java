@@ -0,0 +1,372 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs Exomizer in a pool of separate worker JVMs, so that the memory used by Exomizer and its crashes don't affect
+ * the main server. Each worker runs one request at a time, sent as a tab-separated line on its standard input, and
+ * answers with one line on its standard output once the output file is written. Workers are started lazily, reused
+ * across requests, and killed if they crash, misbehave or take longer than the timeout, the next request starting a
+ * new one. Since each worker keeps the filtered variants of its last patients, a request is given to an idle worker
+ * which recently ran the same patient, if there is one.
+ *
+ * @version $Id$
+ * @since
+ */
+final class ExomizerWorkerPool implements ExomizerRunner
+{
+    /** The line sent by a worker once it's ready to run requests. */
+    static final String READY = "READY";
+
+    /** The first field of a request line. */
+    static final String RUN = "RUN";
+
+    /** The reply to a successful request. */
+    static final String OK = "OK";
+
+    /** The first field of the reply to a failed request, followed by the error message. */
+    static final String ERROR = "ERROR";
+
+    /** The separator of the fields of the request and reply lines. */
+    static final char SEPARATOR = '\t';
+
+    /** The encoding of the requests and replies. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Logging helper object. */
+    private final Logger logger = LoggerFactory.getLogger(ExomizerWorkerPool.class);
+
+    /** The command starting a worker. */
+    private final List<String> command;
+
+    /** The file the standard error of the workers is appended to. */
+    private final File log;
+
+    /** How long a worker can take to start or to run a request, in milliseconds. */
+    private final long timeout;
+
+    /** The number of patients whose filtered variants are kept by each worker for their next run. */
+    private final int maxFilteredVariants;
+
+    /** Limits the number of requests running at the same time to the number of workers. */
+    private final Semaphore permits;
+
+    /** The started workers waiting for a request; guarded by this. */
+    private final Deque<Worker> idle = new ArrayDeque<Worker>();
+
+    /** Kills the workers which take too long. */
+    private final ScheduledExecutorService watchdog;
+
+    /** Whether the pool was closed; guarded by this. */
+    private boolean closed;
+
+    /**
+     * Simple constructor.
+     *
+     * @param size the maximum number of workers
+     * @param command the command starting a worker
+     * @param log the file the standard error of the workers is appended to
+     * @param timeout how long a worker can take to start or to run a request, in milliseconds
+     * @param maxFilteredVariants the number of patients whose filtered variants are kept by each worker for their next
+     *            run
+     */
+    ExomizerWorkerPool(int size, List<String> command, File log, long timeout, int maxFilteredVariants)
+    {
+        this.command = new ArrayList<String>(command);
+        this.log = log;
+        this.timeout = timeout;
+        this.maxFilteredVariants = maxFilteredVariants;
+        this.permits = new Semaphore(Math.max(1, size), true);
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "exomizer-worker-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void run(String patientId, String variantFingerprint, File vcfFile, String hpoIDs, File outFile)
+        throws IOException
+    {
+        String request = toRequest(patientId, variantFingerprint == null ? "" : variantFingerprint,
+            vcfFile.getAbsolutePath(), hpoIDs, outFile.getAbsolutePath());
+        try {
+            this.permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an Exomizer worker");
+        }
+        try {
+            Worker worker = takeWorker(patientId);
+            String reply;
+            try {
+                reply = worker.call(request);
+            } catch (IOException e) {
+                worker.destroy();
+                throw e;
+            }
+            if (OK.equals(reply)) {
+                release(worker, patientId);
+                return;
+            }
+            String prefix = ERROR + SEPARATOR;
+            if (reply.startsWith(prefix)) {
+                release(worker, null);
+                throw new IOException("Exomizer worker error: " + reply.substring(prefix.length()));
+            }
+            worker.destroy();
+            throw new IOException("Unexpected reply from Exomizer worker: " + reply);
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (this) {
+            this.closed = true;
+            for (Worker worker : this.idle) {
+                worker.destroy();
+            }
+            this.idle.clear();
+        }
+        this.watchdog.shutdownNow();
+    }
+
+    /**
+     * Build a request line.
+     *
+     * @param fields the fields of the request, following {@link #RUN}
+     * @return the request line
+     * @throws IOException if a field contains a separator or a line end
+     */
+    private static String toRequest(String... fields) throws IOException
+    {
+        StringBuilder request = new StringBuilder(RUN);
+        for (String field : fields) {
+            if (field.indexOf(SEPARATOR) >= 0 || field.indexOf('\n') >= 0 || field.indexOf('\r') >= 0) {
+                throw new IOException("Invalid Exomizer request field: " + field);
+            }
+            request.append(SEPARATOR).append(field);
+        }
+        return request.toString();
+    }
+
+    /**
+     * Take an idle worker, preferably one which recently ran the same patient, or start a new one if there is none.
+     *
+     * @param patientId the id of the patient of the request
+     * @return a worker ready to run a request
+     * @throws IOException if the pool is closed or the new worker fails to start
+     */
+    private Worker takeWorker(String patientId) throws IOException
+    {
+        synchronized (this) {
+            if (this.closed) {
+                throw new IOException("The Exomizer worker pool is closed");
+            }
+            for (Iterator<Worker> it = this.idle.iterator(); it.hasNext();) {
+                Worker worker = it.next();
+                if (worker.recentPatients.contains(patientId)) {
+                    it.remove();
+                    return worker;
+                }
+            }
+            Worker worker = this.idle.poll();
+            if (worker != null) {
+                return worker;
+            }
+        }
+        ProcessBuilder builder = new ProcessBuilder(this.command);
+        builder.redirectError(Redirect.appendTo(this.log));
+        Worker worker = new Worker(builder.start());
+        try {
+            String greeting = worker.read();
+            if (!READY.equals(greeting)) {
+                throw new IOException("Unexpected greeting from Exomizer worker: " + greeting);
+            }
+        } catch (IOException e) {
+            worker.destroy();
+            throw new IOException("Unable to start an Exomizer worker, see " + this.log.getAbsolutePath() + ": "
+                + e.getMessage(), e);
+        }
+        this.logger.info("Started an Exomizer worker");
+        return worker;
+    }
+
+    /**
+     * Put a worker back in the pool after a request, or stop it if the pool was closed meanwhile.
+     *
+     * @param worker the worker to release
+     * @param patientId the id of the patient whose filtered variants the worker kept, {@code null} if none
+     */
+    private synchronized void release(Worker worker, String patientId)
+    {
+        if (this.closed) {
+            worker.destroy();
+        } else {
+            if (patientId != null) {
+                worker.recentPatients.add(patientId);
+            }
+            this.idle.push(worker);
+        }
+    }
+
+    /**
+     * A worker process and its request and reply streams.
+     */
+    private final class Worker
+    {
+        /** The worker process. */
+        private final Process process;
+
+        /** The standard input of the worker, where requests are written. */
+        private final Writer requests;
+
+        /** The standard output of the worker, where replies are read from. */
+        private final BufferedReader replies;
+
+        /** Whether the worker was killed for taking too long. */
+        private volatile boolean timedOut;
+
+        /**
+         * The patients the worker ran last, whose filtered variants it may have kept, least recently run first; guarded
+         * by the pool.
+         */
+        private final Set<String> recentPatients;
+
+        /**
+         * Simple constructor.
+         *
+         * @param process the started worker process
+         */
+        Worker(Process process)
+        {
+            this.process = process;
+            this.requests = new OutputStreamWriter(process.getOutputStream(), UTF8);
+            this.replies = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF8));
+            this.recentPatients = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true)
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+                {
+                    return size() > ExomizerWorkerPool.this.maxFilteredVariants;
+                }
+            });
+        }
+
+        /**
+         * Send a request and wait for its reply.
+         *
+         * @param request the request line
+         * @return the reply line
+         * @throws IOException if the worker crashed or took too long
+         */
+        String call(String request) throws IOException
+        {
+            this.requests.write(request);
+            this.requests.write('\n');
+            this.requests.flush();
+            return read();
+        }
+
+        /**
+         * Wait for the next line from the worker, killing it if it takes too long.
+         *
+         * @return the line
+         * @throws IOException if the worker crashed or took too long
+         */
+        String read() throws IOException
+        {
+            ScheduledFuture<?> kill = ExomizerWorkerPool.this.watchdog.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Worker.this.timedOut = true;
+                    destroy();
+                }
+            }, ExomizerWorkerPool.this.timeout, TimeUnit.MILLISECONDS);
+            String line = null;
+            IOException error = null;
+            try {
+                line = this.replies.readLine();
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                kill.cancel(false);
+            }
+            if (this.timedOut) {
+                throw new IOException("Exomizer worker timed out after " + ExomizerWorkerPool.this.timeout + "ms");
+            }
+            if (error != null) {
+                throw error;
+            }
+            if (line == null) {
+                throw new IOException("Exomizer worker exited unexpectedly");
+            }
+            return line;
+        }
+
+        /**
+         * Kill the worker process.
+         */
+        void destroy()
+        {
+            this.process.destroy();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.Genotype;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Inverted index from genes to the genotyped patients carrying variants in them, used for comparing a pair of patients
+ * against the rest of the genotyped cohort without loading the genotype of every other patient.
+ *
+ * @version $Id$
+ * @since
+ */
+@Role
+public interface GeneCarrierIndex
+{
+    /**
+     * Index the genotype of a patient, replacing any previously indexed genotype of the same patient.
+     *
+     * @param patientId the identifier of the patient
+     * @param genotype the genotype of the patient
+     */
+    void put(String patientId, Genotype genotype);
+
+    /**
+     * Start indexing many genotypes at once, e.g. when loading the stored genotypes at startup. Until
+     * {@link #endBulkLoad()}, the carriers of the genotypes {@link #put} in the index are only gathered, without being
+     * visible in {@link #getScores}, so that each gene is sorted once instead of being copied for each carrier.
+     */
+    void beginBulkLoad();
+
+    /**
+     * Finish indexing many genotypes at once, making all the carriers gathered since {@link #beginBulkLoad()} visible.
+     * Scores computed meanwhile may have missed these carriers.
+     */
+    void endBulkLoad();
+
+    /**
+     * Remove a patient from the index.
+     *
+     * @param patientId the identifier of the patient
+     */
+    void remove(String patientId);
+
+    /**
+     * Get the variant scores of the patients carrying variants in a gene.
+     *
+     * @param gene the name of the gene
+     * @return the scores of the carriers of the gene, {@link GeneScores#EMPTY} if there are none
+     */
+    GeneScores getScores(String gene);
+
+    /**
+     * Get the ordinal used for a patient in {@link GeneScores}.
+     *
+     * @param patientId the identifier of the patient
+     * @return the ordinal of the patient, or {@code -1} if the patient was never indexed
+     */
+    int getOrdinal(String patientId);
+
+    /**
+     * Get the patient identified by an ordinal found in {@link GeneScores}.
+     *
+     * @param ordinal the ordinal of the patient
+     * @return the identifier of the patient
+     */
+    String getPatientId(int ordinal);
+}
@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.xwiki.component.annotation.Role;
+
+import java.util.Map;
+
+/**
+ * Bounded cache of the gene scores of patient pairs, as computed by the genotype similarity views. These scores depend
+ * on the genotypes of all the carriers of the matched genes and on the phenotypes of those carriers, so the whole cache
+ * is invalidated at once, by moving to a new generation, whenever a genotype is stored or a carrier's record changes.
+ * Only the scores are kept, never the genotypes or variants they were computed from, so cached pairs don't keep alive
+ * the genotypes dropped from memory by the exomizer manager, and loading such a genotype back keeps its pairs valid.
+ *
+ * @version $Id$
+ * @since
+ */
+@Role
+public interface GeneMatchCache
+{
+    /**
+     * Get the current generation, to be read before computing the scores which are then {@link #put stored}.
+     *
+     * @return the current generation
+     */
+    long getGeneration();
+
+    /**
+     * Get the cached gene scores of a pair of patients; the order of the two patients doesn't matter.
+     *
+     * @param patientId1 the identifier of one patient
+     * @param patientId2 the identifier of the other patient
+     * @return the cached scores by gene, or {@code null} if the pair isn't cached for the current generation
+     */
+    Map<String, Double> get(String patientId1, String patientId2);
+
+    /**
+     * Store the gene scores of a pair of patients; the order of the two patients doesn't matter. Scores computed
+     * before the cache was invalidated are ignored.
+     *
+     * @param patientId1 the identifier of one patient
+     * @param patientId2 the identifier of the other patient
+     * @param generation the {@link #getGeneration generation} read before computing the scores
+     * @param geneScores the scores by gene
+     */
+    void put(String patientId1, String patientId2, long generation, Map<String, Double> geneScores);
+
+    /**
+     * Drop all the cached scores, for example after a genotype was stored or a patient record changed.
+     */
+    void invalidateAll();
+}
@@ -0,0 +1,354 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Immutable snapshot of the variant scores of all the patients carrying variants in a gene. Scores are kept in two
+ * primitive arrays sorted in decreasing order, one with the score of the top variant of each carrier, used for the
+ * dominant inheritance model, and one with the score of the second variant, used for the recessive model, each with a
+ * parallel array of patient ordinals. Finding the carriers at or above a threshold is a binary search followed by a
+ * scan of a contiguous prefix, so the cost depends on the number of damaging carriers, not on the cohort size.
+ *
+ * @version $Id$
+ * @since
+ */
+public final class GeneScores
+{
+    /** The scores of a gene without carriers. */
+    public static final GeneScores EMPTY = new GeneScores(new double[0], new int[0], new double[0], new int[0]);
+
+    /** The scores of the top variant of each carrier, in decreasing order. */
+    private final double[] topScores;
+
+    /** The patient ordinals parallel to {@link #topScores}. */
+    private final int[] topPatients;
+
+    /** The scores of the second variant of each carrier, in decreasing order. */
+    private final double[] secondScores;
+
+    /** The patient ordinals parallel to {@link #secondScores}. */
+    private final int[] secondPatients;
+
+    /**
+     * Constructor passing already sorted arrays.
+     *
+     * @param topScores the top variant scores, in decreasing order
+     * @param topPatients the patient ordinals parallel to {@code topScores}
+     * @param secondScores the second variant scores, in decreasing order
+     * @param secondPatients the patient ordinals parallel to {@code secondScores}
+     */
+    private GeneScores(double[] topScores, int[] topPatients, double[] secondScores, int[] secondPatients)
+    {
+        this.topScores = topScores;
+        this.topPatients = topPatients;
+        this.secondScores = secondScores;
+        this.secondPatients = secondPatients;
+    }
+
+    /**
+     * The number of carriers of the gene.
+     *
+     * @return the number of carriers
+     */
+    public int size()
+    {
+        return this.topScores.length;
+    }
+
+    /**
+     * Count the carriers whose top variant scores at least a threshold; they are the first ones in the top order.
+     *
+     * @param threshold the minimum score
+     * @return the number of carriers at or above the threshold
+     */
+    public int countTopAtLeast(double threshold)
+    {
+        return countAtLeast(this.topScores, threshold, 0);
+    }
+
+    /**
+     * Count the carriers whose top variant score, plus a margin, is at least a threshold, computing each sum rather
+     * than lowering the threshold by the margin, which can round differently.
+     *
+     * @param threshold the minimum score
+     * @param margin added to each score before comparing it
+     * @return the number of carriers at or above the threshold with the margin
+     */
+    public int countTopAtLeast(double threshold, double margin)
+    {
+        return countAtLeast(this.topScores, threshold, margin);
+    }
+
+    /**
+     * Get a carrier in the order of decreasing top variant scores.
+     *
+     * @param index the position of the carrier, less than {@link #size()}
+     * @return the ordinal of the patient
+     */
+    public int getTopPatient(int index)
+    {
+        return this.topPatients[index];
+    }
+
+    /**
+     * Get the score of a top variant in the order of decreasing top variant scores.
+     *
+     * @param index the position of the carrier, less than {@link #size()}
+     * @return the score of the top variant of the carrier
+     */
+    public double getTopScore(int index)
+    {
+        return this.topScores[index];
+    }
+
+    /**
+     * Count the carriers whose second variant scores at least a threshold; they are the first ones in the second
+     * order.
+     *
+     * @param threshold the minimum score
+     * @return the number of carriers at or above the threshold
+     */
+    public int countSecondAtLeast(double threshold)
+    {
+        return countAtLeast(this.secondScores, threshold, 0);
+    }
+
+    /**
+     * Count the carriers whose second variant score, plus a margin, is at least a threshold, computing each sum rather
+     * than lowering the threshold by the margin, which can round differently.
+     *
+     * @param threshold the minimum score
+     * @param margin added to each score before comparing it
+     * @return the number of carriers at or above the threshold with the margin
+     */
+    public int countSecondAtLeast(double threshold, double margin)
+    {
+        return countAtLeast(this.secondScores, threshold, margin);
+    }
+
+    /**
+     * Get a carrier in the order of decreasing second variant scores.
+     *
+     * @param index the position of the carrier, less than {@link #size()}
+     * @return the ordinal of the patient
+     */
+    public int getSecondPatient(int index)
+    {
+        return this.secondPatients[index];
+    }
+
+    /**
+     * Get the score of a second variant in the order of decreasing second variant scores.
+     *
+     * @param index the position of the carrier, less than {@link #size()}
+     * @return the score of the second variant of the carrier, {@code 0} if it only has one variant
+     */
+    public double getSecondScore(int index)
+    {
+        return this.secondScores[index];
+    }
+
+    /**
+     * Build a copy with one more carrier.
+     *
+     * @param patient the ordinal of the new carrier, which must not be already present
+     * @param topScore the score of the top variant of the carrier
+     * @param secondScore the score of the second variant of the carrier
+     * @return the updated scores
+     */
+    GeneScores with(int patient, double topScore, double secondScore)
+    {
+        int n = size();
+        double[] newTopScores = new double[n + 1];
+        int[] newTopPatients = new int[n + 1];
+        insert(this.topScores, this.topPatients, newTopScores, newTopPatients, topScore, patient);
+        double[] newSecondScores = new double[n + 1];
+        int[] newSecondPatients = new int[n + 1];
+        insert(this.secondScores, this.secondPatients, newSecondScores, newSecondPatients, secondScore, patient);
+        return new GeneScores(newTopScores, newTopPatients, newSecondScores, newSecondPatients);
+    }
+
+    /**
+     * Build a copy with many more carriers, sorting all the carriers once instead of inserting them one by one.
+     *
+     * @param count the number of new carriers
+     * @param patients the ordinals of the new carriers, none of which must be already present
+     * @param topScores the scores of the top variants of the new carriers, parallel to {@code patients}
+     * @param secondScores the scores of the second variants of the new carriers, parallel to {@code patients}
+     * @return the updated scores
+     */
+    GeneScores withAll(int count, int[] patients, double[] topScores, double[] secondScores)
+    {
+        int n = size();
+        int[] allPatients = Arrays.copyOf(this.topPatients, n + count);
+        System.arraycopy(patients, 0, allPatients, n, count);
+        double[] allTopScores = Arrays.copyOf(this.topScores, n + count);
+        System.arraycopy(topScores, 0, allTopScores, n, count);
+        int[] allSecondPatients = Arrays.copyOf(this.secondPatients, n + count);
+        System.arraycopy(patients, 0, allSecondPatients, n, count);
+        double[] allSecondScores = Arrays.copyOf(this.secondScores, n + count);
+        System.arraycopy(secondScores, 0, allSecondScores, n, count);
+        sort(allTopScores, allPatients);
+        sort(allSecondScores, allSecondPatients);
+        return new GeneScores(allTopScores, allPatients, allSecondScores, allSecondPatients);
+    }
+
+    /**
+     * Build a copy without a carrier.
+     *
+     * @param patient the ordinal of the carrier to remove
+     * @return the updated scores, or this instance if the patient isn't a carrier
+     */
+    GeneScores without(int patient)
+    {
+        int n = size();
+        if (indexOf(this.topPatients, patient) < 0) {
+            return this;
+        }
+        if (n == 1) {
+            return EMPTY;
+        }
+        double[] newTopScores = new double[n - 1];
+        int[] newTopPatients = new int[n - 1];
+        delete(this.topScores, this.topPatients, newTopScores, newTopPatients, patient);
+        double[] newSecondScores = new double[n - 1];
+        int[] newSecondPatients = new int[n - 1];
+        delete(this.secondScores, this.secondPatients, newSecondScores, newSecondPatients, patient);
+        return new GeneScores(newTopScores, newTopPatients, newSecondScores, newSecondPatients);
+    }
+
+    /**
+     * Binary search for the end of the prefix of scores at or above a threshold once the margin is added.
+     *
+     * @param scores scores in decreasing order
+     * @param threshold the minimum score
+     * @param margin added to each score before comparing it
+     * @return the length of the prefix
+     */
+    private static int countAtLeast(double[] scores, double threshold, double margin)
+    {
+        int low = 0;
+        int high = scores.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (scores[middle] + margin >= threshold) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copy sorted arrays while inserting a new entry; equal scores are ordered by patient ordinal.
+     *
+     * @param scores the current scores
+     * @param patients the current patients
+     * @param newScores the array receiving the scores, one longer than the current ones
+     * @param newPatients the array receiving the patients, one longer than the current ones
+     * @param score the score to insert
+     * @param patient the patient to insert
+     */
+    private static void insert(double[] scores, int[] patients, double[] newScores, int[] newPatients, double score,
+        int patient)
+    {
+        int position = 0;
+        while (position < scores.length
+            && (scores[position] > score || scores[position] == score && patients[position] < patient)) {
+            ++position;
+        }
+        System.arraycopy(scores, 0, newScores, 0, position);
+        System.arraycopy(patients, 0, newPatients, 0, position);
+        newScores[position] = score;
+        newPatients[position] = patient;
+        System.arraycopy(scores, position, newScores, position + 1, scores.length - position);
+        System.arraycopy(patients, position, newPatients, position + 1, patients.length - position);
+    }
+
+    /**
+     * Sort parallel arrays in the same order as {@link #insert}: decreasing scores, then increasing patient ordinals.
+     *
+     * @param scores the scores to sort
+     * @param patients the patients parallel to the scores, sorted along with them
+     */
+    private static void sort(final double[] scores, final int[] patients)
+    {
+        Integer[] order = new Integer[scores.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer o1, Integer o2)
+            {
+                int result = Double.compare(scores[o2], scores[o1]);
+                return result != 0 ? result : Integer.compare(patients[o1], patients[o2]);
+            }
+        });
+        double[] sortedScores = new double[scores.length];
+        int[] sortedPatients = new int[patients.length];
+        for (int i = 0; i < order.length; ++i) {
+            sortedScores[i] = scores[order[i]];
+            sortedPatients[i] = patients[order[i]];
+        }
+        System.arraycopy(sortedScores, 0, scores, 0, scores.length);
+        System.arraycopy(sortedPatients, 0, patients, 0, patients.length);
+    }
+
+    /**
+     * Copy sorted arrays while leaving out the entry of a patient.
+     *
+     * @param scores the current scores
+     * @param patients the current patients
+     * @param newScores the array receiving the scores, one shorter than the current ones
+     * @param newPatients the array receiving the patients, one shorter than the current ones
+     * @param patient the patient to remove, which must be present
+     */
+    private static void delete(double[] scores, int[] patients, double[] newScores, int[] newPatients, int patient)
+    {
+        int position = indexOf(patients, patient);
+        System.arraycopy(scores, 0, newScores, 0, position);
+        System.arraycopy(patients, 0, newPatients, 0, position);
+        System.arraycopy(scores, position + 1, newScores, position, scores.length - position - 1);
+        System.arraycopy(patients, position + 1, newPatients, position, patients.length - position - 1);
+    }
+
+    /**
+     * Find a patient in an array of ordinals.
+     *
+     * @param patients the patient ordinals
+     * @param patient the patient to look for
+     * @return the position of the patient, or {@code -1} if missing
+     */
+    private static int indexOf(int[] patients, int patient)
+    {
+        for (int i = 0; i < patients.length; ++i) {
+            if (patients[i] == patient) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.xwiki.component.annotation.Role;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Worker threads shared by the genotype similarity views, for scoring the phenotypes of the other patients carrying
+ * variants in the genes matched by a pair of patients.
+ *
+ * @version $Id$
+ * @since
+ */
+@Role
+public interface GenotypeScoringPool
+{
+    /**
+     * Get the number of worker threads.
+     *
+     * @return the number of tasks which can run at the same time, {@code 1} if tasks should run on the calling thread
+     */
+    int getThreads();
+
+    /**
+     * Run tasks on the worker threads, and wait for all of them to complete.
+     *
+     * @param tasks the tasks to run
+     * @param <T> the type of the task results
+     * @return the futures of the tasks, all done, in the same order as the tasks
+     * @throws InterruptedException if interrupted while waiting, in which case the unfinished tasks are cancelled
+     */
+    <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException;
+}
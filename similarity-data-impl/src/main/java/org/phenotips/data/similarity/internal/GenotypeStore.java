@@ -0,0 +1,258 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.Genotype;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the genotypes of all the patients with results within a memory budget. Every patient with a result stays
+ * known, but only the most recently used genotypes are kept in memory: when the budget is exceeded, the least recently
+ * used ones are dropped, and loaded back from their file the next time they are needed. Genotypes which don't have a
+ * file to be loaded back from are always kept in memory, and aren't counted in the budget.
+ *
+ * @version $Id$
+ * @since
+ */
+final class GenotypeStore
+{
+    /** The estimated size of genotypes which can't tell their own size, in bytes. */
+    static final long DEFAULT_GENOTYPE_SIZE = 1024L * 1024L;
+
+    /** All the stored genotypes, by patient id. */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /** The entries currently in memory which can be loaded back, least recently used first; guarded by this. */
+    private final LinkedHashMap<String, Entry> resident = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /** The maximum size of the resident genotypes, in bytes. */
+    private final long maxSize;
+
+    /** Loads genotypes back from their files. */
+    private final Loader loader;
+
+    /** The current size of the resident genotypes, in bytes; guarded by this. */
+    private long currentSize;
+
+    /**
+     * Loads the genotype of a patient from its file.
+     */
+    interface Loader
+    {
+        /**
+         * Load the genotype of a patient.
+         *
+         * @param patientId the id of the patient
+         * @param file the file the genotype was stored with
+         * @return the genotype
+         * @throws IOException if the file can't be read
+         */
+        Genotype load(String patientId, File file) throws IOException;
+    }
+
+    /**
+     * Create an empty store.
+     *
+     * @param maxSize the maximum size of the genotypes to keep in memory, in bytes
+     * @param loader loads back the genotypes dropped from memory
+     */
+    GenotypeStore(long maxSize, Loader loader)
+    {
+        this.maxSize = maxSize;
+        this.loader = loader;
+    }
+
+    /**
+     * Store the genotype of a patient, replacing any previous one.
+     *
+     * @param patientId the id of the patient
+     * @param genotype the genotype to store
+     * @param file the file the genotype can be loaded back from, or {@code null} if it must be kept in memory
+     */
+    synchronized void put(String patientId, Genotype genotype, File file)
+    {
+        Entry previous = this.entries.put(patientId, new Entry(genotype, file));
+        if (previous != null && this.resident.remove(patientId) != null) {
+            this.currentSize -= previous.size;
+        }
+        makeResident(patientId, this.entries.get(patientId));
+    }
+
+    /**
+     * Store the genotype of a patient, unless one is already stored.
+     *
+     * @param patientId the id of the patient
+     * @param genotype the genotype to store
+     * @param file the file the genotype can be loaded back from, or {@code null} if it must be kept in memory
+     * @return {@code true} if the genotype was stored, {@code false} if the patient already had one
+     */
+    synchronized boolean putIfAbsent(String patientId, Genotype genotype, File file)
+    {
+        if (this.entries.containsKey(patientId)) {
+            return false;
+        }
+        put(patientId, genotype, file);
+        return true;
+    }
+
+    /**
+     * Get the genotype of a patient, loading it back from its file if it's not in memory.
+     *
+     * @param patientId the id of the patient
+     * @return the genotype, or {@code null} if the patient has none, or it can't be loaded back
+     * @throws IOException if loading the genotype back fails
+     */
+    Genotype get(String patientId) throws IOException
+    {
+        Entry entry = this.entries.get(patientId);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (entry.genotype != null) {
+                // Mark it as recently used
+                this.resident.get(patientId);
+                return entry.genotype;
+            }
+        }
+        // Load outside of the store lock, so that other genotypes can be used meanwhile, but only once per entry
+        synchronized (entry) {
+            Genotype genotype;
+            synchronized (this) {
+                genotype = entry.genotype;
+            }
+            if (genotype == null) {
+                genotype = this.loader.load(patientId, entry.file);
+                synchronized (this) {
+                    entry.genotype = genotype;
+                    entry.size = getSize(genotype);
+                    if (this.entries.get(patientId) == entry) {
+                        makeResident(patientId, entry);
+                    }
+                }
+            }
+            return genotype;
+        }
+    }
+
+    /**
+     * Check whether a patient has a stored genotype, without loading it.
+     *
+     * @param patientId the id of the patient
+     * @return {@code true} if the patient has a genotype
+     */
+    boolean contains(String patientId)
+    {
+        return this.entries.containsKey(patientId);
+    }
+
+    /**
+     * Get the patients which have a genotype, whether in memory or not.
+     *
+     * @return an unmodifiable live view of the ids of the patients
+     */
+    Set<String> getPatientIds()
+    {
+        return Collections.unmodifiableSet(this.entries.keySet());
+    }
+
+    /**
+     * Get the number of genotypes currently in memory which can be loaded back from their file.
+     *
+     * @return the number of resident genotypes
+     */
+    synchronized int getResidentCount()
+    {
+        return this.resident.size();
+    }
+
+    /**
+     * Account for a genotype now in memory, and drop the least recently used ones if over budget. The genotype itself
+     * is never dropped, even if it's larger than the whole budget.
+     *
+     * @param patientId the id of the patient
+     * @param entry the entry of the patient, with its genotype loaded
+     */
+    private void makeResident(String patientId, Entry entry)
+    {
+        if (entry.file == null) {
+            return;
+        }
+        this.resident.put(patientId, entry);
+        this.currentSize += entry.size;
+        Iterator<Entry> eldest = this.resident.values().iterator();
+        while (this.currentSize > this.maxSize && this.resident.size() > 1) {
+            Entry evicted = eldest.next();
+            eldest.remove();
+            this.currentSize -= evicted.size;
+            evicted.genotype = null;
+        }
+    }
+
+    /**
+     * Estimate the memory used by a genotype.
+     *
+     * @param genotype the genotype
+     * @return the estimated size, in bytes
+     */
+    private static long getSize(Genotype genotype)
+    {
+        if (genotype instanceof ExomizerGenotype) {
+            return ((ExomizerGenotype) genotype).getMemorySize();
+        }
+        return DEFAULT_GENOTYPE_SIZE;
+    }
+
+    /**
+     * The genotype of a patient, with the file it can be loaded back from.
+     */
+    private static final class Entry
+    {
+        /** The file the genotype can be loaded back from, or {@code null} if it must be kept in memory. */
+        private final File file;
+
+        /** The genotype, or {@code null} if it's not in memory; guarded by the store. */
+        private Genotype genotype;
+
+        /** The estimated size of the genotype, in bytes. */
+        private long size;
+
+        /**
+         * Simple constructor.
+         *
+         * @param genotype the genotype
+         * @param file the file the genotype can be loaded back from, or {@code null}
+         */
+        Entry(Genotype genotype, File file)
+        {
+            this.genotype = genotype;
+            this.file = file;
+            this.size = getSize(genotype);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import exomizer.Exomizer;
+import exomizer.exception.ExomizerException;
+import jannovar.reference.Chromosome;
+
+/**
+ * Runs Exomizer in the current JVM, keeping the Exomizer instances of the last runs with their variants filtered, so
+ * that a run for a patient whose variants didn't change, typically after a phenotype change, only reruns the
+ * prioritization. Used by the manager when no worker processes are configured, and by the worker processes
+ * themselves. Each kept instance holds all the parsed variants of a patient and an open database connection.
+ * <p>
+ * Exomizer doesn't document that the prioritization can run again on an instance, so the first run reusing an instance
+ * is checked against a full run of the same inputs; if their outputs differ, the output of the full run is kept and
+ * instances are no longer reused.
+ * </p>
+ *
+ * @version $Id$
+ * @since
+ */
+class LocalExomizerRunner implements ExomizerRunner
+{
+    /** The URL for the Exomizer postgresql server. */
+    static final String DB_URL = "jdbc:postgresql://localhost/nsfpalizer";
+
+    /** The frequency threshold used for filtering variants. */
+    static final String FREQUENCY_THRESHOLD = "1";
+
+    /** Whether variants are filtered by pathogenicity. */
+    static final boolean USE_PATHOGENICITY_FILTER = true;
+
+    /** Suffix of the output of the full run checking the first reused instance. */
+    private static final String CHECK_SUFFIX = ".check";
+
+    /** Prefix of the VCF meta-information lines, which may differ between two runs with the same results. */
+    private static final String META_PREFIX = "##";
+
+    /** Exomizer gene data structure, shared by all the runs. */
+    private final HashMap<Byte, Chromosome> chromosomeMap;
+
+    /**
+     * The Exomizer instances of the last runs, with their variants filtered, keyed by patient id, least recently used
+     * first; guarded by this.
+     */
+    private final LinkedHashMap<String, FilteredVariants> filteredVariants;
+
+    /** Whether a run reusing an instance was already checked, or is being checked; guarded by this. */
+    private boolean reuseChecked;
+
+    /** Whether instances are reused, until a check shows that reusing them changes the output; guarded by this. */
+    private boolean reuseEnabled = true;
+
+    /**
+     * Simple constructor.
+     *
+     * @param chromosomeMap the Exomizer gene data structure
+     * @param maxFilteredVariants the number of patients whose filtered variants are kept for their next run
+     */
+    LocalExomizerRunner(HashMap<Byte, Chromosome> chromosomeMap, final int maxFilteredVariants)
+    {
+        this.chromosomeMap = chromosomeMap;
+        this.filteredVariants = new LinkedHashMap<String, FilteredVariants>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FilteredVariants> eldest)
+            {
+                if (size() > maxFilteredVariants) {
+                    release(eldest.getValue().exomizer);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public void run(String patientId, String variantFingerprint, File vcfFile, String hpoIDs, File outFile)
+        throws IOException
+    {
+        if (this.chromosomeMap == null) {
+            throw new IOException("The Exomizer chromosome map isn't available");
+        }
+        // An instance can't be used by two runs at the same time, so it's taken out of the cache while in use
+        Exomizer exomizer = takeFilteredVariants(patientId, variantFingerprint);
+        try {
+            if (exomizer == null) {
+                exomizer = filter(vcfFile, hpoIDs);
+                prioritize(exomizer, hpoIDs, outFile);
+            } else {
+                prioritize(exomizer, hpoIDs, outFile);
+                if (startReuseCheck()) {
+                    exomizer = checkReuse(exomizer, vcfFile, hpoIDs, outFile);
+                }
+            }
+        } catch (ExomizerException e) {
+            release(exomizer);
+            throw new IOException("Exomizer error: " + e, e);
+        } catch (IOException | RuntimeException e) {
+            release(exomizer);
+            throw e;
+        }
+        keepFilteredVariants(patientId, variantFingerprint, exomizer);
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        for (Iterator<FilteredVariants> it = this.filteredVariants.values().iterator(); it.hasNext();) {
+            release(it.next().exomizer);
+            it.remove();
+        }
+    }
+
+    /**
+     * Create a new Exomizer instance.
+     *
+     * @return the new instance
+     */
+    Exomizer newExomizer()
+    {
+        return new Exomizer(this.chromosomeMap);
+    }
+
+    /**
+     * Drop an Exomizer instance which is no longer kept. Exomizer doesn't provide a way to close the database
+     * connection an instance opened, so it is left to the driver once the instance is collected, as for instances which
+     * are not kept at all; this is why few instances should be kept in the server JVM.
+     *
+     * @param exomizer the instance to drop, may be {@code null}
+     */
+    void release(Exomizer exomizer)
+    {
+        // Nothing to close explicitly, the instance is no longer referenced
+    }
+
+    /**
+     * Create an Exomizer instance, and load and filter the variants of a patient.
+     *
+     * @param vcfFile the variants of the patient
+     * @param hpoIDs the comma-separated phenotypes of the patient
+     * @return the instance, ready for prioritization
+     * @throws ExomizerException if Exomizer fails
+     */
+    private Exomizer filter(File vcfFile, String hpoIDs) throws ExomizerException
+    {
+        Exomizer exomizer = newExomizer();
+        try {
+            exomizer.setHPOids(hpoIDs);
+            exomizer.setUsePathogenicityFilter(USE_PATHOGENICITY_FILTER);
+            exomizer.setFrequencyThreshold(FREQUENCY_THRESHOLD);
+            exomizer.setVCFfile(vcfFile.getAbsolutePath());
+
+            // Connect to database and load VCF
+            exomizer.openNewDatabaseConnection(DB_URL);
+            exomizer.parseVCFFile();
+
+            exomizer.initializeFilters();
+            return exomizer;
+        } catch (ExomizerException | RuntimeException e) {
+            release(exomizer);
+            throw e;
+        }
+    }
+
+    /**
+     * Prioritize the filtered variants of an Exomizer instance for some phenotypes, and write the results.
+     *
+     * @param exomizer the instance, with its variants filtered
+     * @param hpoIDs the comma-separated phenotypes of the patient
+     * @param outFile the file to write the results to
+     * @throws ExomizerException if Exomizer fails
+     */
+    private void prioritize(Exomizer exomizer, String hpoIDs, File outFile) throws ExomizerException
+    {
+        exomizer.setHPOids(hpoIDs);
+        exomizer.setOutfile(outFile.getAbsolutePath());
+
+        // Process variants
+        exomizer.initializePrioritizers();
+        exomizer.executePrioritization();
+
+        // Output results to file
+        exomizer.outputVCF();
+    }
+
+    /**
+     * Check the output of a run reusing an instance against a full run with the same inputs. If they differ, the
+     * output of the full run replaces it, and instances are no longer reused.
+     *
+     * @param reused the reused instance, which already wrote its output
+     * @param vcfFile the variants of the patient
+     * @param hpoIDs the comma-separated phenotypes of the patient
+     * @param outFile the output of the reused instance
+     * @return the instance to keep for the next run of the patient
+     * @throws ExomizerException if Exomizer fails
+     * @throws IOException if the outputs can't be compared
+     */
+    private Exomizer checkReuse(Exomizer reused, File vcfFile, String hpoIDs, File outFile)
+        throws ExomizerException, IOException
+    {
+        File checkFile = new File(outFile.getPath() + CHECK_SUFFIX);
+        Exomizer full = filter(vcfFile, hpoIDs);
+        try {
+            prioritize(full, hpoIDs, checkFile);
+            if (readResults(outFile).equals(readResults(checkFile))) {
+                release(full);
+                return reused;
+            }
+            if (!checkFile.renameTo(outFile) && !(outFile.delete() && checkFile.renameTo(outFile))) {
+                throw new IOException("Unable to move checked exomizer file to: " + outFile.getAbsolutePath());
+            }
+        } catch (ExomizerException | IOException | RuntimeException e) {
+            release(full);
+            throw e;
+        } finally {
+            checkFile.delete();
+        }
+        synchronized (this) {
+            this.reuseEnabled = false;
+            close();
+        }
+        release(reused);
+        return full;
+    }
+
+    /**
+     * Read the results written by Exomizer, without the meta-information lines.
+     *
+     * @param file the output of an Exomizer run
+     * @return the other lines
+     * @throws IOException if reading the file fails
+     */
+    private static List<String> readResults(File file) throws IOException
+    {
+        List<String> result = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith(META_PREFIX)) {
+                    result.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    /**
+     * Decide whether the current run reusing an instance should be checked against a full run, only the first one is.
+     *
+     * @return {@code true} if the current run should be checked
+     */
+    private synchronized boolean startReuseCheck()
+    {
+        boolean result = !this.reuseChecked;
+        this.reuseChecked = true;
+        return result;
+    }
+
+    /**
+     * Take the Exomizer instance of the last run of a patient out of the cache, if its variants are still the same.
+     *
+     * @param patientId the id of the patient
+     * @param variantFingerprint the fingerprint of the inputs of the filtering stage of the new run
+     * @return the Exomizer instance with its variants filtered, or {@code null} if there is none for these variants
+     */
+    private synchronized Exomizer takeFilteredVariants(String patientId, String variantFingerprint)
+    {
+        FilteredVariants cached = this.filteredVariants.remove(patientId);
+        if (cached == null) {
+            return null;
+        }
+        if (!this.reuseEnabled || variantFingerprint == null || !variantFingerprint.equals(cached.fingerprint)) {
+            release(cached.exomizer);
+            return null;
+        }
+        return cached.exomizer;
+    }
+
+    /**
+     * Put the Exomizer instance of the last run of a patient in the cache, for its next run, unless instances are no
+     * longer reused.
+     *
+     * @param patientId the id of the patient
+     * @param variantFingerprint the fingerprint of the inputs of the filtering stage of the run, {@code null} if the
+     *            filtered variants can't be reused
+     * @param exomizer the Exomizer instance with its variants filtered
+     */
+    private synchronized void keepFilteredVariants(String patientId, String variantFingerprint, Exomizer exomizer)
+    {
+        if (this.reuseEnabled && variantFingerprint != null) {
+            this.filteredVariants.put(patientId, new FilteredVariants(variantFingerprint, exomizer));
+        } else {
+            release(exomizer);
+        }
+    }
+
+    /**
+     * An Exomizer instance with its variants filtered, together with the fingerprint of the filtering inputs.
+     */
+    private static final class FilteredVariants
+    {
+        /** The fingerprint of the inputs of the filtering stage. */
+        private final String fingerprint;
+
+        /** The Exomizer instance, ready for prioritization. */
+        private final Exomizer exomizer;
+
+        /**
+         * Simple constructor.
+         *
+         * @param fingerprint the fingerprint of the inputs of the filtering stage
+         * @param exomizer the Exomizer instance
+         */
+        FilteredVariants(String fingerprint, Exomizer exomizer)
+        {
+            this.fingerprint = fingerprint;
+            this.exomizer = exomizer;
+        }
+    }
+}
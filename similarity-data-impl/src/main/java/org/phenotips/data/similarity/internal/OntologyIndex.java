@@ -0,0 +1,537 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.ontology.OntologyTerm;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compact, immutable in-memory model of an ontology, as used by the similarity engine. Each term gets a dense integer
+ * identifier, its ordinal, and all the per-term data is stored in primitive arrays indexed by ordinal: the information
+ * content, the conditional information content given the parents, the parents, and the closure of ancestors (including
+ * the term itself). Parents and ancestors are stored in compressed sparse row form: the entries for the term with
+ * ordinal {@code i} are {@code parents[parentOffsets[i]]} to {@code parents[parentOffsets[i + 1] - 1]}, sorted in
+ * increasing order.
+ * <p>
+ * Ordinals are assigned in the lexicographic order of the term identifiers, so the same ontology always yields the same
+ * index.
+ * </p>
+ *
+ * @version $Id$
+ * @since
+ */
+public final class OntologyIndex
+{
+    /** Marker for terms whose ordinal is unknown. */
+    public static final int NO_TERM = -1;
+
+    /** The identifier of each term, indexed by ordinal. */
+    private final String[] termIds;
+
+    /** Lookup from term identifiers to ordinals. */
+    private final Map<String, Integer> ordinals;
+
+    /** The information content of each term, {@link Double#NaN} for terms without a known frequency. */
+    private final double[] termICs;
+
+    /** The conditional information content of each term given its parents, {@code 0} if unknown. */
+    private final double[] condICs;
+
+    /** Offsets of each term's parents in {@link #parents}, with one extra entry marking the end. */
+    private final int[] parentOffsets;
+
+    /** The parents of all the terms, concatenated. */
+    private final int[] parents;
+
+    /** Offsets of each term's ancestors in {@link #ancestors}, with one extra entry marking the end. */
+    private final int[] ancestorOffsets;
+
+    /** The ancestors of all the terms, including the terms themselves, concatenated. */
+    private final int[] ancestors;
+
+    /** The largest known information content, for normalizing. */
+    private final double maxIC;
+
+    /**
+     * Constructor passing all the data of the index, without any validation.
+     *
+     * @param termIds the identifier of each term
+     * @param termICs the information content of each term, {@code NaN} if unknown
+     * @param condICs the conditional information content of each term given its parents
+     * @param parentOffsets offsets of each term's parents in {@code parents}, with one extra entry marking the end
+     * @param parents the sorted parents of all the terms, concatenated
+     * @param ancestorOffsets offsets of each term's ancestors in {@code ancestors}, with an extra entry marking the end
+     * @param ancestors the sorted ancestors of all the terms, including the terms themselves, concatenated
+     */
+    private OntologyIndex(String[] termIds, double[] termICs, double[] condICs, int[] parentOffsets, int[] parents,
+        int[] ancestorOffsets, int[] ancestors)
+    {
+        this.termIds = termIds;
+        this.termICs = termICs;
+        this.condICs = condICs;
+        this.parentOffsets = parentOffsets;
+        this.parents = parents;
+        this.ancestorOffsets = ancestorOffsets;
+        this.ancestors = ancestors;
+
+        this.ordinals = new HashMap<String, Integer>(termIds.length * 2);
+        for (int i = 0; i < termIds.length; ++i) {
+            this.ordinals.put(termIds[i], i);
+        }
+        double max = 0.0;
+        for (double ic : termICs) {
+            if (ic > max) {
+                max = ic;
+            }
+        }
+        this.maxIC = max;
+    }
+
+    /**
+     * Build an index from the structure of an ontology, without any information content. The ancestor closure of each
+     * term is computed from the parents.
+     *
+     * @param termIds the identifiers of all the terms, sorted
+     * @param parentOffsets offsets of each term's parents in {@code parents}, with one extra entry marking the end
+     * @param parents the parents of all the terms, concatenated, as ordinals in {@code termIds}
+     * @return the new index
+     */
+    public static OntologyIndex fromParents(String[] termIds, int[] parentOffsets, int[] parents)
+    {
+        int size = termIds.length;
+        int[] sortedParents = parents.clone();
+        for (int i = 0; i < size; ++i) {
+            Arrays.sort(sortedParents, parentOffsets[i], parentOffsets[i + 1]);
+        }
+
+        // Compute the ancestor closures, memoized depth first
+        int[][] closures = new int[size][];
+        int total = 0;
+        for (int i = 0; i < size; ++i) {
+            total += computeClosure(i, parentOffsets, sortedParents, closures, new BitSet(size)).length;
+        }
+        int[] ancestorOffsets = new int[size + 1];
+        int[] ancestors = new int[total];
+        for (int i = 0; i < size; ++i) {
+            System.arraycopy(closures[i], 0, ancestors, ancestorOffsets[i], closures[i].length);
+            ancestorOffsets[i + 1] = ancestorOffsets[i] + closures[i].length;
+        }
+
+        double[] termICs = new double[size];
+        Arrays.fill(termICs, Double.NaN);
+        return new OntologyIndex(termIds, termICs, new double[size], parentOffsets, sortedParents, ancestorOffsets,
+            ancestors);
+    }
+
+    /**
+     * Build an index from ontology terms and their pre-computed information content. The index contains the given
+     * terms and all their ancestors.
+     *
+     * @param termICs the information content of each term
+     * @param condICs the conditional information content of each term, given its parents
+     * @return the new index
+     */
+    public static OntologyIndex fromTerms(Map<OntologyTerm, Double> termICs, Map<OntologyTerm, Double> condICs)
+    {
+        Map<String, OntologyTerm> terms = new TreeMap<String, OntologyTerm>();
+        collectTerms(termICs.keySet(), terms);
+        collectTerms(condICs.keySet(), terms);
+
+        String[] ids = terms.keySet().toArray(new String[terms.size()]);
+        Map<String, Integer> lookup = new HashMap<String, Integer>(ids.length * 2);
+        for (int i = 0; i < ids.length; ++i) {
+            lookup.put(ids[i], i);
+        }
+        int[][] termParents = new int[ids.length][];
+        int[] parentOffsets = new int[ids.length + 1];
+        int i = 0;
+        for (OntologyTerm term : terms.values()) {
+            termParents[i] = getOrdinals(term.getParents(), lookup);
+            parentOffsets[i + 1] = parentOffsets[i] + termParents[i].length;
+            ++i;
+        }
+        int[] parents = new int[parentOffsets[ids.length]];
+        for (i = 0; i < ids.length; ++i) {
+            System.arraycopy(termParents[i], 0, parents, parentOffsets[i], termParents[i].length);
+        }
+
+        OntologyIndex structure = fromParents(ids, parentOffsets, parents);
+        double[] ics = structure.termICs.clone();
+        double[] conds = structure.condICs.clone();
+        for (Map.Entry<OntologyTerm, Double> entry : termICs.entrySet()) {
+            ics[lookup.get(entry.getKey().getId())] = entry.getValue();
+        }
+        for (Map.Entry<OntologyTerm, Double> entry : condICs.entrySet()) {
+            conds[lookup.get(entry.getKey().getId())] = entry.getValue();
+        }
+        return structure.withInformationContent(ics, conds);
+    }
+
+    /**
+     * Create a copy of this index with different information content tables.
+     *
+     * @param newTermICs the information content of each term, indexed by ordinal, {@code NaN} if unknown
+     * @param newCondICs the conditional information content of each term given its parents, indexed by ordinal
+     * @return a new index sharing the structure of this one
+     */
+    public OntologyIndex withInformationContent(double[] newTermICs, double[] newCondICs)
+    {
+        if (newTermICs.length != size() || newCondICs.length != size()) {
+            throw new IllegalArgumentException("Information content tables don't match the size of the index");
+        }
+        return new OntologyIndex(this.termIds, newTermICs, newCondICs, this.parentOffsets, this.parents,
+            this.ancestorOffsets, this.ancestors);
+    }
+
+    /**
+     * The number of terms in the index.
+     *
+     * @return the number of terms, one more than the largest ordinal
+     */
+    public int size()
+    {
+        return this.termIds.length;
+    }
+
+    /**
+     * Get the ordinal of a term.
+     *
+     * @param termId the identifier of the term
+     * @return the ordinal of the term, or {@link #NO_TERM} if the term isn't in the index
+     */
+    public int getOrdinal(String termId)
+    {
+        Integer result = this.ordinals.get(termId);
+        return result == null ? NO_TERM : result;
+    }
+
+    /**
+     * Get the identifier of a term.
+     *
+     * @param ordinal the ordinal of the term
+     * @return the identifier of the term
+     */
+    public String getTermId(int ordinal)
+    {
+        return this.termIds[ordinal];
+    }
+
+    /**
+     * Check whether the information content of a term is known.
+     *
+     * @param ordinal the ordinal of the term
+     * @return {@code true} if the term was assigned an information content
+     */
+    public boolean hasInformationContent(int ordinal)
+    {
+        return !Double.isNaN(this.termICs[ordinal]);
+    }
+
+    /**
+     * Get the information content of a term.
+     *
+     * @param ordinal the ordinal of the term
+     * @return the information content of the term, or {@code 0} if it is not known
+     */
+    public double getInformationContent(int ordinal)
+    {
+        double result = this.termICs[ordinal];
+        return Double.isNaN(result) ? 0.0 : result;
+    }
+
+    /**
+     * Get the conditional information content of a term, given its parents.
+     *
+     * @param ordinal the ordinal of the term
+     * @return the conditional information content of the term, or {@code 0} if it is not known
+     */
+    public double getConditionalInformationContent(int ordinal)
+    {
+        return this.condICs[ordinal];
+    }
+
+    /**
+     * The largest information content of any term in the index.
+     *
+     * @return the maximum information content, or {@code 0} if no information content is known
+     */
+    public double getMaxInformationContent()
+    {
+        return this.maxIC;
+    }
+
+    /**
+     * Get the parents of a term.
+     *
+     * @param ordinal the ordinal of the term
+     * @return the sorted ordinals of the parents of the term; the returned array is a copy and may be modified
+     */
+    public int[] getParents(int ordinal)
+    {
+        return Arrays.copyOfRange(this.parents, this.parentOffsets[ordinal], this.parentOffsets[ordinal + 1]);
+    }
+
+    /**
+     * Get the ancestors of a term, including the term itself.
+     *
+     * @param ordinal the ordinal of the term
+     * @return the sorted ordinals of the ancestors of the term; the returned array is a copy and may be modified
+     */
+    public int[] getAncestorsAndSelf(int ordinal)
+    {
+        return Arrays.copyOfRange(this.ancestors, this.ancestorOffsets[ordinal], this.ancestorOffsets[ordinal + 1]);
+    }
+
+    /**
+     * Get the ancestors of an ontology term, including the term itself. Terms missing from the index are represented
+     * by those of their ancestors which are indexed.
+     *
+     * @param term the term to look up
+     * @return the sorted ordinals of the term and its ancestors, possibly empty; the returned array may be modified
+     */
+    public int[] getAncestorsAndSelf(OntologyTerm term)
+    {
+        int ordinal = getOrdinal(term.getId());
+        if (ordinal != NO_TERM) {
+            return getAncestorsAndSelf(ordinal);
+        }
+        BitSet result = new BitSet(size());
+        for (OntologyTerm ancestor : term.getAncestorsAndSelf()) {
+            ordinal = getOrdinal(ancestor.getId());
+            if (ordinal != NO_TERM) {
+                result.set(ordinal);
+            }
+        }
+        int[] ordinals = new int[result.cardinality()];
+        int j = 0;
+        for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+            ordinals[j++] = i;
+        }
+        return ordinals;
+    }
+
+    /**
+     * Check whether a term is the same as, or a descendant of, another term.
+     *
+     * @param ordinal the ordinal of the term to check
+     * @param ancestor the ordinal of the candidate ancestor
+     * @return {@code true} if {@code ancestor} is among the ancestors of the term, or is the term itself
+     */
+    public boolean hasAncestor(int ordinal, int ancestor)
+    {
+        return Arrays.binarySearch(this.ancestors, this.ancestorOffsets[ordinal], this.ancestorOffsets[ordinal + 1],
+            ancestor) >= 0;
+    }
+
+    /**
+     * Add the ancestors of a term, including the term itself, to a set of ordinals.
+     *
+     * @param ordinal the ordinal of the term
+     * @param result the set to add to
+     */
+    public void addAncestorsAndSelf(int ordinal, BitSet result)
+    {
+        for (int i = this.ancestorOffsets[ordinal]; i < this.ancestorOffsets[ordinal + 1]; ++i) {
+            result.set(this.ancestors[i]);
+        }
+    }
+
+    /**
+     * Write the index in binary form, as part of an {@link OntologySnapshot}: the number of terms, all the term
+     * identifiers, then the information content table, the conditional information content table, and the parent and
+     * ancestor arrays.
+     *
+     * @param out the stream to write to
+     * @throws IOException if writing fails
+     */
+    void writeTo(DataOutputStream out) throws IOException
+    {
+        out.writeInt(size());
+        for (String id : this.termIds) {
+            OntologySnapshot.writeString(out, id);
+        }
+        for (double ic : this.termICs) {
+            out.writeDouble(ic);
+        }
+        for (double ic : this.condICs) {
+            out.writeDouble(ic);
+        }
+        writeInts(out, this.parentOffsets);
+        writeInts(out, this.parents);
+        writeInts(out, this.ancestorOffsets);
+        writeInts(out, this.ancestors);
+    }
+
+    /**
+     * Read an index written by {@link #writeTo(DataOutputStream)}.
+     *
+     * @param buffer the buffer to read from
+     * @return the index read
+     */
+    static OntologyIndex readFrom(ByteBuffer buffer)
+    {
+        int size = buffer.getInt();
+        String[] ids = new String[size];
+        for (int i = 0; i < size; ++i) {
+            ids[i] = OntologySnapshot.readString(buffer);
+        }
+        double[] ics = readDoubles(buffer, size);
+        double[] conds = readDoubles(buffer, size);
+        int[] parentOffsets = readInts(buffer);
+        int[] parents = readInts(buffer);
+        int[] ancestorOffsets = readInts(buffer);
+        int[] ancestors = readInts(buffer);
+        if (parentOffsets.length != size + 1 || ancestorOffsets.length != size + 1
+            || parentOffsets[size] != parents.length || ancestorOffsets[size] != ancestors.length) {
+            throw new IllegalStateException("Inconsistent ontology index");
+        }
+        return new OntologyIndex(ids, ics, conds, parentOffsets, parents, ancestorOffsets, ancestors);
+    }
+
+    /**
+     * Compute, and memoize, the sorted ancestor closure of a term, including the term itself.
+     *
+     * @param ordinal the term to process
+     * @param parentOffsets offsets of each term's parents in {@code parents}
+     * @param parents the parents of all the terms, concatenated
+     * @param closures the closures computed so far, filled in by this method
+     * @param visiting the terms on the current path, used for guarding against cycles
+     * @return the closure of the term
+     */
+    private static int[] computeClosure(int ordinal, int[] parentOffsets, int[] parents, int[][] closures,
+        BitSet visiting)
+    {
+        if (closures[ordinal] != null) {
+            return closures[ordinal];
+        }
+        visiting.set(ordinal);
+        BitSet closure = new BitSet();
+        closure.set(ordinal);
+        for (int i = parentOffsets[ordinal]; i < parentOffsets[ordinal + 1]; ++i) {
+            int parent = parents[i];
+            if (visiting.get(parent)) {
+                // Broken ontology, ignore the edge closing the cycle
+                continue;
+            }
+            for (int ancestor : computeClosure(parent, parentOffsets, parents, closures, visiting)) {
+                closure.set(ancestor);
+            }
+        }
+        visiting.clear(ordinal);
+
+        int[] result = new int[closure.cardinality()];
+        int j = 0;
+        for (int i = closure.nextSetBit(0); i >= 0; i = closure.nextSetBit(i + 1)) {
+            result[j++] = i;
+        }
+        closures[ordinal] = result;
+        return result;
+    }
+
+    /**
+     * Add some terms and all their ancestors to a map of terms.
+     *
+     * @param source the terms to add
+     * @param terms the map to add to, keyed by term identifier
+     */
+    private static void collectTerms(Collection<OntologyTerm> source, Map<String, OntologyTerm> terms)
+    {
+        for (OntologyTerm term : source) {
+            for (OntologyTerm ancestor : term.getAncestorsAndSelf()) {
+                if (!terms.containsKey(ancestor.getId())) {
+                    terms.put(ancestor.getId(), ancestor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the ordinals of some terms, ignoring unknown terms.
+     *
+     * @param terms the terms to look up
+     * @param lookup mapping from term identifiers to ordinals
+     * @return the ordinals of the known terms
+     */
+    private static int[] getOrdinals(Collection<OntologyTerm> terms, Map<String, Integer> lookup)
+    {
+        int[] result = new int[terms.size()];
+        int size = 0;
+        for (OntologyTerm term : terms) {
+            Integer ordinal = lookup.get(term.getId());
+            if (ordinal != null) {
+                result[size++] = ordinal;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Write an array of ints, preceded by its length.
+     *
+     * @param out the stream to write to
+     * @param values the values to write
+     * @throws IOException if writing fails
+     */
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException
+    {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * Bulk read an array of ints written by {@link #writeInts(DataOutputStream, int[])}.
+     *
+     * @param buffer the buffer to read from
+     * @return the values read
+     */
+    private static int[] readInts(ByteBuffer buffer)
+    {
+        int[] result = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(result);
+        buffer.position(buffer.position() + result.length * (Integer.SIZE / Byte.SIZE));
+        return result;
+    }
+
+    /**
+     * Bulk read an array of doubles.
+     *
+     * @param buffer the buffer to read from
+     * @param size the number of values to read
+     * @return the values read
+     */
+    private static double[] readDoubles(ByteBuffer buffer, int size)
+    {
+        double[] result = new double[size];
+        buffer.asDoubleBuffer().get(result);
+        buffer.position(buffer.position() + size * (Double.SIZE / Byte.SIZE));
+        return result;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Binary snapshot of the {@link OntologyIndex} pre-computed by {@link DefaultPatientSimilarityViewFactory}. The
+ * snapshot records the versions of the HPO and MIM ontologies it was computed from, so that it can be reused across
+ * restarts for as long as the ontologies stay the same, and it is read back through a memory mapped buffer.
+ * <p>
+ * File layout (big endian): magic, format version, HPO version, MIM version, then the index as written by
+ * {@link OntologyIndex}. Strings are written as an unsigned short byte count followed by their UTF-8 bytes.
+ * </p>
+ *
+ * @version $Id$
+ * @since
+ */
+public final class OntologySnapshot
+{
+    /** Marks the start of a snapshot file, {@code PTIC}. */
+    private static final int MAGIC = 0x50544943;
+
+    /** Version of the file layout and of the algorithm used to compute the tables; bump whenever either changes. */
+    private static final int FORMAT_VERSION = 2;
+
+    /** Suffix used for the snapshot while it is being written. */
+    private static final String TEMP_SUFFIX = ".temp";
+
+    /** Encoding used for all the strings in the snapshot. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The version of the HPO ontology the index was computed from. */
+    private final String hpoVersion;
+
+    /** The version of the MIM ontology the index was computed from. */
+    private final String mimVersion;
+
+    /** The ontology index. */
+    private final OntologyIndex index;
+
+    /**
+     * Simple constructor passing all the data of the snapshot.
+     *
+     * @param hpoVersion the version of the HPO ontology the index was computed from
+     * @param mimVersion the version of the MIM ontology the index was computed from
+     * @param index the ontology index, with the information content of each term
+     */
+    public OntologySnapshot(String hpoVersion, String mimVersion, OntologyIndex index)
+    {
+        this.hpoVersion = hpoVersion;
+        this.mimVersion = mimVersion;
+        this.index = index;
+    }
+
+    /**
+     * Check whether this snapshot was computed from the given ontology versions.
+     *
+     * @param hpo the current version of the HPO ontology
+     * @param mim the current version of the MIM ontology
+     * @return {@code true} if the snapshot can be used with the given ontologies
+     */
+    public boolean isFor(String hpo, String mim)
+    {
+        return StringUtils.equals(this.hpoVersion, hpo) && StringUtils.equals(this.mimVersion, mim);
+    }
+
+    /**
+     * The ontology index stored in this snapshot.
+     *
+     * @return the ontology index
+     */
+    public OntologyIndex getIndex()
+    {
+        return this.index;
+    }
+
+    /**
+     * Write the snapshot to a file. The data is first written to a temporary file which then replaces the target, so
+     * that a crash never leaves a truncated snapshot behind.
+     *
+     * @param file the file to write to, its parent directory is created if needed
+     * @throws IOException if writing the file fails
+     */
+    public void write(File file) throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create snapshot directory: " + dir.getAbsolutePath());
+        }
+        File tempFile = new File(file.getAbsolutePath() + TEMP_SUFFIX);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, this.hpoVersion);
+            writeString(out, this.mimVersion);
+            this.index.writeTo(out);
+        } finally {
+            out.close();
+        }
+
+        if ((file.exists() && !file.delete()) || !tempFile.renameTo(file)) {
+            throw new IOException("Unable to move temp snapshot file to final path: " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Read a snapshot from a file, memory mapping its content.
+     *
+     * @param file the file to read from
+     * @return the snapshot, or {@code null} if the file doesn't exist or was written with a different format version
+     * @throws IOException if reading the file fails, or if the file isn't a valid snapshot
+     */
+    public static OntologySnapshot read(File file) throws IOException
+    {
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not an ontology snapshot: " + file.getAbsolutePath());
+            }
+            if (buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            String hpo = readString(buffer);
+            String mim = readString(buffer);
+            return new OntologySnapshot(hpo, mim, OntologyIndex.readFrom(buffer));
+        } catch (RuntimeException ex) {
+            // Buffer underflows and the like, the file was truncated or corrupted
+            throw new IOException("Invalid ontology snapshot: " + file.getAbsolutePath(), ex);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write a string as an unsigned short byte count followed by its UTF-8 bytes.
+     *
+     * @param out the stream to write to
+     * @param value the string to write, {@code null} is written as the empty string
+     * @throws IOException if writing fails
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = StringUtils.defaultString(value).getBytes(UTF8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string written by {@link #writeString(DataOutputStream, String)}.
+     *
+     * @param buffer the buffer to read from
+     * @return the string read
+     */
+    static String readString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.ontology.OntologyTerm;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Keeps resolved ontology terms and their ancestor closures around between scoring requests, so that repeatedly
+ * scoring the same patients never goes back to the ontology service for terms already seen.
+ *
+ * @version $Id$
+ * @since
+ */
+@Role
+public interface OntologyTermCache
+{
+    /**
+     * Resolve an ontology term from its identifier.
+     *
+     * @param id the term identifier, e.g. {@code HP:0001382}
+     * @return the resolved term, or {@code null} if the term is not known
+     */
+    OntologyTerm resolveTerm(String id);
+
+    /**
+     * Get the ancestors of an ontology term, including the term itself, as ordinals in an ontology index.
+     *
+     * @param index the ontology index to use
+     * @param term the term to look up
+     * @return the sorted ordinals of the term and its ancestors, possibly empty; the returned array is shared and must
+     *         not be modified
+     * @see OntologyIndex#getAncestorsAndSelf(OntologyTerm)
+     */
+    int[] getAncestorsAndSelf(OntologyIndex index, OntologyTerm term);
+
+    /**
+     * Drop all the cached terms, for example after the ontology was reindexed.
+     */
+    void clear();
+}
@@ -0,0 +1,269 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.util.Arrays;
+
+/**
+ * Bounded open addressing hash table from primitive {@code long} keys to primitive {@code double} values, using linear
+ * probing and evicting entries with the clock algorithm, an approximation of LRU: each entry has a reference bit set on
+ * access, and when the table is full a hand sweeps the slots, clearing set bits and evicting the first entry whose bit
+ * was already clear. Each entry also carries a stamp, and lookups with a different stamp miss and drop the entry, which
+ * allows invalidating entries without finding them. Keys must not be negative. Not thread safe.
+ *
+ * @version $Id$
+ * @since
+ */
+final class PairScoreTable
+{
+    /** The memory used by one slot: the key, value and stamp, and the reference bit. */
+    static final int BYTES_PER_SLOT = 8 + 8 + 8 + 1;
+
+    /** The largest number of slots, so that the arrays stay well below the maximum array size. */
+    private static final int MAX_SLOTS = 1 << 28;
+
+    /** Marks empty slots; valid keys are never negative. */
+    private static final long EMPTY = -1L;
+
+    /** The maximum number of entries. */
+    private final int maxEntries;
+
+    /** Used for turning hashes into slot positions. */
+    private final int mask;
+
+    /** The key stored in each slot, or {@link #EMPTY}. */
+    private final long[] keys;
+
+    /** The value stored in each slot. */
+    private final double[] values;
+
+    /** The stamp stored in each slot. */
+    private final long[] stamps;
+
+    /** The reference bit of each slot, set when the entry is accessed and cleared by the clock hand. */
+    private final boolean[] referenced;
+
+    /** The number of entries. */
+    private int size;
+
+    /** The position of the clock hand. */
+    private int hand;
+
+    /**
+     * Create an empty table.
+     *
+     * @param maxEntries the maximum number of entries, at least 1
+     */
+    PairScoreTable(int maxEntries)
+    {
+        this.maxEntries = Math.max(1, maxEntries);
+        // Keep the load factor at most 1/2, so that probe sequences stay short
+        int capacity = Integer.highestOneBit(Math.max(8, this.maxEntries) * 2 - 1) << 1;
+        this.mask = capacity - 1;
+        this.keys = new long[capacity];
+        this.values = new double[capacity];
+        this.stamps = new long[capacity];
+        this.referenced = new boolean[capacity];
+        Arrays.fill(this.keys, EMPTY);
+    }
+
+    /**
+     * Create an empty table using at most some memory for its slots. The number of slots is the largest power of two
+     * fitting in the budget, and the table holds up to half as many entries.
+     *
+     * @param maxBytes the memory budget, in bytes
+     * @return a new table
+     */
+    static PairScoreTable withMaxMemory(long maxBytes)
+    {
+        long slots = Math.max(16, Math.min(MAX_SLOTS, maxBytes / BYTES_PER_SLOT));
+        return new PairScoreTable((int) Long.highestOneBit(slots) / 2);
+    }
+
+    /**
+     * Get the value of a key.
+     *
+     * @param key the key, not negative
+     * @param stamp the stamp expected for the entry
+     * @return the value, or {@link Double#NaN} if the key is missing or was stored with a different stamp
+     */
+    double get(long key, long stamp)
+    {
+        int slot = find(key);
+        if (this.keys[slot] == EMPTY) {
+            return Double.NaN;
+        }
+        if (this.stamps[slot] != stamp) {
+            delete(slot);
+            return Double.NaN;
+        }
+        this.referenced[slot] = true;
+        return this.values[slot];
+    }
+
+    /**
+     * Store the value of a key, evicting another entry if the table is full.
+     *
+     * @param key the key, not negative
+     * @param stamp the stamp of the entry
+     * @param value the value
+     */
+    void put(long key, long stamp, double value)
+    {
+        int slot = find(key);
+        if (this.keys[slot] == EMPTY) {
+            if (this.size >= this.maxEntries) {
+                evict();
+                // Eviction may have moved entries around
+                slot = find(key);
+            }
+            this.keys[slot] = key;
+            ++this.size;
+        }
+        this.values[slot] = value;
+        this.stamps[slot] = stamp;
+        this.referenced[slot] = true;
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    void clear()
+    {
+        Arrays.fill(this.keys, EMPTY);
+        Arrays.fill(this.referenced, false);
+        this.size = 0;
+    }
+
+    /**
+     * The number of entries, including the ones with an outdated stamp which haven't been dropped yet.
+     *
+     * @return the number of entries
+     */
+    int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * The maximum number of entries, beyond which entries are evicted.
+     *
+     * @return the maximum number of entries
+     */
+    int getMaxEntries()
+    {
+        return this.maxEntries;
+    }
+
+    /**
+     * The memory allocated for the slots of the table.
+     *
+     * @return the size of the slot arrays, in bytes
+     */
+    long getAllocatedBytes()
+    {
+        return (long) this.keys.length * BYTES_PER_SLOT;
+    }
+
+    /**
+     * Find the slot of a key.
+     *
+     * @param key the key
+     * @return the slot holding the key, or the empty slot ending its probe sequence
+     */
+    private int find(long key)
+    {
+        int slot = home(key);
+        while (this.keys[slot] != EMPTY && this.keys[slot] != key) {
+            slot = (slot + 1) & this.mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Get the first slot where a key is looked for.
+     *
+     * @param key the key
+     * @return the slot position
+     */
+    private int home(long key)
+    {
+        // Finalizer of the 64 bit MurmurHash3, spreading the bits of both halves of the key
+        long hash = key;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) hash & this.mask;
+    }
+
+    /**
+     * Evict one entry, sweeping the clock hand over the slots until it finds an entry that wasn't accessed since the
+     * previous sweep.
+     */
+    private void evict()
+    {
+        while (true) {
+            int slot = this.hand;
+            if (this.keys[slot] != EMPTY) {
+                if (!this.referenced[slot]) {
+                    // The hand stays in place, an entry shifted back into this slot will be checked next
+                    delete(slot);
+                    return;
+                }
+                this.referenced[slot] = false;
+            }
+            this.hand = (slot + 1) & this.mask;
+        }
+    }
+
+    /**
+     * Delete the entry in a slot, shifting back the following entries of the cluster so that no probe sequence is
+     * broken.
+     *
+     * @param slot the slot to clear
+     */
+    private void delete(int slot)
+    {
+        int gap = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & this.mask;
+            long key = this.keys[next];
+            if (key == EMPTY) {
+                break;
+            }
+            // The entry can fill the gap unless its home slot is cyclically between the gap and its current slot
+            int distanceFromHome = (next - home(key)) & this.mask;
+            int distanceFromGap = (next - gap) & this.mask;
+            if (distanceFromHome >= distanceFromGap) {
+                this.keys[gap] = key;
+                this.values[gap] = this.values[next];
+                this.stamps[gap] = this.stamps[next];
+                this.referenced[gap] = this.referenced[next];
+                gap = next;
+            }
+        }
+        this.keys[gap] = EMPTY;
+        this.referenced[gap] = false;
+        --this.size;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns dense integer ordinals to patient identifiers, so that per-gene data can be stored in primitive arrays.
+ * Ordinals are never reused, and lookups don't lock.
+ *
+ * @version $Id$
+ * @since
+ */
+final class PatientOrdinals
+{
+    /** Returned by {@link #getOrdinal(String)} for patients that were never interned. */
+    static final int NONE = -1;
+
+    /** The ordinal of each interned patient. */
+    private final Map<String, Integer> ordinals = new ConcurrentHashMap<String, Integer>();
+
+    /** The patient identifier for each ordinal, grown as needed and replaced on growth. */
+    private volatile String[] ids = new String[16];
+
+    /** The number of ordinals assigned so far. */
+    private int size;
+
+    /**
+     * Get the ordinal of a patient, assigning a new one if the patient wasn't seen before.
+     *
+     * @param patientId the identifier of the patient
+     * @return the ordinal of the patient
+     */
+    synchronized int intern(String patientId)
+    {
+        Integer ordinal = this.ordinals.get(patientId);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        String[] current = this.ids;
+        if (this.size == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[this.size] = patientId;
+        // Publish the identifier before the ordinal, so readers resolving the ordinal always find it
+        this.ids = current;
+        this.ordinals.put(patientId, this.size);
+        return this.size++;
+    }
+
+    /**
+     * Get the ordinal of a patient, without assigning one.
+     *
+     * @param patientId the identifier of the patient
+     * @return the ordinal of the patient, or {@link #NONE} if it was never interned
+     */
+    int getOrdinal(String patientId)
+    {
+        Integer ordinal = patientId == null ? null : this.ordinals.get(patientId);
+        return ordinal == null ? NONE : ordinal;
+    }
+
+    /**
+     * Get the patient identifier for an ordinal.
+     *
+     * @param ordinal an ordinal returned by {@link #intern(String)}
+     * @return the identifier of the patient
+     */
+    String getPatientId(int ordinal)
+    {
+        return this.ids[ordinal];
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Bounded cache of the symmetric phenotype similarity scores of patient pairs, used when comparing a pair of patients
+ * against the other patients carrying variants in the same genes.
+ *
+ * @version $Id$
+ * @since
+ */
+@Role
+public interface PatientPairScoreCache
+{
+    /**
+     * Get the cached score of a pair of patients; the order of the two patients doesn't matter.
+     *
+     * @param patientId1 the identifier of one patient
+     * @param patientId2 the identifier of the other patient
+     * @return the cached score, or {@link Double#NaN} if the pair isn't cached
+     */
+    double get(String patientId1, String patientId2);
+
+    /**
+     * Store the score of a pair of patients; the order of the two patients doesn't matter.
+     *
+     * @param patientId1 the identifier of one patient
+     * @param patientId2 the identifier of the other patient
+     * @param score the score of the pair
+     */
+    void put(String patientId1, String patientId2, double score);
+
+    /**
+     * Drop the cached scores of all the pairs including a patient, for example after its phenotypes changed.
+     *
+     * @param patientId the identifier of the patient
+     */
+    void invalidate(String patientId);
+
+    /**
+     * Drop all the cached scores.
+     */
+    void clear();
+}
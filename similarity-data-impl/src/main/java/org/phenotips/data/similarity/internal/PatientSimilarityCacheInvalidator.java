@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Drops the cached similarity data of patients when their records are changed or deleted.
+ *
+ * @version $Id$
+ * @since
+ */
+@Component
+@Named("patient-similarity-cache-invalidator")
+@Singleton
+public class PatientSimilarityCacheInvalidator implements EventListener
+{
+    /** The cache of patient profiles. */
+    @Inject
+    private PhenotypeProfileCache profileCache;
+
+    /** The cache of patient pair scores. */
+    @Inject
+    private PatientPairScoreCache pairScoreCache;
+
+    /** The cache of the gene scores of patient pairs. */
+    @Inject
+    private GeneMatchCache geneMatchCache;
+
+    /** The genotyped patients, whose phenotypes are part of the gene scores of other pairs. */
+    @Inject
+    private GeneCarrierIndex geneCarriers;
+
+    /** Provides access to the saved patient records. */
+    @Inject
+    private PatientRepository patients;
+
+    @Override
+    public String getName()
+    {
+        return "patient-similarity-cache-invalidator";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (source instanceof DocumentModelBridge) {
+            // Patient identifiers are the names of their documents; other documents aren't in the caches anyway
+            String patientId = ((DocumentModelBridge) source).getDocumentReference().getName();
+            if (this.geneCarriers.getOrdinal(patientId) >= 0 && phenotypesChanged(event, patientId)) {
+                // Carriers penalize the gene scores of any pair sharing a gene with them, through their phenotypes
+                this.geneMatchCache.invalidateAll();
+            }
+            this.profileCache.invalidate(patientId);
+            this.pairScoreCache.invalidate(patientId);
+        }
+    }
+
+    /**
+     * Check if the present phenotypes of a patient may have changed, by comparing the saved record with the cached
+     * profile, which must not be invalidated yet.
+     *
+     * @param event the event sent for the patient record
+     * @param patientId the identifier of the patient
+     * @return {@code false} if the saved record has the same present phenotypes as the cached profile, {@code true}
+     *         otherwise, including when there's no cached profile to compare with
+     */
+    private boolean phenotypesChanged(Event event, String patientId)
+    {
+        if (!(event instanceof DocumentUpdatedEvent) || this.profileCache.get(patientId) == null) {
+            return true;
+        }
+        Patient patient = this.patients.getPatientById(patientId);
+        return patient == null || this.profileCache.get(patient) == null;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.ontology.OntologyTerm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * The phenotypic profile of a patient, as used for scoring: the resolved terms present in the patient, and the closure
+ * of all these terms and their ancestors, stored as a fixed-width bitset over the ordinals of an {@link OntologyIndex},
+ * together with the pre-computed cost of encoding all these terms. Only the words between the first and the last
+ * non-empty word are stored, so profiles of patients with a few related phenotypes stay small.
+ * <p>
+ * Profiles are immutable and can be shared between threads. Computing the shared cost of two profiles doesn't
+ * allocate any memory.
+ * </p>
+ *
+ * @version $Id$
+ * @since
+ */
+public final class PhenotypeProfile
+{
+    /** Shift for converting ordinals to word positions, each word holds 64 bits. */
+    private static final int WORD_SHIFT = 6;
+
+    /** The index whose ordinals are used in the bitset. */
+    private final OntologyIndex index;
+
+    /** The terms present in the patient. */
+    private final Collection<OntologyTerm> terms;
+
+    /** The position of the first stored word in the full bitset. */
+    private final int firstWord;
+
+    /** The stored words of the bitset, starting with the word at {@link #firstWord}. */
+    private final long[] words;
+
+    /** The number of terms in the closure. */
+    private final int size;
+
+    /** The cost of encoding all the terms in the closure. */
+    private final double cost;
+
+    /**
+     * Constructor passing all the data of the profile.
+     *
+     * @param index the index whose ordinals are used in the bitset
+     * @param terms the terms present in the patient
+     * @param firstWord the position of the first stored word in the full bitset
+     * @param words the stored words
+     */
+    private PhenotypeProfile(OntologyIndex index, Collection<OntologyTerm> terms, int firstWord, long[] words)
+    {
+        this.index = index;
+        this.terms = Collections.unmodifiableCollection(new ArrayList<OntologyTerm>(terms));
+        this.firstWord = firstWord;
+        this.words = words;
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        this.size = count;
+        this.cost = getCost(index, firstWord, words);
+    }
+
+    /**
+     * Build the profile of a set of present terms.
+     *
+     * @param index the ontology index to use
+     * @param terms the terms present in the patient
+     * @return the profile of the terms and all their ancestors
+     */
+    public static PhenotypeProfile build(OntologyIndex index, Collection<OntologyTerm> terms)
+    {
+        return build(index, terms, null);
+    }
+
+    /**
+     * Build the profile of a set of present terms, looking up the term ancestors in a cache.
+     *
+     * @param index the ontology index to use
+     * @param terms the terms present in the patient
+     * @param termCache the cache of term ancestors, if {@code null} the ancestors are looked up in the index
+     * @return the profile of the terms and all their ancestors
+     */
+    public static PhenotypeProfile build(OntologyIndex index, Collection<OntologyTerm> terms,
+        OntologyTermCache termCache)
+    {
+        int min = Integer.MAX_VALUE;
+        int max = -1;
+        int[][] closures = new int[terms.size()][];
+        int i = 0;
+        for (OntologyTerm term : terms) {
+            int[] closure =
+                termCache == null ? index.getAncestorsAndSelf(term) : termCache.getAncestorsAndSelf(index, term);
+            if (closure.length > 0) {
+                min = Math.min(min, closure[0]);
+                max = Math.max(max, closure[closure.length - 1]);
+            }
+            closures[i++] = closure;
+        }
+        if (max < 0) {
+            return new PhenotypeProfile(index, terms, 0, new long[0]);
+        }
+
+        int firstWord = min >>> WORD_SHIFT;
+        long[] words = new long[(max >>> WORD_SHIFT) - firstWord + 1];
+        for (int[] closure : closures) {
+            for (int ordinal : closure) {
+                words[(ordinal >>> WORD_SHIFT) - firstWord] |= 1L << ordinal;
+            }
+        }
+        return new PhenotypeProfile(index, terms, firstWord, words);
+    }
+
+    /**
+     * The index whose ordinals are used in this profile.
+     *
+     * @return the ontology index
+     */
+    public OntologyIndex getIndex()
+    {
+        return this.index;
+    }
+
+    /**
+     * The terms present in the patient, as resolved in the ontology.
+     *
+     * @return an unmodifiable collection of terms
+     */
+    public Collection<OntologyTerm> getTerms()
+    {
+        return this.terms;
+    }
+
+    /**
+     * Check whether the profile contains any terms.
+     *
+     * @return {@code true} if no terms are present
+     */
+    public boolean isEmpty()
+    {
+        return this.size == 0;
+    }
+
+    /**
+     * The number of terms in the profile, including all the ancestors of the present terms.
+     *
+     * @return the number of terms in the closure
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * Check whether a term is in the profile.
+     *
+     * @param ordinal the ordinal of the term
+     * @return {@code true} if the term is present, or is an ancestor of a present term
+     */
+    public boolean contains(int ordinal)
+    {
+        int word = (ordinal >>> WORD_SHIFT) - this.firstWord;
+        return word >= 0 && word < this.words.length && (this.words[word] & (1L << ordinal)) != 0;
+    }
+
+    /**
+     * The cost of encoding all the terms in the profile, i.e. the sum of the conditional information content of all
+     * the terms in the closure.
+     *
+     * @return the cost of the profile
+     */
+    public double getCost()
+    {
+        return this.cost;
+    }
+
+    /**
+     * The cost of encoding the terms shared by this profile and another one, computed word by word on the intersection
+     * of the two bitsets.
+     *
+     * @param other the other profile, built with the same index
+     * @return the sum of the conditional information content of all the terms present in both profiles
+     */
+    public double getSharedCost(PhenotypeProfile other)
+    {
+        int start = Math.max(this.firstWord, other.firstWord);
+        int end = Math.min(this.firstWord + this.words.length, other.firstWord + other.words.length);
+        double result = 0;
+        for (int word = start; word < end; ++word) {
+            long shared = this.words[word - this.firstWord] & other.words[word - other.firstWord];
+            int base = word << WORD_SHIFT;
+            while (shared != 0) {
+                result += this.index.getConditionalInformationContent(base + Long.numberOfTrailingZeros(shared));
+                shared &= shared - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sum the conditional information content of all the terms in a bitset.
+     *
+     * @param index the ontology index
+     * @param firstWord the position of the first word of the array in the full bitset
+     * @param words the words of the bitset
+     * @return the sum of the conditional information content of all the terms set in the words
+     */
+    private static double getCost(OntologyIndex index, int firstWord, long[] words)
+    {
+        double result = 0;
+        for (int i = 0; i < words.length; ++i) {
+            long word = words[i];
+            int base = (firstWord + i) << WORD_SHIFT;
+            while (word != 0) {
+                result += index.getConditionalInformationContent(base + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return result;
+    }
+}
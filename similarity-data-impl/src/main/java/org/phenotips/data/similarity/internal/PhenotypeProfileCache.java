@@ -0,0 +1,73 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Patient;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Keeps the {@link PhenotypeProfile phenotypic profiles} of patients around between scoring requests, since a
+ * patient's profile only changes when the patient record is saved.
+ *
+ * @version $Id$
+ * @since
+ */
+@Role
+public interface PhenotypeProfileCache
+{
+    /**
+     * Get the cached profile of a patient.
+     *
+     * @param patient the patient whose profile to retrieve
+     * @return the profile of the patient, or {@code null} if no profile is cached or if the cached profile no longer
+     *         matches the phenotypes of the patient
+     */
+    PhenotypeProfile get(Patient patient);
+
+    /**
+     * Get the cached profile of a patient without loading the patient record. Since the phenotypes of the patient
+     * can't be checked, this relies on the profile being {@link #invalidate invalidated} when the record is saved.
+     *
+     * @param patientId the identifier of the patient whose profile to retrieve
+     * @return the profile of the patient, or {@code null} if no profile is cached
+     */
+    PhenotypeProfile get(String patientId);
+
+    /**
+     * Store the profile of a patient.
+     *
+     * @param patient the patient whose profile to store
+     * @param profile the profile built from the current phenotypes of the patient
+     */
+    void put(Patient patient, PhenotypeProfile profile);
+
+    /**
+     * Drop the cached profile of a patient, for example after the patient record was changed.
+     *
+     * @param patientId the identifier of the patient
+     */
+    void invalidate(String patientId);
+
+    /**
+     * Drop all the cached profiles.
+     */
+    void clear();
+}
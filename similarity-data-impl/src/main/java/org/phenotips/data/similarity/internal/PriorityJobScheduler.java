@@ -0,0 +1,330 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs keyed jobs on a fixed number of worker threads, from two lanes: interactive jobs always run before bulk jobs.
+ * Submitting a job for a key which already has a job waiting replaces the waiting job instead of adding another one,
+ * and moves it to the interactive lane if needed. The bulk lane is bounded, and bulk submissions wait while it's full,
+ * so that a large backlog neither uses unbounded memory nor delays interactive jobs. The interactive lane isn't
+ * bounded, since it holds at most one job per key. At most one job runs for a key at any time: a job submitted while
+ * another job with the same key is running waits until that run finishes, so that jobs writing the same files never
+ * run concurrently.
+ *
+ * @version $Id$
+ * @since
+ */
+final class PriorityJobScheduler
+{
+    /** The lanes jobs can be submitted to. */
+    enum Lane
+    {
+        /** Jobs requested by a user, which run first. */
+        INTERACTIVE,
+
+        /** Background jobs, which only run when there's no interactive job waiting. */
+        BULK
+    }
+
+    /** Guards the lanes and the waiting jobs. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signaled when a job is added to a lane, or when a job finishes running. */
+    private final Condition notEmpty = this.lock.newCondition();
+
+    /** Signaled when room is made in the bulk lane. */
+    private final Condition notFull = this.lock.newCondition();
+
+    /** The waiting interactive jobs, in submission order. */
+    private final Deque<Job> interactive = new ArrayDeque<Job>();
+
+    /** The waiting bulk jobs, in submission order. */
+    private final Deque<Job> bulk = new ArrayDeque<Job>();
+
+    /** The waiting jobs, by key. */
+    private final Map<String, Job> waiting = new HashMap<String, Job>();
+
+    /** The keys of the jobs currently running. */
+    private final Set<String> running = new HashSet<String>();
+
+    /** The maximum number of waiting bulk jobs. */
+    private final int maxBulkJobs;
+
+    /** Whether the scheduler was shut down; guarded by the lock. */
+    private boolean shutdown;
+
+    /**
+     * Create a scheduler and start its worker threads.
+     *
+     * @param threads the number of jobs to run at the same time
+     * @param maxBulkJobs the maximum number of bulk jobs waiting to run
+     * @param name the prefix of the names of the worker threads
+     */
+    PriorityJobScheduler(int threads, int maxBulkJobs, String name)
+    {
+        this.maxBulkJobs = Math.max(1, maxBulkJobs);
+        for (int i = 1; i <= Math.max(1, threads); ++i) {
+            Thread worker = new Thread(new Worker(), name + '-' + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Submit a job. If a job with the same key is waiting, its work is replaced by this one and its future is returned,
+     * otherwise the job is added at the end of its lane. Bulk submissions wait while the bulk lane is full.
+     *
+     * @param key identifies the jobs doing the same work, e.g. the patient they process
+     * @param job the work to do
+     * @param lane the lane of the job
+     * @return the future of the job, done once the job ran or was cancelled
+     * @throws InterruptedException if interrupted while waiting for room in the bulk lane
+     */
+    Future<?> submit(String key, Runnable job, Lane lane) throws InterruptedException
+    {
+        this.lock.lockInterruptibly();
+        try {
+            Job existing = this.waiting.get(key);
+            if (existing != null && !existing.isCancelled()) {
+                existing.work.task = job;
+                if (lane == Lane.INTERACTIVE && existing.lane == Lane.BULK) {
+                    this.bulk.remove(existing);
+                    existing.lane = Lane.INTERACTIVE;
+                    this.interactive.addLast(existing);
+                    this.notFull.signal();
+                }
+                return existing;
+            }
+            while (lane == Lane.BULK && this.bulk.size() >= this.maxBulkJobs && !this.shutdown) {
+                this.notFull.await();
+            }
+            Job added = new Job(key, new Work(job), lane);
+            if (this.shutdown) {
+                added.cancel(false);
+                return added;
+            }
+            this.waiting.put(key, added);
+            (lane == Lane.INTERACTIVE ? this.interactive : this.bulk).addLast(added);
+            this.notEmpty.signalAll();
+            return added;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of jobs waiting to run in a lane.
+     *
+     * @param lane the lane to count
+     * @return the number of jobs waiting in that lane, including cancelled ones not yet taken by a worker
+     */
+    int getWaitingCount(Lane lane)
+    {
+        this.lock.lock();
+        try {
+            return lane == Lane.INTERACTIVE ? this.interactive.size() : this.bulk.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Cancel the waiting jobs, and stop the workers once they finish their current job.
+     */
+    void shutdown()
+    {
+        this.lock.lock();
+        try {
+            this.shutdown = true;
+            for (Job job : this.waiting.values()) {
+                job.cancel(false);
+            }
+            this.waiting.clear();
+            this.interactive.clear();
+            this.bulk.clear();
+            this.notEmpty.signalAll();
+            this.notFull.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the next job to run, interactive jobs first. Jobs whose key is already running are skipped, and stay in
+     * their lane until that run {@link #finished(Job) finishes}.
+     *
+     * @return the next job, or {@code null} if the scheduler was shut down
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private Job take() throws InterruptedException
+    {
+        this.lock.lockInterruptibly();
+        try {
+            while (!this.shutdown) {
+                Job next = pollRunnable(this.interactive);
+                if (next == null) {
+                    next = pollRunnable(this.bulk);
+                    if (next != null) {
+                        this.notFull.signal();
+                    }
+                }
+                if (next != null) {
+                    // Once taken, the job can't be replaced anymore, new submissions for its key start a new job
+                    if (this.waiting.get(next.key) == next) {
+                        this.waiting.remove(next.key);
+                    }
+                    this.running.add(next.key);
+                    return next;
+                }
+                this.notEmpty.await();
+            }
+            return null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Remove and return the first job of a lane whose key isn't running; must be called while holding the lock.
+     *
+     * @param lane the waiting jobs of a lane
+     * @return the first job which can run, or {@code null} if there is none
+     */
+    private Job pollRunnable(Deque<Job> lane)
+    {
+        Iterator<Job> jobs = lane.iterator();
+        while (jobs.hasNext()) {
+            Job job = jobs.next();
+            if (!this.running.contains(job.key)) {
+                jobs.remove();
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Mark a job as no longer running, letting the next job with the same key run.
+     *
+     * @param job the job which finished running
+     */
+    private void finished(Job job)
+    {
+        this.lock.lock();
+        try {
+            this.running.remove(job.key);
+            this.notEmpty.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * The work of a job, which can be replaced until the job starts.
+     */
+    private static final class Work implements Runnable
+    {
+        /** The current work to do. */
+        private volatile Runnable task;
+
+        /**
+         * Simple constructor.
+         *
+         * @param task the initial work to do
+         */
+        Work(Runnable task)
+        {
+            this.task = task;
+        }
+
+        @Override
+        public void run()
+        {
+            this.task.run();
+        }
+    }
+
+    /**
+     * A submitted job.
+     */
+    private static final class Job extends FutureTask<Void>
+    {
+        /** The key of the job. */
+        private final String key;
+
+        /** The work of the job. */
+        private final Work work;
+
+        /** The lane the job is waiting in; guarded by the scheduler lock. */
+        private Lane lane;
+
+        /**
+         * Simple constructor.
+         *
+         * @param key the key of the job
+         * @param work the work of the job
+         * @param lane the lane of the job
+         */
+        Job(String key, Work work, Lane lane)
+        {
+            super(work, null);
+            this.key = key;
+            this.work = work;
+            this.lane = lane;
+        }
+    }
+
+    /**
+     * Takes jobs and runs them, until the scheduler is shut down.
+     */
+    private final class Worker implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try {
+                Job job = take();
+                while (job != null) {
+                    try {
+                        // Cancelled jobs don't run
+                        job.run();
+                    } finally {
+                        finished(job);
+                    }
+                    job = take();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
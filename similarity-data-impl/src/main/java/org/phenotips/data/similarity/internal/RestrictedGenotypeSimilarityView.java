@@ -26,13 +26,10 @@
 import org.phenotips.data.similarity.ExternalToolJobManager;
 import org.phenotips.data.similarity.Genotype;
 import org.phenotips.data.similarity.GenotypeSimilarityView;
+import org.phenotips.data.similarity.PatientSimilarityView;
 import org.phenotips.data.similarity.PatientSimilarityViewFactory;
 import org.phenotips.data.similarity.Variant;
 
-import org.xwiki.cache.Cache;
-import org.xwiki.cache.CacheException;
-import org.xwiki.cache.CacheManager;
-import org.xwiki.cache.config.CacheConfiguration;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.environment.Environment;
@@ -48,6 +45,9 @@
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.bouncycastle.util.Strings;
 import org.slf4j.Logger;
@@ -71,15 +71,19 @@ public class RestrictedGenotypeSimilarityView implements GenotypeSimilarityView
     /** The number of genes to show in the JSON output. */
     private static final int MAX_GENES_SHOWN = 5;
 
+    /** The minimum number of similarity views scored by each parallel task. */
+    private static final int MIN_VIEWS_PER_TASK = 16;
+
+    // TODO: choose a better, less-arbitrary default
+    /** The similarity score of the other carriers whose patient record can't be found. */
+    private static final double MISSING_PATIENT_SIMILARITY = 0.1;
+
     /**
      * Gene damage information from control individuals (number of people with [KO-hom, KO-het, DMG-hom, DMG-het]
      * mutations).
      */
     private static Map<String, int[]> controlDamage;
 
-    /** Cache for storing symmetric pairwise patient similarity scores. */
-    private static Cache<Double> similarityScoreCache;
-
     /** Logging helper object. */
     private final Logger logger = LoggerFactory.getLogger(DefaultPatientSimilarityView.class);
 
@@ -107,12 +111,30 @@ public class RestrictedGenotypeSimilarityView implements GenotypeSimilarityView
     /** Access to the ExomizerJobManager. */
     private ExternalToolJobManager<Genotype> exomizerManager;
 
+    /** The genotyped patients carrying variants in each gene. */
+    private GeneCarrierIndex geneCarriers;
+
+    /** Cache for storing symmetric pairwise patient similarity scores. */
+    private PatientPairScoreCache pairScores;
+
+    /** Cache for storing the gene scores of patient pairs. */
+    private GeneMatchCache geneMatches;
+
+    /** Cache of phenotypic profiles, used for scoring other patients without loading their records. */
+    private PhenotypeProfileCache profileCache;
+
+    /** The worker threads for scoring the similarity of other patients in parallel. */
+    private GenotypeScoringPool scoringPool;
+
     /** The similarity score for all genes. */
     private Map<String, Double> geneScores;
 
     /** The top variants in each patient for all shared genes. */
     private Map<String, Variant[][]> geneVariants;
 
+    /** Whether the components and the genotypes of the two patients have been loaded. */
+    private boolean loaded;
+
     /**
      * Simple constructor passing the {@link #match matched patient}, the {@link #reference reference patient}, and the
      * {@link #access patient access type}.
@@ -131,26 +153,35 @@ public RestrictedGenotypeSimilarityView(Patient match, Patient reference, Access
         this.match = match;
         this.reference = reference;
         this.access = access;
+    }
+
+    /**
+     * Load the needed components and the genotypes of the two patients, the first time they're needed.
+     */
+    private void loadGenotypes()
+    {
+        if (this.loaded) {
+            return;
+        }
+        this.loaded = true;
 
         // Load components
         try {
             ComponentManager componentManager = ComponentManagerRegistry.getContextComponentManager();
-            if (similarityScoreCache == null) {
-                CacheManager cacheManager = componentManager.getInstance(CacheManager.class);
-                similarityScoreCache = cacheManager.createNewLocalCache(new CacheConfiguration());
-            }
-
             this.patientRepo = componentManager.getInstance(PatientRepository.class);
             this.patientViewFactory = componentManager.getInstance(PatientSimilarityViewFactory.class, "restricted");
             this.exomizerManager = componentManager.getInstance(ExternalToolJobManager.class, "exomizer");
+            this.geneCarriers = componentManager.getInstance(GeneCarrierIndex.class);
+            this.pairScores = componentManager.getInstance(PatientPairScoreCache.class);
+            this.geneMatches = componentManager.getInstance(GeneMatchCache.class);
+            this.profileCache = componentManager.getInstance(PhenotypeProfileCache.class);
+            this.scoringPool = componentManager.getInstance(GenotypeScoringPool.class);
         } catch (ComponentLookupException e) {
             this.logger.error("Unable to load component: " + e.toString());
-        } catch (CacheException e) {
-            this.logger.error("Unable to create patient similarity score cache: " + e.toString());
         }
 
-        String matchId = match.getId();
-        String refId = reference.getId();
+        String matchId = this.match.getId();
+        String refId = this.reference.getId();
         if (matchId == null || refId == null || this.exomizerManager == null) {
             // No genotype similarity possible if the patients don't have IDs or no ExomizerManager
             return;
@@ -158,10 +189,38 @@ public RestrictedGenotypeSimilarityView(Patient match, Patient reference, Access
 
         this.matchGenotype = this.exomizerManager.getResult(matchId);
         this.refGenotype = this.exomizerManager.getResult(refId);
-        // Score the gene-wise similarity if both patients have genotypes
-        if (this.matchGenotype != null && this.refGenotype != null) {
-            loadControlData();
-            matchGenes();
+    }
+
+    /**
+     * Score the gene-wise similarity if both patients have genotypes, the first time it's needed. The scores don't
+     * depend on the access level, so they are shared through the {@link GeneMatchCache} by all the views of the same
+     * pair of patients, until a genotype or a carrier's record changes; the top variants are always taken from the
+     * current genotypes.
+     */
+    private void loadGeneMatch()
+    {
+        loadGenotypes();
+        if (this.geneScores != null || this.matchGenotype == null || this.refGenotype == null) {
+            return;
+        }
+
+        String refId = this.reference.getId();
+        String matchId = this.match.getId();
+        long generation = this.geneMatches == null ? 0 : this.geneMatches.getGeneration();
+        Map<String, Double> cached = this.geneMatches == null ? null : this.geneMatches.get(refId, matchId);
+        if (cached != null) {
+            this.geneScores = cached;
+            this.geneVariants = new HashMap<String, Variant[][]>();
+            for (String gene : cached.keySet()) {
+                this.geneVariants.put(gene, getTopVariants(gene));
+            }
+            return;
+        }
+
+        loadControlData();
+        matchGenes();
+        if (this.geneMatches != null) {
+            this.geneMatches.put(refId, matchId, generation, this.geneScores);
         }
     }
 
@@ -213,18 +272,13 @@ private void loadControlData()
      */
     private double getPatientSimilarity(Patient p1, Patient p2)
     {
-        String id1 = p1.getId();
-        String id2 = p2.getId();
-        if (id1.compareTo(id2) > 0) {
-            String temp = id1;
-            id1 = id2;
-            id2 = temp;
-        }
-        String key = id1 + '|' + id2;
-        Double score = similarityScoreCache.get(key);
-        if (score == null) {
+        if (this.pairScores == null) {
+            return this.patientViewFactory.makeSimilarPatient(p1, p2).getScore();
+        }
+        double score = this.pairScores.get(p1.getId(), p2.getId());
+        if (Double.isNaN(score)) {
             score = this.patientViewFactory.makeSimilarPatient(p1, p2).getScore();
-            similarityScoreCache.set(key, score);
+            this.pairScores.put(p1.getId(), p2.getId(), score);
         }
         return score;
     }
@@ -243,8 +297,7 @@ private double getOtherPatientSimilarity(String patientId, Map<String, Double> o
         if (otherSimScore == null) {
             Patient otherPatient = this.patientRepo.getPatientById(patientId);
             if (otherPatient == null) {
-                // TODO: choose a better, less-arbitrary default
-                otherSimScore = 0.1;
+                otherSimScore = MISSING_PATIENT_SIMILARITY;
             } else {
                 otherSimScore =
                     Math.max(getPatientSimilarity(otherPatient, this.match),
@@ -256,22 +309,21 @@ private double getOtherPatientSimilarity(String patientId, Map<String, Double> o
     }
 
     /**
-     * Get the score for a gene, given the score threshold for each inheritance model for the pair of patients.
+     * Get the scores of a gene for each inheritance model before the penalties of the other carriers, given the score
+     * threshold for each inheritance model for the pair of patients.
      * 
-     * @param gene the gene being score
+     * @param gene the gene being scored
      * @param domThresh the dominant inheritance model score threshold
      * @param recThresh the recessive inheritance model score threshold
-     * @param otherGenotypedIds the patient ids of other patients with genotype information, for comparison
-     * @param otherSimScores the cached phenotype scores of other patients
-     * @return the score for the gene, between [0, 1], with 0 corresponding to a poor score
+     * @return the dominant and the recessive scores, or {@code null} if the gene scores too poorly to be kept whatever
+     *         the other carriers
      */
-    private double scoreGene(String gene, double domThresh, double recThresh, Set<String> otherGenotypedIds,
-        Map<String, Double> otherSimScores)
+    private double[] getBaseScores(String gene, double domThresh, double recThresh)
     {
         double geneScore = Math.min(this.refGenotype.getGeneScore(gene), this.matchGenotype.getGeneScore(gene));
         // XXX: heuristic hack
         if (geneScore < 0.01) {
-            return 0.0;
+            return null;
         }
         // Adjust upwards the starting phenotype score to account for exomizer bias (almost all scores are < 0.7)
         geneScore = Math.min(geneScore / 0.7, 1);
@@ -294,37 +346,79 @@ private double scoreGene(String gene, double domThresh, double recThresh, Set<St
 
         // Quit early if things are going poorly
         if (Math.max(domScore, recScore) < 0.001) {
-            return 0.0;
+            return null;
         }
+        return new double[] { domScore, recScore };
+    }
 
-        for (String patientId : otherGenotypedIds) {
-            Genotype otherGt = this.exomizerManager.getResult(patientId);
-            if (otherGt != null && otherGt.getGeneScore(gene) != null) {
-                double otherDomScore = getVariantScore(otherGt.getTopVariant(gene, 0)) + 0.01;
-                double otherRecScore = getVariantScore(otherGt.getTopVariant(gene, 1)) + 0.01;
-                if (otherDomScore >= domThresh || otherRecScore >= recThresh) {
-                    // Adjust gene score if other patient has worse scores in gene, weighted by patient similarity
-                    double otherSimScore = getOtherPatientSimilarity(patientId, otherSimScores);
-                    double penalty = otherSimScore + 0.001;
-
-                    if (otherDomScore >= domThresh) {
-                        domScore *= penalty;
-                    }
-                    if (otherRecScore >= recThresh) {
-                        recScore *= penalty;
-                    }
-                }
+    /**
+     * Get the score for a gene, given the score threshold for each inheritance model for the pair of patients.
+     * 
+     * @param gene the gene being scored
+     * @param domThresh the dominant inheritance model score threshold
+     * @param recThresh the recessive inheritance model score threshold
+     * @param baseScores the scores of the gene before the penalties, as returned by {@link #getBaseScores}
+     * @param carriers the genotyped patients carrying variants in each gene, for comparison
+     * @param otherSimScores the cached phenotype scores of other patients
+     * @return the score for the gene, between [0, 1], with 0 corresponding to a poor score
+     */
+    private double scoreGene(String gene, double domThresh, double recThresh, double[] baseScores,
+        GeneCarrierIndex carriers, Map<String, Double> otherSimScores)
+    {
+        double domScore = baseScores[0];
+        double recScore = baseScores[1];
+
+        // Adjust gene score for each other patient with variants at least as harmful in the gene, weighted by patient
+        // similarity, as in score + 0.01 >= threshold; these carriers are a prefix of the scores sorted for each
+        // inheritance model, and scanning stops once the score is below 0.001
+        GeneScores others = carriers.getScores(gene);
+        int matchOrdinal = carriers.getOrdinal(this.match.getId());
+        int refOrdinal = carriers.getOrdinal(this.reference.getId());
+        int dominant = others.countTopAtLeast(domThresh, 0.01);
+        for (int i = 0; i < dominant && domScore >= 0.001; ++i) {
+            int patient = others.getTopPatient(i);
+            if (patient != matchOrdinal && patient != refOrdinal) {
+                domScore *= getOtherPatientSimilarity(carriers.getPatientId(patient), otherSimScores) + 0.001;
             }
-
-            // Quit early if things are going poorly
-            if (Math.max(domScore, recScore) < 0.001) {
-                return 0.0;
+        }
+        int recessive = others.countSecondAtLeast(recThresh, 0.01);
+        for (int i = 0; i < recessive && recScore >= 0.001; ++i) {
+            int patient = others.getSecondPatient(i);
+            if (patient != matchOrdinal && patient != refOrdinal) {
+                recScore *= getOtherPatientSimilarity(carriers.getPatientId(patient), otherSimScores) + 0.001;
             }
         }
 
+        // A penalty only raises a score for a carrier more than 0.999 similar to the pair, and by 0.1% at most, so
+        // stopping a scan below 0.001 only differs from a full scan in such extreme cases
+        if (Math.max(domScore, recScore) < 0.001) {
+            return 0.0;
+        }
+
         return Math.max(domScore, recScore);
     }
 
+    /**
+     * Get the genotyped patients carrying variants in each gene. The shared {@link GeneCarrierIndex} is used when
+     * available, otherwise the genotypes of all the other patients are indexed for this view.
+     * 
+     * @return the carriers index
+     */
+    private GeneCarrierIndex getGeneCarriers()
+    {
+        if (this.geneCarriers != null) {
+            return this.geneCarriers;
+        }
+        GeneCarrierIndex result = new DefaultGeneCarrierIndex();
+        for (String patientId : this.exomizerManager.getAllCompleted()) {
+            Genotype otherGt = this.exomizerManager.getResult(patientId);
+            if (otherGt != null) {
+                result.put(patientId, otherGt);
+            }
+        }
+        return result;
+    }
+
     /**
      * Score genes with variants in both patients, and sets 'geneScores' and 'geneVariants' fields accordingly.
      */
@@ -333,23 +427,43 @@ private void matchGenes()
         this.geneScores = new HashMap<String, Double>();
         this.geneVariants = new HashMap<String, Variant[][]>();
 
-        // Load genotypes for all other patients
-        Set<String> otherGenotypedIds = new HashSet<String>(this.exomizerManager.getAllCompleted());
-        otherGenotypedIds.remove(this.match.getId());
-        otherGenotypedIds.remove(this.reference.getId());
-        Map<String, Double> otherSimScores = new HashMap<String, Double>();
-
+        // Gather the other carriers that may penalize any of the shared genes, so that they're scored all at once;
+        // genes scoring too poorly before any penalty are left out, as well as the carriers they would never get to
+        GeneCarrierIndex carriers = getGeneCarriers();
+        Map<String, Variant[][]> candidateGenes = new HashMap<String, Variant[][]>();
+        Map<String, double[]> baseScores = new HashMap<String, double[]>();
+        Set<String> otherIds = new HashSet<String>();
         for (String gene : getGenes()) {
             // Set the variant harmfulness threshold at the min of the two patients'
-            Variant[][] topVariants = new Variant[2][2];
-            topVariants[0][0] = this.refGenotype.getTopVariant(gene, 0);
-            topVariants[0][1] = this.refGenotype.getTopVariant(gene, 1);
-            topVariants[1][0] = this.matchGenotype.getTopVariant(gene, 0);
-            topVariants[1][1] = this.matchGenotype.getTopVariant(gene, 1);
-
-            double domThresh = Math.min(getVariantScore(topVariants[0][0]), getVariantScore(topVariants[1][0]));
-            double recThresh = Math.min(getVariantScore(topVariants[0][1]), getVariantScore(topVariants[1][1]));
-            double geneScore = scoreGene(gene, domThresh, recThresh, otherGenotypedIds, otherSimScores);
+            Variant[][] topVariants = getTopVariants(gene);
+            double[] base = getBaseScores(gene, getThreshold(topVariants, 0), getThreshold(topVariants, 1));
+            if (base == null) {
+                continue;
+            }
+            candidateGenes.put(gene, topVariants);
+            baseScores.put(gene, base);
+
+            GeneScores others = carriers.getScores(gene);
+            int dominant = base[0] < 0.001 ? 0 : others.countTopAtLeast(getThreshold(topVariants, 0), 0.01);
+            for (int i = 0; i < dominant; ++i) {
+                otherIds.add(carriers.getPatientId(others.getTopPatient(i)));
+            }
+            int recessive = base[1] < 0.001 ? 0 : others.countSecondAtLeast(getThreshold(topVariants, 1), 0.01);
+            for (int i = 0; i < recessive; ++i) {
+                otherIds.add(carriers.getPatientId(others.getSecondPatient(i)));
+            }
+        }
+        otherIds.remove(this.match.getId());
+        otherIds.remove(this.reference.getId());
+        Map<String, Double> otherSimScores = scoreOtherPatients(otherIds);
+
+        for (Map.Entry<String, Variant[][]> candidate : candidateGenes.entrySet()) {
+            String gene = candidate.getKey();
+            Variant[][] topVariants = candidate.getValue();
+            double domThresh = getThreshold(topVariants, 0);
+            double recThresh = getThreshold(topVariants, 1);
+            double geneScore =
+                scoreGene(gene, domThresh, recThresh, baseScores.get(gene), carriers, otherSimScores);
             // Only show things that would round to 1% relevance.
             if (geneScore < 0.005) {
                 continue;
@@ -359,6 +473,142 @@ private void matchGenes()
         }
     }
 
+    /**
+     * Get the top two variants of each patient in a gene.
+     * 
+     * @param gene the gene
+     * @return the top two variants of the reference, then the top two variants of the match
+     */
+    private Variant[][] getTopVariants(String gene)
+    {
+        Variant[][] topVariants = new Variant[2][2];
+        topVariants[0][0] = this.refGenotype.getTopVariant(gene, 0);
+        topVariants[0][1] = this.refGenotype.getTopVariant(gene, 1);
+        topVariants[1][0] = this.matchGenotype.getTopVariant(gene, 0);
+        topVariants[1][1] = this.matchGenotype.getTopVariant(gene, 1);
+        return topVariants;
+    }
+
+    /**
+     * Get the variant harmfulness threshold of the pair of patients for an inheritance model.
+     * 
+     * @param topVariants the top two variants of the reference and of the match in a gene
+     * @param k {@code 0} for the dominant model, {@code 1} for the recessive model
+     * @return the lowest of the two patients' k-th variant scores
+     */
+    private double getThreshold(Variant[][] topVariants, int k)
+    {
+        return Math.min(getVariantScore(topVariants[0][k]), getVariantScore(topVariants[1][k]));
+    }
+
+    /**
+     * Get the phenotype similarity of a batch of other patients, relative to the pair of patients being matched. Other
+     * patients whose profile is in the {@link PhenotypeProfileCache} are scored on that profile, the others are loaded
+     * and their similarity views are created on the current thread, since access checks depend on the current user.
+     * The profiles and the views are then scored in parallel.
+     * 
+     * @param patientIds the ids of the other patients
+     * @return the similarity score of each other patient, as expected by {@link #getOtherPatientSimilarity}
+     */
+    private Map<String, Double> scoreOtherPatients(Set<String> patientIds)
+    {
+        Map<String, Double> result = new HashMap<String, Double>();
+        Patient[] pair = new Patient[] { this.match, this.reference };
+        PhenotypeProfile[] pairProfiles = getPairProfiles();
+        List<String> scoredIds = new ArrayList<String>(patientIds.size());
+        List<Double> otherScores = new ArrayList<Double>(2 * patientIds.size());
+        List<Integer> positions = new ArrayList<Integer>();
+        List<String[]> pairIds = new ArrayList<String[]>();
+        List<PhenotypeProfile[]> profiles = new ArrayList<PhenotypeProfile[]>();
+        List<PatientSimilarityView> views = new ArrayList<PatientSimilarityView>();
+        for (String patientId : patientIds) {
+            PhenotypeProfile otherProfile = pairProfiles == null ? null : this.profileCache.get(patientId);
+            Patient otherPatient = null;
+            if (otherProfile == null || otherProfile.getIndex() != pairProfiles[0].getIndex()) {
+                // Only load the record when the profile isn't cached
+                otherProfile = null;
+                otherPatient = this.patientRepo.getPatientById(patientId);
+                if (otherPatient == null) {
+                    result.put(patientId, MISSING_PATIENT_SIMILARITY);
+                    continue;
+                }
+            }
+            scoredIds.add(patientId);
+            for (int k = 0; k < pair.length; ++k) {
+                double score = this.pairScores == null ? Double.NaN
+                    : this.pairScores.get(patientId, pair[k].getId());
+                if (Double.isNaN(score)) {
+                    positions.add(otherScores.size());
+                    pairIds.add(new String[] { patientId, pair[k].getId() });
+                    if (otherProfile != null) {
+                        profiles.add(new PhenotypeProfile[] { otherProfile, pairProfiles[k] });
+                        views.add(null);
+                    } else {
+                        profiles.add(null);
+                        views.add(this.patientViewFactory.makeSimilarPatient(otherPatient, pair[k]));
+                    }
+                }
+                otherScores.add(score);
+            }
+        }
+
+        double[] scores = new double[views.size()];
+        int threads = this.scoringPool == null ? 1 : this.scoringPool.getThreads();
+        if (views.size() < 2 * MIN_VIEWS_PER_TASK || threads < 2) {
+            new OtherScoringTask(views, profiles, scores, 0, 1).call();
+        } else {
+            int taskCount = Math.min(threads, views.size() / MIN_VIEWS_PER_TASK);
+            List<OtherScoringTask> tasks = new ArrayList<OtherScoringTask>(taskCount);
+            for (int i = 0; i < taskCount; ++i) {
+                tasks.add(new OtherScoringTask(views, profiles, scores, i, taskCount));
+            }
+            try {
+                for (Future<Void> future : this.scoringPool.invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (InterruptedException ex) {
+                // The missing scores are computed one by one when needed
+                Thread.currentThread().interrupt();
+                return result;
+            } catch (ExecutionException ex) {
+                this.logger.warn("Failed to score other genotyped patients: {}", ex.getCause().getMessage());
+                return result;
+            }
+        }
+        for (int i = 0; i < scores.length; ++i) {
+            if (this.pairScores != null) {
+                this.pairScores.put(pairIds.get(i)[0], pairIds.get(i)[1], scores[i]);
+            }
+            otherScores.set(positions.get(i), scores[i]);
+        }
+
+        for (int i = 0; i < scoredIds.size(); ++i) {
+            result.put(scoredIds.get(i), Math.max(otherScores.get(2 * i), otherScores.get(2 * i + 1)));
+        }
+        return result;
+    }
+
+    /**
+     * Get the cached profiles of the match and of the reference, against which the cached profiles of other patients
+     * can be scored.
+     * 
+     * @return the profiles of the match and of the reference, in this order, or {@code null} if they aren't both
+     *         cached and current
+     */
+    private PhenotypeProfile[] getPairProfiles()
+    {
+        if (this.profileCache == null) {
+            return null;
+        }
+        PhenotypeProfile matchProfile = this.profileCache.get(this.match);
+        PhenotypeProfile refProfile = this.profileCache.get(this.reference);
+        if (!DefaultPatientSimilarityView.isCurrent(matchProfile)
+            || !DefaultPatientSimilarityView.isCurrent(refProfile)) {
+            return null;
+        }
+        return new PhenotypeProfile[] { matchProfile, refProfile };
+    }
+
     /**
      * Get the score of a variant.
      * 
@@ -377,6 +627,7 @@ private double getVariantScore(Variant v)
     @Override
     public Set<String> getGenes()
     {
+        loadGenotypes();
         if (this.refGenotype == null || this.matchGenotype == null) {
             return Collections.emptySet();
         }
@@ -390,6 +641,7 @@ public Set<String> getGenes()
     @Override
     public Double getGeneScore(String gene)
     {
+        loadGenotypes();
         if (this.matchGenotype == null) {
             return null;
         } else {
@@ -400,6 +652,7 @@ public Double getGeneScore(String gene)
     @Override
     public Variant getTopVariant(String gene, int k)
     {
+        loadGenotypes();
         if (this.matchGenotype == null) {
             return null;
         } else {
@@ -410,6 +663,7 @@ public Variant getTopVariant(String gene, int k)
     @Override
     public double getScore()
     {
+        loadGeneMatch();
         if (this.geneScores == null || this.geneScores.isEmpty()) {
             return 0.0;
         } else {
@@ -448,7 +702,11 @@ private JSONArray getVariantsJSON(Variant[] vs, boolean restricted)
     @Override
     public JSONArray toJSON()
     {
-        if (this.refGenotype == null || this.matchGenotype == null || this.access.isPrivateAccess()) {
+        if (this.access.isPrivateAccess()) {
+            return null;
+        }
+        loadGeneMatch();
+        if (this.refGenotype == null || this.matchGenotype == null) {
             return null;
         }
         JSONArray genesJSON = new JSONArray();
@@ -501,4 +759,55 @@ public int compare(Map.Entry<String, Double> e1, Map.Entry<String, Double> e2)
         return genesJSON;
     }
 
+    /**
+     * Scores a strided slice of the similarity views or profile pairs of other patients. Each position of the shared
+     * result array is written by a single task, and the results are only read after the task completed.
+     */
+    private static final class OtherScoringTask implements Callable<Void>
+    {
+        /** The views to score, {@code null} at the positions where profiles are scored instead. */
+        private final List<PatientSimilarityView> views;
+
+        /** The profile pairs to score, {@code null} at the positions where views are scored instead. */
+        private final List<PhenotypeProfile[]> profiles;
+
+        /** Where to store the scores, parallel to the views. */
+        private final double[] scores;
+
+        /** The first position handled by this task. */
+        private final int start;
+
+        /** The distance between two positions handled by this task. */
+        private final int step;
+
+        /**
+         * Simple constructor passing all the data needed by the task.
+         * 
+         * @param views the views to score, {@code null} where profiles are scored instead
+         * @param profiles the profile pairs to score, {@code null} where views are scored instead
+         * @param scores where to store the scores, parallel to the views
+         * @param start the first position handled by this task
+         * @param step the distance between two positions handled by this task
+         */
+        OtherScoringTask(List<PatientSimilarityView> views, List<PhenotypeProfile[]> profiles, double[] scores,
+            int start, int step)
+        {
+            this.views = views;
+            this.profiles = profiles;
+            this.scores = scores;
+            this.start = start;
+            this.step = step;
+        }
+
+        @Override
+        public Void call()
+        {
+            for (int i = this.start; i < this.scores.length; i += this.step) {
+                PhenotypeProfile[] pair = this.profiles.get(i);
+                this.scores[i] = pair == null ? this.views.get(i).getScore()
+                    : DefaultPatientSimilarityView.scoreProfiles(pair[0], pair[1]);
+            }
+            return null;
+        }
+    }
 }
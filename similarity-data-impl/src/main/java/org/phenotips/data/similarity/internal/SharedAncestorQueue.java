@@ -0,0 +1,301 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Incrementally extracts clusters of related terms from two patients: the remaining terms of both patients are
+ * repeatedly grouped under their most informative shared ancestor. For each ancestor, the number of remaining terms
+ * of each patient that fall under it is maintained as terms are removed, so that extracting all the clusters costs
+ * about as much as walking once over the ancestor closures of all the terms.
+ * <p>
+ * Since terms are only ever removed, an ancestor which is no longer shared never becomes shared again. The shared
+ * ancestors are thus sorted only once, by decreasing information content, and the queue only moves forward over them.
+ * </p>
+ *
+ * @version $Id$
+ * @since
+ */
+final class SharedAncestorQueue
+{
+    /** The terms of one of the two patients, along with the ancestor coverage counts. */
+    private final Side match;
+
+    /** The terms of the other patient. */
+    private final Side reference;
+
+    /** The ontology ordinals of the ancestors, indexed by local ancestor number. */
+    private final int[] ordinals;
+
+    /** The local numbers of the initially shared ancestors, best first. */
+    private final int[] order;
+
+    /** The position of the next candidate in {@link #order}. */
+    private int next;
+
+    /**
+     * Set up the queue for the terms of two patients.
+     *
+     * @param index the ontology index, providing the information content of the ancestors
+     * @param matchClosures the sorted ancestor ordinals of each term of the match patient
+     * @param referenceClosures the sorted ancestor ordinals of each term of the reference patient
+     */
+    SharedAncestorQueue(OntologyIndex index, int[][] matchClosures, int[][] referenceClosures)
+    {
+        this.ordinals = collectOrdinals(matchClosures, referenceClosures);
+        this.match = new Side(matchClosures, this.ordinals);
+        this.reference = new Side(referenceClosures, this.ordinals);
+
+        int sharedCount = 0;
+        Integer[] shared = new Integer[this.ordinals.length];
+        for (int i = 0; i < this.ordinals.length; ++i) {
+            if (isShared(i)) {
+                shared[sharedCount++] = i;
+            }
+        }
+        final double[] scores = new double[this.ordinals.length];
+        double maxIC = index.getMaxInformationContent();
+        for (int i = 0; i < this.ordinals.length; ++i) {
+            scores[i] = index.getInformationContent(this.ordinals[i]) / maxIC;
+        }
+        // Ties go to the lowest ordinal; local numbers follow the ordinal order
+        Arrays.sort(shared, 0, sharedCount, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer o1, Integer o2)
+            {
+                int result = Double.compare(scores[o2], scores[o1]);
+                return result != 0 ? result : o1.compareTo(o2);
+            }
+        });
+        this.order = new int[sharedCount];
+        for (int i = 0; i < sharedCount; ++i) {
+            this.order[i] = shared[i];
+        }
+    }
+
+    /**
+     * Get the most informative ancestor shared by the remaining terms of both patients.
+     *
+     * @return the ordinal of the best shared ancestor, or {@link OntologyIndex#NO_TERM} if the remaining terms don't
+     *         share any ancestor
+     */
+    int getBestSharedAncestor()
+    {
+        while (this.next < this.order.length && !isShared(this.order[this.next])) {
+            ++this.next;
+        }
+        return this.next < this.order.length ? this.ordinals[this.order[this.next]] : OntologyIndex.NO_TERM;
+    }
+
+    /**
+     * Remove the remaining terms of the match patient which fall under an ancestor.
+     *
+     * @param ancestor the ordinal of the ancestor
+     * @return the positions of the removed terms in the match closures
+     */
+    int[] popMatchTerms(int ancestor)
+    {
+        return this.match.pop(Arrays.binarySearch(this.ordinals, ancestor));
+    }
+
+    /**
+     * Remove the remaining terms of the reference patient which fall under an ancestor.
+     *
+     * @param ancestor the ordinal of the ancestor
+     * @return the positions of the removed terms in the reference closures
+     */
+    int[] popReferenceTerms(int ancestor)
+    {
+        return this.reference.pop(Arrays.binarySearch(this.ordinals, ancestor));
+    }
+
+    /**
+     * Get the terms of the match patient which weren't removed yet.
+     *
+     * @return the positions of the remaining terms in the match closures
+     */
+    int[] getRemainingMatchTerms()
+    {
+        return this.match.getRemaining();
+    }
+
+    /**
+     * Get the terms of the reference patient which weren't removed yet.
+     *
+     * @return the positions of the remaining terms in the reference closures
+     */
+    int[] getRemainingReferenceTerms()
+    {
+        return this.reference.getRemaining();
+    }
+
+    /**
+     * Check whether an ancestor is shared by the remaining terms of both patients.
+     *
+     * @param local the local number of the ancestor
+     * @return {@code true} if both patients still have terms under that ancestor
+     */
+    private boolean isShared(int local)
+    {
+        return this.match.counts[local] > 0 && this.reference.counts[local] > 0;
+    }
+
+    /**
+     * Collect all the distinct ordinals appearing in the closures.
+     *
+     * @param matchClosures the closures of the match terms
+     * @param referenceClosures the closures of the reference terms
+     * @return the sorted distinct ordinals
+     */
+    private static int[] collectOrdinals(int[][] matchClosures, int[][] referenceClosures)
+    {
+        int total = 0;
+        for (int[] closure : matchClosures) {
+            total += closure.length;
+        }
+        for (int[] closure : referenceClosures) {
+            total += closure.length;
+        }
+        int[] all = new int[total];
+        int pos = 0;
+        for (int[] closure : matchClosures) {
+            System.arraycopy(closure, 0, all, pos, closure.length);
+            pos += closure.length;
+        }
+        for (int[] closure : referenceClosures) {
+            System.arraycopy(closure, 0, all, pos, closure.length);
+            pos += closure.length;
+        }
+        Arrays.sort(all);
+        int size = 0;
+        for (int i = 0; i < all.length; ++i) {
+            if (size == 0 || all[size - 1] != all[i]) {
+                all[size++] = all[i];
+            }
+        }
+        return Arrays.copyOf(all, size);
+    }
+
+    /**
+     * The terms of one patient, with the closures translated to local ancestor numbers, the inverse mapping from
+     * ancestors to the terms under them, and the number of remaining terms under each ancestor.
+     */
+    private static final class Side
+    {
+        /** The local ancestor numbers of each term. */
+        private final int[][] closures;
+
+        /** Start of the terms under each ancestor in {@link #terms}, indexed by local ancestor number. */
+        private final int[] termOffsets;
+
+        /** The positions of the terms under each ancestor. */
+        private final int[] terms;
+
+        /** The number of remaining terms under each ancestor. */
+        private final int[] counts;
+
+        /** Which terms were already removed. */
+        private final boolean[] removed;
+
+        /** The number of remaining terms. */
+        private int remaining;
+
+        /**
+         * Index the terms of one patient.
+         *
+         * @param closures the sorted ancestor ordinals of each term
+         * @param ordinals all the distinct ordinals, used for assigning local ancestor numbers
+         */
+        Side(int[][] closures, int[] ordinals)
+        {
+            this.closures = new int[closures.length][];
+            this.counts = new int[ordinals.length];
+            this.removed = new boolean[closures.length];
+            this.remaining = closures.length;
+            for (int t = 0; t < closures.length; ++t) {
+                int[] local = new int[closures[t].length];
+                for (int i = 0; i < local.length; ++i) {
+                    local[i] = Arrays.binarySearch(ordinals, closures[t][i]);
+                    ++this.counts[local[i]];
+                }
+                this.closures[t] = local;
+            }
+
+            this.termOffsets = new int[ordinals.length + 1];
+            for (int i = 0; i < ordinals.length; ++i) {
+                this.termOffsets[i + 1] = this.termOffsets[i] + this.counts[i];
+            }
+            this.terms = new int[this.termOffsets[ordinals.length]];
+            int[] fill = Arrays.copyOf(this.termOffsets, ordinals.length);
+            for (int t = 0; t < this.closures.length; ++t) {
+                for (int local : this.closures[t]) {
+                    this.terms[fill[local]++] = t;
+                }
+            }
+        }
+
+        /**
+         * Remove the remaining terms under an ancestor, updating the counts of all their ancestors.
+         *
+         * @param local the local number of the ancestor
+         * @return the positions of the removed terms
+         */
+        int[] pop(int local)
+        {
+            if (local < 0) {
+                return new int[0];
+            }
+            int[] result = new int[this.counts[local]];
+            int size = 0;
+            for (int i = this.termOffsets[local]; i < this.termOffsets[local + 1]; ++i) {
+                int t = this.terms[i];
+                if (!this.removed[t]) {
+                    this.removed[t] = true;
+                    --this.remaining;
+                    for (int ancestor : this.closures[t]) {
+                        --this.counts[ancestor];
+                    }
+                    result[size++] = t;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Get the terms which weren't removed yet.
+         *
+         * @return the positions of the remaining terms
+         */
+        int[] getRemaining()
+        {
+            int[] result = new int[this.remaining];
+            int size = 0;
+            for (int t = 0; t < this.removed.length; ++t) {
+                if (!this.removed[t]) {
+                    result[size++] = t;
+                }
+            }
+            return result;
+        }
+    }
+}
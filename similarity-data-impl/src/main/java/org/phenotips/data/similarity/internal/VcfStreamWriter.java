@@ -0,0 +1,249 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+
+import net.sf.json.JSONArray;
+
+/**
+ * Writes MedSavant variant rows to a VCF file for Exomizer, one row at a time, formatting each line directly into a
+ * large heap buffer which is written to the file channel whenever it fills up, without creating a variant object or
+ * a string for each row. All the bytes written after the header can also be fed to a digest, for fingerprinting the
+ * variants while exporting them.
+ *
+ * @version $Id$
+ * @since
+ */
+final class VcfStreamWriter implements Closeable
+{
+    /** The size of the output buffer. */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** The encoding of the file; values are normally plain ASCII. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The fixed columns between the alternate allele and the INFO field: ID, QUAL and FILTER. */
+    private static final byte[] AFTER_ALT = "\t.\tPASS\t".getBytes(UTF8);
+
+    /** The FORMAT column, between the INFO field and the genotype. */
+    private static final byte[] FORMAT = "\tGT\t".getBytes(UTF8);
+
+    /** The prefix of the chromosome names which is dropped. */
+    private static final String CHR_PREFIX = "CHR";
+
+    /** The output stream, closed with the writer. */
+    private final FileOutputStream out;
+
+    /** The channel of the output file. */
+    private final FileChannel channel;
+
+    /**
+     * The output buffer, on the heap: a direct buffer would only be freed by a full collection, one per export, while
+     * the channel copies a heap buffer through its own cached temporary direct buffer anyway.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** The digest fed with the variant lines, or {@code null}. */
+    private final MessageDigest digest;
+
+    /** Where the bytes not yet fed to the digest start in the buffer. */
+    private int digestStart;
+
+    /**
+     * Create the file and write the VCF header.
+     *
+     * @param file the VCF file to write
+     * @param sampleId the identifier of the sample, used as the name of the genotype column
+     * @param digest the digest to feed the variant lines to, or {@code null}
+     * @throws IOException if the file can't be created or written
+     */
+    VcfStreamWriter(File file, String sampleId, MessageDigest digest) throws IOException
+    {
+        this.out = new FileOutputStream(file);
+        this.channel = this.out.getChannel();
+        this.digest = digest;
+        putString("##fileFormat=VCF4.1\n#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\t");
+        putString(sampleId);
+        put((byte) '\n');
+        this.digestStart = this.buffer.position();
+    }
+
+    /**
+     * Write a MedSavant variant row as a VCF line, with the chromosome, position, alleles, INFO and genotype of the
+     * row, no ID or quality, and a passed filter.
+     *
+     * @param row the variant row
+     * @throws IOException if writing to the file fails
+     */
+    void write(JSONArray row) throws IOException
+    {
+        putChrom(row.getString(4));
+        put((byte) '\t');
+        putInt(row.getInt(5));
+        put((byte) '\t');
+        put((byte) '.');
+        put((byte) '\t');
+        putString(row.getString(8));
+        put((byte) '\t');
+        putString(row.getString(9));
+        put(AFTER_ALT);
+        putString(row.getString(15));
+        put(FORMAT);
+        // The genotype is the first field of the sample column
+        String sample = row.getString(14);
+        int end = sample.indexOf(':');
+        putString(end < 0 ? sample : sample.substring(0, end));
+        put((byte) '\n');
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            flush();
+        } finally {
+            this.out.close();
+        }
+    }
+
+    /**
+     * Write a standardized chromosome name: upper case, without a "chr" prefix, and "M" for the mitochondrial
+     * chromosome.
+     *
+     * @param chrom the chromosome name
+     * @throws IOException if writing to the file fails
+     */
+    private void putChrom(String chrom) throws IOException
+    {
+        int start = chrom.regionMatches(true, 0, CHR_PREFIX, 0, CHR_PREFIX.length()) ? CHR_PREFIX.length() : 0;
+        if (chrom.length() - start == 2 && chrom.regionMatches(true, start, "MT", 0, 2)) {
+            put((byte) 'M');
+            return;
+        }
+        for (int i = start; i < chrom.length(); ++i) {
+            char c = Character.toUpperCase(chrom.charAt(i));
+            if (c >= 0x80) {
+                put(chrom.substring(i).toUpperCase().getBytes(UTF8));
+                return;
+            }
+            put((byte) c);
+        }
+    }
+
+    /**
+     * Write a non-negative number in decimal; negative numbers are written through {@link Integer#toString(int)}.
+     *
+     * @param value the number to write
+     * @throws IOException if writing to the file fails
+     */
+    private void putInt(int value) throws IOException
+    {
+        if (value < 0) {
+            putString(Integer.toString(value));
+            return;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    /**
+     * Write a string, byte by byte as long as it's plain ASCII.
+     *
+     * @param value the string to write
+     * @throws IOException if writing to the file fails
+     */
+    private void putString(String value) throws IOException
+    {
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                put(value.substring(i).getBytes(UTF8));
+                return;
+            }
+            put((byte) c);
+        }
+    }
+
+    /**
+     * Write some bytes, in as many chunks as needed.
+     *
+     * @param bytes the bytes to write
+     * @throws IOException if writing to the file fails
+     */
+    private void put(byte[] bytes) throws IOException
+    {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!this.buffer.hasRemaining()) {
+                flush();
+            }
+            int length = Math.min(bytes.length - offset, this.buffer.remaining());
+            this.buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    /**
+     * Write a byte.
+     *
+     * @param b the byte to write
+     * @throws IOException if writing to the file fails
+     */
+    private void put(byte b) throws IOException
+    {
+        if (!this.buffer.hasRemaining()) {
+            flush();
+        }
+        this.buffer.put(b);
+    }
+
+    /**
+     * Feed the new bytes of the buffer to the digest, and write the buffer to the file.
+     *
+     * @throws IOException if writing to the file fails
+     */
+    private void flush() throws IOException
+    {
+        this.buffer.flip();
+        if (this.digest != null && this.buffer.limit() > this.digestStart) {
+            ByteBuffer lines = this.buffer.duplicate();
+            lines.position(this.digestStart);
+            this.digest.update(lines);
+        }
+        while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+        this.digestStart = 0;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.Genotype;
+import org.phenotips.data.similarity.Variant;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DefaultGeneCarrierIndex} implementation.
+ *
+ * @version $Id$
+ */
+public class DefaultGeneCarrierIndexTest
+{
+    /** Carriers are listed by decreasing variant score, separately for the top and the second variants. */
+    @Test
+    public void testScoresAreSortedForEachInheritanceModel()
+    {
+        GeneCarrierIndex index = new DefaultGeneCarrierIndex();
+        index.put("P1", mockGenotype("GENE1", 0.5, 0.4));
+        index.put("P2", mockGenotype("GENE1", 0.9));
+        index.put("P3", mockGenotype("GENE1", 0.7, 0.6));
+
+        GeneScores scores = index.getScores("GENE1");
+        Assert.assertEquals(3, scores.size());
+        Assert.assertEquals("P2", index.getPatientId(scores.getTopPatient(0)));
+        Assert.assertEquals("P3", index.getPatientId(scores.getTopPatient(1)));
+        Assert.assertEquals("P1", index.getPatientId(scores.getTopPatient(2)));
+        Assert.assertEquals(2, scores.countTopAtLeast(0.7));
+        Assert.assertEquals("P3", index.getPatientId(scores.getSecondPatient(0)));
+        Assert.assertEquals("P1", index.getPatientId(scores.getSecondPatient(1)));
+        Assert.assertEquals(0.0, scores.getSecondScore(2), 1e-9);
+        Assert.assertEquals(2, scores.countSecondAtLeast(0.1));
+    }
+
+    /** Updating a patient replaces its previous entries, removing it drops them. */
+    @Test
+    public void testPutReplacesAndRemoveDrops()
+    {
+        GeneCarrierIndex index = new DefaultGeneCarrierIndex();
+        index.put("P1", mockGenotype("GENE1", 0.5));
+        index.put("P2", mockGenotype("GENE1", 0.7));
+        index.put("P1", mockGenotype("GENE2", 0.8));
+
+        Assert.assertEquals(1, index.getScores("GENE1").size());
+        Assert.assertEquals(index.getOrdinal("P2"), index.getScores("GENE1").getTopPatient(0));
+        Assert.assertEquals(index.getOrdinal("P1"), index.getScores("GENE2").getTopPatient(0));
+
+        index.remove("P1");
+        index.remove("P3");
+        Assert.assertSame(GeneScores.EMPTY, index.getScores("GENE2"));
+        Assert.assertEquals(1, index.getScores("GENE1").size());
+        Assert.assertEquals(-1, index.getOrdinal("P3"));
+    }
+
+    /** Carriers put during a bulk load are only visible once it ends, sorted the same way as single updates. */
+    @Test
+    public void testBulkLoad()
+    {
+        GeneCarrierIndex index = new DefaultGeneCarrierIndex();
+        index.put("P1", mockGenotype("GENE1", 0.5, 0.4));
+        index.beginBulkLoad();
+        index.put("P2", mockGenotype("GENE1", 0.9));
+        index.put("P3", mockGenotype("GENE1", 0.7, 0.6));
+        index.put("P4", mockGenotype("GENE1", 0.8));
+        index.remove("P4");
+        index.put("P1", mockGenotype("GENE1", 0.6, 0.4));
+        Assert.assertEquals(0, index.getScores("GENE1").size());
+
+        index.endBulkLoad();
+        GeneScores scores = index.getScores("GENE1");
+        Assert.assertEquals(3, scores.size());
+        Assert.assertEquals("P2", index.getPatientId(scores.getTopPatient(0)));
+        Assert.assertEquals("P3", index.getPatientId(scores.getTopPatient(1)));
+        Assert.assertEquals("P1", index.getPatientId(scores.getTopPatient(2)));
+        Assert.assertEquals("P3", index.getPatientId(scores.getSecondPatient(0)));
+        Assert.assertEquals("P1", index.getPatientId(scores.getSecondPatient(1)));
+
+        // Later updates are visible right away again
+        index.put("P5", mockGenotype("GENE1", 1.0));
+        Assert.assertEquals("P5", index.getPatientId(index.getScores("GENE1").getTopPatient(0)));
+    }
+
+    /** Unknown genes have no carriers. */
+    @Test
+    public void testUnknownGene()
+    {
+        Assert.assertEquals(0, new DefaultGeneCarrierIndex().getScores("GENE1").size());
+    }
+
+    private Genotype mockGenotype(String gene, double... scores)
+    {
+        Genotype genotype = mock(Genotype.class);
+        Map<String, Double> genes = new HashMap<String, Double>();
+        genes.put(gene, scores[0]);
+        when(genotype.getGenes()).thenReturn(genes.keySet());
+        when(genotype.getGeneScore(gene)).thenReturn(scores[0]);
+        for (int i = 0; i < scores.length; ++i) {
+            Variant variant = mock(Variant.class);
+            when(variant.getScore()).thenReturn(scores[i]);
+            when(genotype.getTopVariant(gene, i)).thenReturn(variant);
+        }
+        return genotype;
+    }
+}
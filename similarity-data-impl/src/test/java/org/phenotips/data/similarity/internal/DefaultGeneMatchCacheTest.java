@@ -0,0 +1,113 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the default {@link GeneMatchCache} implementation, {@link DefaultGeneMatchCache}.
+ *
+ * @version $Id$
+ */
+public class DefaultGeneMatchCacheTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<GeneMatchCache> mocker =
+        new MockitoComponentMockingRule<GeneMatchCache>(DefaultGeneMatchCache.class);
+
+    private Cache<Object> cache;
+
+    private Map<String, Double> scores;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setupComponents() throws Exception
+    {
+        this.cache = mock(Cache.class);
+        CacheManager cacheManager = this.mocker.getInstance(CacheManager.class);
+        Mockito.<Cache<Object>>when(cacheManager.createNewLocalCache(Mockito.any(CacheConfiguration.class)))
+            .thenReturn(this.cache);
+
+        this.scores = new HashMap<String, Double>();
+        this.scores.put("SRCAP", 0.5);
+    }
+
+    /** Stored scores are returned for both orders of the pair, and later changes to the stored map are ignored. */
+    @Test
+    public void testPutAndGet() throws Exception
+    {
+        GeneMatchCache matches = this.mocker.getComponentUnderTest();
+        matches.put("P0000002", "P0000001", matches.getGeneration(), this.scores);
+        ArgumentCaptor<Object> entry = ArgumentCaptor.forClass(Object.class);
+        verify(this.cache).set(Mockito.eq("P0000001|P0000002"), entry.capture());
+        when(this.cache.get("P0000001|P0000002")).thenReturn(entry.getValue());
+
+        this.scores.put("TTN", 0.25);
+        Assert.assertEquals(0.5, matches.get("P0000001", "P0000002").get("SRCAP"), 0);
+        Assert.assertEquals(1, matches.get("P0000002", "P0000001").size());
+        Assert.assertNull(matches.get("P0000001", "P0000003"));
+    }
+
+    /** Invalidating moves to a new generation, so that the old entries are no longer returned. */
+    @Test
+    public void testInvalidateAll() throws Exception
+    {
+        GeneMatchCache matches = this.mocker.getComponentUnderTest();
+        long generation = matches.getGeneration();
+        matches.put("P0000001", "P0000002", generation, this.scores);
+        ArgumentCaptor<Object> entry = ArgumentCaptor.forClass(Object.class);
+        verify(this.cache).set(Mockito.eq("P0000001|P0000002"), entry.capture());
+        when(this.cache.get("P0000001|P0000002")).thenReturn(entry.getValue());
+
+        matches.invalidateAll();
+        verify(this.cache).removeAll();
+        Assert.assertTrue(matches.getGeneration() != generation);
+        Assert.assertNull(matches.get("P0000001", "P0000002"));
+    }
+
+    /** Scores computed before an invalidation aren't stored. */
+    @Test
+    public void testStaleScoresAreIgnored() throws Exception
+    {
+        GeneMatchCache matches = this.mocker.getComponentUnderTest();
+        long generation = matches.getGeneration();
+        matches.invalidateAll();
+        matches.put("P0000001", "P0000002", generation, this.scores);
+        verify(this.cache, never()).set(Mockito.anyString(), Mockito.any());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the default {@link GenotypeScoringPool} implementation, {@link DefaultGenotypeScoringPool}.
+ *
+ * @version $Id$
+ */
+public class DefaultGenotypeScoringPoolTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<GenotypeScoringPool> mocker =
+        new MockitoComponentMockingRule<GenotypeScoringPool>(DefaultGenotypeScoringPool.class);
+
+    /** With several threads, tasks run on the worker threads, and stop running once the pool is disposed. */
+    @Test
+    public void testTasksRunOnWorkers() throws Exception
+    {
+        setThreads(2);
+        GenotypeScoringPool pool = this.mocker.getComponentUnderTest();
+        Assert.assertEquals(2, pool.getThreads());
+        List<Future<String>> results = pool.invokeAll(getThreadNameTasks(4));
+        for (Future<String> result : results) {
+            Assert.assertTrue(result.get().startsWith("genotype-similarity-scoring-"));
+        }
+
+        ((DefaultGenotypeScoringPool) pool).dispose();
+        try {
+            pool.invokeAll(getThreadNameTasks(1));
+            Assert.fail("Tasks shouldn't run once the pool is disposed");
+        } catch (RuntimeException ex) {
+            // Expected
+        }
+    }
+
+    /** With a single thread, tasks run on the calling thread. */
+    @Test
+    public void testSingleThreadRunsOnCaller() throws Exception
+    {
+        setThreads(1);
+        GenotypeScoringPool pool = this.mocker.getComponentUnderTest();
+        Assert.assertEquals(1, pool.getThreads());
+        for (Future<String> result : pool.invokeAll(getThreadNameTasks(2))) {
+            Assert.assertEquals(Thread.currentThread().getName(), result.get());
+        }
+    }
+
+    private void setThreads(int threads) throws Exception
+    {
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        when(configuration.getProperty(Mockito.anyString(), Mockito.anyInt())).thenReturn(threads);
+    }
+
+    private List<Callable<String>> getThreadNameTasks(int count)
+    {
+        List<Callable<String>> result = new ArrayList<Callable<String>>(count);
+        for (int i = 0; i < count; ++i) {
+            result.add(new Callable<String>()
+            {
+                @Override
+                public String call()
+                {
+                    return Thread.currentThread().getName();
+                }
+            });
+        }
+        return result;
+    }
+}
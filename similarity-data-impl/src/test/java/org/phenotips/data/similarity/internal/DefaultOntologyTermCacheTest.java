@@ -0,0 +1,141 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.internal.mocks.MockOntologyTerm;
+import org.phenotips.ontology.OntologyManager;
+import org.phenotips.ontology.OntologyService;
+import org.phenotips.ontology.OntologyTerm;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the default {@link OntologyTermCache} implementation, {@link DefaultOntologyTermCache}.
+ *
+ * @version $Id$
+ */
+public class DefaultOntologyTermCacheTest
+{
+    private static final String TERM_ID = "HP:0001382";
+
+    @Rule
+    public final MockitoComponentMockingRule<OntologyTermCache> mocker =
+        new MockitoComponentMockingRule<OntologyTermCache>(DefaultOntologyTermCache.class);
+
+    private Cache<Object> cache;
+
+    private OntologyManager ontologyManager;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setupComponents() throws Exception
+    {
+        this.cache = mock(Cache.class);
+        CacheManager cacheManager = this.mocker.getInstance(CacheManager.class);
+        Mockito.<Cache<Object>>when(cacheManager.createNewLocalCache(Mockito.any(CacheConfiguration.class)))
+            .thenReturn(this.cache);
+
+        this.ontologyManager = this.mocker.getInstance(OntologyManager.class);
+        OntologyService hpo = mock(OntologyService.class);
+        when(this.ontologyManager.getOntology("HPO")).thenReturn(hpo);
+        when(hpo.getVersion()).thenReturn("2014-04-01");
+    }
+
+    /** Resolved terms are cached, and not resolved again. */
+    @Test
+    public void testResolveTermIsCached() throws Exception
+    {
+        OntologyTerm term = new MockOntologyTerm(TERM_ID, null);
+        when(this.ontologyManager.resolveTerm(TERM_ID)).thenReturn(term);
+
+        OntologyTermCache terms = this.mocker.getComponentUnderTest();
+        Assert.assertSame(term, terms.resolveTerm(TERM_ID));
+        ArgumentCaptor<Object> entry = ArgumentCaptor.forClass(Object.class);
+        verify(this.cache).set(Mockito.eq(TERM_ID), entry.capture());
+        when(this.cache.get(TERM_ID)).thenReturn(entry.getValue());
+
+        Assert.assertSame(term, terms.resolveTerm(TERM_ID));
+        verify(this.ontologyManager, times(1)).resolveTerm(TERM_ID);
+    }
+
+    /** Unknown terms are cached as well. */
+    @Test
+    public void testUnknownTermIsCached() throws Exception
+    {
+        OntologyTermCache terms = this.mocker.getComponentUnderTest();
+        Assert.assertNull(terms.resolveTerm(TERM_ID));
+        ArgumentCaptor<Object> entry = ArgumentCaptor.forClass(Object.class);
+        verify(this.cache).set(Mockito.eq(TERM_ID), entry.capture());
+        when(this.cache.get(TERM_ID)).thenReturn(entry.getValue());
+
+        Assert.assertNull(terms.resolveTerm(TERM_ID));
+        verify(this.ontologyManager, times(1)).resolveTerm(TERM_ID);
+    }
+
+    /** The ancestors of cached terms are computed only once for a given index. */
+    @Test
+    public void testAncestorsAreCached() throws Exception
+    {
+        OntologyTerm root = new MockOntologyTerm("HP:0000001", null);
+        OntologyTerm term = new MockOntologyTerm(TERM_ID, Collections.singleton(root));
+        Map<OntologyTerm, Double> termICs = new HashMap<OntologyTerm, Double>();
+        termICs.put(root, 0.0);
+        termICs.put(term, 1.0);
+        OntologyIndex index = OntologyIndex.fromTerms(termICs, termICs);
+        when(this.ontologyManager.resolveTerm(TERM_ID)).thenReturn(term);
+
+        OntologyTermCache terms = this.mocker.getComponentUnderTest();
+        terms.resolveTerm(TERM_ID);
+        ArgumentCaptor<Object> entry = ArgumentCaptor.forClass(Object.class);
+        verify(this.cache).set(Mockito.eq(TERM_ID), entry.capture());
+        when(this.cache.get(TERM_ID)).thenReturn(entry.getValue());
+
+        int[] ancestors = terms.getAncestorsAndSelf(index, term);
+        Assert.assertArrayEquals(new int[] { 0, 1 }, ancestors);
+        Assert.assertSame(ancestors, terms.getAncestorsAndSelf(index, term));
+    }
+
+    /** Clearing the cache removes all the entries. */
+    @Test
+    public void testClear() throws Exception
+    {
+        this.mocker.getComponentUnderTest().clear();
+        verify(this.cache).removeAll();
+    }
+}
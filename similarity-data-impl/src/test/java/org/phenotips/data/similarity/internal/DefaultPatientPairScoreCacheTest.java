@@ -0,0 +1,92 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the default {@link PatientPairScoreCache} implementation, {@link DefaultPatientPairScoreCache}.
+ *
+ * @version $Id$
+ */
+public class DefaultPatientPairScoreCacheTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<PatientPairScoreCache> mocker =
+        new MockitoComponentMockingRule<PatientPairScoreCache>(DefaultPatientPairScoreCache.class);
+
+    @Before
+    public void setupComponents() throws Exception
+    {
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        when(configuration.getProperty(Mockito.anyString(), Mockito.anyInt())).thenReturn(1);
+    }
+
+    /** Scores are symmetric, and unknown pairs are missing. */
+    @Test
+    public void testPutAndGet() throws Exception
+    {
+        PatientPairScoreCache cache = this.mocker.getComponentUnderTest();
+        cache.put("P0000001", "P0000002", 0.5);
+
+        Assert.assertEquals(0.5, cache.get("P0000001", "P0000002"), 0);
+        Assert.assertEquals(0.5, cache.get("P0000002", "P0000001"), 0);
+        Assert.assertTrue(Double.isNaN(cache.get("P0000001", "P0000003")));
+        Assert.assertTrue(Double.isNaN(cache.get("P0000004", "P0000005")));
+    }
+
+    /** Invalidating a patient drops all its pairs, and only them. */
+    @Test
+    public void testInvalidate() throws Exception
+    {
+        PatientPairScoreCache cache = this.mocker.getComponentUnderTest();
+        cache.put("P0000001", "P0000002", 0.5);
+        cache.put("P0000002", "P0000003", 0.25);
+        cache.put("P0000001", "P0000003", 0.75);
+
+        cache.invalidate("P0000002");
+        cache.invalidate("P0000009");
+        Assert.assertTrue(Double.isNaN(cache.get("P0000001", "P0000002")));
+        Assert.assertTrue(Double.isNaN(cache.get("P0000003", "P0000002")));
+        Assert.assertEquals(0.75, cache.get("P0000001", "P0000003"), 0);
+
+        cache.put("P0000002", "P0000001", 0.125);
+        Assert.assertEquals(0.125, cache.get("P0000001", "P0000002"), 0);
+    }
+
+    /** Clearing drops everything. */
+    @Test
+    public void testClear() throws Exception
+    {
+        PatientPairScoreCache cache = this.mocker.getComponentUnderTest();
+        cache.put("P0000001", "P0000002", 0.5);
+        cache.clear();
+        Assert.assertTrue(Double.isNaN(cache.get("P0000001", "P0000002")));
+    }
+}
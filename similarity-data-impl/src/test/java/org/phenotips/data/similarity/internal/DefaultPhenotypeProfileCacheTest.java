@@ -0,0 +1,141 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Feature;
+import org.phenotips.data.Patient;
+import org.phenotips.data.similarity.internal.mocks.MockFeature;
+import org.phenotips.data.similarity.internal.mocks.MockOntologyTerm;
+import org.phenotips.ontology.OntologyTerm;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the default {@link PhenotypeProfileCache} implementation, {@link DefaultPhenotypeProfileCache}.
+ *
+ * @version $Id$
+ */
+public class DefaultPhenotypeProfileCacheTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<PhenotypeProfileCache> mocker =
+        new MockitoComponentMockingRule<PhenotypeProfileCache>(DefaultPhenotypeProfileCache.class);
+
+    private Cache<Object> cache;
+
+    private PhenotypeProfile profile;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setupComponents() throws Exception
+    {
+        this.cache = mock(Cache.class);
+        CacheManager cacheManager = this.mocker.getInstance(CacheManager.class);
+        Mockito.<Cache<Object>>when(cacheManager.createNewLocalCache(Mockito.any(CacheConfiguration.class)))
+            .thenReturn(this.cache);
+
+        OntologyTerm root = new MockOntologyTerm("HP:0000001", null);
+        Map<OntologyTerm, Double> termICs = new HashMap<OntologyTerm, Double>();
+        termICs.put(root, 0.0);
+        this.profile = PhenotypeProfile.build(OntologyIndex.fromTerms(termICs, termICs), Collections.singleton(root));
+    }
+
+    /** A stored profile is returned as long as the patient's features don't change. */
+    @Test
+    public void testPutAndGet() throws Exception
+    {
+        Set<Feature> features = new HashSet<Feature>();
+        features.add(new MockFeature("HP:0001382", "Joint hypermobility", "phenotype", true));
+        Patient patient = mock(Patient.class);
+        when(patient.getId()).thenReturn("P0000001");
+        Mockito.<Set<? extends Feature>>when(patient.getFeatures()).thenReturn(features);
+
+        PhenotypeProfileCache profiles = this.mocker.getComponentUnderTest();
+        profiles.put(patient, this.profile);
+        ArgumentCaptor<Object> entry = ArgumentCaptor.forClass(Object.class);
+        verify(this.cache).set(Mockito.eq("P0000001"), entry.capture());
+        when(this.cache.get("P0000001")).thenReturn(entry.getValue());
+
+        Assert.assertSame(this.profile, profiles.get(patient));
+
+        // Absent features don't change the profile
+        features.add(new MockFeature("HP:0000518", "Cataract", "phenotype", false));
+        Assert.assertSame(this.profile, profiles.get(patient));
+
+        // New present features do
+        features.add(new MockFeature("HP:0012165", "Oligodactyly", "phenotype", true));
+        Assert.assertNull(profiles.get(patient));
+    }
+
+    /** A stored profile can be retrieved by patient identifier, without the patient record. */
+    @Test
+    public void testGetById() throws Exception
+    {
+        Patient patient = mock(Patient.class);
+        when(patient.getId()).thenReturn("P0000001");
+        Mockito.<Set<? extends Feature>>when(patient.getFeatures()).thenReturn(Collections.<Feature>emptySet());
+
+        PhenotypeProfileCache profiles = this.mocker.getComponentUnderTest();
+        Assert.assertNull(profiles.get("P0000001"));
+        profiles.put(patient, this.profile);
+        ArgumentCaptor<Object> entry = ArgumentCaptor.forClass(Object.class);
+        verify(this.cache).set(Mockito.eq("P0000001"), entry.capture());
+        when(this.cache.get("P0000001")).thenReturn(entry.getValue());
+
+        Assert.assertSame(this.profile, profiles.get("P0000001"));
+    }
+
+    /** Nothing is returned for patients without a cached profile. */
+    @Test
+    public void testGetMissing() throws Exception
+    {
+        Patient patient = mock(Patient.class);
+        when(patient.getId()).thenReturn("P0000002");
+        Assert.assertNull(this.mocker.getComponentUnderTest().get(patient));
+    }
+
+    /** Invalidating a patient removes its entry. */
+    @Test
+    public void testInvalidate() throws Exception
+    {
+        this.mocker.getComponentUnderTest().invalidate("P0000001");
+        verify(this.cache).remove("P0000001");
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.Variant;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for parsing Exomizer output into an {@link ExomizerGenotype}.
+ *
+ * @version $Id$
+ */
+public class ExomizerGenotypeTest
+{
+    private static final String CONTENT = "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tP0000001\n"
+        + "chr1\t100\t.\tA\tG\t50\tPASS\tGENE=GENE1;PHENO_SCORE=0.5;VARIANT_SCORE=0.2;EFFECT=MISSENSE\tGT\t0/1\n"
+        + "chr1\t200\t.\tC\tT\t50\tPASS\tGENE=GENE1;PHENO_SCORE=0.6;VARIANT_SCORE=0.9;EFFECT=STOPGAIN\tGT\t1/1\n"
+        + "chrX\t300\t.\tG\tA\t50\tPASS\tGENE=GENE2;PHENO_SCORE=0.1;VARIANT_SCORE=0.4;EFFECT=MISSENSE;X\tGT\t0/1\n";
+
+    private File file;
+
+    private File binary;
+
+    @Before
+    public void createFile() throws IOException
+    {
+        this.file = File.createTempFile("exomizer", ".ezr");
+        this.binary = new File(this.file.getPath() + ".ezb");
+    }
+
+    @After
+    public void deleteFile()
+    {
+        this.file.delete();
+        this.binary.delete();
+    }
+
+    /** Variants are grouped by gene and sorted by decreasing score, homozygous variants counting twice. */
+    @Test
+    public void testVariantsAreSortedByGene() throws IOException
+    {
+        write("##fileformat=VCFv4.1\n"
+            + "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tP0000001\n"
+            + "chr1\t100\t.\tA\tG\t50\tPASS\tGENE=GENE1;PHENO_SCORE=0.5;VARIANT_SCORE=0.2;EFFECT=MISSENSE\tGT\t0/1\n"
+            + "chr1\t200\t.\tC\tT\t50\tPASS\tGENE=GENE1;PHENO_SCORE=0.6;VARIANT_SCORE=0.9;EFFECT=STOPGAIN\tGT\t1/1\n"
+            + "chrMT\t300\t.\tG\tA\t50\tPASS\tGENE=GENE2;PHENO_SCORE=0.1;VARIANT_SCORE=0.4;EFFECT=MISSENSE\tGT\t0/1\n");
+        ExomizerGenotype genotype = new ExomizerGenotype(this.file);
+
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("GENE1", "GENE2")), genotype.getGenes());
+        // The last phenotype score of a gene is kept
+        Assert.assertEquals(0.6, genotype.getGeneScore("GENE1"), 0);
+        Assert.assertNull(genotype.getGeneScore("GENE3"));
+
+        Variant top = genotype.getTopVariant("GENE1", 0);
+        Assert.assertEquals(0.9, top.getScore(), 0);
+        Assert.assertEquals(Integer.valueOf(200), top.getPosition());
+        Assert.assertTrue(top.isHomozygous());
+        Assert.assertEquals("STOPGAIN", top.getEffect());
+        Assert.assertEquals(200, genotype.getTopVariant("GENE1", 1).getPosition().intValue());
+        Assert.assertEquals(100, genotype.getTopVariant("GENE1", 2).getPosition().intValue());
+        Assert.assertNull(genotype.getTopVariant("GENE1", 3));
+        Assert.assertNull(genotype.getTopVariant("GENE3", 0));
+
+        Variant mitochondrial = genotype.getTopVariant("GENE2", 0);
+        Assert.assertEquals("M", mitochondrial.getChrom());
+        Assert.assertEquals("C", genotype.getTopVariant("GENE1", 0).getRef());
+        Assert.assertEquals("T", genotype.getTopVariant("GENE1", 0).getAlt());
+    }
+
+    /** Annotations are read from the raw INFO field on demand, and the line can be written back. */
+    @Test
+    public void testAnnotationsAreParsedOnDemand() throws IOException
+    {
+        String info = "GENE=GENE1;PHENO_SCORE=0.5;VARIANT_SCORE=0.2;EFFECT=MISSENSE;FLAG;EFFECT=SPLICING";
+        write("1\t100\t.\tA\tG\t50\tPASS\t" + info + "\tGT\t0/1\r\n"
+            + "1\t150\t.\tA\tG\t50\tPASS\tPHENO_SCORE=0.5;VARIANT_SCORE=0.2\tGT\t0/1");
+        ExomizerGenotype genotype = new ExomizerGenotype(this.file);
+
+        Variant variant = genotype.getTopVariant("GENE1", 0);
+        Assert.assertEquals("SPLICING", variant.getEffect());
+        Assert.assertEquals("SPLICING", variant.getAnnotation("EFFECT"));
+        Assert.assertEquals("", variant.getAnnotation("FLAG"));
+        Assert.assertEquals("0.5", variant.getAnnotation("PHENO_SCORE"));
+        Assert.assertNull(variant.getAnnotation("GENE1"));
+        Assert.assertEquals("1\t100\t.\tA\tG\t.\tPASS\t" + info + "\tGT\t0/1", variant.toVCFLine());
+        // Variants without a gene are ignored
+        Assert.assertEquals(1, genotype.getGenes().size());
+        Assert.assertNull(genotype.getTopVariant("GENE1", 1));
+    }
+
+    /** A genotype read back from its binary form is the same as the one parsed from the text. */
+    @Test
+    public void testBinaryRoundTrip() throws IOException
+    {
+        write(CONTENT);
+        ExomizerGenotype parsed = new ExomizerGenotype(this.file);
+        parsed.writeBinary(this.binary);
+        ExomizerGenotype read = ExomizerGenotype.readBinary(this.binary, this.file);
+
+        Assert.assertNotNull(read);
+        Assert.assertEquals(parsed.getGenes(), read.getGenes());
+        for (String gene : parsed.getGenes()) {
+            Assert.assertEquals(parsed.getGeneScore(gene), read.getGeneScore(gene));
+            for (int k = 0; k < 3; ++k) {
+                Variant expected = parsed.getTopVariant(gene, k);
+                Variant actual = read.getTopVariant(gene, k);
+                if (expected == null) {
+                    Assert.assertNull(actual);
+                } else {
+                    Assert.assertEquals(expected.toVCFLine(), actual.toVCFLine());
+                    Assert.assertEquals(expected.getScore(), actual.getScore());
+                    Assert.assertEquals(expected.getEffect(), actual.getEffect());
+                }
+            }
+        }
+        Assert.assertEquals("", read.getTopVariant("GENE2", 0).getAnnotation("X"));
+    }
+
+    /** A binary file is not used once the text file it was built from changes. */
+    @Test
+    public void testStaleBinaryIsIgnored() throws IOException
+    {
+        write(CONTENT);
+        new ExomizerGenotype(this.file).writeBinary(this.binary);
+        write(CONTENT + CONTENT);
+
+        Assert.assertNull(ExomizerGenotype.readBinary(this.binary, this.file));
+    }
+
+    /** A rewrite of the text file keeping its size and modification time is detected. */
+    @Test
+    public void testSameSizeRewriteIsDetected() throws IOException
+    {
+        write(CONTENT);
+        long modified = this.file.lastModified();
+        new ExomizerGenotype(this.file).writeBinary(this.binary);
+        write(CONTENT.replace("PHENO_SCORE=0.6", "PHENO_SCORE=0.7"));
+        this.file.setLastModified(modified);
+
+        Assert.assertEquals(CONTENT.length(), this.file.length());
+        Assert.assertNull(ExomizerGenotype.readBinary(this.binary, this.file));
+        Assert.assertEquals(0.7, new ExomizerGenotype(this.file).getGeneScore("GENE1"), 0);
+    }
+
+    /** A damaged binary file is rejected instead of producing wrong variants. */
+    @Test
+    public void testCorruptedBinaryIsIgnored() throws IOException
+    {
+        write(CONTENT);
+        new ExomizerGenotype(this.file).writeBinary(this.binary);
+        RandomAccessFile raf = new RandomAccessFile(this.binary, "rw");
+        try {
+            raf.seek(raf.length() / 2);
+            int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        Assert.assertNull(ExomizerGenotype.readBinary(this.binary, this.file));
+        Assert.assertNull(ExomizerGenotype.readBinary(new File(this.file.getPath() + ".missing"), this.file));
+    }
+
+    private void write(String content) throws IOException
+    {
+        OutputStream out = new FileOutputStream(this.file);
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.internal.ExomizerJobJournal.State;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link ExomizerJobJournal}.
+ *
+ * @version $Id$
+ */
+public class ExomizerJobJournalTest
+{
+    private File file;
+
+    @Before
+    public void createFile() throws IOException
+    {
+        this.file = File.createTempFile("jobs", ".journal");
+        this.file.delete();
+    }
+
+    @After
+    public void deleteFile()
+    {
+        this.file.delete();
+    }
+
+    /** Only the jobs left queued or running are unfinished after reopening. */
+    @Test
+    public void testUnfinishedJobsSurviveReopening() throws IOException
+    {
+        ExomizerJobJournal journal = new ExomizerJobJournal(this.file);
+        journal.open();
+        Assert.assertFalse(journal.isScanned());
+        Assert.assertTrue(journal.getUnfinished().isEmpty());
+        journal.record("P1", State.QUEUED);
+        journal.record("P2", State.QUEUED);
+        journal.record("P3", State.QUEUED);
+        journal.markScanned();
+        journal.record("P1", State.RUNNING);
+        journal.record("P1", State.DONE);
+        journal.record("P2", State.RUNNING);
+        journal.record("P3", State.RUNNING);
+        journal.record("P3", State.FAILED);
+        journal.close();
+
+        journal = new ExomizerJobJournal(this.file);
+        journal.open();
+        Assert.assertTrue(journal.isScanned());
+        Assert.assertEquals(Collections.singleton("P2"), journal.getUnfinished());
+        journal.record("P4", State.QUEUED);
+        journal.close();
+
+        // The compacted journal keeps the scan marker and the unfinished jobs
+        journal = new ExomizerJobJournal(this.file);
+        journal.open();
+        Assert.assertTrue(journal.isScanned());
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("P2", "P4")), journal.getUnfinished());
+        journal.close();
+    }
+
+    /** Every recorded patient is still known after compacting, so that only new patients are checked again. */
+    @Test
+    public void testCheckedPatientsSurviveCompaction() throws IOException
+    {
+        ExomizerJobJournal journal = new ExomizerJobJournal(this.file);
+        journal.open();
+        journal.record("P1", State.NO_VCF);
+        journal.record("P2", State.QUEUED);
+        journal.record("P2", State.DONE);
+        journal.close();
+
+        for (int i = 0; i < 2; ++i) {
+            journal = new ExomizerJobJournal(this.file);
+            journal.open();
+            Assert.assertTrue(journal.contains("P1"));
+            Assert.assertTrue(journal.contains("P2"));
+            Assert.assertFalse(journal.contains("P3"));
+            Assert.assertTrue(journal.getUnfinished().isEmpty());
+            journal.close();
+        }
+    }
+
+    /** A last line cut short and unknown lines are ignored. */
+    @Test
+    public void testDamagedLinesAreSkipped() throws IOException
+    {
+        OutputStream out = new FileOutputStream(this.file);
+        try {
+            out.write("1\tQUEUED\tP1\n2\tUNKNOWN\tP2\ngarbage\n3\tQUEUED\tP3".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        ExomizerJobJournal journal = new ExomizerJobJournal(this.file);
+        journal.open();
+        Assert.assertFalse(journal.isScanned());
+        Assert.assertEquals(Collections.singleton("P1"), journal.getUnfinished());
+        journal.close();
+    }
+}
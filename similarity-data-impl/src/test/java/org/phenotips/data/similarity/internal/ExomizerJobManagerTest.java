@@ -0,0 +1,195 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.components.ComponentManagerRegistry;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.similarity.ExternalToolJobManager;
+import org.phenotips.data.similarity.Genotype;
+import org.phenotips.integration.medsavant.MedSavantServer;
+
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.inject.Provider;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link ExomizerJobManager}, which loads the stored results in the background.
+ *
+ * @version $Id$
+ */
+public class ExomizerJobManagerTest
+{
+    private static final String CONTENT = "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tP0000001\n"
+        + "chr1\t100\t.\tA\tG\t50\tPASS\tGENE=GENE1;PHENO_SCORE=0.5;VARIANT_SCORE=0.2;EFFECT=MISSENSE\tGT\t0/1\n";
+
+    @Rule
+    public final MockitoComponentMockingRule<ExternalToolJobManager<Genotype>> mocker =
+        new MockitoComponentMockingRule<ExternalToolJobManager<Genotype>>(ExomizerJobManager.class);
+
+    private File root;
+
+    private CountDownLatch loaderStarted = new CountDownLatch(1);
+
+    private CountDownLatch releaseLoader = new CountDownLatch(1);
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setupComponents() throws Exception
+    {
+        this.root = File.createTempFile("exomizer", "");
+        this.root.delete();
+        File dataDir = new File(this.root, "exomizer");
+        dataDir.mkdirs();
+        write(new File(dataDir, "P0000001.ezr"));
+        write(new File(dataDir, "P0000002.ezr"));
+
+        Environment environment = this.mocker.getInstance(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(this.root);
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        when(configuration.getProperty(Mockito.anyString(), Mockito.anyInt())).thenAnswer(new Answer<Integer>()
+        {
+            @Override
+            public Integer answer(InvocationOnMock invocation)
+            {
+                return (Integer) invocation.getArguments()[1];
+            }
+        });
+
+        ComponentManager componentManager = mock(ComponentManager.class);
+        Provider<ComponentManager> mockProvider = mock(Provider.class);
+        // This is a bit fragile, let's hope the field name doesn't change
+        ReflectionUtils.setFieldValue(new ComponentManagerRegistry(), "cmProvider", mockProvider);
+        when(mockProvider.get()).thenReturn(componentManager);
+        when(componentManager.getInstance(PatientRepository.class)).thenReturn(mock(PatientRepository.class));
+        QueryManager queryManager = mock(QueryManager.class);
+        when(componentManager.getInstance(QueryManager.class)).thenReturn(queryManager);
+        when(componentManager.getInstance(MedSavantServer.class)).thenThrow(new ComponentLookupException("none"));
+        Query query = mock(Query.class);
+        when(queryManager.createQuery(Mockito.anyString(), Mockito.eq(Query.XWQL))).thenReturn(query);
+        List<Object> documents = Arrays.<Object>asList("data.P0000001", "data.P0000002");
+        when(query.execute()).thenReturn(documents);
+
+        // Hold the background loader before it starts loading anything
+        Logger logger = this.mocker.getMockedLogger();
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                ExomizerJobManagerTest.this.loaderStarted.countDown();
+                ExomizerJobManagerTest.this.releaseLoader.await();
+                return null;
+            }
+        }).when(logger).info(Mockito.eq("Loading {} genotypes with {} threads"), Mockito.any(), Mockito.any());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.releaseLoader.countDown();
+        ((Disposable) this.mocker.getComponentUnderTest()).dispose();
+        for (File file : new File(this.root, "exomizer").listFiles()) {
+            file.delete();
+        }
+        new File(this.root, "exomizer").delete();
+        this.root.delete();
+    }
+
+    /** Stored results can be requested while the loader is still running, and the manager is ready once it's done. */
+    @Test
+    public void testResultsAreAvailableWhileLoading() throws Exception
+    {
+        ExternalToolJobManager<Genotype> manager = this.mocker.getComponentUnderTest();
+        this.loaderStarted.await();
+
+        Assert.assertFalse(manager.isReady());
+        Genotype first = manager.getResult("P0000001");
+        Assert.assertNotNull(first);
+        Assert.assertEquals(0.5, first.getGeneScore("GENE1"), 0);
+        Assert.assertTrue(manager.getAllCompleted().contains("P0000001"));
+        Assert.assertNull(manager.getResult("P0000003"));
+        Assert.assertFalse(manager.isReady());
+
+        this.releaseLoader.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!manager.isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(manager.isReady());
+        Assert.assertNotNull(manager.getResult("P0000002"));
+        Assert.assertSame(first, manager.getResult("P0000001"));
+    }
+
+    /** Each stored genotype changes the carriers of its genes, so the cached gene scores of all pairs are dropped. */
+    @Test
+    public void testStoredResultsInvalidateGeneMatches() throws Exception
+    {
+        ExternalToolJobManager<Genotype> manager = this.mocker.getComponentUnderTest();
+        this.releaseLoader.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!manager.isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        GeneMatchCache geneMatches = this.mocker.getInstance(GeneMatchCache.class);
+        verify(geneMatches, times(2)).invalidateAll();
+
+        manager.putResult("P0000003", manager.getResult("P0000001"));
+        verify(geneMatches, times(3)).invalidateAll();
+    }
+
+    private void write(File file) throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        out.write(CONTENT.getBytes("UTF-8"));
+        out.close();
+    }
+}
@@ -30,7 +30,8 @@
 import net.sf.json.JSONObject;
 
 /**
- * An annotated variant, as outputted by Exomizer.
+ * An annotated variant, as outputted by Exomizer. No longer used by the implementation, it's kept as the reference
+ * for the VCF lines written by {@link VcfStreamWriter}.
  * 
  * @version $Id$
  * @since
@@ -0,0 +1,222 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link ExomizerWorkerPool}, running {@link FakeExomizerWorker} processes.
+ *
+ * @version $Id$
+ */
+public class ExomizerWorkerPoolTest
+{
+    private File vcf;
+
+    private File out;
+
+    private File log;
+
+    private ExomizerWorkerPool pool;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.vcf = File.createTempFile("variants", ".vcf");
+        this.out = File.createTempFile("results", ".ezr");
+        this.log = File.createTempFile("workers", ".log");
+        this.pool = newPool(2, 60000);
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.pool.close();
+        this.vcf.delete();
+        this.out.delete();
+        this.log.delete();
+    }
+
+    /** Requests are run by a worker process, which is reused by the next requests. */
+    @Test
+    public void testWorkerIsReused() throws IOException
+    {
+        this.pool.run("P1", "abc", this.vcf, "HP:0000118,HP:0001250", this.out);
+        String first = read();
+        Assert.assertTrue(first.startsWith("abc|HP:0000118,HP:0001250|"));
+
+        this.pool.run("P2", null, this.vcf, "", this.out);
+        String second = read();
+        Assert.assertTrue(second.startsWith("||"));
+        Assert.assertEquals(jvm(first), jvm(second));
+    }
+
+    /** An error reported by the worker fails the request, but the worker stays available. */
+    @Test
+    public void testErrorReplyKeepsWorker() throws IOException
+    {
+        this.pool.run("P1", "abc", this.vcf, "", this.out);
+        String before = jvm(read());
+        try {
+            this.pool.run("fail", "abc", this.vcf, "", this.out);
+            Assert.fail("The error wasn't reported");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().endsWith("broken"));
+        }
+        this.pool.run("P1", "abc", this.vcf, "", this.out);
+        Assert.assertEquals(before, jvm(read()));
+    }
+
+    /** A crashed worker fails its request, and the next request starts a new worker. */
+    @Test
+    public void testCrashedWorkerIsReplaced() throws IOException
+    {
+        this.pool.run("P1", "abc", this.vcf, "", this.out);
+        String before = jvm(read());
+        try {
+            this.pool.run("crash", "abc", this.vcf, "", this.out);
+            Assert.fail("The crash wasn't reported");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("exited"));
+        }
+        this.pool.run("P1", "abc", this.vcf, "", this.out);
+        Assert.assertFalse(before.equals(jvm(read())));
+    }
+
+    /** A worker taking too long is killed, and the next request starts a new worker. */
+    @Test
+    public void testSlowWorkerTimesOut() throws IOException
+    {
+        this.pool.close();
+        this.pool = newPool(1, 10000);
+        long start = System.currentTimeMillis();
+        try {
+            this.pool.run("hang", "abc", this.vcf, "", this.out);
+            Assert.fail("The timeout wasn't reported");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("timed out"));
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 40000);
+        this.pool.run("P1", "abc", this.vcf, "", this.out);
+        Assert.assertTrue(read().startsWith("abc||"));
+    }
+
+    /** A patient is given back to the worker which last ran it, and which kept its filtered variants. */
+    @Test
+    public void testPatientReturnsToItsWorker() throws Exception
+    {
+        final File slowOut = File.createTempFile("results", ".ezr");
+        final List<Exception> failures = new ArrayList<Exception>();
+        Thread slow = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    ExomizerWorkerPoolTest.this.pool.run("slow", "abc", ExomizerWorkerPoolTest.this.vcf, "", slowOut);
+                } catch (IOException e) {
+                    failures.add(e);
+                }
+            }
+        };
+        try {
+            slow.start();
+            this.pool.run("P1", "abc", this.vcf, "", this.out);
+            String first = jvm(read());
+            slow.join();
+            Assert.assertTrue(failures.isEmpty());
+            String other = jvm(read(slowOut));
+            Assert.assertFalse(first.equals(other));
+
+            // The worker which ran the slow patient was released last, but P1 still goes to its own worker
+            this.pool.run("P1", "abc", this.vcf, "", this.out);
+            Assert.assertEquals(first, jvm(read()));
+            this.pool.run("P2", "abc", this.vcf, "", this.out);
+            Assert.assertEquals(first, jvm(read()));
+        } finally {
+            slowOut.delete();
+        }
+    }
+
+    /** Fields which would break the protocol are rejected. */
+    @Test
+    public void testLineEndsAreRejected() throws IOException
+    {
+        try {
+            this.pool.run("P1", "abc", this.vcf, "HP:0000118\nRUN", this.out);
+            Assert.fail("The invalid request was sent");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Invalid"));
+        }
+    }
+
+    /** A closed pool doesn't start workers anymore. */
+    @Test
+    public void testClosedPoolRejectsRequests() throws IOException
+    {
+        this.pool.close();
+        try {
+            this.pool.run("P1", "abc", this.vcf, "", this.out);
+            Assert.fail("The request was run");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("closed"));
+        }
+    }
+
+    private ExomizerWorkerPool newPool(int size, long timeout)
+    {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+        List<String> command = Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+            FakeExomizerWorker.class.getName());
+        return new ExomizerWorkerPool(size, command, this.log, timeout, 10);
+    }
+
+    private String read() throws IOException
+    {
+        return read(this.out);
+    }
+
+    private static String read(File output) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(output, "r");
+        try {
+            byte[] content = new byte[(int) file.length()];
+            file.readFully(content);
+            return new String(content, "UTF-8");
+        } finally {
+            file.close();
+        }
+    }
+
+    private static String jvm(String output)
+    {
+        return output.substring(output.lastIndexOf('|') + 1);
+    }
+}
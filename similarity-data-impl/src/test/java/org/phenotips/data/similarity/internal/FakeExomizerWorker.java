@@ -0,0 +1,71 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Stand-in for {@link ExomizerWorker} used by {@link ExomizerWorkerPoolTest}, speaking the same protocol without
+ * running Exomizer: the output file gets the fingerprint, the HPO terms and the name of the worker JVM, and some
+ * patient ids make the worker fail, crash or hang.
+ *
+ * @version $Id$
+ */
+public final class FakeExomizerWorker
+{
+    private FakeExomizerWorker()
+    {
+        // Only the main method is used
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        PrintStream replies = new PrintStream(System.out, true, "UTF-8");
+        BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        replies.println(ExomizerWorkerPool.READY);
+        String line;
+        while ((line = requests.readLine()) != null) {
+            String[] fields = line.split("\t", -1);
+            if ("fail".equals(fields[1])) {
+                replies.println(ExomizerWorkerPool.ERROR + "\tbroken");
+            } else if ("crash".equals(fields[1])) {
+                System.exit(3);
+            } else if ("hang".equals(fields[1])) {
+                Thread.sleep(60000);
+            } else {
+                if (fields[1].startsWith("slow")) {
+                    Thread.sleep(2000);
+                }
+                OutputStream out = new FileOutputStream(new File(fields[5]));
+                String name = ManagementFactory.getRuntimeMXBean().getName();
+                out.write((fields[2] + '|' + fields[4] + '|' + name).getBytes("UTF-8"));
+                out.close();
+                replies.println(ExomizerWorkerPool.OK);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link GeneScores} sorted arrays.
+ *
+ * @version $Id$
+ */
+public class GeneScoresTest
+{
+    /** Entries stay sorted by decreasing score, ties going to the lowest ordinal. */
+    @Test
+    public void testInsertKeepsOrder()
+    {
+        GeneScores scores = GeneScores.EMPTY.with(3, 0.5, 0.1).with(1, 0.9, 0.0).with(2, 0.5, 0.3).with(0, 0.2, 0.2);
+
+        Assert.assertEquals(4, scores.size());
+        int[] top = new int[] { 1, 2, 3, 0 };
+        int[] second = new int[] { 2, 0, 3, 1 };
+        for (int i = 0; i < 4; ++i) {
+            Assert.assertEquals(top[i], scores.getTopPatient(i));
+            Assert.assertEquals(second[i], scores.getSecondPatient(i));
+        }
+        Assert.assertEquals(0.9, scores.getTopScore(0), 0);
+        Assert.assertEquals(0.3, scores.getSecondScore(0), 0);
+    }
+
+    /** Adding many carriers at once gives the same order as inserting them one by one. */
+    @Test
+    public void testWithAllMatchesInsert()
+    {
+        GeneScores existing = GeneScores.EMPTY.with(3, 0.5, 0.1);
+        GeneScores bulk = existing.withAll(3, new int[] { 1, 2, 0, 9 }, new double[] { 0.9, 0.5, 0.2, 1.0 },
+            new double[] { 0.0, 0.3, 0.2, 1.0 });
+        GeneScores inserted = existing.with(1, 0.9, 0.0).with(2, 0.5, 0.3).with(0, 0.2, 0.2);
+
+        Assert.assertEquals(inserted.size(), bulk.size());
+        for (int i = 0; i < inserted.size(); ++i) {
+            Assert.assertEquals(inserted.getTopPatient(i), bulk.getTopPatient(i));
+            Assert.assertEquals(inserted.getTopScore(i), bulk.getTopScore(i), 0);
+            Assert.assertEquals(inserted.getSecondPatient(i), bulk.getSecondPatient(i));
+            Assert.assertEquals(inserted.getSecondScore(i), bulk.getSecondScore(i), 0);
+        }
+    }
+
+    /** Counting finds the prefix of scores at or above the threshold. */
+    @Test
+    public void testCountAtLeast()
+    {
+        GeneScores scores = GeneScores.EMPTY.with(0, 0.9, 0.8).with(1, 0.5, 0.5).with(2, 0.5, 0.0).with(3, 0.1, 0.0);
+
+        Assert.assertEquals(0, scores.countTopAtLeast(0.95));
+        Assert.assertEquals(1, scores.countTopAtLeast(0.9));
+        Assert.assertEquals(3, scores.countTopAtLeast(0.5));
+        Assert.assertEquals(4, scores.countTopAtLeast(-0.01));
+        Assert.assertEquals(2, scores.countSecondAtLeast(0.01));
+        Assert.assertEquals(4, scores.countSecondAtLeast(0.0));
+        Assert.assertEquals(0, GeneScores.EMPTY.countTopAtLeast(0.0));
+    }
+
+    /** A margin is added to each score, which doesn't always round like subtracting it from the threshold. */
+    @Test
+    public void testCountAtLeastWithMargin()
+    {
+        GeneScores scores = GeneScores.EMPTY.with(0, 0.5, 0.12).with(1, 0.12, 0.0);
+
+        Assert.assertEquals(2, scores.countTopAtLeast(0.13, 0.01));
+        Assert.assertEquals(1, scores.countTopAtLeast(0.13 - 0.01));
+        Assert.assertEquals(1, scores.countSecondAtLeast(0.13, 0.01));
+        Assert.assertEquals(0, scores.countSecondAtLeast(0.2, 0.01));
+    }
+
+    /** Removing a carrier drops it from both orders, and missing carriers are ignored. */
+    @Test
+    public void testWithout()
+    {
+        GeneScores scores = GeneScores.EMPTY.with(0, 0.9, 0.1).with(1, 0.5, 0.5);
+
+        Assert.assertSame(scores, scores.without(7));
+        GeneScores remaining = scores.without(0);
+        Assert.assertEquals(1, remaining.size());
+        Assert.assertEquals(1, remaining.getTopPatient(0));
+        Assert.assertEquals(1, remaining.getSecondPatient(0));
+        Assert.assertSame(GeneScores.EMPTY, remaining.without(1));
+    }
+}
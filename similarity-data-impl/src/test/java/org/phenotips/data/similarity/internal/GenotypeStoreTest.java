@@ -0,0 +1,145 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.Genotype;
+import org.phenotips.data.similarity.Variant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.sf.json.JSONArray;
+
+/**
+ * Tests for the memory bounded {@link GenotypeStore}.
+ *
+ * @version $Id$
+ */
+public class GenotypeStoreTest
+{
+    /** The patients whose genotypes were loaded back, in order. */
+    private final List<String> loaded = new ArrayList<String>();
+
+    /** Loads back a new genotype each time, recording the patient. */
+    private final GenotypeStore.Loader loader = new GenotypeStore.Loader()
+    {
+        @Override
+        public Genotype load(String patientId, File file) throws IOException
+        {
+            GenotypeStoreTest.this.loaded.add(patientId);
+            return new EmptyGenotype();
+        }
+    };
+
+    /** The least recently used genotypes are dropped when over budget, and loaded back when needed. */
+    @Test
+    public void testLeastRecentlyUsedAreEvicted() throws IOException
+    {
+        GenotypeStore store = new GenotypeStore(2 * GenotypeStore.DEFAULT_GENOTYPE_SIZE, this.loader);
+        Genotype g1 = new EmptyGenotype();
+        Genotype g2 = new EmptyGenotype();
+        Genotype g3 = new EmptyGenotype();
+        store.put("P1", g1, new File("P1"));
+        store.put("P2", g2, new File("P2"));
+        Assert.assertSame(g1, store.get("P1"));
+        store.put("P3", g3, new File("P3"));
+
+        Assert.assertEquals(2, store.getResidentCount());
+        Assert.assertEquals(3, store.getPatientIds().size());
+        Assert.assertTrue(store.contains("P2"));
+        Assert.assertSame(g1, store.get("P1"));
+        Assert.assertSame(g3, store.get("P3"));
+        Assert.assertTrue(this.loaded.isEmpty());
+
+        Genotype reloaded = store.get("P2");
+        Assert.assertNotNull(reloaded);
+        Assert.assertNotSame(g2, reloaded);
+        Assert.assertEquals(Collections.singletonList("P2"), this.loaded);
+        Assert.assertSame(reloaded, store.get("P2"));
+        Assert.assertEquals(2, store.getResidentCount());
+    }
+
+    /** Genotypes without a file are never evicted, and don't count in the budget. */
+    @Test
+    public void testGenotypesWithoutFileAreKept() throws IOException
+    {
+        GenotypeStore store = new GenotypeStore(GenotypeStore.DEFAULT_GENOTYPE_SIZE, this.loader);
+        Genotype pinned = new EmptyGenotype();
+        store.put("P1", pinned, null);
+        store.put("P2", new EmptyGenotype(), new File("P2"));
+        store.put("P3", new EmptyGenotype(), new File("P3"));
+
+        Assert.assertSame(pinned, store.get("P1"));
+        Assert.assertEquals(1, store.getResidentCount());
+        Assert.assertNull(store.get("P4"));
+        Assert.assertFalse(store.contains("P4"));
+    }
+
+    /** A stored genotype isn't replaced by putIfAbsent, but is by put. */
+    @Test
+    public void testPutIfAbsent() throws IOException
+    {
+        GenotypeStore store = new GenotypeStore(GenotypeStore.DEFAULT_GENOTYPE_SIZE, this.loader);
+        Genotype first = new EmptyGenotype();
+        Genotype second = new EmptyGenotype();
+        Assert.assertTrue(store.putIfAbsent("P1", first, new File("P1")));
+        Assert.assertFalse(store.putIfAbsent("P1", second, new File("P1")));
+        Assert.assertSame(first, store.get("P1"));
+
+        store.put("P1", second, new File("P1"));
+        Assert.assertSame(second, store.get("P1"));
+        Assert.assertEquals(1, store.getResidentCount());
+    }
+
+    /** A genotype without variants. */
+    private static final class EmptyGenotype implements Genotype
+    {
+        @Override
+        public Set<String> getGenes()
+        {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Double getGeneScore(String gene)
+        {
+            return null;
+        }
+
+        @Override
+        public Variant getTopVariant(String gene, int k)
+        {
+            return null;
+        }
+
+        @Override
+        public JSONArray toJSON()
+        {
+            return new JSONArray();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Scanner;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import exomizer.Exomizer;
+import jannovar.reference.Chromosome;
+
+/**
+ * Tests for the {@link LocalExomizerRunner}, with fake Exomizer instances writing the phenotypes they prioritized for.
+ *
+ * @version $Id$
+ */
+public class LocalExomizerRunnerTest
+{
+    private File vcf;
+
+    private List<Exomizer> created = new ArrayList<Exomizer>();
+
+    private List<Exomizer> released = new ArrayList<Exomizer>();
+
+    @Before
+    public void createFiles() throws IOException
+    {
+        this.vcf = File.createTempFile("exomizer", ".vcf");
+    }
+
+    @After
+    public void deleteFiles()
+    {
+        this.vcf.delete();
+    }
+
+    /** The first reuse is checked against a full run, and instances are reused without checks afterwards. */
+    @Test
+    public void testReuseIsCheckedOnce() throws Exception
+    {
+        LocalExomizerRunner runner = newRunner(true, 8);
+        Assert.assertEquals("HP:0000001", run(runner, "P0000001", "HP:0000001"));
+        Assert.assertEquals(1, this.created.size());
+
+        Assert.assertEquals("HP:0000002", run(runner, "P0000001", "HP:0000002"));
+        Assert.assertEquals(2, this.created.size());
+        Assert.assertEquals(1, this.released.size());
+
+        Assert.assertEquals("HP:0000003", run(runner, "P0000001", "HP:0000003"));
+        Assert.assertEquals(2, this.created.size());
+    }
+
+    /** If reusing an instance gives a different output, the output of a full run is used, and reuse stops. */
+    @Test
+    public void testStaleReuseIsDisabled() throws Exception
+    {
+        LocalExomizerRunner runner = newRunner(false, 8);
+        Assert.assertEquals("HP:0000001", run(runner, "P0000001", "HP:0000001"));
+        Assert.assertEquals("HP:0000002", run(runner, "P0000001", "HP:0000002"));
+        Assert.assertEquals(2, this.created.size());
+        Assert.assertTrue(this.released.contains(this.created.get(0)));
+
+        Assert.assertEquals("HP:0000003", run(runner, "P0000001", "HP:0000003"));
+        Assert.assertEquals(3, this.created.size());
+        Assert.assertEquals(3, this.released.size());
+    }
+
+    /** Instances dropped from the cache or left in it when closing are released. */
+    @Test
+    public void testDroppedInstancesAreReleased() throws Exception
+    {
+        LocalExomizerRunner runner = newRunner(true, 1);
+        run(runner, "P0000001", "HP:0000001");
+        run(runner, "P0000002", "HP:0000001");
+        Assert.assertEquals(this.created.subList(0, 1), this.released);
+
+        runner.close();
+        Assert.assertEquals(this.created, this.released);
+    }
+
+    /**
+     * Create a runner using fake Exomizer instances.
+     *
+     * @param reentrant whether the instances prioritize again for new phenotypes, or keep the first ones
+     * @param maxFilteredVariants the number of instances kept by the runner
+     * @return the runner
+     */
+    private LocalExomizerRunner newRunner(final boolean reentrant, int maxFilteredVariants)
+    {
+        return new LocalExomizerRunner(new HashMap<Byte, Chromosome>(), maxFilteredVariants)
+        {
+            @Override
+            Exomizer newExomizer()
+            {
+                Exomizer result = newFakeExomizer(reentrant);
+                LocalExomizerRunnerTest.this.created.add(result);
+                return result;
+            }
+
+            @Override
+            void release(Exomizer exomizer)
+            {
+                if (exomizer != null) {
+                    LocalExomizerRunnerTest.this.released.add(exomizer);
+                }
+            }
+        };
+    }
+
+    /**
+     * Create a fake Exomizer instance, writing a meta-information line with its run count and its phenotypes.
+     *
+     * @param reentrant whether the instance prioritizes again for new phenotypes, or keeps the first ones
+     * @return the instance
+     */
+    private Exomizer newFakeExomizer(final boolean reentrant)
+    {
+        final String[] hpoIDs = new String[1];
+        final String[] outFile = new String[1];
+        final int[] runs = new int[1];
+        Exomizer exomizer = mock(Exomizer.class);
+        try {
+            doAnswer(new Answer<Void>()
+            {
+                @Override
+                public Void answer(InvocationOnMock invocation)
+                {
+                    if (reentrant || runs[0] == 0) {
+                        hpoIDs[0] = (String) invocation.getArguments()[0];
+                    }
+                    return null;
+                }
+            }).when(exomizer).setHPOids(Mockito.anyString());
+            doAnswer(new Answer<Void>()
+            {
+                @Override
+                public Void answer(InvocationOnMock invocation)
+                {
+                    outFile[0] = (String) invocation.getArguments()[0];
+                    return null;
+                }
+            }).when(exomizer).setOutfile(Mockito.anyString());
+            doAnswer(new Answer<Void>()
+            {
+                @Override
+                public Void answer(InvocationOnMock invocation) throws IOException
+                {
+                    OutputStream out = new FileOutputStream(outFile[0]);
+                    out.write(("##run=" + ++runs[0] + "\n" + hpoIDs[0] + "\n").getBytes("UTF-8"));
+                    out.close();
+                    return null;
+                }
+            }).when(exomizer).outputVCF();
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+        return exomizer;
+    }
+
+    /**
+     * Run the runner for a patient whose variants don't change.
+     *
+     * @param runner the runner
+     * @param patientId the id of the patient
+     * @param hpoIDs the phenotypes of the patient
+     * @return the results written by the run, without the meta-information lines
+     */
+    private String run(LocalExomizerRunner runner, String patientId, String hpoIDs) throws IOException
+    {
+        File out = File.createTempFile("exomizer", ".ezr");
+        try {
+            runner.run(patientId, "variants", this.vcf, hpoIDs, out);
+            Assert.assertFalse(new File(out.getPath() + ".check").exists());
+            Scanner scanner = new Scanner(out, "UTF-8");
+            scanner.nextLine();
+            String result = scanner.nextLine();
+            scanner.close();
+            return result;
+        } finally {
+            out.delete();
+        }
+    }
+}
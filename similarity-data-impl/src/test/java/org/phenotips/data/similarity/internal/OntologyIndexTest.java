@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.internal.mocks.MockOntologyTerm;
+import org.phenotips.ontology.OntologyTerm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link OntologyIndex} ontology model.
+ *
+ * @version $Id$
+ */
+public class OntologyIndexTest
+{
+    /** Ancestor closures are computed from the parents, following all the paths to the root. */
+    @Test
+    public void testAncestorClosure()
+    {
+        // 0 <- 1 <- 3, 0 <- 2 <- 3, 3 <- 4
+        String[] ids = new String[] { "A", "B", "C", "D", "E" };
+        OntologyIndex index =
+            OntologyIndex.fromParents(ids, new int[] { 0, 0, 1, 2, 4, 5 }, new int[] { 0, 0, 2, 1, 3 });
+
+        Assert.assertEquals(5, index.size());
+        Assert.assertArrayEquals(new int[] { 0 }, index.getAncestorsAndSelf(0));
+        Assert.assertArrayEquals(new int[] { 1, 2 }, index.getParents(3));
+        Assert.assertArrayEquals(new int[] { 0, 1, 2, 3 }, index.getAncestorsAndSelf(3));
+        Assert.assertArrayEquals(new int[] { 0, 1, 2, 3, 4 }, index.getAncestorsAndSelf(4));
+        Assert.assertTrue(index.hasAncestor(4, 1));
+        Assert.assertTrue(index.hasAncestor(4, 4));
+        Assert.assertFalse(index.hasAncestor(1, 2));
+        Assert.assertEquals(3, index.getOrdinal("D"));
+        Assert.assertEquals(OntologyIndex.NO_TERM, index.getOrdinal("F"));
+        Assert.assertFalse(index.hasInformationContent(0));
+        Assert.assertEquals(0.0, index.getInformationContent(0), 0.0);
+    }
+
+    /** Indexing terms includes their ancestors and keeps their information content. */
+    @Test
+    public void testFromTerms()
+    {
+        OntologyTerm root = new MockOntologyTerm("HP:0000001", null);
+        OntologyTerm phenotypes = new MockOntologyTerm("HP:0000118", Collections.singleton(root));
+        OntologyTerm skeletal = new MockOntologyTerm("HP:0000924", Collections.singleton(phenotypes));
+        OntologyTerm nervous = new MockOntologyTerm("HP:0000707", Collections.singleton(phenotypes));
+        Map<OntologyTerm, Double> termICs = new HashMap<OntologyTerm, Double>();
+        Map<OntologyTerm, Double> condICs = new HashMap<OntologyTerm, Double>();
+        termICs.put(skeletal, 2.0);
+        condICs.put(skeletal, 1.5);
+        termICs.put(nervous, 3.0);
+        condICs.put(nervous, 2.5);
+
+        OntologyIndex index = OntologyIndex.fromTerms(termICs, condICs);
+        Assert.assertEquals(4, index.size());
+        int skeletalOrdinal = index.getOrdinal("HP:0000924");
+        Assert.assertEquals(2.0, index.getInformationContent(skeletalOrdinal), 0.0);
+        Assert.assertEquals(1.5, index.getConditionalInformationContent(skeletalOrdinal), 0.0);
+        Assert.assertEquals(3.0, index.getMaxInformationContent(), 0.0);
+        Assert.assertFalse(index.hasInformationContent(index.getOrdinal("HP:0000118")));
+
+        int[] ancestors = index.getAncestorsAndSelf(skeletalOrdinal);
+        Assert.assertEquals(3, ancestors.length);
+        Assert.assertTrue(Arrays.binarySearch(ancestors, index.getOrdinal("HP:0000001")) >= 0);
+        Assert.assertFalse(index.hasAncestor(skeletalOrdinal, index.getOrdinal("HP:0000707")));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the {@link OntologySnapshot} persistence.
+ *
+ * @version $Id$
+ */
+public class OntologySnapshotTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /** A written snapshot is read back identically. */
+    @Test
+    public void testWriteAndRead() throws IOException
+    {
+        String[] ids = new String[] { "HP:0000001", "HP:0000118", "HP:0001382" };
+        OntologyIndex index = OntologyIndex.fromParents(ids, new int[] { 0, 0, 1, 2 }, new int[] { 0, 1 });
+        index = index.withInformationContent(new double[] { Double.NaN, 0.000001, 5.5 },
+            new double[] { 0.0, 0.0, 2.25 });
+
+        File file = new File(this.folder.getRoot(), "snapshots/ontology-ic.bin");
+        new OntologySnapshot("hpo-1", "mim-2", index).write(file);
+
+        OntologySnapshot result = OntologySnapshot.read(file);
+        Assert.assertNotNull(result);
+        Assert.assertTrue(result.isFor("hpo-1", "mim-2"));
+        Assert.assertFalse(result.isFor("hpo-2", "mim-2"));
+        OntologyIndex read = result.getIndex();
+        Assert.assertEquals(3, read.size());
+        for (int i = 0; i < ids.length; ++i) {
+            Assert.assertEquals(ids[i], read.getTermId(i));
+            Assert.assertEquals(index.hasInformationContent(i), read.hasInformationContent(i));
+            Assert.assertEquals(index.getInformationContent(i), read.getInformationContent(i), 0.0);
+            Assert.assertEquals(index.getConditionalInformationContent(i),
+                read.getConditionalInformationContent(i), 0.0);
+            Assert.assertArrayEquals(index.getParents(i), read.getParents(i));
+            Assert.assertArrayEquals(index.getAncestorsAndSelf(i), read.getAncestorsAndSelf(i));
+        }
+        Assert.assertEquals(5.5, read.getMaxInformationContent(), 0.0);
+    }
+
+    /** Missing snapshots are reported as null. */
+    @Test
+    public void testReadMissingFile() throws IOException
+    {
+        Assert.assertNull(OntologySnapshot.read(new File(this.folder.getRoot(), "missing.bin")));
+    }
+
+    /** Files which aren't snapshots are rejected. */
+    @Test(expected = IOException.class)
+    public void testReadInvalidFile() throws IOException
+    {
+        File file = this.folder.newFile("invalid.bin");
+        FileWriter writer = new FileWriter(file);
+        writer.write("Not a snapshot");
+        writer.close();
+        OntologySnapshot.read(file);
+    }
+}
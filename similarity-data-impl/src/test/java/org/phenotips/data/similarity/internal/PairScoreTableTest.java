@@ -0,0 +1,133 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link PairScoreTable} open addressing table.
+ *
+ * @version $Id$
+ */
+public class PairScoreTableTest
+{
+    /** Stored values are returned for the same stamp, and replaced by later puts. */
+    @Test
+    public void testPutAndGet()
+    {
+        PairScoreTable table = new PairScoreTable(10);
+        table.put(1L, 0, 0.5);
+        table.put((3L << 32) | 7, 0, 0.25);
+
+        Assert.assertEquals(0.5, table.get(1L, 0), 0);
+        Assert.assertEquals(0.25, table.get((3L << 32) | 7, 0), 0);
+        Assert.assertTrue(Double.isNaN(table.get(2L, 0)));
+
+        table.put(1L, 0, 0.75);
+        Assert.assertEquals(0.75, table.get(1L, 0), 0);
+        Assert.assertEquals(2, table.size());
+    }
+
+    /** Looking up an entry with a different stamp misses and drops it. */
+    @Test
+    public void testOutdatedStampIsDropped()
+    {
+        PairScoreTable table = new PairScoreTable(10);
+        table.put(1L, 0, 0.5);
+
+        Assert.assertTrue(Double.isNaN(table.get(1L, 1)));
+        Assert.assertEquals(0, table.size());
+        Assert.assertTrue(Double.isNaN(table.get(1L, 0)));
+    }
+
+    /** A full table evicts an entry which wasn't accessed since the last sweep of the clock hand. */
+    @Test
+    public void testEvictionSparesRecentlyUsedEntries()
+    {
+        PairScoreTable table = new PairScoreTable(3);
+        table.put(1L, 0, 0.1);
+        table.put(2L, 0, 0.2);
+        table.put(3L, 0, 0.3);
+        // The first eviction clears all the reference bits, then evicts one of the entries
+        table.put(4L, 0, 0.4);
+        Assert.assertEquals(3, table.size());
+        for (long key = 1; key <= 4; ++key) {
+            table.get(key, 0);
+        }
+        // Only the new entry and the survivors, whose bits were just set again, remain
+        table.put(5L, 0, 0.5);
+        Assert.assertEquals(3, table.size());
+        Assert.assertEquals(0.5, table.get(5L, 0), 0);
+    }
+
+    /** Tables built for a memory budget never allocate more, and still use at least half of it. */
+    @Test
+    public void testMemoryBudgetIsRespected()
+    {
+        long[] budgets = { 25 * 1024, 1 << 20, 3 << 20, (5 << 20) + 1, 32 << 20 };
+        for (long budget : budgets) {
+            PairScoreTable table = PairScoreTable.withMaxMemory(budget);
+            long slots = table.getAllocatedBytes() / PairScoreTable.BYTES_PER_SLOT;
+            Assert.assertTrue(table.getAllocatedBytes() <= budget);
+            Assert.assertTrue(table.getAllocatedBytes() > budget / 2);
+            Assert.assertEquals(slots / 2, table.getMaxEntries());
+        }
+    }
+
+    /** Random operations agree with a map, which exercises deletions in the middle of probe sequences. */
+    @Test
+    public void testAgreesWithMap()
+    {
+        Random random = new Random(42);
+        PairScoreTable table = new PairScoreTable(1000);
+        Map<Long, Double> expected = new HashMap<Long, Double>();
+        for (int i = 0; i < 20000; ++i) {
+            long key = ((long) random.nextInt(40) << 32) | random.nextInt(40);
+            if (random.nextInt(4) == 0) {
+                // Drop the entry through a stamp mismatch
+                table.get(key, 1);
+                expected.remove(key);
+            } else {
+                double value = random.nextDouble();
+                table.put(key, 0, value);
+                expected.put(key, value);
+            }
+            Assert.assertTrue(table.size() <= 1000);
+        }
+        // With 1600 keys and room for 1000 entries, some were evicted; all the others must still be found
+        int found = 0;
+        for (int a = 0; a < 40; ++a) {
+            for (int b = 0; b < 40; ++b) {
+                long key = ((long) a << 32) | b;
+                double value = table.get(key, 0);
+                if (!Double.isNaN(value)) {
+                    Assert.assertEquals(expected.get(key), value, 0);
+                    ++found;
+                }
+            }
+        }
+        Assert.assertEquals(table.size(), found);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.similarity.internal.mocks.MockOntologyTerm;
+import org.phenotips.ontology.OntologyTerm;
+
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link PatientSimilarityCacheInvalidator}.
+ *
+ * @version $Id$
+ */
+public class PatientSimilarityCacheInvalidatorTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<EventListener> mocker =
+        new MockitoComponentMockingRule<EventListener>(PatientSimilarityCacheInvalidator.class);
+
+    /** Changing a genotyped patient drops the gene scores of all the pairs, which it may be penalizing. */
+    @Test
+    public void testCarrierChangeInvalidatesGeneMatches() throws Exception
+    {
+        GeneCarrierIndex carriers = this.mocker.getInstance(GeneCarrierIndex.class);
+        when(carriers.getOrdinal("P0000001")).thenReturn(0);
+
+        this.mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(), getDocument("P0000001"), null);
+
+        verify(this.mocker.<PhenotypeProfileCache>getInstance(PhenotypeProfileCache.class)).invalidate("P0000001");
+        verify(this.mocker.<PatientPairScoreCache>getInstance(PatientPairScoreCache.class)).invalidate("P0000001");
+        verify(this.mocker.<GeneMatchCache>getInstance(GeneMatchCache.class)).invalidateAll();
+    }
+
+    /** Saving a genotyped patient with the same present phenotypes keeps the gene scores. */
+    @Test
+    public void testCarrierChangeWithSamePhenotypesKeepsGeneMatches() throws Exception
+    {
+        GeneCarrierIndex carriers = this.mocker.getInstance(GeneCarrierIndex.class);
+        when(carriers.getOrdinal("P0000001")).thenReturn(0);
+        Patient patient = mock(Patient.class);
+        PatientRepository repository = this.mocker.getInstance(PatientRepository.class);
+        when(repository.getPatientById("P0000001")).thenReturn(patient);
+        PhenotypeProfileCache profiles = this.mocker.getInstance(PhenotypeProfileCache.class);
+        PhenotypeProfile profile = getProfile();
+        when(profiles.get("P0000001")).thenReturn(profile);
+        when(profiles.get(patient)).thenReturn(profile);
+
+        this.mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(), getDocument("P0000001"), null);
+
+        verify(profiles).invalidate("P0000001");
+        verify(this.mocker.<PatientPairScoreCache>getInstance(PatientPairScoreCache.class)).invalidate("P0000001");
+        verify(this.mocker.<GeneMatchCache>getInstance(GeneMatchCache.class), never()).invalidateAll();
+    }
+
+    /** Deleting a genotyped patient drops the gene scores, even if its profile is still cached. */
+    @Test
+    public void testCarrierDeletionInvalidatesGeneMatches() throws Exception
+    {
+        GeneCarrierIndex carriers = this.mocker.getInstance(GeneCarrierIndex.class);
+        when(carriers.getOrdinal("P0000001")).thenReturn(0);
+        PhenotypeProfileCache profiles = this.mocker.getInstance(PhenotypeProfileCache.class);
+        PhenotypeProfile profile = getProfile();
+        when(profiles.get("P0000001")).thenReturn(profile);
+
+        this.mocker.getComponentUnderTest().onEvent(new DocumentDeletedEvent(), getDocument("P0000001"), null);
+
+        verify(this.mocker.<GeneMatchCache>getInstance(GeneMatchCache.class)).invalidateAll();
+    }
+
+    /** Changing a patient without a genotype keeps the gene scores. */
+    @Test
+    public void testOtherChangeKeepsGeneMatches() throws Exception
+    {
+        GeneCarrierIndex carriers = this.mocker.getInstance(GeneCarrierIndex.class);
+        when(carriers.getOrdinal("P0000002")).thenReturn(-1);
+
+        this.mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(), getDocument("P0000002"), null);
+
+        verify(this.mocker.<PatientPairScoreCache>getInstance(PatientPairScoreCache.class)).invalidate("P0000002");
+        verify(this.mocker.<GeneMatchCache>getInstance(GeneMatchCache.class), never()).invalidateAll();
+    }
+
+    private PhenotypeProfile getProfile()
+    {
+        OntologyTerm root = new MockOntologyTerm("HP:0000001", null);
+        Map<OntologyTerm, Double> termICs = new HashMap<OntologyTerm, Double>();
+        termICs.put(root, 0.0);
+        return PhenotypeProfile.build(OntologyIndex.fromTerms(termICs, termICs), Collections.singleton(root));
+    }
+
+    private DocumentModelBridge getDocument(String name)
+    {
+        DocumentModelBridge document = mock(DocumentModelBridge.class);
+        when(document.getDocumentReference()).thenReturn(new DocumentReference("xwiki", "data", name));
+        return document;
+    }
+}
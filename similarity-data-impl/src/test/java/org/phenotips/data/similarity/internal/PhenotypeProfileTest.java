@@ -0,0 +1,119 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.internal.mocks.MockOntologyTerm;
+import org.phenotips.ontology.OntologyTerm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link PhenotypeProfile} bitset profiles.
+ *
+ * @version $Id$
+ */
+public class PhenotypeProfileTest
+{
+    private OntologyIndex index;
+
+    private OntologyTerm skeletal;
+
+    private OntologyTerm joint;
+
+    private OntologyTerm nervous;
+
+    private OntologyTerm unindexed;
+
+    @Before
+    public void setUp()
+    {
+        OntologyTerm root = new MockOntologyTerm("HP:0000001", null);
+        OntologyTerm phenotypes = new MockOntologyTerm("HP:0000118", Collections.singleton(root));
+        this.skeletal = new MockOntologyTerm("HP:0000924", Collections.singleton(phenotypes));
+        this.joint = new MockOntologyTerm("HP:0001367", Collections.singleton(this.skeletal));
+        this.nervous = new MockOntologyTerm("HP:0000707", Collections.singleton(phenotypes));
+        this.unindexed = new MockOntologyTerm("HP:0009999", Collections.singleton(this.nervous));
+
+        Map<OntologyTerm, Double> termICs = new HashMap<OntologyTerm, Double>();
+        Map<OntologyTerm, Double> condICs = new HashMap<OntologyTerm, Double>();
+        termICs.put(phenotypes, 0.0);
+        condICs.put(phenotypes, 0.5);
+        termICs.put(this.skeletal, 2.0);
+        condICs.put(this.skeletal, 1.0);
+        termICs.put(this.joint, 4.0);
+        condICs.put(this.joint, 2.0);
+        termICs.put(this.nervous, 3.0);
+        condICs.put(this.nervous, 4.0);
+        this.index = OntologyIndex.fromTerms(termICs, condICs);
+    }
+
+    /** The cost of a profile sums the conditional information content of the whole closure. */
+    @Test
+    public void testCost()
+    {
+        PhenotypeProfile profile =
+            PhenotypeProfile.build(this.index, Arrays.<OntologyTerm>asList(this.joint, this.nervous));
+        Assert.assertFalse(profile.isEmpty());
+        Assert.assertEquals(5, profile.size());
+        Assert.assertEquals(0.5 + 1.0 + 2.0 + 4.0, profile.getCost(), 1e-12);
+        Assert.assertTrue(profile.contains(this.index.getOrdinal("HP:0000001")));
+        Assert.assertTrue(profile.contains(this.index.getOrdinal("HP:0000924")));
+    }
+
+    /** The shared cost only counts terms present in both profiles, and is symmetric. */
+    @Test
+    public void testSharedCost()
+    {
+        PhenotypeProfile p1 = PhenotypeProfile.build(this.index, Collections.singleton(this.joint));
+        PhenotypeProfile p2 =
+            PhenotypeProfile.build(this.index, Arrays.<OntologyTerm>asList(this.skeletal, this.nervous));
+        Assert.assertEquals(0.5 + 1.0, p1.getSharedCost(p2), 1e-12);
+        Assert.assertEquals(p1.getSharedCost(p2), p2.getSharedCost(p1), 0.0);
+        Assert.assertEquals(p1.getCost(), p1.getSharedCost(p1), 1e-12);
+    }
+
+    /** Terms missing from the index are represented by their indexed ancestors. */
+    @Test
+    public void testUnindexedTerm()
+    {
+        PhenotypeProfile profile = PhenotypeProfile.build(this.index, Collections.singleton(this.unindexed));
+        Assert.assertEquals(3, profile.size());
+        Assert.assertEquals(0.5 + 4.0, profile.getCost(), 1e-12);
+    }
+
+    /** Profiles without terms are empty and share nothing. */
+    @Test
+    public void testEmptyProfile()
+    {
+        PhenotypeProfile empty = PhenotypeProfile.build(this.index, Collections.<OntologyTerm>emptySet());
+        PhenotypeProfile other = PhenotypeProfile.build(this.index, Collections.singleton(this.joint));
+        Assert.assertTrue(empty.isEmpty());
+        Assert.assertEquals(0.0, empty.getCost(), 0.0);
+        Assert.assertEquals(0.0, empty.getSharedCost(other), 0.0);
+        Assert.assertEquals(0.0, other.getSharedCost(empty), 0.0);
+    }
+}
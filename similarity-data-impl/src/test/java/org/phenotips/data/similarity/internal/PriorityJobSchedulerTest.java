@@ -0,0 +1,207 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.data.similarity.internal.PriorityJobScheduler.Lane;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link PriorityJobScheduler}.
+ *
+ * @version $Id$
+ */
+public class PriorityJobSchedulerTest
+{
+    /** The names of the jobs which ran, in order. */
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+    /** Keeps the only worker busy until released. */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private PriorityJobScheduler scheduler;
+
+    @Before
+    public void setUp() throws InterruptedException
+    {
+        this.scheduler = new PriorityJobScheduler(1, 2, "test-job");
+        final CountDownLatch started = new CountDownLatch(1);
+        this.scheduler.submit("blocker", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                started.countDown();
+                try {
+                    PriorityJobSchedulerTest.this.release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, Lane.BULK);
+        started.await();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.release.countDown();
+        this.scheduler.shutdown();
+    }
+
+    /** Interactive jobs run before bulk jobs submitted earlier. */
+    @Test
+    public void testInteractiveJobsRunFirst() throws Exception
+    {
+        this.scheduler.submit("P1", record("bulk1"), Lane.BULK);
+        this.scheduler.submit("P2", record("bulk2"), Lane.BULK);
+        Future<?> last = this.scheduler.submit("P3", record("interactive"), Lane.INTERACTIVE);
+        Future<?> bulk = this.scheduler.submit("P2", record("bulk2"), Lane.BULK);
+
+        this.release.countDown();
+        bulk.get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(last.isDone());
+        Assert.assertEquals(Arrays.asList("interactive", "bulk1", "bulk2"), this.ran);
+    }
+
+    /** A new submission for a waiting key replaces the waiting job, and moves it to the interactive lane. */
+    @Test
+    public void testDuplicatesAreCoalesced() throws Exception
+    {
+        Future<?> first = this.scheduler.submit("P1", record("old"), Lane.BULK);
+        this.scheduler.submit("P2", record("other"), Lane.BULK);
+        Future<?> second = this.scheduler.submit("P1", record("new"), Lane.INTERACTIVE);
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, this.scheduler.getWaitingCount(Lane.INTERACTIVE));
+        Assert.assertEquals(1, this.scheduler.getWaitingCount(Lane.BULK));
+        this.release.countDown();
+        this.scheduler.submit("P3", record("after"), Lane.BULK).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(Arrays.asList("new", "other", "after"), this.ran);
+    }
+
+    /** Bulk submissions wait while the bulk lane is full, interactive ones don't. */
+    @Test
+    public void testBulkLaneIsBounded() throws Exception
+    {
+        this.scheduler.submit("P1", record("bulk1"), Lane.BULK);
+        this.scheduler.submit("P2", record("bulk2"), Lane.BULK);
+        Thread submitter = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    PriorityJobSchedulerTest.this.scheduler.submit("P3", record("bulk3"), Lane.BULK);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        submitter.start();
+        submitter.join(200);
+        Assert.assertTrue(submitter.isAlive());
+        this.scheduler.submit("P4", record("interactive"), Lane.INTERACTIVE);
+
+        this.release.countDown();
+        submitter.join(10000);
+        Assert.assertFalse(submitter.isAlive());
+    }
+
+    /** A job submitted while another job with the same key is running waits for it, even with an idle worker. */
+    @Test
+    public void testSameKeyNeverRunsConcurrently() throws Exception
+    {
+        PriorityJobScheduler twoWorkers = new PriorityJobScheduler(2, 2, "test-key");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final AtomicBoolean firstRunning = new AtomicBoolean(true);
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        try {
+            Future<?> first = twoWorkers.submit("P1", new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    started.countDown();
+                    try {
+                        finish.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    firstRunning.set(false);
+                }
+            }, Lane.BULK);
+            started.await();
+            Future<?> second = twoWorkers.submit("P1", new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    overlapped.set(firstRunning.get());
+                }
+            }, Lane.INTERACTIVE);
+            Assert.assertNotSame(first, second);
+
+            // Other keys still run on the idle worker
+            twoWorkers.submit("P2", record("other"), Lane.BULK).get(10, TimeUnit.SECONDS);
+            try {
+                second.get(200, TimeUnit.MILLISECONDS);
+                Assert.fail("The second job ran while the first one was running");
+            } catch (TimeoutException ex) {
+                // Expected
+            }
+            Assert.assertEquals(1, twoWorkers.getWaitingCount(Lane.INTERACTIVE));
+
+            finish.countDown();
+            second.get(10, TimeUnit.SECONDS);
+            Assert.assertTrue(first.isDone());
+            Assert.assertFalse(overlapped.get());
+        } finally {
+            finish.countDown();
+            twoWorkers.shutdown();
+        }
+    }
+
+    private Runnable record(final String name)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                PriorityJobSchedulerTest.this.ran.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.phenotips.components.ComponentManagerRegistry;
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.similarity.AccessType;
+import org.phenotips.data.similarity.ExternalToolJobManager;
+import org.phenotips.data.similarity.Genotype;
+import org.phenotips.data.similarity.PatientSimilarityView;
+import org.phenotips.data.similarity.PatientSimilarityViewFactory;
+import org.phenotips.data.similarity.Variant;
+import org.phenotips.data.similarity.internal.mocks.MockOntologyTerm;
+import org.phenotips.ontology.OntologyManager;
+import org.phenotips.ontology.OntologyTerm;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Provider;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link RestrictedGenotypeSimilarityView}.
+ *
+ * @version $Id$
+ */
+public class RestrictedGenotypeSimilarityViewTest
+{
+    /** The gene shared by all the test patients. */
+    private static final String GENE = "SRCAP";
+
+    /** The score of the gene for the reference and the match, once penalized by the other carrier. */
+    private static final double PAIR_SCORE = 0.9 * (0.4 + 0.001);
+
+    /** The number of additional carriers, enough for their similarity to be scored in parallel on several cores. */
+    private static final int MORE_CARRIERS = 16;
+
+    /** The score of the pair once also penalized by the additional carriers, and by a carrier without a record. */
+    private static final double CROWDED_PAIR_SCORE = PAIR_SCORE * Math.pow(0.9 + 0.001, MORE_CARRIERS) * (0.1 + 0.001);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private PatientRepository patients;
+
+    private PatientSimilarityViewFactory viewFactory;
+
+    private ExternalToolJobManager<Genotype> exomizer;
+
+    private GeneCarrierIndex carriers;
+
+    private GeneMatchCache geneMatches;
+
+    private PhenotypeProfileCache profiles;
+
+    private DefaultGenotypeScoringPool scoringPool;
+
+    private AccessType access;
+
+    private Patient reference;
+
+    private Patient match;
+
+    private Patient other;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setupComponents() throws Exception
+    {
+        ComponentManager componentManager = mock(ComponentManager.class);
+        Provider<ComponentManager> mockProvider = mock(Provider.class);
+        // This is a bit fragile, let's hope the field name doesn't change
+        ReflectionUtils.setFieldValue(new ComponentManagerRegistry(), "cmProvider", mockProvider);
+        when(mockProvider.get()).thenReturn(componentManager);
+
+        this.patients = mock(PatientRepository.class);
+        when(componentManager.getInstance(PatientRepository.class)).thenReturn(this.patients);
+        this.viewFactory = mock(PatientSimilarityViewFactory.class);
+        when(componentManager.getInstance(PatientSimilarityViewFactory.class, "restricted"))
+            .thenReturn(this.viewFactory);
+        this.exomizer = mock(ExternalToolJobManager.class);
+        when(componentManager.getInstance(ExternalToolJobManager.class, "exomizer")).thenReturn(this.exomizer);
+        this.carriers = new DefaultGeneCarrierIndex();
+        when(componentManager.getInstance(GeneCarrierIndex.class)).thenReturn(this.carriers);
+        this.geneMatches = Mockito.spy(newGeneMatchCache());
+        when(componentManager.getInstance(GeneMatchCache.class)).thenReturn(this.geneMatches);
+        this.profiles = mock(PhenotypeProfileCache.class);
+        when(componentManager.getInstance(PhenotypeProfileCache.class)).thenReturn(this.profiles);
+        this.scoringPool = newScoringPool();
+        when(componentManager.getInstance(GenotypeScoringPool.class)).thenReturn(this.scoringPool);
+        Environment environment = mock(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(this.folder.getRoot());
+        when(componentManager.getInstance(Environment.class)).thenReturn(environment);
+
+        this.access = mock(AccessType.class);
+        when(this.access.isOpenAccess()).thenReturn(true);
+
+        this.reference = addPatient("P0000001", 0.9);
+        this.match = addPatient("P0000002", 0.9);
+        this.other = addPatient("P0000003", 0.95);
+        setSimilarity(this.other, this.match, 0.4);
+        setSimilarity(this.other, this.reference, 0.2);
+    }
+
+    @After
+    public void stopScoringPool() throws Exception
+    {
+        this.scoringPool.dispose();
+    }
+
+    /** The genes are matched the first time the score is needed, and only once per view. */
+    @Test
+    public void testScoresAreComputedLazily() throws Exception
+    {
+        RestrictedGenotypeSimilarityView view =
+            new RestrictedGenotypeSimilarityView(this.match, this.reference, this.access);
+        Assert.assertEquals(Collections.singleton(GENE), view.getGenes());
+        verify(this.viewFactory, never()).makeSimilarPatient(Mockito.any(Patient.class), Mockito.any(Patient.class));
+        Assert.assertNull(this.geneMatches.get("P0000001", "P0000002"));
+
+        Assert.assertEquals(PAIR_SCORE, view.getScore(), 1.0E-9);
+        Assert.assertEquals(PAIR_SCORE, this.geneMatches.get("P0000001", "P0000002").get(GENE), 1.0E-9);
+        Assert.assertEquals(PAIR_SCORE, view.getScore(), 1.0E-9);
+        verify(this.viewFactory, times(1)).makeSimilarPatient(this.other, this.match);
+    }
+
+    /** The scores of a pair are reused by the other views of the pair, whatever the order of the patients. */
+    @Test
+    public void testCachedScoresAreReused() throws Exception
+    {
+        Assert.assertEquals(PAIR_SCORE,
+            new RestrictedGenotypeSimilarityView(this.match, this.reference, this.access).getScore(), 1.0E-9);
+        Assert.assertEquals(PAIR_SCORE,
+            new RestrictedGenotypeSimilarityView(this.reference, this.match, this.access).getScore(), 1.0E-9);
+        verify(this.viewFactory, times(1)).makeSimilarPatient(this.other, this.match);
+        verify(this.viewFactory, times(1)).makeSimilarPatient(this.other, this.reference);
+    }
+
+    /** The scores depend on the other carriers, so they are recomputed once the cache is invalidated. */
+    @Test
+    public void testInvalidatedScoresAreRecomputed() throws Exception
+    {
+        new RestrictedGenotypeSimilarityView(this.match, this.reference, this.access).getScore();
+        setSimilarity(this.other, this.match, 0.6);
+        Assert.assertEquals(PAIR_SCORE,
+            new RestrictedGenotypeSimilarityView(this.match, this.reference, this.access).getScore(), 1.0E-9);
+
+        this.geneMatches.invalidateAll();
+        Assert.assertEquals(0.9 * (0.6 + 0.001),
+            new RestrictedGenotypeSimilarityView(this.match, this.reference, this.access).getScore(), 1.0E-9);
+    }
+
+    /** Scoring all the other carriers at once gives the same score as scoring them one by one, each only once. */
+    @Test
+    public void testBatchScoresMatchOneByOne() throws Exception
+    {
+        for (Patient carrier : addCarriers()) {
+            setSimilarity(carrier, this.match, 0.9);
+        }
+        Assert.assertEquals(CROWDED_PAIR_SCORE,
+            new RestrictedGenotypeSimilarityView(this.match, this.reference, this.access).getScore(), 1.0E-9);
+        verify(this.viewFactory, times(1)).makeSimilarPatient(this.other, this.match);
+        verify(this.viewFactory, times(1)).makeSimilarPatient(this.other, this.reference);
+    }
+
+    /** Other carriers with a cached profile are scored on that profile, without loading their record. */
+    @Test
+    public void testCachedProfilesAreScoredWithoutRecords() throws Exception
+    {
+        OntologyTerm root = new MockOntologyTerm("HP:0000001", null);
+        OntologyTerm phenotypes = new MockOntologyTerm("HP:0000118", Collections.singleton(root));
+        OntologyTerm skeletal = new MockOntologyTerm("HP:0000924", Collections.singleton(phenotypes));
+        OntologyTerm joint = new MockOntologyTerm("HP:0001367", Collections.singleton(skeletal));
+        OntologyTerm nervous = new MockOntologyTerm("HP:0000707", Collections.singleton(phenotypes));
+        Map<OntologyTerm, Double> termICs = new HashMap<OntologyTerm, Double>();
+        Map<OntologyTerm, Double> condICs = new HashMap<OntologyTerm, Double>();
+        termICs.put(phenotypes, 0.0);
+        condICs.put(phenotypes, 0.5);
+        termICs.put(skeletal, 2.0);
+        condICs.put(skeletal, 1.0);
+        termICs.put(joint, 4.0);
+        condICs.put(joint, 2.0);
+        termICs.put(nervous, 3.0);
+        condICs.put(nervous, 4.0);
+        OntologyIndex index = OntologyIndex.fromTerms(termICs, condICs);
+        DefaultPatientSimilarityView.initializeStaticData(index, mock(OntologyManager.class), mock(Logger.class));
+
+        PhenotypeProfile matchProfile = PhenotypeProfile.build(index, Collections.singleton(joint));
+        PhenotypeProfile refProfile = PhenotypeProfile.build(index, Collections.singleton(nervous));
+        PhenotypeProfile otherProfile = PhenotypeProfile.build(index, Collections.singleton(skeletal));
+        when(this.profiles.get(this.match)).thenReturn(matchProfile);
+        when(this.profiles.get(this.reference)).thenReturn(refProfile);
+        when(this.profiles.get("P0000003")).thenReturn(otherProfile);
+
+        double otherScore = Math.max(DefaultPatientSimilarityView.scoreProfiles(otherProfile, matchProfile),
+            DefaultPatientSimilarityView.scoreProfiles(otherProfile, refProfile));
+        Assert.assertTrue(otherScore > 0);
+        Assert.assertEquals(0.9 * (otherScore + 0.001),
+            new RestrictedGenotypeSimilarityView(this.match, this.reference, this.access).getScore(), 1.0E-9);
+        verify(this.patients, never()).getPatientById("P0000003");
+        verify(this.viewFactory, never()).makeSimilarPatient(Mockito.eq(this.other), Mockito.any(Patient.class));
+    }
+
+    /** The carriers of genes too often damaged in controls to get a score aren't loaded nor scored. */
+    @Test
+    public void testCarriersOfHopelessGenesAreNotScored() throws Exception
+    {
+        RestrictedGenotypeSimilarityView view =
+            new RestrictedGenotypeSimilarityView(this.match, this.reference, this.access);
+        Map<String, int[]> controlDamage = new HashMap<String, int[]>();
+        controlDamage.put(GENE, new int[] { 1000, 1000, 1000, 1000 });
+        ReflectionUtils.setFieldValue(view, "controlDamage", controlDamage);
+        try {
+            Assert.assertEquals(0, view.getScore(), 0);
+        } finally {
+            ReflectionUtils.setFieldValue(view, "controlDamage", null);
+        }
+        verify(this.patients, never()).getPatientById("P0000003");
+        verify(this.viewFactory, never()).makeSimilarPatient(Mockito.eq(this.other), Mockito.any(Patient.class));
+    }
+
+    /** If scoring the other carriers in parallel fails, they are scored one by one instead. */
+    @Test
+    public void testFailedBatchFallsBackToOneByOne() throws Exception
+    {
+        Assume.assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+        List<Patient> carriers = addCarriers();
+        Patient failing = carriers.get(0);
+        for (Patient carrier : carriers.subList(1, MORE_CARRIERS)) {
+            setSimilarity(carrier, this.match, 0.9);
+        }
+        PatientSimilarityView view = mock(PatientSimilarityView.class);
+        when(view.getScore()).thenThrow(new IllegalStateException("Profile not ready")).thenReturn(0.9);
+        when(this.viewFactory.makeSimilarPatient(failing, this.match)).thenReturn(view);
+
+        Assert.assertEquals(CROWDED_PAIR_SCORE,
+            new RestrictedGenotypeSimilarityView(this.match, this.reference, this.access).getScore(), 1.0E-9);
+        verify(this.viewFactory, times(2)).makeSimilarPatient(failing, this.match);
+    }
+
+    /** If interrupted while scoring the other carriers in parallel, they are scored one by one instead. */
+    @Test
+    public void testInterruptedBatchFallsBackToOneByOne() throws Exception
+    {
+        Assume.assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+        List<Patient> carriers = addCarriers();
+        Patient blocking = carriers.get(0);
+        for (Patient carrier : carriers.subList(1, MORE_CARRIERS)) {
+            setSimilarity(carrier, this.match, 0.9);
+        }
+        final CountDownLatch scoring = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        PatientSimilarityView view = mock(PatientSimilarityView.class);
+        when(view.getScore()).thenAnswer(new Answer<Double>()
+        {
+            private final AtomicBoolean first = new AtomicBoolean(true);
+
+            @Override
+            public Double answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                if (this.first.getAndSet(false)) {
+                    scoring.countDown();
+                    release.await();
+                }
+                return 0.9;
+            }
+        });
+        when(this.viewFactory.makeSimilarPatient(blocking, this.match)).thenReturn(view);
+
+        final Thread scorer = Thread.currentThread();
+        Thread interrupter = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    scoring.await();
+                    scorer.interrupt();
+                } catch (InterruptedException ex) {
+                    // Nothing to interrupt then
+                }
+            }
+        });
+        interrupter.start();
+        try {
+            Assert.assertEquals(CROWDED_PAIR_SCORE,
+                new RestrictedGenotypeSimilarityView(this.match, this.reference, this.access).getScore(), 1.0E-9);
+            Assert.assertTrue(Thread.interrupted());
+        } finally {
+            release.countDown();
+            interrupter.join();
+            Thread.interrupted();
+        }
+        verify(this.viewFactory, times(2)).makeSimilarPatient(blocking, this.match);
+    }
+
+    /**
+     * Cached pairs only keep the scores of the genes, not the genotypes, which can be dropped by the exomizer manager,
+     * and the scores are still reused after the genotype is loaded back.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCachedScoresDontKeepGenotypes() throws Exception
+    {
+        final Map<String, Genotype> stored = new HashMap<String, Genotype>();
+        when(this.exomizer.getResult("P0000002")).thenAnswer(new Answer<Genotype>()
+        {
+            @Override
+            public Genotype answer(InvocationOnMock invocation)
+            {
+                return stored.get(invocation.getArguments()[0]);
+            }
+        });
+        File results = this.folder.newFile("P0000002.ezr");
+        OutputStream out = new FileOutputStream(results);
+        out.write(("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tP0000002\n"
+            + "chr1\t100\t.\tA\tG\t50\tPASS\tGENE=" + GENE + ";PHENO_SCORE=0.7;VARIANT_SCORE=0.9;EFFECT=MISSENSE"
+            + "\tGT\t0/1\n").getBytes("UTF-8"));
+        out.close();
+
+        loadAndScore(stored, results);
+        ArgumentCaptor<Map> cached = ArgumentCaptor.forClass(Map.class);
+        verify(this.geneMatches).put(Mockito.anyString(), Mockito.anyString(), Mockito.anyLong(), cached.capture());
+        Assert.assertEquals(HashMap.class, cached.getValue().getClass());
+        Assert.assertEquals(Collections.singleton(GENE), cached.getValue().keySet());
+        for (Object score : cached.getValue().values()) {
+            Assert.assertEquals(Double.class, score.getClass());
+        }
+
+        stored.clear();
+        loadAndScore(stored, results);
+        verify(this.geneMatches, times(1)).put(Mockito.anyString(), Mockito.anyString(), Mockito.anyLong(),
+            Mockito.anyMap());
+        verify(this.viewFactory, times(1)).makeSimilarPatient(this.other, this.match);
+    }
+
+    /**
+     * Load the genotype of the match, and score it against the reference.
+     *
+     * @param stored where the genotype is stored for the exomizer manager
+     * @param results the file to load the genotype from
+     * @throws IOException if loading the genotype fails
+     */
+    private void loadAndScore(Map<String, Genotype> stored, File results) throws IOException
+    {
+        stored.put("P0000002", new ExomizerGenotype(results));
+        Assert.assertEquals(PAIR_SCORE,
+            new RestrictedGenotypeSimilarityView(this.match, this.reference, this.access).getScore(), 1.0E-9);
+    }
+
+    /**
+     * Add more carriers of the shared gene, less similar to the reference than to the match, and a carrier whose
+     * patient record can't be found.
+     *
+     * @return the added carriers which have a patient record
+     */
+    private List<Patient> addCarriers()
+    {
+        List<Patient> result = new ArrayList<Patient>(MORE_CARRIERS);
+        for (int i = 0; i < MORE_CARRIERS; ++i) {
+            Patient carrier = addPatient(String.format("P00001%02d", i), 0.95);
+            setSimilarity(carrier, this.reference, 0.5);
+            result.add(carrier);
+        }
+        addPatient("P0000099", 0.95);
+        when(this.patients.getPatientById("P0000099")).thenReturn(null);
+        return result;
+    }
+
+    /**
+     * Create a scoring pool with one thread per core.
+     *
+     * @return the initialized pool
+     */
+    private DefaultGenotypeScoringPool newScoringPool() throws Exception
+    {
+        ConfigurationSource configuration = mock(ConfigurationSource.class);
+        when(configuration.getProperty(Mockito.anyString(), Mockito.anyInt()))
+            .thenReturn(Runtime.getRuntime().availableProcessors());
+        DefaultGenotypeScoringPool result = new DefaultGenotypeScoringPool();
+        ReflectionUtils.setFieldValue(result, "configuration", configuration);
+        ReflectionUtils.setFieldValue(result, "logger", mock(Logger.class));
+        result.initialize();
+        return result;
+    }
+
+    /**
+     * Create a gene match cache backed by a map.
+     *
+     * @return the initialized cache
+     */
+    @SuppressWarnings("unchecked")
+    private GeneMatchCache newGeneMatchCache() throws Exception
+    {
+        final Map<String, Object> entries = new HashMap<String, Object>();
+        Cache<Object> cache = mock(Cache.class);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+            {
+                entries.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(cache).set(Mockito.anyString(), Mockito.any());
+        when(cache.get(Mockito.anyString())).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return entries.get(invocation.getArguments()[0]);
+            }
+        });
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+            {
+                entries.clear();
+                return null;
+            }
+        }).when(cache).removeAll();
+
+        CacheManager cacheManager = mock(CacheManager.class);
+        Mockito.<Cache<Object>>when(cacheManager.createNewLocalCache(Mockito.any(CacheConfiguration.class)))
+            .thenReturn(cache);
+        DefaultGeneMatchCache result = new DefaultGeneMatchCache();
+        ReflectionUtils.setFieldValue(result, "cacheManager", cacheManager);
+        result.initialize();
+        return result;
+    }
+
+    /**
+     * Create a patient with a genotype carrying a single variant in the shared gene.
+     *
+     * @param id the identifier of the patient
+     * @param variantScore the score of the variant
+     * @return the patient, known to the repository and to the exomizer manager
+     */
+    private Patient addPatient(String id, double variantScore)
+    {
+        Variant variant = mock(Variant.class);
+        when(variant.getScore()).thenReturn(variantScore);
+        Genotype genotype = mock(Genotype.class);
+        when(genotype.getGenes()).thenReturn(Collections.singleton(GENE));
+        when(genotype.getGeneScore(GENE)).thenReturn(0.7);
+        when(genotype.getTopVariant(GENE, 0)).thenReturn(variant);
+        when(this.exomizer.getResult(id)).thenReturn(genotype);
+        this.carriers.put(id, genotype);
+
+        Patient patient = mock(Patient.class);
+        when(patient.getId()).thenReturn(id);
+        when(this.patients.getPatientById(id)).thenReturn(patient);
+        return patient;
+    }
+
+    /**
+     * Set the phenotype similarity of a pair of patients, as scored by the views of the factory.
+     *
+     * @param patient the patient being compared
+     * @param compared the patient to compare with
+     * @param score the similarity score
+     */
+    private void setSimilarity(Patient patient, Patient compared, double score)
+    {
+        PatientSimilarityView view = mock(PatientSimilarityView.class);
+        when(view.getScore()).thenReturn(score);
+        when(this.viewFactory.makeSimilarPatient(patient, compared)).thenReturn(view);
+    }
+}
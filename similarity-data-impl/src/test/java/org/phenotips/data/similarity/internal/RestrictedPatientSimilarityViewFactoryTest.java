@@ -49,9 +49,11 @@
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -191,6 +193,49 @@ public void testMakeSimilarPatientWithNullMatch() throws ComponentLookupExceptio
         this.mocker.getComponentUnderTest().makeSimilarPatient(null, mock(Patient.class));
     }
 
+    /** Missing reference throws exception when creating views in bulk. */
+    @Test(expected = IllegalArgumentException.class)
+    public void testMakeSimilarPatientsWithNullReference() throws ComponentLookupException
+    {
+        this.mocker.getComponentUnderTest().makeSimilarPatients(Collections.singleton(mock(Patient.class)), null);
+    }
+
+    /** Missing matches throw exception when creating views in bulk. */
+    @Test(expected = IllegalArgumentException.class)
+    public void testMakeSimilarPatientsWithNullMatches() throws ComponentLookupException
+    {
+        this.mocker.getComponentUnderTest().makeSimilarPatients(null, mock(Patient.class));
+    }
+
+    /** Views prepared in bulk share the profile of the reference patient. */
+    @Test
+    public void testPrepareSimilarPatientsSharesReferenceProfile() throws Exception
+    {
+        PermissionsManager pm = this.mocker.getInstance(PermissionsManager.class);
+        PatientAccess pa = mock(PatientAccess.class);
+        when(pm.getPatientAccess(Mockito.any(Patient.class))).thenReturn(pa);
+        when(pa.getAccessLevel()).thenReturn(this.mocker.<AccessLevel>getInstance(AccessLevel.class, "view"));
+        List<Patient> matches = new ArrayList<Patient>();
+        for (int i = 2; i <= 3; ++i) {
+            Patient mockMatch = mock(Patient.class);
+            when(mockMatch.getId()).thenReturn("P000000" + i);
+            matches.add(mockMatch);
+        }
+
+        List<PatientSimilarityView> result =
+            this.mocker.getComponentUnderTest().prepareSimilarPatients(matches, mock(Patient.class));
+        Assert.assertEquals(2, result.size());
+        Assert.assertSame(((DefaultPatientSimilarityView) result.get(0)).getReferenceProfile(),
+            ((DefaultPatientSimilarityView) result.get(1)).getReferenceProfile());
+    }
+
+    /** Missing reference throws exception when preparing views in bulk. */
+    @Test(expected = IllegalArgumentException.class)
+    public void testPrepareSimilarPatientsWithNullReference() throws ComponentLookupException
+    {
+        this.mocker.getComponentUnderTest().prepareSimilarPatients(Collections.singleton(mock(Patient.class)), null);
+    }
+
     @Before
     @SuppressWarnings("unchecked")
     public void setupComponents() throws Exception
@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link SharedAncestorQueue} cluster extraction.
+ *
+ * @version $Id$
+ */
+public class SharedAncestorQueueTest
+{
+    /** A <- B <- D, B <- E, A <- C; B and C are equally informative, D is the most informative. */
+    private static final OntologyIndex INDEX = OntologyIndex
+        .fromParents(new String[] { "A", "B", "C", "D", "E" }, new int[] { 0, 0, 1, 2, 3, 4 },
+            new int[] { 0, 0, 1, 1 })
+        .withInformationContent(new double[] { 0, 1, 1, 3, 2 }, new double[] { 0, 1, 1, 2, 1 });
+
+    /** Terms are grouped under the most informative shared ancestor first, ties going to the lowest ordinal. */
+    @Test
+    public void testClustersAreExtractedBestFirst()
+    {
+        // Match: D, C; reference: E, C
+        SharedAncestorQueue queue = new SharedAncestorQueue(INDEX, new int[][] { { 0, 1, 3 }, { 0, 2 } },
+            new int[][] { { 0, 1, 4 }, { 0, 2 } });
+
+        Assert.assertEquals(1, queue.getBestSharedAncestor());
+        Assert.assertArrayEquals(new int[] { 0 }, queue.popMatchTerms(1));
+        Assert.assertArrayEquals(new int[] { 0 }, queue.popReferenceTerms(1));
+
+        Assert.assertEquals(2, queue.getBestSharedAncestor());
+        Assert.assertArrayEquals(new int[] { 1 }, queue.popMatchTerms(2));
+        Assert.assertArrayEquals(new int[] { 1 }, queue.popReferenceTerms(2));
+
+        Assert.assertEquals(OntologyIndex.NO_TERM, queue.getBestSharedAncestor());
+        Assert.assertEquals(0, queue.getRemainingMatchTerms().length);
+        Assert.assertEquals(0, queue.getRemainingReferenceTerms().length);
+    }
+
+    /** Terms only related through the root are left to the caller, and stay available as remaining terms. */
+    @Test
+    public void testOnlyRootShared()
+    {
+        // Match: D, E; reference: C
+        SharedAncestorQueue queue =
+            new SharedAncestorQueue(INDEX, new int[][] { { 0, 1, 3 }, { 0, 1, 4 } }, new int[][] { { 0, 2 } });
+
+        Assert.assertEquals(0, queue.getBestSharedAncestor());
+        Assert.assertArrayEquals(new int[] { 0, 1 }, queue.getRemainingMatchTerms());
+        Assert.assertArrayEquals(new int[] { 0 }, queue.getRemainingReferenceTerms());
+    }
+
+    /** Patients without terms don't share anything. */
+    @Test
+    public void testEmpty()
+    {
+        SharedAncestorQueue queue = new SharedAncestorQueue(INDEX, new int[0][], new int[][] { { 0, 2 } });
+        Assert.assertEquals(OntologyIndex.NO_TERM, queue.getBestSharedAncestor());
+        Assert.assertArrayEquals(new int[0], queue.popMatchTerms(2));
+        Assert.assertArrayEquals(new int[0], queue.popReferenceTerms(3));
+    }
+}
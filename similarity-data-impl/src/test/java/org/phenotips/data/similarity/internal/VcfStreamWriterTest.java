@@ -0,0 +1,128 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.data.similarity.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sf.json.JSONArray;
+
+/**
+ * Tests for the streaming {@link VcfStreamWriter}.
+ *
+ * @version $Id$
+ */
+public class VcfStreamWriterTest
+{
+    private static final String HEADER =
+        "##fileFormat=VCF4.1\n#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tP1\n";
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException
+    {
+        this.file = File.createTempFile("variants", ".vcf");
+    }
+
+    @After
+    public void deleteFile()
+    {
+        this.file.delete();
+    }
+
+    /** Lines are the same as the ones of {@link ExomizerVariant}, and the digest covers them. */
+    @Test
+    public void testLinesMatchExomizerVariant() throws IOException, NoSuchAlgorithmException
+    {
+        JSONArray first = row("chr1", 12345, "A", "G", "0/1:35:99", "GENE=A;EFFECT=MISSENSE");
+        JSONArray second = row("MT", 7, "CT", "C", "1/1", "GENE=MT-ND1");
+        JSONArray third = row("x", 0, "G", "T", "1|1:0", "");
+        String expected = "";
+        for (JSONArray variant : Arrays.asList(first, second, third)) {
+            expected += new ExomizerVariant(variant).toVCFLine() + '\n';
+        }
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        VcfStreamWriter writer = new VcfStreamWriter(this.file, "P1", digest);
+        writer.write(first);
+        writer.write(second);
+        writer.write(third);
+        writer.close();
+
+        Assert.assertEquals(HEADER + expected, read());
+        Assert.assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(expected.getBytes("UTF-8")),
+            digest.digest());
+        Assert.assertTrue(expected.startsWith("1\t12345\t.\tA\tG\t.\tPASS\tGENE=A;EFFECT=MISSENSE\tGT\t0/1\n"));
+    }
+
+    /** Lines longer than the buffer are written in several parts. */
+    @Test
+    public void testLongLines() throws IOException
+    {
+        char[] info = new char[3 * 1024 * 1024];
+        Arrays.fill(info, 'x');
+        JSONArray variant = row("2", 100, "A", "C", "0/1", new String(info));
+
+        VcfStreamWriter writer = new VcfStreamWriter(this.file, "P1", null);
+        writer.write(variant);
+        writer.write(variant);
+        writer.close();
+
+        String line = new ExomizerVariant(variant).toVCFLine() + '\n';
+        Assert.assertEquals(HEADER + line + line, read());
+    }
+
+    private static JSONArray row(String chrom, int position, String ref, String alt, String sample, String info)
+    {
+        JSONArray result = new JSONArray();
+        for (int i = 0; i < 16; ++i) {
+            result.add("");
+        }
+        result.set(4, chrom);
+        result.set(5, position);
+        result.set(8, ref);
+        result.set(9, alt);
+        result.set(14, sample);
+        result.set(15, info);
+        return result;
+    }
+
+    private String read() throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile(this.file, "r");
+        try {
+            byte[] content = new byte[(int) in.length()];
+            in.readFully(content);
+            return new String(content, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
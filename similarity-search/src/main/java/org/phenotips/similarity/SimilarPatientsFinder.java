@@ -47,6 +47,19 @@
      */
     List<PatientSimilarityView> findSimilarPatients(Patient referencePatient);
 
+    /**
+     * Returns the best patients similar to a reference patient. The reference patient must be owned by the current
+     * user (or one of their groups). Only accessible patients are returned. This returns the same patients as the
+     * first {@code k} results of {@link #findSimilarPatients(Patient)}, but is faster when only a few are needed.
+     * 
+     * @param referencePatient the reference patient, must not be {@code null}
+     * @param k the maximum number of patients to return
+     * @return at most {@code k} similar patients found in the database, best matches first, an empty list if no
+     *         patients are found or if the reference patient is invalid
+     * @since 1.0M10
+     */
+    List<PatientSimilarityView> findSimilarPatients(Patient referencePatient, int k);
+
     /**
      * Returns a list of template patients similar to a reference patient. The reference patient must be owned by the
      * current user (or one of their groups).
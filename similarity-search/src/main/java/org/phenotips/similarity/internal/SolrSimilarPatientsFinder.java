@@ -28,6 +28,8 @@
 import org.phenotips.similarity.SimilarPatientsFinder;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.configuration.ConfigurationSource;
@@ -36,6 +38,15 @@
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -61,11 +72,51 @@
  */
 @Component
 @Singleton
-public class SolrSimilarPatientsFinder implements SimilarPatientsFinder, Initializable
+public class SolrSimilarPatientsFinder implements SimilarPatientsFinder, Initializable, Disposable
 {
     /** Character used in URLs to delimit path segments. */
     private static final String URL_PATH_SEPARATOR = "/";
 
+    /** Configuration key for the number of threads used for scoring candidates, defaults to the number of cores. */
+    private static final String THREADS_KEY = "phenotips.similarity.search.threads";
+
+    /**
+     * Configuration key for the time allowed for scoring the candidates of one request, in milliseconds, 0 for no
+     * limit. Candidates which can't be scored in time are left out of the results.
+     */
+    private static final String TIME_BUDGET_KEY = "phenotips.similarity.search.timeBudget";
+
+    /** By default all the candidates are scored, however long it takes, so that the results are always complete. */
+    private static final long DEFAULT_TIME_BUDGET = 0;
+
+    /** Below this number of candidates per thread, scoring is done on the request thread. */
+    private static final int MIN_CANDIDATES_PER_THREAD = 16;
+
+    /** The number of candidates scored together on the request thread, between two checks of the time budget. */
+    private static final int BATCH_SIZE = 16;
+
+    /** Orders candidates by decreasing score bound, keeping the Solr order for equal bounds. */
+    private static final Comparator<RankedView> BEST_BOUND_FIRST = new Comparator<RankedView>()
+    {
+        @Override
+        public int compare(RankedView o1, RankedView o2)
+        {
+            int result = Double.compare(o2.bound, o1.bound);
+            return result != 0 ? result : Integer.compare(o1.rank, o2.rank);
+        }
+    };
+
+    /** Orders scored candidates from the worst to the best, the same way {@link #find} would rank them. */
+    private static final Comparator<RankedView> WORST_SCORE_FIRST = new Comparator<RankedView>()
+    {
+        @Override
+        public int compare(RankedView o1, RankedView o2)
+        {
+            int result = Double.compare(o1.score, o2.score);
+            return result != 0 ? result : Integer.compare(o2.rank, o1.rank);
+        }
+    };
+
     /** Logging helper object. */
     @Inject
     private Logger logger;
@@ -91,6 +142,15 @@ public class SolrSimilarPatientsFinder implements SimilarPatientsFinder, Initial
     /** The Solr server instance used. */
     private SolrServer server;
 
+    /** The workers used for scoring candidates, {@code null} if scoring is done on the request thread only. */
+    private ExecutorService scoringPool;
+
+    /** The number of scoring threads. */
+    private int threads;
+
+    /** The time allowed for scoring the candidates of one request, in milliseconds. */
+    private long timeBudget;
+
     @Override
     public void initialize() throws InitializationException
     {
@@ -99,6 +159,23 @@ public void initialize() throws InitializationException
         } catch (RuntimeException ex) {
             throw new InitializationException("Invalid URL specified for the Solr server: {}");
         }
+
+        this.threads = Math.max(1, this.configuration.getProperty(THREADS_KEY,
+            Runtime.getRuntime().availableProcessors()));
+        this.timeBudget = this.configuration.getProperty(TIME_BUDGET_KEY, DEFAULT_TIME_BUDGET);
+        if (this.threads > 1) {
+            this.scoringPool = Executors.newFixedThreadPool(this.threads, new ScoringThreadFactory());
+        }
+        this.logger.info("Scoring similar patients with {} threads and a {}ms budget (0 for none)", this.threads,
+            this.timeBudget);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        if (this.scoringPool != null) {
+            this.scoringPool.shutdownNow();
+        }
     }
 
     @Override
@@ -107,6 +184,119 @@ public List<PatientSimilarityView> findSimilarPatients(Patient referencePatient)
         return find(referencePatient, false);
     }
 
+    @Override
+    public List<PatientSimilarityView> findSimilarPatients(Patient referencePatient, int k)
+    {
+        List<PatientSimilarityView> results = new ArrayList<PatientSimilarityView>();
+        if (k <= 0) {
+            return results;
+        }
+        List<Patient> matchPatients = getCandidates(referencePatient, false);
+
+        // The views are prepared together, sharing the reference profile, and only their cheap upper bounds are
+        // computed for all the candidates
+        List<RankedView> candidates = new ArrayList<RankedView>(matchPatients.size());
+        for (PatientSimilarityView candidate : this.factory.prepareSimilarPatients(matchPatients, referencePatient)) {
+            if (this.accessLevelThreshold.compareTo(candidate.getAccess()) <= 0) {
+                candidates.add(new RankedView(candidate, candidates.size(), candidate.getScoreUpperBound()));
+            }
+        }
+        Collections.sort(candidates, BEST_BOUND_FIRST);
+
+        // Keep the best k candidates in a heap, with the worst of them on top. Candidates are scored in rounds by
+        // decreasing bound, one at a time without scoring threads, otherwise enough of them for all the threads
+        PriorityQueue<RankedView> best = new PriorityQueue<RankedView>(k, WORST_SCORE_FIRST);
+        int roundSize = this.scoringPool == null ? 1 : this.threads * MIN_CANDIDATES_PER_THREAD;
+        int scoredCount = 0;
+        long deadline = getDeadline();
+        while (scoredCount < candidates.size()) {
+            int end = scoredCount;
+            int roundEnd = Math.min(candidates.size(), scoredCount + roundSize);
+            while (end < roundEnd && canMakeTop(candidates.get(end), best, k)) {
+                ++end;
+            }
+            if (end == scoredCount) {
+                // Candidates are sorted by their bound, none of the remaining ones can make it to the top
+                break;
+            }
+            List<RankedView> round = candidates.subList(scoredCount, end);
+            boolean complete = scoreRound(round, deadline);
+            for (RankedView candidate : round) {
+                // Also leaves out undefined scores, which can't be ranked, and candidates which weren't scored
+                if (!(candidate.score > 0)) {
+                    continue;
+                }
+                if (best.size() < k) {
+                    best.add(candidate);
+                } else if (WORST_SCORE_FIRST.compare(candidate, best.peek()) > 0) {
+                    best.poll();
+                    best.add(candidate);
+                }
+            }
+            scoredCount = end;
+            if (!complete) {
+                // The remaining candidates have lower bounds, the best ones found so far are returned
+                warnPartialResults();
+                break;
+            }
+        }
+        this.logger.debug("Fully scored {} out of {} candidates for the top {}", scoredCount, candidates.size(), k);
+
+        List<RankedView> sorted = new ArrayList<RankedView>(best);
+        Collections.sort(sorted, Collections.reverseOrder(WORST_SCORE_FIRST));
+        for (RankedView result : sorted) {
+            results.add(result.view);
+        }
+        return results;
+    }
+
+    /**
+     * Check if a candidate of the top-k search may still make it to the top, given its score bound.
+     * 
+     * @param candidate the candidate, not scored yet
+     * @param best the best candidates found so far, with the worst of them on top
+     * @param k the number of candidates to find
+     * @return {@code false} if the score of the candidate can't be positive, or can't be better than the k-th best
+     */
+    private static boolean canMakeTop(RankedView candidate, PriorityQueue<RankedView> best, int k)
+    {
+        return candidate.bound > 0 && (best.size() < k || candidate.bound >= best.peek().score);
+    }
+
+    /**
+     * Score a round of candidates of the top-k search, on the scoring threads if there are enough of them.
+     * 
+     * @param round the candidates to score, whose scores are set
+     * @param deadline when to stop scoring, as a {@link System#nanoTime()} value
+     * @return {@code true} if all the candidates were scored, {@code false} if the time budget was exceeded or scoring
+     *         failed
+     */
+    private boolean scoreRound(List<RankedView> round, long deadline)
+    {
+        if (this.scoringPool == null || round.size() < 2 * MIN_CANDIDATES_PER_THREAD) {
+            return new RankedScoringTask(round, 0, 1, deadline).call();
+        }
+
+        int taskCount = Math.min(this.threads, round.size() / MIN_CANDIDATES_PER_THREAD);
+        List<RankedScoringTask> tasks = new ArrayList<RankedScoringTask>(taskCount);
+        for (int i = 0; i < taskCount; ++i) {
+            tasks.add(new RankedScoringTask(round, i, taskCount, deadline));
+        }
+        boolean complete = true;
+        try {
+            for (Future<Boolean> future : this.scoringPool.invokeAll(tasks)) {
+                complete &= future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ex) {
+            this.logger.warn("Failed to score similar patients: {}", ex.getCause().getMessage());
+            return false;
+        }
+        return complete;
+    }
+
     @Override
     public List<PatientSimilarityView> findSimilarPrototypes(Patient referencePatient)
     {
@@ -121,10 +311,37 @@ public long countSimilarPatients(Patient referencePatient)
     }
 
     private List<PatientSimilarityView> find(Patient referencePatient, boolean prototypes)
+    {
+        List<Patient> matchPatients = getCandidates(referencePatient, prototypes);
+        List<PatientSimilarityView> results = score(matchPatients, referencePatient);
+
+        // The sort is stable and results are in the Solr order, so ties are always ordered the same way
+        Collections.sort(results, new Comparator<PatientSimilarityView>()
+        {
+            @Override
+            public int compare(PatientSimilarityView o1, PatientSimilarityView o2)
+            {
+                return (int) Math.signum(o2.getScore() - o1.getScore());
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Load the patients matched by the Solr index for a reference patient.
+     * 
+     * @param referencePatient the reference patient
+     * @param prototypes whether to look for template patients instead of real patients
+     * @return the matched patients, in the Solr order
+     */
+    private List<Patient> getCandidates(Patient referencePatient, boolean prototypes)
     {
         SolrQuery query = generateQuery(referencePatient, prototypes);
         SolrDocumentList docs = search(query);
-        List<PatientSimilarityView> results = new ArrayList<PatientSimilarityView>(docs.size());
+        if (docs == null) {
+            return new ArrayList<Patient>();
+        }
+        List<Patient> matchPatients = new ArrayList<Patient>(docs.size());
         for (SolrDocument doc : docs) {
             String name = (String) doc.getFieldValue("document");
             Patient matchPatient = this.patients.getPatientById(name);
@@ -132,23 +349,117 @@ private List<PatientSimilarityView> find(Patient referencePatient, boolean proto
                 // Leftover patient in the index, should be removed
                 continue;
             }
-            PatientSimilarityView result = this.factory.makeSimilarPatient(matchPatient, referencePatient);
-            if (this.accessLevelThreshold.compareTo(result.getAccess()) <= 0 && result.getScore() > 0) {
+            matchPatients.add(matchPatient);
+        }
+        return matchPatients;
+    }
+
+    /**
+     * Pair the candidates with the reference patient and score them. The views are prepared and access rights are
+     * checked on the request thread, since they depend on the current user and on the XWiki context, while the actual
+     * scoring is spread over the scoring pool. Candidates that
+     * couldn't be scored within the time budget are left out.
+     * 
+     * @param matchPatients the candidate patients, in the Solr order
+     * @param referencePatient the reference patient
+     * @return the accessible candidates with a positive score, in the Solr order
+     */
+    private List<PatientSimilarityView> score(List<Patient> matchPatients, Patient referencePatient)
+    {
+        long deadline = getDeadline();
+        if (this.scoringPool == null || matchPatients.size() < 2 * MIN_CANDIDATES_PER_THREAD) {
+            return scoreInBatches(matchPatients, referencePatient, deadline);
+        }
+
+        // The views are prepared here, where the current user and the components are known, sharing the reference
+        // profile; the scoring threads then only compute the scores
+        List<PatientSimilarityView> candidates = new ArrayList<PatientSimilarityView>(matchPatients.size());
+        for (PatientSimilarityView candidate : this.factory.prepareSimilarPatients(matchPatients, referencePatient)) {
+            if (this.accessLevelThreshold.compareTo(candidate.getAccess()) <= 0) {
+                candidates.add(candidate);
+            }
+        }
+
+        // Each task scores every n-th candidate, so that the best ranked candidates are scored first by all threads
+        PatientSimilarityView[] scored = new PatientSimilarityView[candidates.size()];
+        int taskCount = Math.min(this.threads, (candidates.size() + MIN_CANDIDATES_PER_THREAD - 1)
+            / MIN_CANDIDATES_PER_THREAD);
+        List<ScoringTask> tasks = new ArrayList<ScoringTask>(taskCount);
+        for (int i = 0; i < taskCount; ++i) {
+            tasks.add(new ScoringTask(candidates, scored, i, taskCount, deadline));
+        }
+        try {
+            for (Future<Void> future : this.scoringPool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            this.logger.warn("Failed to score similar patients: {}", ex.getCause().getMessage());
+        }
+
+        List<PatientSimilarityView> results = new ArrayList<PatientSimilarityView>(scored.length);
+        for (PatientSimilarityView result : scored) {
+            if (result != null) {
                 results.add(result);
             }
         }
+        if (System.nanoTime() > deadline) {
+            warnPartialResults();
+        }
+        return results;
+    }
 
-        Collections.sort(results, new Comparator<PatientSimilarityView>()
-        {
-            @Override
-            public int compare(PatientSimilarityView o1, PatientSimilarityView o2)
-            {
-                return (int) Math.signum(o2.getScore() - o1.getScore());
+    /**
+     * Score the candidates on the request thread, a batch at a time, so that the data needed from the reference patient
+     * is only prepared once per batch. Batches which can't start within the time budget are left out.
+     * 
+     * @param matchPatients the candidate patients, in the Solr order
+     * @param referencePatient the reference patient
+     * @param deadline when to stop scoring, as a {@link System#nanoTime()} value
+     * @return the accessible candidates with a positive score, in the Solr order
+     */
+    private List<PatientSimilarityView> scoreInBatches(List<Patient> matchPatients, Patient referencePatient,
+        long deadline)
+    {
+        List<PatientSimilarityView> results = new ArrayList<PatientSimilarityView>(matchPatients.size());
+        for (int start = 0; start < matchPatients.size(); start += BATCH_SIZE) {
+            if (System.nanoTime() > deadline) {
+                warnPartialResults();
+                break;
             }
-        });
+            List<Patient> batch = matchPatients.subList(start, Math.min(start + BATCH_SIZE, matchPatients.size()));
+            for (PatientSimilarityView result : this.factory.makeSimilarPatients(batch, referencePatient)) {
+                if (this.accessLevelThreshold.compareTo(result.getAccess()) <= 0 && result.getScore() > 0) {
+                    results.add(result);
+                }
+            }
+        }
         return results;
     }
 
+    /**
+     * Get the time when scoring the candidates of a request must stop.
+     *
+     * @return the deadline, as a {@link System#nanoTime()} value, never reached if there's no time budget
+     */
+    private long getDeadline()
+    {
+        if (this.timeBudget <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeBudget);
+    }
+
+    /**
+     * Log that the time budget was exceeded and that only part of the candidates are returned.
+     */
+    private void warnPartialResults()
+    {
+        this.logger.warn("Scoring similar patients exceeded the {}ms budget, returning partial results",
+            this.timeBudget);
+    }
+
     /**
      * Generates a Solr query that tries to match patients similar to the reference.
      * 
@@ -218,4 +529,153 @@ protected String getSolrLocation()
         return StringUtils.substringBeforeLast(StringUtils.removeEnd(wikiSolrUrl, URL_PATH_SEPARATOR),
             URL_PATH_SEPARATOR) + URL_PATH_SEPARATOR;
     }
+
+    /**
+     * Scores a strided slice of the candidates, storing the ones with a positive score at their position in the shared
+     * result array. Each position is written by a single task, and the results are only read after the task completed.
+     */
+    private static final class ScoringTask implements Callable<Void>
+    {
+        /** All the candidates of the request. */
+        private final List<PatientSimilarityView> candidates;
+
+        /** Where to store the candidates with a positive score. */
+        private final PatientSimilarityView[] scored;
+
+        /** The first position handled by this task. */
+        private final int start;
+
+        /** The distance between two positions handled by this task. */
+        private final int step;
+
+        /** When to stop scoring, as a {@link System#nanoTime()} value. */
+        private final long deadline;
+
+        /**
+         * Simple constructor passing all the data needed by the task.
+         * 
+         * @param candidates all the candidates of the request
+         * @param scored where to store the candidates with a positive score
+         * @param start the first position handled by this task
+         * @param step the distance between two positions handled by this task
+         * @param deadline when to stop scoring, as a {@link System#nanoTime()} value
+         */
+        ScoringTask(List<PatientSimilarityView> candidates, PatientSimilarityView[] scored, int start, int step,
+            long deadline)
+        {
+            this.candidates = candidates;
+            this.scored = scored;
+            this.start = start;
+            this.step = step;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public Void call()
+        {
+            for (int i = this.start; i < this.scored.length; i += this.step) {
+                if (System.nanoTime() > this.deadline || Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                PatientSimilarityView candidate = this.candidates.get(i);
+                if (candidate.getScore() > 0) {
+                    this.scored[i] = candidate;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Scores a strided slice of a round of candidates of the top-k search, setting their score. Each candidate is
+     * scored by a single task, and the scores are only read after the task completed.
+     */
+    private static final class RankedScoringTask implements Callable<Boolean>
+    {
+        /** The candidates of the round. */
+        private final List<RankedView> round;
+
+        /** The first position handled by this task. */
+        private final int start;
+
+        /** The distance between two positions handled by this task. */
+        private final int step;
+
+        /** When to stop scoring, as a {@link System#nanoTime()} value. */
+        private final long deadline;
+
+        /**
+         * Simple constructor passing all the data needed by the task.
+         * 
+         * @param round the candidates of the round
+         * @param start the first position handled by this task
+         * @param step the distance between two positions handled by this task
+         * @param deadline when to stop scoring, as a {@link System#nanoTime()} value
+         */
+        RankedScoringTask(List<RankedView> round, int start, int step, long deadline)
+        {
+            this.round = round;
+            this.start = start;
+            this.step = step;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public Boolean call()
+        {
+            for (int i = this.start; i < this.round.size(); i += this.step) {
+                if (System.nanoTime() > this.deadline || Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                RankedView candidate = this.round.get(i);
+                candidate.score = candidate.view.getScore();
+            }
+            return true;
+        }
+    }
+
+    /** A candidate along with its position in the Solr results, its score bound and, once computed, its score. */
+    private static final class RankedView
+    {
+        /** The candidate. */
+        private final PatientSimilarityView view;
+
+        /** The position of the candidate in the Solr results. */
+        private final int rank;
+
+        /** The upper bound of the candidate score. */
+        private final double bound;
+
+        /** The score of the candidate, {@code NaN} until it is computed. */
+        private volatile double score = Double.NaN;
+
+        /**
+         * Simple constructor passing the candidate and its score bound.
+         * 
+         * @param view the candidate
+         * @param rank the position of the candidate in the Solr results
+         * @param bound the upper bound of the candidate score
+         */
+        RankedView(PatientSimilarityView view, int rank, double bound)
+        {
+            this.view = view;
+            this.rank = rank;
+            this.bound = bound;
+        }
+    }
+
+    /** Creates named daemon threads for the scoring pool, so that they don't prevent the server from shutting down. */
+    private static final class ScoringThreadFactory implements ThreadFactory
+    {
+        /** Used for numbering the threads. */
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread thread = new Thread(task, "similarity-scoring-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
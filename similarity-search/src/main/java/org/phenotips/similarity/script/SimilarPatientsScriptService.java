@@ -20,10 +20,13 @@
 package org.phenotips.similarity.script;
 
 import org.phenotips.data.Patient;
+import org.phenotips.data.similarity.ExternalToolJobManager;
 import org.phenotips.data.similarity.PatientSimilarityView;
 import org.phenotips.similarity.SimilarPatientsFinder;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.script.service.ScriptService;
 import org.xwiki.stability.Unstable;
 
@@ -49,6 +52,10 @@ public class SimilarPatientsScriptService implements ScriptService
     @Inject
     private SimilarPatientsFinder finder;
 
+    /** Used for looking up the genotype manager, which may not be installed. */
+    @Inject
+    private ComponentManager componentManager;
+
     /**
      * Returns a list of patients similar to a reference patient. The reference patient must be owned by the current
      * user (or one of their groups). Only accessible patients are returned.
@@ -62,6 +69,20 @@ public List<PatientSimilarityView> findSimilarPatients(Patient referencePatient)
         return this.finder.findSimilarPatients(referencePatient);
     }
 
+    /**
+     * Returns the best patients similar to a reference patient. The reference patient must be owned by the current
+     * user (or one of their groups). Only accessible patients are returned.
+     * 
+     * @param referencePatient the reference patient, must not be {@code null}
+     * @param k the maximum number of patients to return
+     * @return at most {@code k} similar patients found in the database, best matches first, an empty list if no
+     *         patients are found or if the reference patient is invalid
+     */
+    public List<PatientSimilarityView> findSimilarPatients(Patient referencePatient, int k)
+    {
+        return this.finder.findSimilarPatients(referencePatient, k);
+    }
+
     /**
      * Returns a list of patients similar to a reference patient. The reference patient must be owned by the current
      * user (or one of their groups). Only accessible patients are returned.
@@ -86,4 +107,22 @@ public long countSimilarPatients(Patient referencePatient)
     {
         return this.finder.countSimilarPatients(referencePatient);
     }
+
+    /**
+     * Checks whether the genotypes of all the patients are loaded. Right after a restart they are loaded in the
+     * background, and until then genotype similarity only takes into account the patients loaded so far.
+     * 
+     * @return {@code false} if genotypes are still loading, {@code true} otherwise, including when genotype similarity
+     *         isn't available
+     */
+    public boolean areGenotypesReady()
+    {
+        try {
+            ExternalToolJobManager<?> manager =
+                this.componentManager.getInstance(ExternalToolJobManager.class, "exomizer");
+            return manager.isReady();
+        } catch (ComponentLookupException ex) {
+            return true;
+        }
+    }
 }
@@ -0,0 +1,458 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.phenotips.similarity.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.data.permissions.AccessLevel;
+import org.phenotips.data.similarity.PatientSimilarityView;
+import org.phenotips.data.similarity.PatientSimilarityViewFactory;
+import org.phenotips.similarity.SimilarPatientsFinder;
+
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link SolrSimilarPatientsFinder} ranking, time budget and top-k search, with mocked candidates.
+ *
+ * @version $Id$
+ */
+public class SolrSimilarPatientsFinderTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<SimilarPatientsFinder> mocker =
+        new MockitoComponentMockingRule<SimilarPatientsFinder>(SolrSimilarPatientsFinder.class);
+
+    private final SolrDocumentList documents = new SolrDocumentList();
+
+    private final Map<String, Patient> patients = new HashMap<String, Patient>();
+
+    private final Map<Patient, PatientSimilarityView> views = new HashMap<Patient, PatientSimilarityView>();
+
+    /** All the candidates, in the Solr order. */
+    private final List<PatientSimilarityView> candidates = new ArrayList<PatientSimilarityView>();
+
+    /** The candidates which the current user can't see. */
+    private final List<PatientSimilarityView> hidden = new ArrayList<PatientSimilarityView>();
+
+    private final AtomicInteger batches = new AtomicInteger();
+
+    /** The threads on which views were prepared for the scoring threads. */
+    private final List<Thread> preparingThreads = Collections.synchronizedList(new ArrayList<Thread>());
+
+    private PatientSimilarityViewFactory factory;
+
+    private Patient reference;
+
+    private AccessLevel granted;
+
+    private AccessLevel denied;
+
+    /** How long scoring a batch of candidates takes, in milliseconds. */
+    private long batchDelay;
+
+    /** How long scoring one candidate takes, in milliseconds. */
+    private long scoreDelay;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.reference = mock(Patient.class);
+        when(this.reference.getDocument()).thenReturn(new DocumentReference("xwiki", "data", "P0000001"));
+        doReturn(Collections.emptySet()).when(this.reference).getFeatures();
+
+        this.granted = mock(AccessLevel.class);
+        this.denied = mock(AccessLevel.class);
+        AccessLevel threshold = this.mocker.getInstance(AccessLevel.class, "match");
+        when(threshold.compareTo(Mockito.any(AccessLevel.class))).thenAnswer(new Answer<Integer>()
+        {
+            @Override
+            public Integer answer(InvocationOnMock invocation)
+            {
+                return invocation.getArguments()[0] == SolrSimilarPatientsFinderTest.this.granted ? 0 : 1;
+            }
+        });
+
+        PatientRepository repository = this.mocker.getInstance(PatientRepository.class);
+        when(repository.getPatientById(Mockito.anyString())).thenAnswer(new Answer<Patient>()
+        {
+            @Override
+            public Patient answer(InvocationOnMock invocation)
+            {
+                return SolrSimilarPatientsFinderTest.this.patients.get(invocation.getArguments()[0]);
+            }
+        });
+
+        this.factory = this.mocker.getInstance(PatientSimilarityViewFactory.class, "restricted");
+        when(this.factory.makeSimilarPatient(Mockito.any(Patient.class), Mockito.same(this.reference))).thenAnswer(
+            new Answer<PatientSimilarityView>()
+            {
+                @Override
+                public PatientSimilarityView answer(InvocationOnMock invocation)
+                {
+                    return SolrSimilarPatientsFinderTest.this.views.get(invocation.getArguments()[0]);
+                }
+            });
+        when(this.factory.prepareSimilarPatients(Mockito.anyCollectionOf(Patient.class),
+            Mockito.same(this.reference))).thenAnswer(new Answer<List<PatientSimilarityView>>()
+            {
+                @Override
+                public List<PatientSimilarityView> answer(InvocationOnMock invocation)
+                {
+                    SolrSimilarPatientsFinderTest.this.preparingThreads.add(Thread.currentThread());
+                    List<PatientSimilarityView> result = new ArrayList<PatientSimilarityView>();
+                    for (Object match : (Collection<?>) invocation.getArguments()[0]) {
+                        result.add(SolrSimilarPatientsFinderTest.this.views.get(match));
+                    }
+                    return result;
+                }
+            });
+        when(this.factory.makeSimilarPatients(Mockito.anyCollectionOf(Patient.class), Mockito.same(this.reference)))
+            .thenAnswer(new Answer<List<PatientSimilarityView>>()
+            {
+                @Override
+                public List<PatientSimilarityView> answer(InvocationOnMock invocation) throws InterruptedException
+                {
+                    SolrSimilarPatientsFinderTest.this.batches.incrementAndGet();
+                    Thread.sleep(SolrSimilarPatientsFinderTest.this.batchDelay);
+                    List<PatientSimilarityView> result = new ArrayList<PatientSimilarityView>();
+                    for (Object match : (Collection<?>) invocation.getArguments()[0]) {
+                        PatientSimilarityView view = SolrSimilarPatientsFinderTest.this.views.get(match);
+                        view.getScore();
+                        result.add(view);
+                    }
+                    return result;
+                }
+            });
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        ((Disposable) this.mocker.getComponentUnderTest()).dispose();
+    }
+
+    /** Results are ranked by score, ties keep the Solr order, and hidden or unrelated candidates are left out. */
+    @Test
+    public void testSequentialResultsAreRankedByScore() throws Exception
+    {
+        PatientSimilarityView first = addCandidate(0.5, 1);
+        PatientSimilarityView second = addCandidate(0.9, 1);
+        PatientSimilarityView third = addCandidate(0.5, 1);
+        addCandidate(0, 1);
+        PatientSimilarityView fifth = addCandidate(0.9, 1);
+        addHiddenCandidate(1, 1);
+
+        List<PatientSimilarityView> results = getFinder(1, 10000).findSimilarPatients(this.reference);
+
+        Assert.assertEquals(Arrays.asList(second, fifth, first, third), results);
+        Assert.assertEquals(1, this.batches.get());
+        verify(this.factory, never()).makeSimilarPatient(Mockito.any(Patient.class), Mockito.any(Patient.class));
+    }
+
+    /** Several batches are ranked together, in the same order as a single batch. */
+    @Test
+    public void testBatchesAreRankedTogether() throws Exception
+    {
+        addCandidates(40);
+
+        List<PatientSimilarityView> results = getFinder(1, 10000).findSimilarPatients(this.reference);
+
+        Assert.assertEquals(getExpectedRanking(), results);
+        Assert.assertEquals(3, this.batches.get());
+    }
+
+    /** Scoring on several threads gives the same ranking as scoring on the request thread. */
+    @Test
+    public void testParallelResultsAreRankedByScore() throws Exception
+    {
+        addCandidates(100);
+
+        List<PatientSimilarityView> results = getFinder(4, 10000).findSimilarPatients(this.reference);
+
+        Assert.assertEquals(getExpectedRanking(), results);
+        // The views are all prepared at once on the request thread, sharing the reference profile
+        Assert.assertEquals(Collections.singletonList(Thread.currentThread()), this.preparingThreads);
+        verify(this.factory, never()).makeSimilarPatient(Mockito.any(Patient.class), Mockito.any(Patient.class));
+    }
+
+    /** Batches which can't start within the time budget are left out, keeping the best ranked candidates. */
+    @Test
+    public void testSequentialScoringStopsAtDeadline() throws Exception
+    {
+        for (int i = 0; i < 64; ++i) {
+            addCandidate(0.5, 1);
+        }
+        this.batchDelay = 150;
+
+        List<PatientSimilarityView> results = getFinder(1, 200).findSimilarPatients(this.reference);
+
+        Assert.assertTrue(results.size() > 0);
+        Assert.assertTrue(results.size() < 64);
+        Assert.assertEquals(this.candidates.subList(0, results.size()), results);
+        verify(this.mocker.getMockedLogger()).warn(Mockito.anyString(), Mockito.eq(200L));
+    }
+
+    /** Without a time budget, all the candidates are scored however long it takes. */
+    @Test
+    public void testNoTimeBudgetScoresAllCandidates() throws Exception
+    {
+        for (int i = 0; i < 64; ++i) {
+            addCandidate(0.5, 1);
+        }
+        this.batchDelay = 50;
+
+        List<PatientSimilarityView> results = getFinder(1, 0).findSimilarPatients(this.reference);
+
+        Assert.assertEquals(this.candidates, results);
+        verify(this.mocker.getMockedLogger(), never()).warn(Mockito.anyString(), Mockito.anyLong());
+    }
+
+    /** Candidates which can't be scored within the time budget on the scoring threads are left out. */
+    @Test
+    public void testParallelScoringStopsAtDeadline() throws Exception
+    {
+        for (int i = 0; i < 40; ++i) {
+            addCandidate(0.5, 1);
+        }
+        this.scoreDelay = 50;
+
+        List<PatientSimilarityView> results = getFinder(2, 200).findSimilarPatients(this.reference);
+
+        Assert.assertTrue(results.size() > 0);
+        Assert.assertTrue(results.size() < 40);
+        verify(this.mocker.getMockedLogger()).warn(Mockito.anyString(), Mockito.eq(200L));
+    }
+
+    /** The top-k search, which skips candidates using their score bound, returns the start of the full ranking. */
+    @Test
+    public void testTopKMatchesFullRanking() throws Exception
+    {
+        addCandidates(60);
+        SimilarPatientsFinder finder = getFinder(1, 10000);
+
+        List<PatientSimilarityView> ranking = finder.findSimilarPatients(this.reference);
+
+        Assert.assertFalse(ranking.isEmpty());
+        for (int k : new int[] { 1, 2, 3, 5, 10, 100 }) {
+            Assert.assertEquals(ranking.subList(0, Math.min(k, ranking.size())),
+                finder.findSimilarPatients(this.reference, k));
+        }
+        Assert.assertTrue(finder.findSimilarPatients(this.reference, 0).isEmpty());
+    }
+
+    /** With scoring threads, the top-k search prepares the views together and still returns the full ranking start. */
+    @Test
+    public void testParallelTopKMatchesFullRanking() throws Exception
+    {
+        addCandidates(200);
+        SimilarPatientsFinder finder = getFinder(4, 10000);
+
+        List<PatientSimilarityView> ranking = finder.findSimilarPatients(this.reference);
+
+        Assert.assertFalse(ranking.isEmpty());
+        for (int k : new int[] { 1, 5, 100, 300 }) {
+            this.preparingThreads.clear();
+            Assert.assertEquals(ranking.subList(0, Math.min(k, ranking.size())),
+                finder.findSimilarPatients(this.reference, k));
+            Assert.assertEquals(Collections.singletonList(Thread.currentThread()), this.preparingThreads);
+        }
+        verify(this.factory, never()).makeSimilarPatient(Mockito.any(Patient.class), Mockito.any(Patient.class));
+    }
+
+    /** Candidates whose score bound is below the k-th best score are not scored. */
+    @Test
+    public void testTopKSkipsHopelessCandidates() throws Exception
+    {
+        PatientSimilarityView best = addCandidate(0.8, 0.9);
+        PatientSimilarityView hopeless = addCandidate(0.4, 0.5);
+        PatientSimilarityView overrated = addCandidate(0.1, 0.95);
+
+        List<PatientSimilarityView> results = getFinder(1, 10000).findSimilarPatients(this.reference, 1);
+
+        Assert.assertEquals(Collections.singletonList(best), results);
+        verify(overrated).getScore();
+        verify(hopeless, never()).getScore();
+    }
+
+    /** Candidates without a defined score are left out of the top-k search. */
+    @Test
+    public void testTopKSkipsUndefinedScores() throws Exception
+    {
+        addCandidate(Double.NaN, 0.9);
+        PatientSimilarityView scored = addCandidate(0.5, 0.6);
+
+        List<PatientSimilarityView> results = getFinder(1, 10000).findSimilarPatients(this.reference, 2);
+
+        Assert.assertEquals(Collections.singletonList(scored), results);
+    }
+
+    /** The top-k search stops scoring candidates once the time budget is exceeded, keeping the best ones so far. */
+    @Test
+    public void testTopKStopsAtDeadline() throws Exception
+    {
+        for (int i = 0; i < 20; ++i) {
+            addCandidate(0.5, 1 - i / 100.0);
+        }
+        this.scoreDelay = 50;
+
+        List<PatientSimilarityView> results = getFinder(1, 200).findSimilarPatients(this.reference, 20);
+
+        Assert.assertTrue(results.size() > 0);
+        Assert.assertTrue(results.size() < 20);
+        Assert.assertEquals(this.candidates.subList(0, results.size()), results);
+        verify(this.mocker.getMockedLogger()).warn(Mockito.anyString(), Mockito.eq(200L));
+    }
+
+    private SimilarPatientsFinder getFinder(int threads, long timeBudget) throws Exception
+    {
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        when(configuration.getProperty(Mockito.eq("phenotips.similarity.search.threads"), Mockito.anyInt()))
+            .thenReturn(threads);
+        when(configuration.getProperty(Mockito.eq("phenotips.similarity.search.timeBudget"), Mockito.anyLong()))
+            .thenReturn(timeBudget);
+
+        SimilarPatientsFinder finder = this.mocker.getComponentUnderTest();
+        SolrServer server = mock(SolrServer.class);
+        QueryResponse response = mock(QueryResponse.class);
+        when(server.query(Mockito.any(SolrParams.class))).thenReturn(response);
+        when(response.getResults()).thenReturn(this.documents);
+        ReflectionUtils.setFieldValue(finder, "server", server);
+        return finder;
+    }
+
+    /**
+     * Add candidates with a few different scores, so that there are ties, some of them without any similarity and
+     * some of them hidden.
+     *
+     * @param count the number of candidates to add
+     */
+    private void addCandidates(int count)
+    {
+        Random random = new Random(42);
+        for (int i = 0; i < count; ++i) {
+            double score = random.nextInt(6) / 10.0;
+            double bound = score + random.nextInt(4) / 10.0;
+            if (i % 7 == 3) {
+                addHiddenCandidate(score, bound);
+            } else {
+                addCandidate(score, bound);
+            }
+        }
+    }
+
+    private PatientSimilarityView addCandidate(double score, double bound)
+    {
+        PatientSimilarityView view = addView(score, bound);
+        when(view.getAccess()).thenReturn(this.granted);
+        return view;
+    }
+
+    private PatientSimilarityView addHiddenCandidate(double score, double bound)
+    {
+        PatientSimilarityView view = addView(score, bound);
+        when(view.getAccess()).thenReturn(this.denied);
+        this.hidden.add(view);
+        return view;
+    }
+
+    private PatientSimilarityView addView(final double score, double bound)
+    {
+        String name = String.format("xwiki:data.P%07d", this.candidates.size() + 2);
+        SolrDocument document = new SolrDocument();
+        document.setField("document", name);
+        this.documents.add(document);
+
+        Patient patient = mock(Patient.class);
+        this.patients.put(name, patient);
+        PatientSimilarityView view = mock(PatientSimilarityView.class);
+        when(view.getScore()).thenAnswer(new Answer<Double>()
+        {
+            @Override
+            public Double answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                Thread.sleep(SolrSimilarPatientsFinderTest.this.scoreDelay);
+                return score;
+            }
+        });
+        when(view.getScoreUpperBound()).thenReturn(bound);
+        this.views.put(patient, view);
+        this.candidates.add(view);
+        return view;
+    }
+
+    /**
+     * The visible candidates with a positive score, by decreasing score and then in the Solr order.
+     *
+     * @return the expected results of a full search
+     */
+    private List<PatientSimilarityView> getExpectedRanking()
+    {
+        List<PatientSimilarityView> result = new ArrayList<PatientSimilarityView>();
+        for (PatientSimilarityView candidate : this.candidates) {
+            if (!this.hidden.contains(candidate) && candidate.getScore() > 0) {
+                result.add(candidate);
+            }
+        }
+        Collections.sort(result, new Comparator<PatientSimilarityView>()
+        {
+            @Override
+            public int compare(PatientSimilarityView o1, PatientSimilarityView o2)
+            {
+                return Double.compare(o2.getScore(), o1.getScore());
+            }
+        });
+        return result;
+    }
+}